@@ -29,8 +29,10 @@ import com.ms.wsdiscovery.gui2.dialogs.WsDiscoveryCustomProbeDialog;
 import com.ms.wsdiscovery.gui2.dialogs.WsDiscoveryServiceDialog;
 import com.ms.wsdiscovery.exception.WsDiscoveryNetworkException;
 import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryServiceProjection;
 import com.ms.wsdiscovery.servicedirectory.exception.WsDiscoveryServiceDirectoryException;
 import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceDirectory;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceDirectoryListener;
 import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
 import java.awt.Color;
 import java.awt.event.ActionEvent;
@@ -46,6 +48,7 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
@@ -90,6 +93,47 @@ public class WsDiscoveryGui extends javax.swing.JFrame {
 
     private WsDiscoveryServer wsdiscovery = null;
     private Timer discoveryTimer;
+    private boolean tablesLoaded = false; // Only accessed from the event dispatch thread
+
+    /**
+     * Runs listener notifications on the event dispatch thread.
+     */
+    private final Executor swingExecutor = new Executor() {
+        public void execute(Runnable command) {
+            java.awt.EventQueue.invokeLater(command);
+        }
+    };
+
+    /**
+     * Keeps a table up to date with the services in a service directory.
+     * Called on the event dispatch thread.
+     */
+    class TableUpdater implements IWsDiscoveryServiceDirectoryListener {
+        private final DefaultTableModel model;
+
+        TableUpdater(DefaultTableModel model) {
+            this.model = model;
+        }
+
+        public void serviceAdded(WsDiscoveryService service) {
+            serviceUpdated(service);
+        }
+
+        public void serviceUpdated(WsDiscoveryService service) {
+            String[] row = serviceToRow(service);
+            int j = findRowByUUID(model, row[0]);
+            if (j > -1)
+                updateRow(model, j, row);
+            else
+                model.addRow(row);
+        }
+
+        public void serviceRemoved(WsDiscoveryService service) {
+            int j = findRowByUUID(model, service.getEndpointReference().getAddress().toString());
+            if (j > -1)
+                model.removeRow(j);
+        }
+    }
 
     /** Creates new form WsDiscoveryGui */
     public WsDiscoveryGui() {
@@ -110,27 +154,28 @@ public class WsDiscoveryGui extends javax.swing.JFrame {
                     buttonSendProbe.setEnabled(true);
                     buttonSendCustomProbe.setEnabled(true);
 
-                    DefaultTableModel model;
-                    IWsDiscoveryServiceDirectory services;
+                    // Fill the tables once. Later changes are received by the listeners
+                    // registered in startWsDiscovery().
+                    if (!tablesLoaded) {
+                        tablesLoaded = true;
 
-                    // Local services
-                    try {
-                        services = wsdiscovery.getLocalServices();
-                        model = (DefaultTableModel) tableLocalServices.getModel();
-                        addServicesToTable(model, services);
-                    } catch (WsDiscoveryServiceDirectoryException ex) {
-                        log_fatal(ex.toString());
-                        JOptionPane.showMessageDialog(null, ex.getMessage());
-                    }
+                        // Local services
+                        try {
+                            addServicesToTable((DefaultTableModel) tableLocalServices.getModel(),
+                                    wsdiscovery.getLocalServices());
+                        } catch (WsDiscoveryServiceDirectoryException ex) {
+                            log_fatal(ex.toString());
+                            JOptionPane.showMessageDialog(null, ex.getMessage());
+                        }
 
-                    // Remote services
-                    try {
-                        services = wsdiscovery.getServiceDirectory();
-                        model = (DefaultTableModel) tableServiceDirectory.getModel();
-                        addServicesToTable(model, services);
-                    } catch (WsDiscoveryServiceDirectoryException ex) {
-                        log_fatal(ex.toString());
-                        JOptionPane.showMessageDialog(null, ex.getMessage());
+                        // Remote services
+                        try {
+                            addServicesToTable((DefaultTableModel) tableServiceDirectory.getModel(),
+                                    wsdiscovery.getServiceDirectory());
+                        } catch (WsDiscoveryServiceDirectoryException ex) {
+                            log_fatal(ex.toString());
+                            JOptionPane.showMessageDialog(null, ex.getMessage());
+                        }
                     }
 
                     // Update buttons
@@ -278,9 +323,17 @@ public class WsDiscoveryGui extends javax.swing.JFrame {
     }
 
     public void addServicesToTable(DefaultTableModel model, IWsDiscoveryServiceDirectory services) throws WsDiscoveryServiceDirectoryException {
+        // Only copy the columns shown in the table out of the directory
+        WsDiscoveryServiceProjection<String[]> rows = new WsDiscoveryServiceProjection<String[]>() {
+            @Override
+            protected String[] project(WsDiscoveryService service) {
+                return serviceToRow(service);
+            }
+        };
+        services.visitAll(0, rows);
+
         // Add or update all rows
-        for (WsDiscoveryService s : services.matchAll()) {
-            String[] row = serviceToRow(s);
+        for (String[] row : rows.getResults()) {
             int j = findRowByUUID(model, row[0]);
             if (j > -1)
                 updateRow(model, j, row);
@@ -311,6 +364,11 @@ public class WsDiscoveryGui extends javax.swing.JFrame {
                 }
                
                 wsdiscovery = new WsDiscoveryServer();
+                wsdiscovery.getLocalServices().addListener(
+                        new TableUpdater((DefaultTableModel) tableLocalServices.getModel()), null, null, swingExecutor);
+                wsdiscovery.getServiceDirectory().addListener(
+                        new TableUpdater((DefaultTableModel) tableServiceDirectory.getModel()), null, null, swingExecutor);
+                tablesLoaded = false;
                 wsdiscovery.start();
 
                 buttonWsDiscoveryControl.setText("Stop WS-Discovery");
@@ -26,6 +26,7 @@ import java.net.UnknownHostException;
 import java.nio.charset.Charset;
 import java.util.Date;
 import java.util.UUID;
+import java.util.concurrent.Executor;
 import java.util.logging.Level;
 import javax.xml.namespace.QName;
 import javax.xml.soap.SOAPConstants;
@@ -163,7 +164,199 @@ public class WsDiscoveryConstants {
      * Application Sequencing in the WS-Discovery specifiction for details.
      */
     public final static UUID sequenceId = UUID.randomUUID(); 
+
+    /**
+     * When true, WsDiscoveryServer serves all supported WS-Discovery versions 
+     * on one socket and with one set of service directories. Replies are sent 
+     * in the version used by the requester. Probe and Resolve are sent in all
+     * versions. Hello and Bye are sent in the versions recently heard on the
+     * network, or in all versions if none has been heard.
+     */
+    public static boolean serveAllVersions = false;
+
+    /**
+     * Maximum number of peers whose WS-Discovery version is remembered when
+     * serveAllVersions is enabled.
+     */
+    public static int peerVersionsSize = 1000;
+
+    /**
+     * Time in milliseconds a WS-Discovery version is considered present on the
+     * network after a message of this version was last received. Hello and Bye
+     * are only sent in present versions when serveAllVersions is enabled.
+     */
+    public static long peerVersionTimeout = 3600000;
+
+    /**
+     * Maximum number of senders (InstanceId and SequenceId pairs) to remember
+     * when filtering out stale messages by their AppSequence. The least recently 
+     * seen sender is forgotten first. Set to 0 to disable the filter.
+     */
+    public static int appSequenceFilterSize = 1000;
     
+    /**
+     * Minimum time in milliseconds between two Resolve messages sent for the 
+     * same service. Set to 0 to disable.
+     */
+    public static long resolveInterval = 10000;
+
+    /**
+     * Minimum time in milliseconds between two ResolveMatches sent for the same
+     * service to the same host. Set to 0 to disable.
+     */
+    public static long resolveMatchInterval = 10000;
+
+    /**
+     * Maximum number of services (for Resolve) or service and host pairs 
+     * (for ResolveMatches) remembered when throttling. The oldest entry is 
+     * forgotten first.
+     */
+    public static int resolveThrottleSize = 10000;
+
+    /**
+     * Maximum number of Probe queries whose results are cached by each service
+     * directory. The cache is cleared when the directory changes. Set to 0 to 
+     * disable the cache.
+     */
+    public static int matchCacheSize = 256;
+
+    /**
+     * When true, the encoded body of ProbeMatches sent in reply to a cached 
+     * query is kept with the cached result and reused for identical queries.
+     */
+    public static boolean matchCacheEncodedReplies = true;
+    /**
+     * When true, the dispatch threads keep services in a 
+     * WsDiscoverySnapshotServiceDirectory, where Probe and Resolve are 
+     * answered from an immutable snapshot without waiting for concurrent 
+     * updates. Updates are batched, but each batch copies the directory.
+     */
+    public static boolean snapshotServiceDirectory = false;
+    /**
+     * Number of stripes in the service directories of the dispatch threads.
+     * When larger than 1, services are spread over this many independently 
+     * locked directories by endpoint address, so that concurrent updates of
+     * different services do not wait for each other. Ignored when 
+     * snapshotServiceDirectory is true.
+     */
+    public static int serviceDirectoryStripes = 0;
+    /**
+     * Maximum number of distinct port types, scopes and XAddrs shared between
+     * service descriptions. Values seen after the limit is reached are kept
+     * by each service on its own.
+     */
+    public static int internPoolSize = 100000;
+    /**
+     * Minimum number of candidate services for a Probe to be matched by 
+     * several threads in parallel. Below this, or when set to 0, services are
+     * matched by the thread that received the Probe.
+     */
+    public static int parallelMatchThreshold = 10000;
+    /**
+     * Number of threads used to match a Probe with more than 
+     * parallelMatchThreshold candidates, including the thread that received
+     * it. Set to 0 to use one thread per processor.
+     */
+    public static int matchThreads = 0;
+    /**
+     * Executor used to match large Probes in parallel. When null, a shared 
+     * pool of daemon threads is used.
+     */
+    public static Executor matchExecutor = null;
+    /**
+     * Time in milliseconds a service discovered through a Hello message is kept
+     * in the service directory after the last message received from it. 
+     * Set to 0 to keep it until Bye is received.
+     */
+    public static long helloTimeToLive = 0;
+    /**
+     * Time in milliseconds a service discovered through a ProbeMatches message
+     * is kept after the last message received from it. Set to 0 to keep it 
+     * until Bye is received.
+     */
+    public static long probeMatchesTimeToLive = 0;
+    /**
+     * Time in milliseconds a service discovered through a ResolveMatches 
+     * message is kept after the last message received from it. Set to 0 to 
+     * keep it until Bye is received.
+     */
+    public static long resolveMatchesTimeToLive = 0;
+    /**
+     * Maximum number of discovered services kept in the service directory. 
+     * When full, the service we have not heard from for the longest time is 
+     * removed. Local services are not counted. Set to 0 for no limit.
+     */
+    public static int serviceDirectoryMaxSize = 0;
+    /**
+     * Number of one second slots in the wheel used to expire discovered 
+     * services. Services expiring further ahead wrap around the wheel.
+     */
+    public static int serviceExpiryWheelSize = 512;
+    /**
+     * Store services announced by other hosts in the service directory. When
+     * false, Hellos and ProbeMatches that do not relate to one of our Probes 
+     * are dropped without unmarshalling their body. Proxies always store them.
+     */
+    public static boolean storeRemoteServices = true;
+    /**
+     * Default time in milliseconds between anti-entropy syncs of federated
+     * proxies. See {@link com.ms.wsdiscovery.federation.WsDiscoveryFederation}.
+     */
+    public static long federationSyncInterval = 10000;
+
+    /**
+     * Executor used to run the handlers for received messages. When null, a 
+     * thread pool with dispatchThreads threads is used. On JVMs that support
+     * virtual threads an executor creating one virtual thread per task may be 
+     * used here.
+     */
+    public static Executor dispatchExecutor = null;
+
+    /**
+     * Number of threads used to handle received messages when dispatchExecutor
+     * is null. Set to 0 to handle all messages in the dispatch thread.
+     */
+    public static int dispatchThreads = 0;
+
+    /**
+     * Executor used to notify service directory listeners that were
+     * registered without one. When null, a shared pool of daemon threads is used.
+     */
+    public static Executor listenerExecutor = null;
+
+    /**
+     * Maximum time in milliseconds to wait for a proxy to reply to a Probe or
+     * Resolve before it is also sent to the next best proxy, or multicast when
+     * no other proxy is up. When the round-trip time of the proxy has been 
+     * measured, four times the round-trip time is used if that is shorter.
+     */
+    public static long proxyReplyTimeout = 1000;
+
+    /**
+     * Number of Probes and Resolves in a row a proxy may leave unanswered 
+     * before it is considered down. Messages are not sent to proxies that 
+     * are down.
+     */
+    public static int proxyMaxFailures = 2;
+
+    /**
+     * Time in milliseconds a proxy is considered down before it is tried again,
+     * unless it announces itself earlier.
+     */
+    public static long proxyRetryInterval = 30000;
+
+    /**
+     * Maximum number of remote proxy servers remembered. When full, the proxy
+     * heard from least recently is forgotten.
+     */
+    public static int proxySelectorMaxProxies = 16;
+
+    /**
+     * Maximum number of Probes and Resolves sent to a proxy that are waiting
+     * for a reply. When full, the oldest request is no longer failed over.
+     */
+    public static int proxySelectorMaxRequests = 1024;
+
     /**
      * Log level.
      */
@@ -29,6 +29,7 @@ import javax.xml.ws.Service;
 import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
 import com.ms.wsdiscovery.servicedirectory.WsDiscoveryServiceDirectory;
 import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchByRegistry;
 
 /** 
  * Methods for creating common WS-Discovery objects.
@@ -134,14 +135,9 @@ public class WsDiscoveryFactory {
      * @return A matcher with the same name as <code>matcherToFind</code> or the matcher specified in <code>defaultMatcher</code>.
      */
     public static MatchBy getMatcher(String matcherToFind, MatchBy defaultMatcher) {
-        MatchBy res = defaultMatcher;
-        
-        if (matcherToFind != null)
-            for (MatchBy m : MatchBy.values())
-                if ((m.toString()).equals(matcherToFind)) {
-                    res = m;
-                    break;
-                }
+        MatchBy res = MatchByRegistry.getMatchBy(matcherToFind);
+        if (res == null)
+            res = defaultMatcher;
         
         return res;
     }
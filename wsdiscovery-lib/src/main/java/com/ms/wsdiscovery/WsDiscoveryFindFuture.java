@@ -0,0 +1,224 @@
+/*
+WsDiscoveryFindFuture.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery;
+
+import com.ms.wsdiscovery.interfaces.IWsDiscoveryProbeMatchesListener;
+import com.ms.wsdiscovery.interfaces.IWsDiscoveryServer;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceCollection;
+import com.ms.wsdiscovery.servicedirectory.store.WsDiscoveryServiceHashCollection;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of a Probe sent by {@link WsDiscoveryFinder#findAsync}. Collects
+ * the services in ProbeMatches relating to the Probe, and completes when
+ * <ul>
+ * <li>the requested number of services has been received,</li>
+ * <li>no further services have been received for a quiet period after the 
+ * first one, or</li>
+ * <li>the timeout expires.</li>
+ * </ul>
+ * Whichever comes first. Services are only counted once, even if they are 
+ * received from several peers.
+ * <p>
+ * The deadlines are checked when ProbeMatches arrive, by the threads calling
+ * {@link #get()} and {@link #isDone()}, and periodically by the dispatch 
+ * thread (see {@link com.ms.wsdiscovery.common.WsDiscoveryProbeTracker#expire}),
+ * so no timer thread is needed. Results arriving after a deadline are 
+ * ignored, also when they are only streamed to a result listener.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author Magnus Skjegstad
+ */
+public class WsDiscoveryFindFuture implements Future<IWsDiscoveryServiceCollection>, IWsDiscoveryProbeMatchesListener {
+    private final IWsDiscoveryServer server;
+    private final int maxResults;
+    private final long quietPeriodInMs;
+    private final long deadline;
+    private final IWsDiscoveryProbeMatchesListener resultListener;
+    private final WsDiscoveryServiceHashCollection results = new WsDiscoveryServiceHashCollection();
+    private long lastResult = 0;
+    private boolean done = false;
+    private boolean cancelled = false;
+
+    /**
+     * Create a new future. Must be passed as listener when the Probe is sent.
+     *
+     * @param server Server used to send the Probe.
+     * @param maxResults Complete when this many services have been received. 0 for no limit.
+     * @param quietPeriodInMs Complete when no services have been received for
+     * this long after the first one. 0 to disable.
+     * @param timeoutInMs Complete this long after creation. 0 to disable.
+     * @param resultListener Receives the new services in each ProbeMatches as
+     * they arrive. May be <code>null</code>.
+     */
+    public WsDiscoveryFindFuture(IWsDiscoveryServer server, int maxResults, long quietPeriodInMs,
+            long timeoutInMs, IWsDiscoveryProbeMatchesListener resultListener) {
+        this.server = server;
+        this.maxResults = maxResults;
+        this.quietPeriodInMs = quietPeriodInMs;
+        this.deadline = (timeoutInMs > 0 ? System.currentTimeMillis() + timeoutInMs : Long.MAX_VALUE);
+        this.resultListener = resultListener;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void probeMatched(URI relatesTo, List<WsDiscoveryService> services) {
+        List<WsDiscoveryService> added = new ArrayList<WsDiscoveryService>();
+
+        synchronized (this) {
+            if (checkDeadlines(System.currentTimeMillis()) == 0)
+                return; // Done, possibly just now
+            for (WsDiscoveryService s : services) {
+                if ((maxResults > 0) && (results.size() >= maxResults))
+                    break;
+                if (results.get(s.getEndpointReference().getAddress()) == null) {
+                    results.add(s);
+                    added.add(s);
+                }
+            }
+            if (added.isEmpty())
+                return;
+
+            lastResult = System.currentTimeMillis();
+            if ((maxResults > 0) && (results.size() >= maxResults))
+                complete();
+            notifyAll();
+        }
+
+        if (resultListener != null)
+            resultListener.probeMatched(relatesTo, added);
+    }
+
+    /**
+     * Complete if a deadline has passed. Must be called while synchronized.
+     * @return Time until the next deadline, or 0 when done.
+     */
+    private long checkDeadlines(long now) {
+        if (done)
+            return 0;
+
+        long next = deadline;
+        if ((quietPeriodInMs > 0) && (lastResult > 0))
+            next = Math.min(next, lastResult + quietPeriodInMs);
+
+        if (now >= next) {
+            complete();
+            return 0;
+        }
+        return next - now;
+    }
+
+    /**
+     * Stop receiving results. Must be called while synchronized.
+     */
+    private void complete() {
+        done = true;
+        server.removeProbeListener(this);
+        notifyAll();
+    }
+
+    /**
+     * Stop waiting for results. 
+     * @param mayInterruptIfRunning Ignored. 
+     * @return False if already completed.
+     */
+    public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+        if (done)
+            return false;
+        cancelled = true;
+        complete();
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized boolean isDone() {
+        checkDeadlines(System.currentTimeMillis());
+        return done;
+    }
+
+    /**
+     * Wait for the find to complete.
+     * @return Services received.
+     * @throws InterruptedException if interrupted while waiting.
+     * @throws CancellationException if cancelled.
+     */
+    public synchronized IWsDiscoveryServiceCollection get() throws InterruptedException {
+        long wait;
+        while ((wait = checkDeadlines(System.currentTimeMillis())) > 0)
+            wait(wait == Long.MAX_VALUE ? 0 : wait);
+        return getResult();
+    }
+
+    /**
+     * Wait at most the given time for the find to complete.
+     * @param timeout Maximum time to wait.
+     * @param unit Unit of <code>timeout</code>.
+     * @return Services received.
+     * @throws InterruptedException if interrupted while waiting.
+     * @throws TimeoutException if the find did not complete in time.
+     * @throws CancellationException if cancelled.
+     */
+    public synchronized IWsDiscoveryServiceCollection get(long timeout, TimeUnit unit)
+            throws InterruptedException, TimeoutException {
+        long giveUp = System.currentTimeMillis() + unit.toMillis(timeout);
+        long now;
+        long wait;
+        while ((wait = checkDeadlines(now = System.currentTimeMillis())) > 0) {
+            if (now >= giveUp)
+                throw new TimeoutException("Find did not complete in time.");
+            wait(Math.min(wait, giveUp - now));
+        }
+        return getResult();
+    }
+
+    private IWsDiscoveryServiceCollection getResult() {
+        if (cancelled)
+            throw new CancellationException("Find was cancelled.");
+        return getResults();
+    }
+
+    /**
+     * Get the services received so far. Does not wait.
+     * @return Copy of the services received.
+     */
+    public synchronized IWsDiscoveryServiceCollection getResults() {
+        WsDiscoveryServiceHashCollection res = new WsDiscoveryServiceHashCollection();
+        res.addAll(results);
+        return res;
+    }
+}
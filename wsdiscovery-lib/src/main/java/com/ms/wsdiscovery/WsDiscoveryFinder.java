@@ -19,7 +19,9 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 
 package com.ms.wsdiscovery;
 
+import com.ms.wsdiscovery.datatypes.WsDiscoveryScopesType;
 import com.ms.wsdiscovery.exception.WsDiscoveryXMLException;
+import com.ms.wsdiscovery.interfaces.IWsDiscoveryProbeMatchesListener;
 import com.ms.wsdiscovery.interfaces.IWsDiscoveryServer;
 import java.io.IOException;
 import java.net.URI;
@@ -30,8 +32,11 @@ import javax.xml.ws.Service;
 import com.ms.wsdiscovery.exception.WsDiscoveryException;
 import com.ms.wsdiscovery.exception.WsDiscoveryNetworkException;
 import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryServiceProjection;
 import com.ms.wsdiscovery.servicedirectory.exception.WsDiscoveryServiceDirectoryException;
 import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceCollection;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceDirectory;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceVisitor;
 import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
 
 /**
@@ -56,6 +61,15 @@ public class WsDiscoveryFinder {
      */
     protected boolean stopServerOnExit = false;
 
+    /**
+     * Visitor used when only the number of matches is needed.
+     */
+    private static final IWsDiscoveryServiceVisitor IGNORE_SERVICE = new IWsDiscoveryServiceVisitor() {
+        public boolean visit(WsDiscoveryService service) {
+            return true;
+        }
+    };
+
     /**
      * Creates and starts a WS-Discovery thread. The WS-Discovery
      * server thread will be temrminated when WsDiscoveryFinder() exits.
@@ -134,40 +148,127 @@ public class WsDiscoveryFinder {
      */
     public IWsDiscoveryServiceCollection find(List<QName> portTypes, List<URI> scopes,
             MatchBy matchBy, int timeoutInMs) throws InterruptedException, WsDiscoveryException {
-        // Search in remote services first
-        IWsDiscoveryServiceCollection sd = null;
+        // Search in remote services first. Only check that there is a match
+        // here, so the results are not copied twice.
+        IWsDiscoveryServiceDirectory directory = wsd.getServiceDirectory();
+        int found;
         try {
-            sd = wsd.getServiceDirectory().
-                    matchBy(portTypes, scopes, matchBy);
+            found = directory.visit(portTypes, toScopesType(scopes, matchBy), 1, IGNORE_SERVICE);
         } catch (WsDiscoveryServiceDirectoryException ex) {
             throw new WsDiscoveryException("An error occured while trying to " +
                     "search the remote service directory.", ex);
         }
 
-        if (sd.size() > 0)
-            return sd;
-        
-        // Send probe
-        wsd.probe(portTypes, scopes, matchBy);
-        
-        long started = System.currentTimeMillis();
-        
-        // Wait for results
-        while (sd.size() == 0) {
-            try {
-                sd = wsd.getServiceDirectory().matchBy(portTypes, scopes, matchBy);
-            } catch (WsDiscoveryServiceDirectoryException ex) {
-                throw new WsDiscoveryException("Unable to search remote service directory.");
-            }
-            
-            // Break if we found something and timeoutInMs == 0, or if timeout expired
-            if ( ((sd.size() > 0) && (timeoutInMs == 0)) || 
-                    (System.currentTimeMillis() - started > timeoutInMs))
-                break;
-            
-            Thread.sleep(100);
+        // Send probe and wait for the first answer. With no timeout, wait as 
+        // long as one round of the earlier polling loop did.
+        if (found == 0)
+            findAsync(portTypes, scopes, matchBy, 1, 0, timeoutInMs > 0 ? timeoutInMs : 100, null).get();
+
+        try {
+            return directory.matchBy(portTypes, toScopesType(scopes, matchBy));
+        } catch (WsDiscoveryServiceDirectoryException ex) {
+            throw new WsDiscoveryException("Unable to search remote service directory.");
         }
-        return sd;        
+    }
+
+    /**
+     * Find the endpoint addresses and XAddrs of services matching the given
+     * parameters. Like {@link #find(java.util.List, java.util.List, com.ms.wsdiscovery.servicedirectory.matcher.MatchBy, int)},
+     * but only copies the endpoint address and XAddrs of at most 
+     * <code>maxResults</code> services from the service directory.
+     *
+     * @param portTypes List of portTypes to search for. <code>null</code> 
+     * searches for all portTypes.
+     * @param scopes List of scopes to search in. <code>null</code> searches 
+     * within all scopes.
+     * @param matchBy Match algorithm that clients should use to match the 
+     * scope. <code>null</code> uses the default defined in WsDiscoveryConstants.
+     * @param maxResults Maximum number of endpoints to return. 0 for no limit.
+     * @param timeoutInMs Time to wait for a match before returning. 
+     * @return Endpoints of found services.
+     * @throws InterruptedException if interrupted while waiting for results.
+     * @throws WsDiscoveryException on failure.
+     */
+    public List<WsDiscoveryServiceProjection.Endpoint> findEndpoints(List<QName> portTypes, 
+            List<URI> scopes, MatchBy matchBy, int maxResults, int timeoutInMs) 
+            throws InterruptedException, WsDiscoveryException {
+        IWsDiscoveryServiceDirectory directory = wsd.getServiceDirectory();
+        WsDiscoveryScopesType st = toScopesType(scopes, matchBy);
+        try {
+            WsDiscoveryServiceProjection<WsDiscoveryServiceProjection.Endpoint> p = WsDiscoveryServiceProjection.endpoints();
+            if (directory.visit(portTypes, st, maxResults, p) > 0)
+                return p.getResults();
+
+            findAsync(portTypes, scopes, matchBy, maxResults > 0 ? maxResults : 1, 0, timeoutInMs > 0 ? timeoutInMs : 100, null).get();
+
+            p = WsDiscoveryServiceProjection.endpoints();
+            directory.visit(portTypes, st, maxResults, p);
+            return p.getResults();
+        } catch (WsDiscoveryServiceDirectoryException ex) {
+            throw new WsDiscoveryException("An error occured while trying to " +
+                    "search the remote service directory.", ex);
+        }
+    }
+
+    /**
+     * Send a Probe and collect the services in the ProbeMatches answering it. 
+     * Services already in the service directory are not included unless 
+     * they answer the Probe. Returns immediately.
+     *
+     * @param portTypes List of portTypes to search for. <code>null</code> 
+     * searches for all portTypes.
+     * @param scopes List of scopes to search in. <code>null</code> searches 
+     * within all scopes.
+     * @param matchBy Match algorithm that clients should use to match the 
+     * scope. <code>null</code> uses the default defined in WsDiscoveryConstants.
+     * @param maxResults Complete after this many services. 0 for no limit.
+     * @param quietPeriodInMs Complete when no services have been received for
+     * this long after the first one. 0 to disable.
+     * @param timeoutInMs Complete after this long. 0 to disable.
+     * @param resultListener Receives services as they arrive. May be <code>null</code>.
+     * @return Future completing with the services found.
+     * @throws WsDiscoveryException if the Probe could not be sent.
+     */
+    public WsDiscoveryFindFuture findAsync(List<QName> portTypes, List<URI> scopes, MatchBy matchBy,
+            int maxResults, int quietPeriodInMs, int timeoutInMs, 
+            IWsDiscoveryProbeMatchesListener resultListener) throws WsDiscoveryException {
+        WsDiscoveryFindFuture f = new WsDiscoveryFindFuture(wsd, maxResults, quietPeriodInMs, timeoutInMs, resultListener);
+        try {
+            wsd.probe(portTypes, scopes, matchBy, f);
+        } catch (WsDiscoveryException ex) {
+            f.cancel(false);
+            throw ex;
+        }
+        return f;
+    }
+
+    /**
+     * Send a Probe and collect the services in the ProbeMatches answering it
+     * until the timeout expires. Returns immediately.
+     *
+     * @param portTypes List of portTypes to search for. <code>null</code> 
+     * searches for all portTypes.
+     * @param scopes List of scopes to search in. <code>null</code> searches 
+     * within all scopes.
+     * @param matchBy Match algorithm that clients should use to match the 
+     * scope. <code>null</code> uses the default defined in WsDiscoveryConstants.
+     * @param timeoutInMs Complete after this long.
+     * @return Future completing with the services found.
+     * @throws WsDiscoveryException if the Probe could not be sent.
+     */
+    public WsDiscoveryFindFuture findAsync(List<QName> portTypes, List<URI> scopes, MatchBy matchBy,
+            int timeoutInMs) throws WsDiscoveryException {
+        return findAsync(portTypes, scopes, matchBy, 0, 0, timeoutInMs, null);
+    }
+
+    private static WsDiscoveryScopesType toScopesType(List<URI> scopes, MatchBy matchBy) {
+        if (scopes == null)
+            return null;
+
+        WsDiscoveryScopesType st = new WsDiscoveryScopesType(matchBy);
+        for (URI u : scopes)
+            st.getValue().add(u.toString());
+        return st;
     }
     /**
      * Find one or more services.
@@ -18,6 +18,7 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 package com.ms.wsdiscovery;
 
+import com.ms.wsdiscovery.common.WsDiscoveryMultiVersionDispatchThread;
 import com.ms.wsdiscovery.interfaces.IWsDiscoveryServer;
 import java.net.InetSocketAddress;
 import java.net.URI;
@@ -28,6 +29,7 @@ import javax.xml.ws.Service;
 import com.ms.wsdiscovery.exception.WsDiscoveryException;
 import com.ms.wsdiscovery.exception.WsDiscoveryXMLException;
 import com.ms.wsdiscovery.interfaces.IWsDiscoveryDispatchThread;
+import com.ms.wsdiscovery.interfaces.IWsDiscoveryProbeMatchesListener;
 import com.ms.wsdiscovery.exception.WsDiscoveryNetworkException;
 import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
 import com.ms.wsdiscovery.servicedirectory.exception.WsDiscoveryServiceDirectoryException;
@@ -53,7 +55,10 @@ public class WsDiscoveryServer implements IWsDiscoveryServer {
      */
     public WsDiscoveryServer() throws WsDiscoveryException {
         try {
-            dispatchThread = WsDiscoveryConstants.defaultNsDiscovery.getNewDispatchThreadInstance();
+            if (WsDiscoveryConstants.serveAllVersions)
+                dispatchThread = new WsDiscoveryMultiVersionDispatchThread();
+            else
+                dispatchThread = WsDiscoveryConstants.defaultNsDiscovery.getNewDispatchThreadInstance();
         } catch (Exception ex) {
             throw new WsDiscoveryException("Unable to create WS-Discovery dispatch thread instance.", ex);
         }
@@ -65,7 +70,10 @@ public class WsDiscoveryServer implements IWsDiscoveryServer {
      */
     public WsDiscoveryServer(ISOAPOverUDPTransport transportType) throws WsDiscoveryException {
         try {
-            dispatchThread = WsDiscoveryConstants.defaultNsDiscovery.getNewDispatchThreadInstance(transportType, WsDiscoveryConstants.defaultEncoding);
+            if (WsDiscoveryConstants.serveAllVersions)
+                dispatchThread = new WsDiscoveryMultiVersionDispatchThread(transportType, WsDiscoveryConstants.defaultEncoding);
+            else
+                dispatchThread = WsDiscoveryConstants.defaultNsDiscovery.getNewDispatchThreadInstance(transportType, WsDiscoveryConstants.defaultEncoding);
         } catch (Exception ex) {
             throw new WsDiscoveryException("Unable to create WS-Discovery dispatch thread instance.", ex);
         }
@@ -163,6 +171,31 @@ public class WsDiscoveryServer implements IWsDiscoveryServer {
             dispatchThread.sendProbe(types, scopes, matchBy);
         }    
     }
+
+    /**
+     * Probes for a service with the specified portTypes and scopes, passing
+     * the services in ProbeMatches relating to the Probe to <code>listener</code>
+     * until {@link #removeProbeListener(IWsDiscoveryProbeMatchesListener)} is called.
+     * <p>
+     * Returns immediately.
+     * @param types portTypes to match. <code>null</code> is all portTypes.
+     * @param scopes scopes to match. <code>null</code> is all scopes.
+     * @param matchBy Matching algorithm to use when matching scopes.
+     * <code>null</code> uses default from {@link WsDiscoveryConstants}
+     * @param listener Listener to notify.
+     */
+    public void probe(List<QName> types, List<URI> scopes, MatchBy matchBy, IWsDiscoveryProbeMatchesListener listener) throws WsDiscoveryXMLException, WsDiscoveryNetworkException {
+        synchronized (this) {
+            dispatchThread.sendProbe(types, scopes, matchBy, listener);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void removeProbeListener(IWsDiscoveryProbeMatchesListener listener) {
+        dispatchThread.getProbeTracker().remove(listener);
+    }
     
     /**
      * Probes for a service with the specified portType and scope. Scopes 
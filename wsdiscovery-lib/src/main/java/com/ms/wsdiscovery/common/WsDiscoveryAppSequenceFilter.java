@@ -0,0 +1,196 @@
+/*
+WsDiscoveryAppSequenceFilter.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.common;
+
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Filters out stale and out-of-order messages based on the AppSequence header.
+ * For each sender, identified by InstanceId and SequenceId, the highest 
+ * MessageNumber seen so far is stored. Messages with a MessageNumber lower than
+ * or equal to this are stale. See Appendix I - Application Sequencing in the
+ * WS-Discovery specification.
+ * <p>
+ * A service that restarts gets a higher InstanceId. The highest InstanceId
+ * seen for each endpoint is also stored, so that late messages sent before
+ * the restart can be discarded with {@link #acceptInstance(URI, long)}.
+ * <p>
+ * The tables are bounded. When full, the least recently seen sender or 
+ * endpoint is evicted.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author Magnus Skjegstad
+ */
+public class WsDiscoveryAppSequenceFilter {
+
+    /**
+     * Identifies a sender.
+     */
+    private static class Sender {
+        private final long instanceId;
+        private final String sequenceId;
+
+        Sender(long instanceId, String sequenceId) {
+            this.instanceId = instanceId;
+            this.sequenceId = sequenceId;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Sender))
+                return false;
+            Sender s = (Sender)obj;
+            return (s.instanceId == instanceId) &&
+                    (sequenceId == null ? s.sequenceId == null : sequenceId.equals(s.sequenceId));
+        }
+
+        @Override
+        public int hashCode() {
+            return (int)(instanceId ^ (instanceId >>> 32)) * 31 +
+                    (sequenceId == null ? 0 : sequenceId.hashCode());
+        }
+    }
+
+    private final int maxSenders;
+    private final Map<Sender, long[]> highestMessageNumber;
+    private final Map<URI, long[]> highestInstanceId;
+    private long rejected = 0;
+    private long evicted = 0;
+
+    /**
+     * Create a new filter.
+     * @param maxSenders Maximum number of senders to remember. 0 disables the filter.
+     */
+    public WsDiscoveryAppSequenceFilter(int maxSenders) {
+        this.maxSenders = maxSenders;
+        // access ordered, so the eldest entry is the least recently seen sender
+        this.highestMessageNumber = new LinkedHashMap<Sender, long[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Sender, long[]> eldest) {
+                if (size() > WsDiscoveryAppSequenceFilter.this.maxSenders) {
+                    evicted++;
+                    return true;
+                }
+                return false;
+            }
+        };
+        this.highestInstanceId = new LinkedHashMap<URI, long[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<URI, long[]> eldest) {
+                if (size() > WsDiscoveryAppSequenceFilter.this.maxSenders) {
+                    evicted++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Check a message and register its message number.
+     * 
+     * @param instanceId AppSequence InstanceId.
+     * @param sequenceId AppSequence SequenceId. May be null.
+     * @param messageNumber AppSequence MessageNumber.
+     * @return False if the message is stale and should be discarded.
+     */
+    public synchronized boolean accept(long instanceId, String sequenceId, long messageNumber) {
+        if (maxSenders <= 0)
+            return true;
+
+        Sender s = new Sender(instanceId, sequenceId);
+        long[] highest = highestMessageNumber.get(s);
+        if (highest == null) {
+            highestMessageNumber.put(s, new long[] {messageNumber});
+            return true;
+        }
+
+        if (messageNumber <= highest[0]) {
+            rejected++;
+            return false;
+        }
+
+        highest[0] = messageNumber;
+        return true;
+    }
+
+    /**
+     * Check the InstanceId of a message about an endpoint, such as Hello or 
+     * Bye, and register it. Messages from an older instance than the highest
+     * seen for the endpoint were sent before the service restarted.
+     *
+     * @param endpoint Endpoint address of the service. 
+     * @param instanceId AppSequence InstanceId.
+     * @return False if the message is from an older instance and should be discarded.
+     */
+    public synchronized boolean acceptInstance(URI endpoint, long instanceId) {
+        if ((maxSenders <= 0) || (endpoint == null))
+            return true;
+
+        long[] highest = highestInstanceId.get(endpoint);
+        if (highest == null) {
+            highestInstanceId.put(endpoint, new long[] {instanceId});
+            return true;
+        }
+
+        if (instanceId < highest[0]) {
+            rejected++;
+            return false;
+        }
+
+        highest[0] = instanceId;
+        return true;
+    }
+
+    /**
+     * Get number of senders currently remembered.
+     * @return Number of senders.
+     */
+    public synchronized int size() {
+        return highestMessageNumber.size();
+    }
+
+    /**
+     * Get number of messages rejected as stale.
+     * @return Number of rejected messages.
+     */
+    public synchronized long getRejectedCount() {
+        return rejected;
+    }
+
+    /**
+     * Get number of senders and endpoints evicted from the tables because they were full.
+     * @return Number of evicted senders.
+     */
+    public synchronized long getEvictedCount() {
+        return evicted;
+    }
+
+    /**
+     * Forget all senders and endpoints.
+     */
+    public synchronized void clear() {
+        highestMessageNumber.clear();
+        highestInstanceId.clear();
+    }
+}
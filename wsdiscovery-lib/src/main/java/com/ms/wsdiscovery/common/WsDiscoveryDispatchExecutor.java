@@ -0,0 +1,133 @@
+/*
+WsDiscoveryDispatchExecutor.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.common;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs message handlers on an {@link Executor}. Handlers submitted without a key
+ * may run in any order and in parallel. Handlers submitted with a key are run
+ * one at a time in the order they were submitted, relative to other handlers
+ * with a key that maps to the same lane. Handlers for different lanes run in
+ * parallel.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author Magnus Skjegstad
+ */
+public class WsDiscoveryDispatchExecutor {
+    private final Executor executor;
+    private final Lane[] lanes;
+
+    /**
+     * Runs the handlers in a lane one by one on the executor.
+     */
+    private class Lane implements Runnable {
+        private final LinkedList<Runnable> queue = new LinkedList<Runnable>();
+        private boolean active = false;
+
+        void submit(Runnable r) {
+            synchronized (queue) {
+                queue.add(r);
+                if (active)
+                    return; // Picked up by the running lane
+                active = true;
+            }
+            try {
+                executor.execute(this);
+            } catch (RuntimeException ex) {
+                // No runner was scheduled, so nothing would run the handlers
+                // queued in the meantime either. Drop them with this one.
+                synchronized (queue) {
+                    queue.clear();
+                    active = false;
+                }
+                throw ex;
+            }
+        }
+
+        public void run() {
+            while (true) {
+                Runnable r;
+                synchronized (queue) {
+                    r = queue.poll();
+                    if (r == null) {
+                        active = false;
+                        return;
+                    }
+                }
+                r.run();
+            }
+        }
+    }
+
+    /**
+     * Create new dispatch executor.
+     *
+     * @param executor Executor used to run the handlers.
+     * @param lanes Number of ordered lanes. Should be at least the number of
+     * threads used by the executor.
+     */
+    public WsDiscoveryDispatchExecutor(Executor executor, int lanes) {
+        if (executor == null)
+            throw new NullPointerException("executor can not be null");
+
+        this.executor = executor;
+        this.lanes = new Lane[Math.max(1, lanes)];
+        for (int i = 0; i < this.lanes.length; i++)
+            this.lanes[i] = new Lane();
+    }
+
+    /**
+     * Run handler without any ordering constraints.
+     *
+     * @param handler Handler to run.
+     */
+    public void execute(Runnable handler) {
+        executor.execute(handler);
+    }
+
+    /**
+     * Run handler after all handlers previously submitted with the same key
+     * have completed. If the executor rejects the handler, handlers waiting
+     * in the same lane are dropped as well.
+     *
+     * @param key Ordering key, e.g. the address of the sender. When <code>null</code>
+     * the handler is run without ordering constraints.
+     * @param handler Handler to run.
+     */
+    public void execute(Object key, Runnable handler) {
+        if (key == null) {
+            execute(handler);
+            return;
+        }
+        lanes[(key.hashCode() & 0x7fffffff) % lanes.length].submit(handler);
+    }
+
+    /**
+     * Get the executor used to run the handlers.
+     *
+     * @return Executor.
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+}
@@ -20,22 +20,34 @@ package com.ms.wsdiscovery.common;
 
 import com.ms.wsdiscovery.WsDiscoveryConstants;
 import com.ms.wsdiscovery.WsDiscoveryFactory;
+import com.ms.wsdiscovery.datatypes.WsDiscoveryActionTypes;
 import com.ms.wsdiscovery.exception.WsDiscoveryException;
 import com.ms.wsdiscovery.exception.WsDiscoveryXMLException;
 import com.ms.wsdiscovery.interfaces.IWsDiscoveryDispatchThread;
 import com.ms.wsdiscovery.logger.WsDiscoveryLogger;
 import com.ms.wsdiscovery.exception.WsDiscoveryNetworkException;
 import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryServiceDirectory;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoverySnapshotServiceDirectory;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryStripedServiceDirectory;
 import com.ms.wsdiscovery.servicedirectory.exception.WsDiscoveryServiceDirectoryException;
 import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceCollection;
 import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceDirectory;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
 import com.skjegstad.soapoverudp.exceptions.SOAPOverUDPException;
 import com.skjegstad.soapoverudp.interfaces.ISOAPOverUDP;
+import com.skjegstad.soapoverudp.interfaces.ISOAPOverUDPMessage;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.net.URI;
+import java.net.UnknownHostException;
 import java.util.Enumeration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Generic dispatch thread class with methods that are common between 
@@ -46,17 +58,27 @@ import java.util.Enumeration;
 public abstract class WsDiscoveryDispatchThread extends Thread implements IWsDiscoveryDispatchThread {
 
     protected boolean threadDone = false; // Thread aborts when set to true
-    protected boolean useProxy = false; // Address to proxy server. Null when disabled.
-    protected int useProxyPort = WsDiscoveryConstants.multicastPort; // Default the same as the multicast port
-    protected InetAddress useProxyAddress = null; // Address of proxy server
-    protected WsDiscoveryService remoteProxyService = null;
-    protected boolean isProxy = false; // TRUE when functioning as a proxy server
-    protected WsDiscoveryService localProxyService = null; // Must be a service description registered in localServices when isProxy is set
+    protected WsDiscoveryProxySelector proxySelector =
+            new WsDiscoveryProxySelector(WsDiscoveryConstants.proxySelectorMaxProxies, WsDiscoveryConstants.proxySelectorMaxRequests); // Remote proxy servers (managed mode)
+    protected volatile boolean isProxy = false; // TRUE when functioning as a proxy server
+    protected volatile WsDiscoveryService localProxyService = null; // Must be a service description registered in localServices when isProxy is set
     protected boolean isRunning = false;
     protected IWsDiscoveryServiceDirectory localServices;  // Service directory containing published local services
     protected IWsDiscoveryServiceDirectory serviceDirectory;  // Service directory containing discovered services (including local)
     protected WsDiscoveryLogger logger = new WsDiscoveryLogger(this.getName());
     protected ISOAPOverUDP soapOverUDP;
+    protected WsDiscoveryAppSequenceFilter appSequenceFilter =
+            new WsDiscoveryAppSequenceFilter(WsDiscoveryConstants.appSequenceFilterSize); // Drops stale Hello, Bye and ProbeMatches
+    protected WsDiscoveryRateLimiter resolveLimiter =
+            new WsDiscoveryRateLimiter(WsDiscoveryConstants.resolveInterval, WsDiscoveryConstants.resolveThrottleSize); // Resolve per service
+    protected WsDiscoveryRateLimiter resolveMatchLimiter =
+            new WsDiscoveryRateLimiter(WsDiscoveryConstants.resolveMatchInterval, WsDiscoveryConstants.resolveThrottleSize); // ResolveMatches per service and host
+    protected WsDiscoveryServiceExpiry serviceExpiry =
+            new WsDiscoveryServiceExpiry(WsDiscoveryConstants.serviceExpiryWheelSize, 1000, WsDiscoveryConstants.serviceDirectoryMaxSize); // Discovered services. Ticks once per second, like recv()
+    protected WsDiscoveryProbeTracker probeTracker =
+            new WsDiscoveryProbeTracker(); // Probes sent with a listener
+    protected volatile WsDiscoveryDispatchExecutor dispatchExecutor = null; // Runs message handlers. Null when handled in this thread.
+    protected ExecutorService dispatchThreadPool = null; // Thread pool created by us, if any
 
     public WsDiscoveryDispatchThread() throws WsDiscoveryNetworkException {
         this.setDaemon(true);
@@ -83,11 +105,8 @@ public abstract class WsDiscoveryDispatchThread extends Thread implements IWsDis
     }
 
     public InetSocketAddress getProxyServer() {
-        if (isUsingProxy()) {
-            return new InetSocketAddress(useProxyAddress, useProxyPort);
-        } else {
-            return null;
-        }
+        WsDiscoveryProxySelector.Proxy p = proxySelector.select();
+        return (p != null) ? p.getSocketAddress() : null;
     }
 
     public IWsDiscoveryServiceDirectory getServiceDirectory() {
@@ -108,12 +127,12 @@ public abstract class WsDiscoveryDispatchThread extends Thread implements IWsDis
 
     /**
      * Returns true when a suppression message has been received from a remote
-     * proxy server.
+     * proxy server that is still up.
      *
      * @return true when using a proxy server, otherwise false.
      */
     public boolean isUsingProxy() {
-        return useProxy;
+        return proxySelector.select() != null;
     }
 
     @Override
@@ -132,10 +151,170 @@ public abstract class WsDiscoveryDispatchThread extends Thread implements IWsDis
         logger.finer("Thread " + getName() + " completed start().");
     }
 
+    /**
+     * Get the filter used to discard stale Hello, Bye and ProbeMatches messages.
+     * @return AppSequence filter.
+     */
+    public WsDiscoveryAppSequenceFilter getAppSequenceFilter() {
+        return appSequenceFilter;
+    }
+
+    /**
+     * Get the rate limiter used to throttle Resolve messages sent for each service.
+     * @return Rate limiter.
+     */
+    public WsDiscoveryRateLimiter getResolveLimiter() {
+        return resolveLimiter;
+    }
+
+    /**
+     * Get the rate limiter used to throttle ResolveMatches sent for each 
+     * service to each host.
+     * @return Rate limiter.
+     */
+    public WsDiscoveryRateLimiter getResolveMatchLimiter() {
+        return resolveMatchLimiter;
+    }
+
+    /**
+     * Get the timer wheel used to expire discovered services.
+     * @return Service expiry.
+     */
+    public WsDiscoveryServiceExpiry getServiceExpiry() {
+        return serviceExpiry;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public WsDiscoveryProbeTracker getProbeTracker() {
+        return probeTracker;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public WsDiscoveryProxySelector getProxySelector() {
+        return proxySelector;
+    }
+
+    /**
+     * Start using a proxy server that announced itself in a Hello sent in 
+     * suppression of one of our multicast messages. Probes and Resolves are
+     * sent to the best of the proxies that are up.
+     *
+     * @param proxyService Proxy service described in the Hello.
+     * @throws WsDiscoveryNetworkException if the proxy service has no endpoint
+     * address or XAddrs, or the proxy host is unknown.
+     */
+    protected void useProxy(WsDiscoveryService proxyService) throws WsDiscoveryNetworkException {
+        if ((proxyService.getEndpointReference() == null) || (proxyService.getEndpointReference().getAddress() == null))
+            throw new WsDiscoveryNetworkException("Received proxy without endpoint address");
+        if ((proxyService.getXAddrs() == null) || proxyService.getXAddrs().isEmpty())
+            throw new WsDiscoveryNetworkException("Received proxy without XAddrs");
+
+        // Find proxy address from hello body
+        URI addr = URI.create(proxyService.getXAddrs().get(0));
+        InetAddress address;
+        try {
+            address = InetAddress.getByName(addr.getHost());
+        } catch (UnknownHostException ex) {
+            throw new WsDiscoveryNetworkException("Unknown proxy host " + addr.getHost(), ex);
+        }
+        int port = (addr.getPort() == -1) ? WsDiscoveryConstants.multicastPort : addr.getPort();
+
+        proxySelector.heard(proxyService, address, port);
+        logger.fine("Using proxy server at " + address + ", port " + port);
+    }
+
+    /**
+     * Fail over Probes and Resolves that a proxy server has not replied to in time.
+     */
+    protected void expireProxyRequests() {
+        proxySelector.expire();
+    }
+
+    /**
+     * Complete finds that have timed out, so that abandoned finds stop being
+     * tracked.
+     */
+    protected void expireProbes() {
+        probeTracker.expire(System.currentTimeMillis());
+    }
+
+    /**
+     * Get the time to wait for a message in dispatch(). At most one second, 
+     * but shorter when a request sent to a proxy server times out earlier.
+     *
+     * @return Timeout in milliseconds.
+     */
+    protected int getRecvTimeout() {
+        long wait = proxySelector.getNextDeadline() - System.currentTimeMillis();
+        return (int)Math.max(1, Math.min(1000, wait));
+    }
+
+    /**
+     * Register that a message describing a service was received, pushing its
+     * expiry forward.
+     *
+     * @param service Service stored in the service directory.
+     * @param timeToLiveInMillis Time to live for the message type received.
+     */
+    protected void refreshService(WsDiscoveryService service, long timeToLiveInMillis) {
+        if ((timeToLiveInMillis <= 0) && (WsDiscoveryConstants.serviceDirectoryMaxSize <= 0))
+            return; // Nothing to track
+
+        if ((service != null) && (service.getEndpointReference() != null))
+            serviceExpiry.refresh(service.getEndpointReference().getAddress(), timeToLiveInMillis);
+    }
+
+    /**
+     * Remove the discovered services that have expired or been evicted from
+     * the service directory. Local services are never removed.
+     */
+    protected void expireServices() {
+        for (URI address : serviceExpiry.expire()) {
+            if (localServices.findService(address) != null)
+                continue;
+            logger.fine("Service " + address + " expired. Removed from service directory.");
+            serviceDirectory.remove(address);
+        }
+    }
+
+    /**
+     * Use the given collection as storage for the service directory. Services
+     * already in the collection, e.g. loaded from a journal after a restart, 
+     * are kept. They expire as if they had just been announced with Hello.
+     *
+     * @param newServiceStore Service collection.
+     */
     public void useServiceStore(IWsDiscoveryServiceCollection newServiceStore) {
         synchronized (serviceDirectory) {
             serviceDirectory.useStorage(newServiceStore, true);
         }
+
+        try {
+            for (WsDiscoveryService s : serviceDirectory.matchAll())
+                if ((s.getEndpointReference() != null) && (localServices.findService(s.getEndpointReference()) == null))
+                    refreshService(s, WsDiscoveryConstants.helloTimeToLive);
+        } catch (WsDiscoveryServiceDirectoryException ex) {
+            logger.warning("Unable to track expiry of stored services: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Create a new, empty service directory of the type selected in
+     * {@link WsDiscoveryConstants#snapshotServiceDirectory}.
+     *
+     * @param defaultMatcher Matcher used when a query does not specify one.
+     * @return New service directory.
+     */
+    protected static IWsDiscoveryServiceDirectory createServiceDirectory(MatchBy defaultMatcher) {
+        if (WsDiscoveryConstants.snapshotServiceDirectory)
+            return new WsDiscoverySnapshotServiceDirectory(defaultMatcher);
+        if (WsDiscoveryConstants.serviceDirectoryStripes > 1)
+            return new WsDiscoveryStripedServiceDirectory(defaultMatcher, WsDiscoveryConstants.serviceDirectoryStripes);
+        return new WsDiscoveryServiceDirectory(defaultMatcher);
     }
 
     /**
@@ -197,6 +376,7 @@ public abstract class WsDiscoveryDispatchThread extends Thread implements IWsDis
      */
     public synchronized void enableProxyAnnouncements() throws WsDiscoveryServiceDirectoryException {
         isProxy = true;
+        dispatchStateChanged();
         /*
         if (isProxy) {
             return; // Already enabled
@@ -228,6 +408,14 @@ public abstract class WsDiscoveryDispatchThread extends Thread implements IWsDis
         localServices.remove(localProxyService);
         serviceDirectory.remove(localProxyService);*/
         isProxy = false;
+        dispatchStateChanged();
+    }
+
+    /**
+     * Called with the lock on this thread held whenever the proxy server state
+     * or the dispatch executor has changed.
+     */
+    protected void dispatchStateChanged() {
     }
 
 
@@ -236,6 +424,102 @@ public abstract class WsDiscoveryDispatchThread extends Thread implements IWsDis
      */
     protected abstract void dispatch() throws InterruptedException, WsDiscoveryException;
 
+    /**
+     * Handle one message received from the transport layer. Called from dispatch().
+     * @param message Received message.
+     */
+    protected abstract void dispatch(ISOAPOverUDPMessage message) throws WsDiscoveryException;
+
+    /**
+     * Create the executor used to run message handlers, based on 
+     * {@link WsDiscoveryConstants#dispatchExecutor} and 
+     * {@link WsDiscoveryConstants#dispatchThreads}.
+     */
+    protected synchronized void startDispatchExecutor() {
+        int lanes = Math.max(WsDiscoveryConstants.dispatchThreads, Runtime.getRuntime().availableProcessors());
+
+        if (WsDiscoveryConstants.dispatchExecutor != null) {
+            dispatchExecutor = new WsDiscoveryDispatchExecutor(WsDiscoveryConstants.dispatchExecutor, lanes);
+        } else if (WsDiscoveryConstants.dispatchThreads > 0) {
+            dispatchThreadPool = Executors.newFixedThreadPool(WsDiscoveryConstants.dispatchThreads, new ThreadFactory() {
+                private int count = 0;
+
+                public synchronized Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, getName() + "-handler-" + (++count));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            dispatchExecutor = new WsDiscoveryDispatchExecutor(dispatchThreadPool, lanes);
+        } else
+            dispatchExecutor = null;
+        dispatchStateChanged();
+    }
+
+    /**
+     * Stop the thread pool created by startDispatchExecutor(), if any. 
+     * Executors set in {@link WsDiscoveryConstants#dispatchExecutor} are left running.
+     */
+    protected synchronized void stopDispatchExecutor() {
+        if (dispatchThreadPool != null)
+            dispatchThreadPool.shutdown();
+        dispatchThreadPool = null;
+        dispatchExecutor = null;
+        dispatchStateChanged();
+    }
+
+    /**
+     * Decide from the headers alone whether a received message can be dropped
+     * without unmarshalling its body. Hellos and ProbeMatches are only needed 
+     * when remote services are stored (see {@link WsDiscoveryConstants#storeRemoteServices}),
+     * with two exceptions: Hellos relating to another message may be proxy 
+     * announcements, and ProbeMatches for our own Probes are passed to their 
+     * listener.
+     *
+     * @param action Action of the message.
+     * @param message Received message.
+     * @return True if the message should be dropped.
+     */
+    protected boolean isUnwanted(WsDiscoveryActionTypes action, ISOAPOverUDPMessage message) {
+        if (isProxy || WsDiscoveryConstants.storeRemoteServices)
+            return false;
+
+        switch (action) {
+            case HELLO:
+                return message.getRelatesTo() == null;
+            case PROBEMATCHES:
+                if (probeTracker.isTracked(message.getRelatesTo()))
+                    return false;
+                // The reply still shows that a proxy is up
+                proxySelector.replied(message.getRelatesTo(), message.getSrcAddress());
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Run a message handler. The handler is run in the calling thread when no
+     * dispatch executor is configured.
+     *
+     * @param orderKey Handlers with the same key are run in the order they are 
+     * submitted. Use <code>null</code> when ordering is not required.
+     * @param handler Message handler.
+     */
+    protected void dispatchHandler(Object orderKey, Runnable handler) {
+        WsDiscoveryDispatchExecutor e = dispatchExecutor;
+        if (e == null) {
+            handler.run();
+            return;
+        }
+
+        try {
+            e.execute(orderKey, handler);
+        } catch (RejectedExecutionException ex) {
+            logger.warning("Message handler rejected by executor: " + ex.getMessage());
+        }
+    }
+
      /**
      * Main loop. Starts transport layer and continues to loop over dispatch().
      */
@@ -255,6 +539,8 @@ public abstract class WsDiscoveryDispatchThread extends Thread implements IWsDis
                 return;
             }
             
+            startDispatchExecutor();
+
             // Create proxy service            
             isRunning = true;
 
@@ -264,43 +550,56 @@ public abstract class WsDiscoveryDispatchThread extends Thread implements IWsDis
             }
 
             while (!threadDone) {
-                // Should we enable proxy?
-                if (isProxy && (localProxyService == null)) {
-                    localProxyService = createProxyService();
-                    if (localProxyService != null) {
-                        try {
-                            localServices.store(localProxyService);
-                            serviceDirectory.store(localProxyService);
-                            logger.info("Proxy enabled.");
+                WsDiscoveryService announce = null;
+                synchronized (this) {
+                    // Should we enable proxy?
+                    if (isProxy && (localProxyService == null)) {
+                        WsDiscoveryService proxyService = createProxyService();
+                        if (proxyService != null) {
                             try {
-                                sendHello(localProxyService);
-                            } catch (WsDiscoveryException ex) {
-                                logger.severe("Unable to announce proxy server in network - Hello message failed: " + ex.getMessage());
+                                localServices.store(proxyService);
+                                serviceDirectory.store(proxyService);
+                                localProxyService = proxyService;
+                                logger.info("Proxy enabled.");
+                                announce = proxyService;
+                            } catch (WsDiscoveryServiceDirectoryException ex) {
+                                logger.severe("Unable to store Proxy service in service directory. Proxy not enabled.");
+                                isProxy = false;
                             }
-                        } catch (WsDiscoveryServiceDirectoryException ex) {
-                            logger.severe("Unable to store Proxy service in service directory. Proxy not enabled.");
-                            isProxy = false;
-                            localProxyService = null;
-                        }                        
+                            dispatchStateChanged();
+                        }
+                    } else
+                    // Should we disable proxy?
+                    if ((!isProxy) && (localProxyService != null)) {
+                        localServices.remove(localProxyService);
+                        serviceDirectory.remove(localProxyService);
+                        localProxyService = null;
+                        logger.info("Proxy disabled.");
+                        dispatchStateChanged();
+                    }
+                }
+
+                if (announce != null) {
+                    try {
+                        sendHello(announce);
+                    } catch (WsDiscoveryException ex) {
+                        logger.severe("Unable to announce proxy server in network - Hello message failed: " + ex.getMessage());
                     }
-                } else
-                // Should we disable proxy?
-                if ((!isProxy) && (localProxyService != null)) {
-                    localServices.remove(localProxyService);
-                    serviceDirectory.remove(localProxyService);
-                    localProxyService = null;
-                    logger.info("Proxy disabled.");
                 }
 
                 try {
                     dispatch();
                     //resolveUnknown(); // Send resolve-packets for services with no xaddrs
+                    expireServices();
+                    expireProxyRequests();
+                    expireProbes();
                 } catch (Exception ex) {
                     logger.severe(ex.getMessage());
                     ex.printStackTrace();
                 }
             }
         } finally {
+            stopDispatchExecutor();
             this.soapOverUDP.done();
             logger.finer("Stopped " + getName());
             isRunning = false;
@@ -0,0 +1,288 @@
+/*
+WsDiscoveryMultiVersionDispatchThread.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.common;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.datatypes.WsDiscoveryNamespaces;
+import com.ms.wsdiscovery.exception.WsDiscoveryException;
+import com.ms.wsdiscovery.exception.WsDiscoveryNetworkException;
+import com.ms.wsdiscovery.exception.WsDiscoveryXMLException;
+import com.ms.wsdiscovery.interfaces.IWsDiscoveryProbeMatchesListener;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
+import com.skjegstad.soapoverudp.SOAPOverUDPMultiVersion;
+import com.skjegstad.soapoverudp.exceptions.SOAPOverUDPException;
+import com.skjegstad.soapoverudp.interfaces.ISOAPOverUDPMessage;
+import com.skjegstad.soapoverudp.interfaces.ISOAPOverUDPTransport;
+import com.skjegstad.soapoverudp.messages.SOAPOverUDPWSA200408Message;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import javax.xml.namespace.QName;
+
+/**
+ * Dispatch thread serving all supported WS-Discovery versions on one socket
+ * and with one set of service directories.
+ * <p>
+ * Each received message is routed by its WS-Addressing namespace to the
+ * dispatch thread of the matching WS-Discovery version. These threads are
+ * never started; they share the transport layer and service directories of
+ * this thread and reply in their own version. Use of a remote proxy server
+ * is tracked separately for each version.
+ * <p>
+ * The version used by each peer is remembered. Hello and Bye are only sent 
+ * in the versions heard on the network within 
+ * {@link WsDiscoveryConstants#peerVersionTimeout}, or in all versions if
+ * none has been heard. Probe and Resolve are always sent in all versions, 
+ * so that silent devices of any version are still found.
+ *
+ * @author Magnus Skjegstad
+ */
+public class WsDiscoveryMultiVersionDispatchThread extends WsDiscoveryDispatchThread {
+    protected final EnumMap<WsDiscoveryNamespaces, WsDiscoveryDispatchThread> versionThreads =
+            new EnumMap<WsDiscoveryNamespaces, WsDiscoveryDispatchThread>(WsDiscoveryNamespaces.class);
+    protected final WsDiscoveryPeerVersions peerVersions =
+            new WsDiscoveryPeerVersions(WsDiscoveryConstants.peerVersionsSize, WsDiscoveryConstants.peerVersionTimeout);
+
+    /**
+     * Creates a new dispatch thread using the transport type set in
+     * {@link WsDiscoveryConstants#defaultTransportType}.
+     *
+     * @throws WsDiscoveryNetworkException Thrown when unable to instantiate the transport layer.
+     */
+    public WsDiscoveryMultiVersionDispatchThread() throws WsDiscoveryNetworkException {
+        super();
+
+        try {
+            this.soapOverUDP = new SOAPOverUDPMultiVersion(WsDiscoveryConstants.defaultTransportType.newInstance(),
+                WsDiscoveryConstants.defaultEncoding);
+        } catch (InstantiationException ex) {
+            throw new WsDiscoveryNetworkException("Unable to instantiate transport layer", ex);
+        } catch (IllegalAccessException ex) {
+            throw new WsDiscoveryNetworkException("Illegal Access while instantiating transport layer", ex);
+        }
+
+        createVersionThreads();
+    }
+
+    /**
+     * Creates a new dispatch thread.
+     *
+     * @param transportType Transport layer.
+     * @param encoding Character encoding.
+     * @throws WsDiscoveryNetworkException Thrown when unable to instantiate the transport layer.
+     */
+    public WsDiscoveryMultiVersionDispatchThread(ISOAPOverUDPTransport transportType, Charset encoding) throws WsDiscoveryNetworkException {
+        super();
+
+        this.soapOverUDP = new SOAPOverUDPMultiVersion(transportType, encoding);
+
+        createVersionThreads();
+    }
+
+    private void createVersionThreads() throws WsDiscoveryNetworkException {
+        MatchBy defaultMatcher = WsDiscoveryConstants.defaultNsDiscovery.getDefaultMatcher();
+        localServices = createServiceDirectory(defaultMatcher);
+        serviceDirectory = createServiceDirectory(defaultMatcher);
+
+        for (WsDiscoveryNamespaces ns : WsDiscoveryNamespaces.values()) {
+            WsDiscoveryDispatchThread t;
+            try {
+                t = ns.getNewDispatchThreadInstance(soapOverUDP, localServices, serviceDirectory);
+            } catch (InstantiationException ex) {
+                throw new WsDiscoveryNetworkException("Unable to create dispatch thread for " + ns, ex);
+            }
+            // The same sender may not reuse a message number in another version
+            t.appSequenceFilter = appSequenceFilter;
+            t.resolveMatchLimiter = resolveMatchLimiter;
+            t.serviceExpiry = serviceExpiry; // Expired by this thread
+            t.probeTracker = probeTracker; // Matches may arrive in another version than the Probe was sent in
+            versionThreads.put(ns, t);
+        }
+
+        this.setDaemon(true);
+    }
+
+    /**
+     * Copy the proxy server state and dispatch executor of this thread to the
+     * version threads. 
+     */
+    @Override
+    protected void dispatchStateChanged() {
+        for (WsDiscoveryDispatchThread t : versionThreads.values()) {
+            t.isProxy = isProxy;
+            t.localProxyService = localProxyService;
+            t.dispatchExecutor = dispatchExecutor;
+        }
+    }
+
+    /**
+     * Get the version threads to use when announcing a local service with
+     * Hello or Bye.
+     */
+    protected List<WsDiscoveryDispatchThread> getSendThreads() {
+        List<WsDiscoveryNamespaces> present = peerVersions.getPresentVersions();
+        if (present.isEmpty()) {
+            present.add(WsDiscoveryConstants.defaultNsDiscovery);
+            for (WsDiscoveryNamespaces ns : WsDiscoveryNamespaces.values())
+                if (!present.contains(ns))
+                    present.add(ns);
+        }
+
+        List<WsDiscoveryDispatchThread> res = new ArrayList<WsDiscoveryDispatchThread>();
+        for (WsDiscoveryNamespaces ns : present)
+            res.add(versionThreads.get(ns));
+        return res;
+    }
+
+    /**
+     * Get the WS-Discovery version of a received message.
+     * @param message Received message.
+     * @return WS-Discovery version.
+     */
+    protected WsDiscoveryNamespaces getVersion(ISOAPOverUDPMessage message) {
+        if (message instanceof SOAPOverUDPWSA200408Message)
+            return WsDiscoveryNamespaces.WS_DISCOVERY_2005_04;
+        return WsDiscoveryNamespaces.WS_DISCOVERY_2009_01;
+    }
+
+    @Override
+    protected void dispatch() throws InterruptedException, WsDiscoveryException {
+        ISOAPOverUDPMessage m;
+        try {
+            m = soapOverUDP.recv(getRecvTimeout());
+        } catch (SOAPOverUDPException ex) {
+            throw new WsDiscoveryNetworkException("Unable to receive message from SOAPOverUDP", ex);
+        }
+
+        if (m == null) // recv() timed out
+            return;
+
+        dispatch(m);
+    }
+
+    @Override
+    protected void dispatch(ISOAPOverUDPMessage message) throws WsDiscoveryException {
+        WsDiscoveryNamespaces version = getVersion(message);
+        peerVersions.heard(message.getSrcAddress(), version);
+        versionThreads.get(version).dispatch(message);
+    }
+
+    public void sendHello(WsDiscoveryService service) throws WsDiscoveryXMLException, WsDiscoveryNetworkException {
+        for (WsDiscoveryDispatchThread t : getSendThreads())
+            t.sendHello(service);
+    }
+
+    public void sendBye(WsDiscoveryService service) throws WsDiscoveryXMLException, WsDiscoveryNetworkException {
+        for (WsDiscoveryDispatchThread t : getSendThreads())
+            t.sendBye(service);
+    }
+
+    public void sendProbe() throws WsDiscoveryXMLException, WsDiscoveryNetworkException {
+        for (WsDiscoveryDispatchThread t : versionThreads.values())
+            t.sendProbe();
+    }
+
+    public void sendProbe(List<QName> types, List<URI> scopes, MatchBy matchBy) throws WsDiscoveryXMLException, WsDiscoveryNetworkException {
+        for (WsDiscoveryDispatchThread t : versionThreads.values())
+            t.sendProbe(types, scopes, matchBy);
+    }
+
+    public void sendProbe(List<QName> types, List<URI> scopes, MatchBy matchBy, IWsDiscoveryProbeMatchesListener listener) throws WsDiscoveryXMLException, WsDiscoveryNetworkException {
+        for (WsDiscoveryDispatchThread t : versionThreads.values())
+            t.sendProbe(types, scopes, matchBy, listener);
+    }
+
+    public void sendResolve(WsDiscoveryService service) throws WsDiscoveryXMLException, WsDiscoveryNetworkException {
+        for (WsDiscoveryDispatchThread t : versionThreads.values())
+            t.sendResolve(service);
+    }
+
+    /**
+     * Returns true when a suppression message has been received from a remote
+     * proxy server in any of the WS-Discovery versions.
+     *
+     * @return true when using a proxy server, otherwise false.
+     */
+    @Override
+    public boolean isUsingProxy() {
+        for (WsDiscoveryDispatchThread t : versionThreads.values())
+            if (t.isUsingProxy())
+                return true;
+        return false;
+    }
+
+    @Override
+    public InetSocketAddress getProxyServer() {
+        for (WsDiscoveryDispatchThread t : versionThreads.values())
+            if (t.isUsingProxy())
+                return t.getProxyServer();
+        return null;
+    }
+
+    /**
+     * Returns the proxy selector of the default WS-Discovery version. Each 
+     * version keeps its own set of proxy servers.
+     *
+     * @return Proxy selector.
+     */
+    @Override
+    public WsDiscoveryProxySelector getProxySelector() {
+        return versionThreads.get(WsDiscoveryConstants.defaultNsDiscovery).getProxySelector();
+    }
+
+    @Override
+    protected void expireProxyRequests() {
+        for (WsDiscoveryDispatchThread t : versionThreads.values())
+            t.expireProxyRequests();
+    }
+
+    @Override
+    protected int getRecvTimeout() {
+        int timeout = 1000;
+        for (WsDiscoveryDispatchThread t : versionThreads.values())
+            timeout = Math.min(timeout, t.getRecvTimeout());
+        return timeout;
+    }
+
+    public MatchBy getDefaultMatchBy() {
+        return versionThreads.get(WsDiscoveryConstants.defaultNsDiscovery).getDefaultMatchBy();
+    }
+
+    /**
+     * Get the versions used by peers.
+     * @return Peer version table.
+     */
+    public WsDiscoveryPeerVersions getPeerVersions() {
+        return peerVersions;
+    }
+
+    /**
+     * Get the thread handling messages of the given WS-Discovery version.
+     * @param version WS-Discovery version.
+     * @return Dispatch thread. Not started.
+     */
+    public WsDiscoveryDispatchThread getVersionThread(WsDiscoveryNamespaces version) {
+        return versionThreads.get(version);
+    }
+}
@@ -0,0 +1,165 @@
+/*
+WsDiscoveryPeerVersions.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.common;
+
+import com.ms.wsdiscovery.datatypes.WsDiscoveryNamespaces;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of which WS-Discovery versions are spoken by the peers we
+ * receive messages from, and which versions have been heard recently on
+ * the network segment.
+ * <p>
+ * The table of peers is bounded. When it is full, the least recently heard
+ * peer is forgotten first.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author Magnus Skjegstad
+ */
+public class WsDiscoveryPeerVersions {
+    private static final WsDiscoveryNamespaces[] versions = WsDiscoveryNamespaces.values();
+
+    private final LinkedHashMap<InetAddress, long[]> peers; // last time heard, indexed by version ordinal
+    private final long[] lastHeard = new long[versions.length];
+    private final int maxPeers;
+    private final long timeoutInMillis;
+
+    /**
+     * Create new peer version table.
+     *
+     * @param maxPeers Maximum number of peers to remember.
+     * @param timeoutInMillis A version is present on the segment if it has been
+     * heard within this time.
+     */
+    public WsDiscoveryPeerVersions(int maxPeers, long timeoutInMillis) {
+        this.maxPeers = maxPeers;
+        this.timeoutInMillis = timeoutInMillis;
+        this.peers = new LinkedHashMap<InetAddress, long[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<InetAddress, long[]> eldest) {
+                return size() > WsDiscoveryPeerVersions.this.maxPeers;
+            }
+        };
+    }
+
+    /**
+     * Register that a message of the given version was received from a peer.
+     *
+     * @param peer Address of peer.
+     * @param version WS-Discovery version.
+     */
+    public void heard(InetAddress peer, WsDiscoveryNamespaces version) {
+        heard(peer, version, System.currentTimeMillis());
+    }
+
+    /**
+     * Register that a message of the given version was received from a peer
+     * at the given time.
+     *
+     * @param peer Address of peer.
+     * @param version WS-Discovery version.
+     * @param now Current time in milliseconds.
+     */
+    public synchronized void heard(InetAddress peer, WsDiscoveryNamespaces version, long now) {
+        lastHeard[version.ordinal()] = now;
+
+        if ((peer == null) || (maxPeers <= 0))
+            return;
+
+        long[] p = peers.get(peer);
+        if (p == null) {
+            p = new long[versions.length];
+            peers.put(peer, p);
+        }
+        p[version.ordinal()] = now;
+    }
+
+    /**
+     * Get the versions a peer has been heard using.
+     *
+     * @param peer Address of peer.
+     * @return Versions used by the peer, most recently used first. Empty if the peer is unknown.
+     */
+    public synchronized List<WsDiscoveryNamespaces> getVersions(InetAddress peer) {
+        List<WsDiscoveryNamespaces> res = new ArrayList<WsDiscoveryNamespaces>();
+        long[] p = peers.get(peer);
+        if (p != null)
+            addByTime(res, p, 0);
+        return res;
+    }
+
+    /**
+     * Get the versions present on the network segment, i.e. heard within the timeout.
+     *
+     * @return Present versions, most recently heard first. Empty if none has been heard.
+     */
+    public List<WsDiscoveryNamespaces> getPresentVersions() {
+        return getPresentVersions(System.currentTimeMillis());
+    }
+
+    /**
+     * Get the versions present on the network segment at the given time.
+     *
+     * @param now Current time in milliseconds.
+     * @return Present versions, most recently heard first. Empty if none has been heard.
+     */
+    public synchronized List<WsDiscoveryNamespaces> getPresentVersions(long now) {
+        List<WsDiscoveryNamespaces> res = new ArrayList<WsDiscoveryNamespaces>();
+        addByTime(res, lastHeard, now - timeoutInMillis);
+        return res;
+    }
+
+    /**
+     * Add the versions with a time after <code>since</code> to <code>res</code>,
+     * newest first.
+     */
+    private static void addByTime(List<WsDiscoveryNamespaces> res, long[] times, long since) {
+        for (int i = 0; i < times.length; i++) {
+            if ((times[i] == 0) || (times[i] < since))
+                continue;
+            int pos = 0;
+            while ((pos < res.size()) && (times[res.get(pos).ordinal()] >= times[i]))
+                pos++;
+            res.add(pos, versions[i]);
+        }
+    }
+
+    /**
+     * Number of peers remembered.
+     * @return Number of peers.
+     */
+    public synchronized int size() {
+        return peers.size();
+    }
+
+    /**
+     * Forget all peers and versions.
+     */
+    public synchronized void clear() {
+        peers.clear();
+        for (int i = 0; i < lastHeard.length; i++)
+            lastHeard[i] = 0;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+WsDiscoveryProbeTracker.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.common;
+
+import com.ms.wsdiscovery.WsDiscoveryFindFuture;
+import com.ms.wsdiscovery.interfaces.IWsDiscoveryProbeMatchesListener;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of outstanding Probes by MessageID, so that received
+ * ProbeMatches can be passed to the listener of the Probe they relate to.
+ * <p>
+ * A Probe is tracked until its listener is removed. Finds started with
+ * {@link com.ms.wsdiscovery.WsDiscoveryFinder#findAsync} remove themselves
+ * when they complete, which {@link #expire} ensures even if no one waits 
+ * for the result.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author Magnus Skjegstad
+ */
+public class WsDiscoveryProbeTracker {
+    private final ConcurrentHashMap<URI, IWsDiscoveryProbeMatchesListener> outstanding =
+            new ConcurrentHashMap<URI, IWsDiscoveryProbeMatchesListener>();
+    private volatile long nextExpiry = 0;
+
+    /**
+     * Start tracking a Probe. Must be called before the Probe is sent.
+     *
+     * @param messageId MessageID of the Probe.
+     * @param listener Listener to notify when ProbeMatches are received.
+     */
+    public void track(URI messageId, IWsDiscoveryProbeMatchesListener listener) {
+        if ((messageId == null) || (listener == null))
+            return;
+        outstanding.put(messageId, listener);
+    }
+
+    /**
+     * Stop tracking all Probes sent with the given listener.
+     * @param listener Listener to remove.
+     */
+    public void remove(IWsDiscoveryProbeMatchesListener listener) {
+        for (Map.Entry<URI, IWsDiscoveryProbeMatchesListener> e : outstanding.entrySet())
+            if (e.getValue() == listener)
+                outstanding.remove(e.getKey(), listener);
+    }
+
+    /**
+     * Pass the services in a received ProbeMatches to the listener of the 
+     * Probe it relates to.
+     *
+     * @param relatesTo RelatesTo of the ProbeMatches.
+     * @param services Services in the ProbeMatches.
+     * @return True if the ProbeMatches related to a tracked Probe.
+     */
+    public boolean matched(URI relatesTo, List<WsDiscoveryService> services) {
+        if (relatesTo == null)
+            return false;
+
+        IWsDiscoveryProbeMatchesListener listener = outstanding.get(relatesTo);
+        if (listener == null)
+            return false;
+
+        listener.probeMatched(relatesTo, services);
+        return true;
+    }
+
+    /**
+     * Check whether a ProbeMatches relates to a tracked Probe.
+     * @param relatesTo RelatesTo of the ProbeMatches.
+     * @return True if a listener is waiting for the ProbeMatches.
+     */
+    public boolean isTracked(URI relatesTo) {
+        return (relatesTo != null) && outstanding.containsKey(relatesTo);
+    }
+
+    /**
+     * Complete the finds whose timeout or quiet period has passed, so that 
+     * they are no longer tracked. Called periodically by the dispatch thread.
+     * Checks at most once per second.
+     *
+     * @param now Current time in milliseconds.
+     */
+    public void expire(long now) {
+        if (now < nextExpiry)
+            return;
+        nextExpiry = now + 1000;
+
+        for (IWsDiscoveryProbeMatchesListener listener : outstanding.values())
+            if (listener instanceof WsDiscoveryFindFuture)
+                ((WsDiscoveryFindFuture) listener).isDone(); // Removes itself when done
+    }
+
+    /**
+     * Number of Probes tracked.
+     * @return Number of Probes.
+     */
+    public int size() {
+        return outstanding.size();
+    }
+}
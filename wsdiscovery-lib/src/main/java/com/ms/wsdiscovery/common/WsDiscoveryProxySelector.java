@@ -0,0 +1,487 @@
+/*
+WsDiscoveryProxySelector.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.common;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.exception.WsDiscoveryNetworkException;
+import com.ms.wsdiscovery.interfaces.IWsDiscoveryProxyRequest;
+import com.ms.wsdiscovery.logger.WsDiscoveryLogger;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of the proxies announced on the network (managed mode) and
+ * selects the one to send Probes and Resolves to.
+ * <p>
+ * The round-trip time of each proxy is measured from the replies to the 
+ * requests sent to it, and the proxy with the lowest smoothed round-trip 
+ * time is selected. Proxies that have not been measured yet are tried first.
+ * When a proxy does not reply within 
+ * {@link WsDiscoveryConstants#proxyReplyTimeout}, or four times its 
+ * round-trip time if that is shorter, the request is also sent to the next
+ * best proxy. If that one does not reply either, the request is multicast 
+ * as in ad hoc mode. Requests are never cancelled, so the first reply wins.
+ * <p>
+ * A proxy that leaves {@link WsDiscoveryConstants#proxyMaxFailures} 
+ * requests in a row unanswered is considered down and skipped until it 
+ * sends a message again, or until {@link WsDiscoveryConstants#proxyRetryInterval}
+ * has passed. When all proxies are down, requests are multicast.
+ * <p>
+ * Timeouts are handled by {@link #expire()}, which the dispatch thread calls
+ * regularly. This class is thread safe.
+ *
+ * @author Magnus Skjegstad
+ */
+public class WsDiscoveryProxySelector {
+    private static final long MIN_REPLY_TIMEOUT = 50;
+    private static final int MAX_PROXY_ATTEMPTS = 2;
+
+    private final WsDiscoveryLogger logger = new WsDiscoveryLogger(WsDiscoveryProxySelector.class.getName());
+    private final int maxProxies;
+    private final int maxRequests;
+    private final LinkedHashMap<URI, Proxy> proxies = new LinkedHashMap<URI, Proxy>(); // Least recently heard first
+    private final LinkedHashMap<URI, Request> requests = new LinkedHashMap<URI, Request>(); // Oldest first
+
+    /**
+     * A known proxy.
+     */
+    public static class Proxy {
+        private final URI endpointAddress;
+        private final InetAddress address;
+        private final int port;
+        private final WsDiscoveryService service;
+        private volatile long roundTripTime = -1; // Smoothed. -1 until measured.
+        private volatile int failures = 0; // Requests in a row without reply
+        private volatile long downUntil = 0; // 0 when up
+
+        Proxy(WsDiscoveryService service, InetAddress address, int port) {
+            this.endpointAddress = service.getEndpointReference().getAddress();
+            this.service = service;
+            this.address = address;
+            this.port = port;
+        }
+
+        /**
+         * Get the endpoint address of the proxy service.
+         * @return Endpoint address.
+         */
+        public URI getEndpointAddress() {
+            return endpointAddress;
+        }
+
+        /**
+         * Get the proxy service, as announced in its Hello.
+         * @return Proxy service.
+         */
+        public WsDiscoveryService getService() {
+            return service;
+        }
+
+        /**
+         * Get the IP address messages to the proxy are sent to.
+         * @return IP address.
+         */
+        public InetAddress getAddress() {
+            return address;
+        }
+
+        /**
+         * Get the port messages to the proxy are sent to.
+         * @return Port.
+         */
+        public int getPort() {
+            return port;
+        }
+
+        /**
+         * Get the address and port messages to the proxy are sent to.
+         * @return Socket address.
+         */
+        public InetSocketAddress getSocketAddress() {
+            return new InetSocketAddress(address, port);
+        }
+
+        /**
+         * Get the smoothed round-trip time of requests sent to the proxy.
+         * @return Round-trip time in milliseconds, or -1 if not measured yet.
+         */
+        public long getRoundTripTime() {
+            return roundTripTime;
+        }
+
+        /**
+         * Get the number of requests in a row the proxy has not replied to.
+         * @return Number of unanswered requests.
+         */
+        public int getFailures() {
+            return failures;
+        }
+
+        /**
+         * Check whether the proxy is considered up at the given time.
+         * @param now Current time in milliseconds.
+         * @return False if the proxy is down.
+         */
+        public boolean isUp(long now) {
+            long d = downUntil;
+            return (d == 0) || (now >= d);
+        }
+
+        /**
+         * Check whether the proxy is considered up.
+         * @return False if the proxy is down.
+         */
+        public boolean isUp() {
+            return isUp(System.currentTimeMillis());
+        }
+
+        @Override
+        public String toString() {
+            return endpointAddress + " at " + address.getHostAddress() + ":" + port;
+        }
+    }
+
+    /**
+     * Time a request was sent to a proxy.
+     */
+    private static class Attempt {
+        final Proxy proxy;
+        final long sentAt;
+
+        Attempt(Proxy proxy, long sentAt) {
+            this.proxy = proxy;
+            this.sentAt = sentAt;
+        }
+    }
+
+    /**
+     * A request waiting for a reply from a proxy.
+     */
+    private static class Request {
+        final IWsDiscoveryProxyRequest request;
+        final List<Attempt> attempts = new ArrayList<Attempt>(MAX_PROXY_ATTEMPTS);
+        long deadline;
+
+        Request(IWsDiscoveryProxyRequest request) {
+            this.request = request;
+        }
+    }
+
+    /**
+     * Create a new selector.
+     * @param maxProxies Maximum number of proxies to remember. The proxy 
+     * heard from least recently is forgotten first.
+     * @param maxRequests Maximum number of requests waiting for a reply. 
+     * When full, the oldest request is no longer failed over.
+     */
+    public WsDiscoveryProxySelector(int maxProxies, int maxRequests) {
+        this.maxProxies = maxProxies;
+        this.maxRequests = maxRequests;
+    }
+
+    /**
+     * Register that a proxy announced itself, e.g. in a Hello sent in 
+     * suppression of a multicast message. The proxy is considered up.
+     *
+     * @param service Proxy service. Must have an endpoint address.
+     * @param address IP address to send messages to.
+     * @param port Port to send messages to.
+     * @return Proxy.
+     */
+    public synchronized Proxy heard(WsDiscoveryService service, InetAddress address, int port) {
+        URI key = service.getEndpointReference().getAddress();
+        Proxy p = proxies.remove(key);
+        if ((p == null) || !p.address.equals(address) || (p.port != port)) {
+            p = new Proxy(service, address, port);
+            logger.fine("Using proxy server " + p);
+        }
+        setUp(p);
+        proxies.put(key, p);
+
+        Iterator<Proxy> i = proxies.values().iterator();
+        while (proxies.size() > maxProxies) {
+            logger.fine("Forgetting proxy server " + i.next());
+            i.remove();
+        }
+        return p;
+    }
+
+    /**
+     * Forget a proxy, e.g. after it has sent Bye.
+     * @param endpointAddress Endpoint address of the proxy service.
+     * @return True if the proxy was known.
+     */
+    public synchronized boolean remove(URI endpointAddress) {
+        if (proxies.remove(endpointAddress) == null)
+            return false;
+        logger.fine("Proxy service " + endpointAddress + " left the network.");
+        return true;
+    }
+
+    /**
+     * Forget all proxies and outstanding requests.
+     */
+    public synchronized void clear() {
+        proxies.clear();
+        requests.clear();
+    }
+
+    /**
+     * Get the known proxies.
+     * @return Proxies, whether up or down.
+     */
+    public synchronized List<Proxy> getProxies() {
+        return new ArrayList<Proxy>(proxies.values());
+    }
+
+    /**
+     * Select the best proxy that is up.
+     * @return Proxy, or null if no proxy is up.
+     */
+    public synchronized Proxy select() {
+        return select(System.currentTimeMillis(), null);
+    }
+
+    private Proxy select(long now, List<Attempt> exclude) {
+        Proxy best = null;
+        for (Proxy p : proxies.values()) {
+            if (!p.isUp(now) || wasTried(p, exclude))
+                continue;
+            // Unmeasured proxies first. On ties, the most recently heard.
+            if ((best == null) || (Math.max(p.roundTripTime, 0) <= Math.max(best.roundTripTime, 0)))
+                best = p;
+        }
+        return best;
+    }
+
+    private static boolean wasTried(Proxy p, List<Attempt> attempts) {
+        if (attempts != null)
+            for (Attempt a : attempts)
+                if (a.proxy == p)
+                    return true;
+        return false;
+    }
+
+    private static long getReplyTimeout(Proxy p) {
+        long rtt = p.roundTripTime;
+        if (rtt < 0)
+            return WsDiscoveryConstants.proxyReplyTimeout;
+        return Math.min(WsDiscoveryConstants.proxyReplyTimeout, Math.max(MIN_REPLY_TIMEOUT, 4 * rtt));
+    }
+
+    private void setUp(Proxy p) {
+        if (!p.isUp(System.currentTimeMillis()) || (p.failures >= WsDiscoveryConstants.proxyMaxFailures))
+            logger.fine("Proxy server " + p + " is up.");
+        p.failures = 0;
+        p.downUntil = 0;
+    }
+
+    private void setFailed(Proxy p, long now) {
+        p.failures++;
+        if (p.failures >= WsDiscoveryConstants.proxyMaxFailures) {
+            p.downUntil = now + Math.max(1, WsDiscoveryConstants.proxyRetryInterval);
+            logger.fine("Proxy server " + p + " did not reply to " + p.failures + " requests. Considered down.");
+        }
+    }
+
+    /**
+     * Send a request to the best proxy, or multicast if no proxy is up.
+     *
+     * @param messageId MessageID of the request. Replies are recognized by
+     * their RelatesTo. When null, the request is not failed over.
+     * @param request Request.
+     * @throws WsDiscoveryNetworkException if the request was multicast and
+     * could not be sent.
+     */
+    public void send(URI messageId, IWsDiscoveryProxyRequest request) throws WsDiscoveryNetworkException {
+        send(messageId, request, System.currentTimeMillis());
+    }
+
+    /**
+     * Send a request to the best proxy, or multicast if no proxy is up.
+     *
+     * @param messageId MessageID of the request. When null, the request is 
+     * not failed over.
+     * @param request Request.
+     * @param now Current time in milliseconds.
+     * @throws WsDiscoveryNetworkException if the request was multicast and
+     * could not be sent.
+     */
+    public void send(URI messageId, IWsDiscoveryProxyRequest request, long now) throws WsDiscoveryNetworkException {
+        Proxy p;
+        Request r = null;
+        synchronized (this) {
+            p = select(now, null);
+            if ((p != null) && (messageId != null)) {
+                r = new Request(request);
+                r.attempts.add(new Attempt(p, now));
+                r.deadline = now + getReplyTimeout(p);
+                requests.put(messageId, r);
+                Iterator<Request> i = requests.values().iterator();
+                while (requests.size() > maxRequests) {
+                    i.next();
+                    i.remove();
+                }
+            }
+        }
+
+        if (p == null) {
+            request.sendMulticast();
+            return;
+        }
+
+        try {
+            request.sendTo(p);
+        } catch (WsDiscoveryNetworkException ex) {
+            logger.warning("Unable to send to proxy server " + p + ": " + ex.getMessage());
+            if (r == null)
+                throw ex;
+            synchronized (this) {
+                r.deadline = now; // Failed over by the next call to expire()
+            }
+        }
+    }
+
+    /**
+     * Register that a reply was received. If it relates to a request sent to
+     * a proxy, the round-trip time of the proxy is updated. Any message from
+     * a proxy shows that it is up.
+     *
+     * @param relatesTo RelatesTo of the reply. May be null.
+     * @param from IP address the reply was received from.
+     */
+    public void replied(URI relatesTo, InetAddress from) {
+        replied(relatesTo, from, System.currentTimeMillis());
+    }
+
+    /**
+     * Register that a reply was received.
+     *
+     * @param relatesTo RelatesTo of the reply. May be null.
+     * @param from IP address the reply was received from.
+     * @param now Current time in milliseconds.
+     */
+    public synchronized void replied(URI relatesTo, InetAddress from, long now) {
+        if (from == null)
+            return;
+
+        Request r = (relatesTo != null) ? requests.get(relatesTo) : null;
+        if (r != null) {
+            for (Attempt a : r.attempts) {
+                if (!a.proxy.address.equals(from))
+                    continue;
+                long sample = Math.max(0, now - a.sentAt);
+                long rtt = a.proxy.roundTripTime;
+                a.proxy.roundTripTime = (rtt < 0) ? sample : (7 * rtt + sample) / 8;
+                requests.remove(relatesTo);
+                break;
+            }
+        }
+
+        for (Proxy p : proxies.values())
+            if (p.address.equals(from))
+                setUp(p);
+    }
+
+    /**
+     * Fail over the requests whose proxy has not replied in time. 
+     */
+    public void expire() {
+        expire(System.currentTimeMillis());
+    }
+
+    /**
+     * Fail over the requests whose proxy has not replied in time.
+     * @param now Current time in milliseconds.
+     */
+    public void expire(long now) {
+        List<IWsDiscoveryProxyRequest> resend = null;
+        List<Proxy> resendTo = null;
+
+        synchronized (this) {
+            for (Iterator<Request> i = requests.values().iterator(); i.hasNext(); ) {
+                Request r = i.next();
+                if (r.deadline > now)
+                    continue;
+
+                setFailed(r.attempts.get(r.attempts.size() - 1).proxy, now);
+                Proxy next = null;
+                if (r.attempts.size() < MAX_PROXY_ATTEMPTS)
+                    next = select(now, r.attempts);
+                if (next != null) {
+                    r.attempts.add(new Attempt(next, now));
+                    r.deadline = now + getReplyTimeout(next);
+                } else
+                    i.remove(); // Multicast. Replies are no longer timed.
+
+                if (resend == null) {
+                    resend = new ArrayList<IWsDiscoveryProxyRequest>();
+                    resendTo = new ArrayList<Proxy>();
+                }
+                resend.add(r.request);
+                resendTo.add(next);
+            }
+        }
+
+        if (resend == null)
+            return;
+
+        for (int i = 0; i < resend.size(); i++) {
+            Proxy p = resendTo.get(i);
+            try {
+                if (p != null) {
+                    logger.fine("No reply from proxy server in time. Sending request to " + p);
+                    resend.get(i).sendTo(p);
+                } else {
+                    logger.fine("No reply from proxy servers in time. Sending request multicast.");
+                    resend.get(i).sendMulticast();
+                }
+            } catch (WsDiscoveryNetworkException ex) {
+                logger.warning("Unable to fail over request: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Get the time of the next call to expire() that has something to do.
+     * @return Time in milliseconds, or Long.MAX_VALUE if no requests are waiting.
+     */
+    public synchronized long getNextDeadline() {
+        long deadline = Long.MAX_VALUE;
+        for (Request r : requests.values())
+            deadline = Math.min(deadline, r.deadline);
+        return deadline;
+    }
+
+    /**
+     * Number of requests waiting for a reply from a proxy.
+     * @return Number of requests.
+     */
+    public synchronized int getPendingRequests() {
+        return requests.size();
+    }
+}
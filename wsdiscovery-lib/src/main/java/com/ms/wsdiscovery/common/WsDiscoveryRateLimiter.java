@@ -0,0 +1,220 @@
+/*
+WsDiscoveryRateLimiter.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.common;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Limits how often a message may be sent about a target (e.g. a service) to
+ * a requester (e.g. the host that sent a Resolve). At most one message is
+ * allowed per target and requester within the configured window.
+ * <p>
+ * The table is bounded. Entries are forgotten when their window has expired,
+ * and when the table is full the oldest entry is evicted.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author Magnus Skjegstad
+ */
+public class WsDiscoveryRateLimiter {
+
+    /**
+     * Identifies a target and requester pair. Both may be null.
+     */
+    private static class Key {
+        private final Object target;
+        private final Object requester;
+
+        Key(Object target, Object requester) {
+            this.target = target;
+            this.requester = requester;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key))
+                return false;
+            Key k = (Key)obj;
+            return (target == null ? k.target == null : target.equals(k.target)) &&
+                    (requester == null ? k.requester == null : requester.equals(k.requester));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (target == null ? 0 : target.hashCode()) +
+                    (requester == null ? 0 : requester.hashCode());
+        }
+    }
+
+    /**
+     * Time of last allowed message. Mutable to avoid boxing.
+     */
+    private static class Timestamp {
+        long time;
+
+        Timestamp(long time) {
+            this.time = time;
+        }
+    }
+
+    private final LinkedHashMap<Key, Timestamp> sent;
+    private final int maxEntries;
+    private long windowInMillis;
+    private long throttledCount = 0;
+    private long expiredCount = 0;
+    private long evictedCount = 0;
+
+    /**
+     * Create new rate limiter.
+     *
+     * @param windowInMillis Minimum time between two messages about the same target to the same requester.
+     * @param maxEntries Maximum number of target and requester pairs to remember.
+     */
+    public WsDiscoveryRateLimiter(long windowInMillis, int maxEntries) {
+        this.windowInMillis = windowInMillis;
+        this.maxEntries = maxEntries;
+        // Insertion order. Entries are reinserted when updated, so the
+        // oldest timestamp is always first.
+        this.sent = new LinkedHashMap<Key, Timestamp>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Timestamp> eldest) {
+                if (size() > WsDiscoveryRateLimiter.this.maxEntries) {
+                    evictedCount++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Check if a message about <code>target</code> may be sent to <code>requester</code>
+     * now. If it may, the time is recorded.
+     *
+     * @param target Target, e.g. the endpoint address of a service.
+     * @param requester Requester, e.g. the address of the host that sent a Resolve.
+     * @return True if the message may be sent, false if it should be suppressed.
+     */
+    public boolean tryAcquire(Object target, Object requester) {
+        return tryAcquire(target, requester, System.currentTimeMillis());
+    }
+
+    /**
+     * Check if a message about <code>target</code> may be sent to <code>requester</code>
+     * at the given time. If it may, the time is recorded.
+     *
+     * @param target Target, e.g. the endpoint address of a service.
+     * @param requester Requester, e.g. the address of the host that sent a Resolve.
+     * @param now Current time in milliseconds.
+     * @return True if the message may be sent, false if it should be suppressed.
+     */
+    public synchronized boolean tryAcquire(Object target, Object requester, long now) {
+        if ((maxEntries <= 0) || (windowInMillis <= 0))
+            return true;
+
+        removeExpired(now);
+
+        Key k = new Key(target, requester);
+        Timestamp t = sent.get(k);
+        if ((t != null) && (now - t.time < windowInMillis)) {
+            throttledCount++;
+            return false;
+        }
+
+        if (t == null)
+            t = new Timestamp(now);
+        else {
+            sent.remove(k); // reinsert last to keep the table ordered by time
+            t.time = now;
+        }
+        sent.put(k, t);
+        return true;
+    }
+
+    /**
+     * Forget all entries with expired windows. Since entries are ordered by
+     * time, only the head of the table is visited.
+     */
+    private void removeExpired(long now) {
+        for (Iterator<Timestamp> i = sent.values().iterator(); i.hasNext(); ) {
+            if (now - i.next().time < windowInMillis)
+                break;
+            i.remove();
+            expiredCount++;
+        }
+    }
+
+    /**
+     * Get the minimum time between two messages about the same target to the same requester.
+     * @return Window in milliseconds.
+     */
+    public synchronized long getWindow() {
+        return windowInMillis;
+    }
+
+    /**
+     * Set the minimum time between two messages about the same target to the same requester.
+     * @param windowInMillis Window in milliseconds. 0 disables the limiter.
+     */
+    public synchronized void setWindow(long windowInMillis) {
+        this.windowInMillis = windowInMillis;
+    }
+
+    /**
+     * Number of target and requester pairs currently remembered.
+     * @return Number of entries.
+     */
+    public synchronized int size() {
+        return sent.size();
+    }
+
+    /**
+     * Number of messages suppressed.
+     * @return Number of calls to tryAcquire() that returned false.
+     */
+    public synchronized long getThrottledCount() {
+        return throttledCount;
+    }
+
+    /**
+     * Number of entries forgotten because their window expired.
+     * @return Number of expired entries.
+     */
+    public synchronized long getExpiredCount() {
+        return expiredCount;
+    }
+
+    /**
+     * Number of entries forgotten because the table was full.
+     * @return Number of evicted entries.
+     */
+    public synchronized long getEvictedCount() {
+        return evictedCount;
+    }
+
+    /**
+     * Forget all entries.
+     */
+    public synchronized void clear() {
+        sent.clear();
+    }
+}
@@ -0,0 +1,234 @@
+/*
+WsDiscoveryServiceExpiry.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.common;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of when discovered services expire. Each service has a
+ * deadline that is pushed forward every time a message is received from it.
+ * <p>
+ * Deadlines are kept in a hashed timer wheel. Each slot of the wheel covers
+ * one tick, and a service is placed in the slot of the tick its deadline
+ * falls in. {@link #expire(long)} only looks at the slots of the ticks that
+ * have passed since it was last called, so the cost of expiry does not depend
+ * on the number of services tracked.
+ * <p>
+ * The number of services tracked may be bounded. When it is full, the least
+ * recently refreshed service is evicted and returned by the next call to
+ * {@link #expire(long)}.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author Magnus Skjegstad
+ */
+public class WsDiscoveryServiceExpiry {
+    private final long tickInMillis;
+    private final LinkedHashSet<URI>[] wheel;
+    private final LinkedHashMap<URI, Entry> entries; // least recently refreshed first
+    private final int maxEntries;
+    private final List<URI> evicted = new ArrayList<URI>();
+    private long lastTick = -1;
+    private long expiredCount = 0;
+    private long evictedCount = 0;
+
+    /**
+     * Deadline of one service. Mutable to avoid allocation on refresh.
+     */
+    private static class Entry {
+        long deadline;
+        int slot = -1; // -1 when the service never expires
+    }
+
+    /**
+     * Create a new expiry wheel.
+     *
+     * @param slots Number of slots in the wheel.
+     * @param tickInMillis Time covered by each slot. Services expire at most
+     * this long after their deadline.
+     * @param maxEntries Maximum number of services tracked. 0 for no limit.
+     */
+    @SuppressWarnings("unchecked")
+    public WsDiscoveryServiceExpiry(int slots, long tickInMillis, int maxEntries) {
+        this.tickInMillis = tickInMillis;
+        this.maxEntries = maxEntries;
+        this.wheel = new LinkedHashSet[slots];
+        for (int i = 0; i < slots; i++)
+            wheel[i] = new LinkedHashSet<URI>();
+
+        this.entries = new LinkedHashMap<URI, Entry>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<URI, Entry> eldest) {
+                if ((WsDiscoveryServiceExpiry.this.maxEntries <= 0) || (size() <= WsDiscoveryServiceExpiry.this.maxEntries))
+                    return false;
+                unschedule(eldest.getKey(), eldest.getValue());
+                evicted.add(eldest.getKey());
+                evictedCount++;
+                return true;
+            }
+        };
+    }
+
+    private void start(long now) {
+        if (lastTick < 0)
+            lastTick = now / tickInMillis;
+    }
+
+    private void unschedule(URI address, Entry e) {
+        if (e.slot >= 0)
+            wheel[e.slot].remove(address);
+        e.slot = -1;
+    }
+
+    /**
+     * Register that a message was received from a service.
+     *
+     * @param address Endpoint address of service.
+     * @param timeToLiveInMillis Time until the service expires if no further
+     * messages are received. 0 or less if the service should never expire.
+     */
+    public void refresh(URI address, long timeToLiveInMillis) {
+        refresh(address, timeToLiveInMillis, System.currentTimeMillis());
+    }
+
+    /**
+     * Register that a message was received from a service at the given time.
+     *
+     * @param address Endpoint address of service.
+     * @param timeToLiveInMillis Time until the service expires if no further
+     * messages are received. 0 or less if the service should never expire.
+     * @param now Current time in milliseconds.
+     */
+    public synchronized void refresh(URI address, long timeToLiveInMillis, long now) {
+        if (address == null)
+            return;
+        start(now);
+
+        Entry e = entries.remove(address); // put back last
+        if (e == null)
+            e = new Entry();
+        else
+            unschedule(address, e);
+
+        if (timeToLiveInMillis > 0) {
+            e.deadline = now + timeToLiveInMillis;
+            e.slot = (int)((e.deadline / tickInMillis) % wheel.length);
+            wheel[e.slot].add(address);
+        }
+
+        entries.put(address, e);
+    }
+
+    /**
+     * Stop tracking a service, e.g. when it has sent Bye.
+     * @param address Endpoint address of service.
+     */
+    public synchronized void remove(URI address) {
+        Entry e = entries.remove(address);
+        if (e != null)
+            unschedule(address, e);
+    }
+
+    /**
+     * Get the services that have expired or been evicted since the last call.
+     * The services are no longer tracked.
+     *
+     * @return Endpoint addresses of the services to remove.
+     */
+    public List<URI> expire() {
+        return expire(System.currentTimeMillis());
+    }
+
+    /**
+     * Get the services that have expired at the given time or been evicted
+     * since the last call. The services are no longer tracked.
+     *
+     * @param now Current time in milliseconds.
+     * @return Endpoint addresses of the services to remove.
+     */
+    public synchronized List<URI> expire(long now) {
+        start(now);
+        List<URI> res = new ArrayList<URI>();
+        for (URI address : evicted)
+            if (!entries.containsKey(address)) // unless refreshed again since
+                res.add(address);
+        evicted.clear();
+
+        long tick = now / tickInMillis;
+        // The slot of the last tick is visited again, as deadlines later in that tick had not passed
+        long first = Math.max(lastTick, tick - wheel.length + 1);
+        for (long t = first; t <= tick; t++) {
+            Iterator<URI> i = wheel[(int)(t % wheel.length)].iterator();
+            while (i.hasNext()) {
+                URI address = i.next();
+                Entry e = entries.get(address);
+                if (e.deadline > now) // later tick or later round of the wheel
+                    continue;
+                i.remove();
+                entries.remove(address);
+                res.add(address);
+                expiredCount++;
+            }
+        }
+        lastTick = tick;
+
+        return res;
+    }
+
+    /**
+     * Number of services tracked.
+     * @return Number of services.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Number of services that have expired.
+     * @return Number of expired services.
+     */
+    public synchronized long getExpiredCount() {
+        return expiredCount;
+    }
+
+    /**
+     * Number of services evicted because too many services were tracked.
+     * @return Number of evicted services.
+     */
+    public synchronized long getEvictedCount() {
+        return evictedCount;
+    }
+
+    /**
+     * Stop tracking all services.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        evicted.clear();
+        for (LinkedHashSet<URI> slot : wheel)
+            slot.clear();
+    }
+}
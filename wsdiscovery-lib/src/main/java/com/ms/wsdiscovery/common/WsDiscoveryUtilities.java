@@ -63,7 +63,7 @@ public class WsDiscoveryUtilities {
             throw new WsDiscoveryException("Unable to create new instance of JAXB marshaller.", ex);
         }
         try {
-            m.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
+            m.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.FALSE);
         } catch (PropertyException ex) {
             throw new WsDiscoveryException("Unable to set JAXB marshaller property JAXB_FORMATTED_OUTPUT.", ex);
         }
@@ -31,28 +31,29 @@ public enum WsDiscoveryActionTypes {
     /**
      * Hello-message
      */
-    HELLO          (WsDiscoveryConstants.defaultNsDiscovery.getWsDiscoveryNamespace() + "/Hello"),
+    HELLO          ("Hello"),
     /**
      * Bye-message
      */
-    BYE            (WsDiscoveryConstants.defaultNsDiscovery.getWsDiscoveryNamespace() + "/Bye"),
+    BYE            ("Bye"),
     /**
      * Probe-message
      */
-    PROBE          (WsDiscoveryConstants.defaultNsDiscovery.getWsDiscoveryNamespace() + "/Probe"),
+    PROBE          ("Probe"),
     /**
      * ProbeMatches-message
      */
-    PROBEMATCHES   (WsDiscoveryConstants.defaultNsDiscovery.getWsDiscoveryNamespace() + "/ProbeMatches"),
+    PROBEMATCHES   ("ProbeMatches"),
     /**
      * Resolve-message
      */
-    RESOLVE        (WsDiscoveryConstants.defaultNsDiscovery.getWsDiscoveryNamespace() + "/Resolve"),
+    RESOLVE        ("Resolve"),
     /**
      * ResolveMatches-message
      */
-    RESOLVEMATCHES(WsDiscoveryConstants.defaultNsDiscovery.getWsDiscoveryNamespace() + "/ResolveMatches");
+    RESOLVEMATCHES("ResolveMatches");
        
+    private final String name;
     private final URI action;
     
     /**
@@ -63,12 +64,45 @@ public enum WsDiscoveryActionTypes {
         return action;
     }
        
+    /**
+     * Return the ActionType as used by a specific WS-Discovery version.
+     * @param namespace WS-Discovery version.
+     * @return ActionType in the namespace of <code>namespace</code>.
+     */
+    public URI toURI(WsDiscoveryNamespaces namespace) {
+        return URI.create(namespace.getWsDiscoveryNamespace() + "/" + name);
+    }
+
+    /**
+     * Find the ActionType matching a WS-Addressing action in the given WS-Discovery version.
+     * @param action WS-Addressing action.
+     * @param namespace WS-Discovery version the action should belong to.
+     * @return Matching ActionType or <code>null</code> if the action is unknown or belongs to another namespace.
+     */
+    public static WsDiscoveryActionTypes fromURI(URI action, WsDiscoveryNamespaces namespace) {
+        if ((action == null) || (namespace == null))
+            return null;
+
+        String s = action.toString();
+        String prefix = namespace.getWsDiscoveryNamespace() + "/";
+        if (!s.startsWith(prefix))
+            return null;
+
+        s = s.substring(prefix.length());
+        for (WsDiscoveryActionTypes a : values())
+            if (a.name.equals(s))
+                return a;
+
+        return null;
+    }
+       
     @Override
     public String toString() {
         return action.toString();
     }
     
-    WsDiscoveryActionTypes(String action) {
-        this.action = URI.create(action);
+    WsDiscoveryActionTypes(String name) {
+        this.name = name;
+        this.action = URI.create(WsDiscoveryConstants.defaultNsDiscovery.getWsDiscoveryNamespace() + "/" + name);
     }
 }
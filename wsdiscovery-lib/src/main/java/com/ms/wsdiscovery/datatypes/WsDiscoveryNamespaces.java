@@ -5,13 +5,16 @@
 
 package com.ms.wsdiscovery.datatypes;
 
+import com.ms.wsdiscovery.common.WsDiscoveryDispatchThread;
 import com.ms.wsdiscovery.common.WsDiscoveryUtilities;
 import com.ms.wsdiscovery.draft2005.WsDiscoveryD2005DispatchThread;
 import com.ms.wsdiscovery.exception.WsDiscoveryException;
 import com.ms.wsdiscovery.exception.WsDiscoveryNetworkException;
 import com.ms.wsdiscovery.interfaces.IWsDiscoveryDispatchThread;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceDirectory;
 import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
 import com.ms.wsdiscovery.standard11.WsDiscoveryS11DispatchThread;
+import com.skjegstad.soapoverudp.interfaces.ISOAPOverUDP;
 import com.skjegstad.soapoverudp.interfaces.ISOAPOverUDPTransport;
 import java.nio.charset.Charset;
 import javax.xml.bind.JAXBContext;
@@ -44,8 +47,9 @@ public enum WsDiscoveryNamespaces {
     private final MatchBy defaultMatcher;
 
     private JAXBContext jaxbContext = null;
-    private Marshaller marshaller = null;
-    private Unmarshaller unmarshaller = null;
+    // Marshallers and unmarshallers are not thread safe, so each thread gets its own
+    private final ThreadLocal<Marshaller> marshaller = new ThreadLocal<Marshaller>();
+    private final ThreadLocal<Unmarshaller> unmarshaller = new ThreadLocal<Unmarshaller>();
 
     WsDiscoveryNamespaces(String wsdNamespace, String wsaNamespace, String contextPath, Class dispatchThreadClass, MatchBy defaultMatcher) {
         this.wsDiscoveryNamespace = wsdNamespace;
@@ -55,7 +59,7 @@ public enum WsDiscoveryNamespaces {
         this.defaultMatcher = defaultMatcher;
     }
 
-    public JAXBContext getJAXBContext() throws WsDiscoveryException {
+    public synchronized JAXBContext getJAXBContext() throws WsDiscoveryException {
         if (jaxbContext == null) // only do this once
             jaxbContext = WsDiscoveryUtilities.createJAXBContext(this.contextPath);
 
@@ -63,15 +67,21 @@ public enum WsDiscoveryNamespaces {
     }
 
     public Marshaller getMarshaller() throws WsDiscoveryException {
-        if (marshaller == null) // only do this once
-            marshaller = WsDiscoveryUtilities.createMarshaller(this.getJAXBContext());
-        return marshaller;
+        Marshaller m = marshaller.get();
+        if (m == null) { // only do this once per thread
+            m = WsDiscoveryUtilities.createMarshaller(this.getJAXBContext());
+            marshaller.set(m);
+        }
+        return m;
     }
 
     public Unmarshaller getUnmarshaller() throws WsDiscoveryException {
-        if (unmarshaller == null) // only do this once
-            unmarshaller = WsDiscoveryUtilities.createUnmarshaller(this.getJAXBContext());
-        return unmarshaller;
+        Unmarshaller u = unmarshaller.get();
+        if (u == null) { // only do this once per thread
+            u = WsDiscoveryUtilities.createUnmarshaller(this.getJAXBContext());
+            unmarshaller.set(u);
+        }
+        return u;
     }
 
     public String getWsDiscoveryNamespace() {
@@ -100,6 +110,22 @@ public enum WsDiscoveryNamespaces {
             throw new InstantiationException("Unknown dispatch thread class");
     }
 
+    /**
+     * Create a dispatch thread for this version that uses an existing transport
+     * layer and existing service directories. The thread is not started; received
+     * messages must be passed to it by the owner of the transport layer.
+     */
+    public WsDiscoveryDispatchThread getNewDispatchThreadInstance(ISOAPOverUDP soapOverUDP, IWsDiscoveryServiceDirectory localServices,
+            IWsDiscoveryServiceDirectory serviceDirectory) throws WsDiscoveryNetworkException, InstantiationException {
+        if (dispatchThreadClass.equals(WsDiscoveryS11DispatchThread.class)) {
+            return new WsDiscoveryS11DispatchThread(soapOverUDP, localServices, serviceDirectory);
+        } else
+        if (dispatchThreadClass.equals(WsDiscoveryD2005DispatchThread.class)) {
+            return new WsDiscoveryD2005DispatchThread(soapOverUDP, localServices, serviceDirectory);
+        } else
+            throw new InstantiationException("Unknown dispatch thread class");
+    }
+
     public MatchBy getDefaultMatcher() {
         return defaultMatcher;
     }
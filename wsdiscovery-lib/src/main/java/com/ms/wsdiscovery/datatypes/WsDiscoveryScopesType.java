@@ -20,6 +20,8 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 package com.ms.wsdiscovery.datatypes;
 
 import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchByRegistry;
+import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -32,6 +34,7 @@ import javax.xml.namespace.QName;
  */
 public class WsDiscoveryScopesType {
     protected MatchBy matchBy;
+    protected URI customMatchBy;
     protected List<String> value;
     protected Map<QName, String> otherAttributes;
 
@@ -57,6 +60,24 @@ public class WsDiscoveryScopesType {
         return matchBy;
     }
 
+    /**
+     * Set the URI of a custom matching algorithm registered in 
+     * {@link MatchByRegistry}. When set, it is used instead of 
+     * {@link #getMatchBy()}.
+     * @param customMatchBy MatchBy URI, or <code>null</code> to use getMatchBy().
+     */
+    public void setCustomMatchBy(URI customMatchBy) {
+        this.customMatchBy = customMatchBy;
+    }
+
+    /**
+     * Get the URI of the custom matching algorithm.
+     * @return MatchBy URI, or <code>null</code> if a built-in algorithm is used.
+     */
+    public URI getCustomMatchBy() {
+        return customMatchBy;
+    }
+
     public Map<QName, String> getOtherAttributes() {
         return otherAttributes;
     }
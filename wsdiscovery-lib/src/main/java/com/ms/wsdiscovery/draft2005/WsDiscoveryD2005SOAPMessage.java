@@ -40,6 +40,9 @@ import javax.xml.soap.SOAPHeader;
 import javax.xml.soap.SOAPHeaderElement;
 import javax.xml.soap.SOAPMessage;
 import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
 import com.ms.wsdiscovery.exception.WsDiscoveryXMLException;
 import com.ms.wsdiscovery.jaxb.draft2005.wsdiscovery.ObjectFactory;
 import com.skjegstad.soapoverudp.interfaces.ISOAPOverUDPMessage;
@@ -84,12 +87,29 @@ public class WsDiscoveryD2005SOAPMessage<E> extends SOAPOverUDPWSA200408Message
      * WS-Discovery Message Number.
      */
     protected long messageNumber;
+
+    /**
+     * True if an AppSequence header was read from a received message.
+     */
+    protected boolean appSequenceReceived = false;
         
     /**
      * JAXB body of message.
      */
     protected JAXBElement<E> jaxbBody = null;
 
+    /**
+     * False if the SOAP body has not been unmarshalled into {@link #jaxbBody} yet.
+     * Received messages are decoded on demand, see {@link #decodeJAXBBody()}.
+     */
+    protected boolean jaxbBodyDecoded = true;
+
+    /**
+     * Body encoded by {@link #encodeJAXBBody()}. Used instead of {@link #jaxbBody}
+     * when set. May be shared between messages and must not be modified.
+     */
+    protected Document encodedBody = null;
+
     /**
      * "Identifies a message within the context of a sequence number and an instance identifier."
      * This value is incremented each time this class is insantiated.
@@ -117,7 +137,7 @@ public class WsDiscoveryD2005SOAPMessage<E> extends SOAPOverUDPWSA200408Message
             throw new SOAPOverUDPException("Unable to read SOAP envelope");
         }
 
-        this.setAction(action.toURI());
+        this.setAction(action.toURI(namespace));
         // Initialize to anonymous recipient
         this.setTo(URI.create(namespace.getWsAddressingNamespace() + "/role/anonymous"));
         this.setJAXBBody(jaxb);
@@ -145,7 +165,8 @@ public class WsDiscoveryD2005SOAPMessage<E> extends SOAPOverUDPWSA200408Message
         this.setRelatesTo(message.getRelatesTo());
         this.soapMessage = message.getSOAPMessage();
         readWSDHeader();
-        readWSDBody();
+        // The body is not unmarshalled until someone asks for it
+        jaxbBodyDecoded = false;
     }
 
     /*
@@ -257,6 +278,7 @@ public class WsDiscoveryD2005SOAPMessage<E> extends SOAPOverUDPWSA200408Message
                     instanceId = a.getInstanceId();
                     messageNumber = a.getMessageNumber();
                     sequenceId = a.getSequenceId();
+                    appSequenceReceived = true;
                 }
             }
         }
@@ -347,6 +369,8 @@ public class WsDiscoveryD2005SOAPMessage<E> extends SOAPOverUDPWSA200408Message
     }
 
     protected void saveWSDBody() throws WsDiscoveryException {
+        // Make sure the existing body is not lost if it has not been read yet
+        decodeJAXBBody();
         removeWSDBody();
 
         // All namespaces defined in the SOAP-message must be redeclared in the body for JAXB to recognize them.
@@ -374,6 +398,16 @@ public class WsDiscoveryD2005SOAPMessage<E> extends SOAPOverUDPWSA200408Message
             }
         }
 
+        // Copy pre-encoded body
+        if (encodedBody != null) {
+            Node n;
+            synchronized (encodedBody) { // DOM is not thread safe, even when reading
+                n = body.getOwnerDocument().importNode(encodedBody.getDocumentElement(), true);
+            }
+            body.appendChild(n);
+            return;
+        }
+
         Marshaller m = namespace.getMarshaller();
         // Marshal JAXB elements to SOAP body
         if (jaxbBody != null) {
@@ -410,12 +444,57 @@ public class WsDiscoveryD2005SOAPMessage<E> extends SOAPOverUDPWSA200408Message
     public String getSequenceId() {
         return sequenceId;
     }
+
+    /**
+     * Check if InstanceId, SequenceId and MessageNumber were read from an 
+     * AppSequence header in a received message.
+     * @return True if the received message contained an AppSequence header.
+     */
+    public boolean hasReceivedAppSequence() {
+        return appSequenceReceived;
+    }
     
     /**
-     * Get the JAXB element that represents the body of the SOAP message.
-     * @return JAXB element.
+     * Get the action type of this message, based on the WS-Addressing action. 
+     * Can be used to route a message before the body is unmarshalled.
+     * @return Action type or <code>null</code> if the action is unknown or belongs to another WS-Discovery version.
+     */
+    public WsDiscoveryActionTypes getActionType() {
+        return WsDiscoveryActionTypes.fromURI(getAction(), namespace);
+    }
+
+    /**
+     * Unmarshal the SOAP body, unless this has already been done. Received
+     * messages are not unmarshalled until this method or {@link #getJAXBBody()} 
+     * is called.
+     * @throws WsDiscoveryException if the body could not be unmarshalled.
+     */
+    public void decodeJAXBBody() throws WsDiscoveryException {
+        if (jaxbBodyDecoded)
+            return;
+
+        try {
+            readWSDBody();
+        } finally {
+            jaxbBodyDecoded = true; // don't try again if it failed
+        }
+    }
+
+    /**
+     * Get the JAXB element that represents the body of the SOAP message. The
+     * body of received messages is unmarshalled on the first call.
+     * @return JAXB element or <code>null</code> if the body is empty or could not be unmarshalled.
      */
     public E getJAXBBody() {
+        try {
+            decodeJAXBBody();
+        } catch (WsDiscoveryException ex) {
+            return null;
+        }
+
+        if (jaxbBody == null)
+            return null;
+
         return jaxbBody.getValue();
     }
 
@@ -453,16 +532,54 @@ public class WsDiscoveryD2005SOAPMessage<E> extends SOAPOverUDPWSA200408Message
                 }
             }
         }
-        try {
-            // Parse body
-            readWSDBody();
-        } catch (WsDiscoveryException ex) {
-            throw new SOAPOverUDPException("Could not read WS-Discovery body", ex);
-        }
+        // Parse body on demand
+        jaxbBody = null;
+        jaxbBodyDecoded = false;
     }
 
     public void setJAXBBody(JAXBElement<E> jaxb) {
         this.jaxbBody = jaxb;
+        this.jaxbBodyDecoded = true;
+        this.encodedBody = null;
+        this.setSaveRequired();
+    }
+
+    /**
+     * Marshal the JAXB body into a new DOM document. The document can be
+     * passed to {@link #setEncodedBody(org.w3c.dom.Document)} of other messages 
+     * with the same body, to avoid marshalling it again.
+     * @return Document with the encoded body or <code>null</code> if the body is empty.
+     * @throws WsDiscoveryException on failure.
+     */
+    public Document encodeJAXBBody() throws WsDiscoveryException {
+        decodeJAXBBody();
+        if (jaxbBody == null)
+            return null;
+
+        Document doc;
+        try {
+            DocumentBuilderFactory f = DocumentBuilderFactory.newInstance();
+            f.setNamespaceAware(true);
+            doc = f.newDocumentBuilder().newDocument();
+        } catch (ParserConfigurationException ex) {
+            throw new WsDiscoveryXMLException("Unable to create document for encoded body", ex);
+        }
+
+        try {
+            namespace.getMarshaller().marshal(jaxbBody, doc);
+        } catch (JAXBException ex) {
+            throw new WsDiscoveryXMLException("Unable to marshal JAXB into document.", ex);
+        }
+        return doc;
+    }
+
+    /**
+     * Use a body encoded by {@link #encodeJAXBBody()} instead of the JAXB body
+     * when the message is saved.
+     * @param encodedBody Encoded body. Must not be modified after this call.
+     */
+    public void setEncodedBody(Document encodedBody) {
+        this.encodedBody = encodedBody;
         this.setSaveRequired();
     }
 
@@ -41,13 +41,17 @@ import com.ms.wsdiscovery.jaxb.draft2005.wsdiscovery.ResolveMatchesType;
 import com.ms.wsdiscovery.jaxb.draft2005.wsdiscovery.ResolveType;
 import com.ms.wsdiscovery.jaxb.draft2005.wsdiscovery.ScopesType;
 import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryServiceRecord;
 import com.ms.wsdiscovery.servicedirectory.WsDiscoveryServiceDirectory;
 import com.ms.wsdiscovery.servicedirectory.exception.WsDiscoveryServiceDirectoryException;
 import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceDirectory;
 import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchByRegistry;
 import com.skjegstad.soapoverudp.datatypes.SOAPOverUDPServiceNameType;
 import com.skjegstad.soapoverudp.exceptions.SOAPOverUDPException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
 import javax.xml.namespace.QName;
 
 /**
@@ -78,48 +82,48 @@ public class WsDiscoveryD2005Utilities {
      * @throws WsDiscoveryServiceDirectoryException
      */
     private static WsDiscoveryService createWsDiscoveryService(Object jaxbbody) throws WsDiscoveryServiceDirectoryException {
-        WsDiscoveryService service = new WsDiscoveryService();
+        WsDiscoveryServiceRecord.Builder builder = new WsDiscoveryServiceRecord.Builder();
         if (jaxbbody instanceof HelloType) {
             HelloType m = (HelloType)jaxbbody;
-            service.setEndpointReference(createSOAPOverUDPEndpointReferenceType(m.getEndpointReference()));
-            service.setPortTypes(m.getTypes());
-            service.setScopesType(createWsDiscoveryScopesObject(m.getScopes()));
-            service.setXAddrs(m.getXAddrs());
-            service.setMetadataVersion(m.getMetadataVersion());
+            builder.setEndpointReference(createSOAPOverUDPEndpointReferenceType(m.getEndpointReference()));
+            builder.setPortTypes(m.getTypes());
+            builder.setScopesType(createWsDiscoveryScopesObject(m.getScopes()));
+            builder.setXAddrs(m.getXAddrs());
+            builder.setMetadataVersion(m.getMetadataVersion());
         } else
         if (jaxbbody instanceof ByeType) {
             ByeType m = (ByeType)jaxbbody;
-            service.setEndpointReference(createSOAPOverUDPEndpointReferenceType(m.getEndpointReference()));
+            builder.setEndpointReference(createSOAPOverUDPEndpointReferenceType(m.getEndpointReference()));
         } else
         if (jaxbbody instanceof ProbeMatchType) {
             ProbeMatchType m = (ProbeMatchType)jaxbbody;
-            service.setEndpointReference(createSOAPOverUDPEndpointReferenceType(m.getEndpointReference()));
-            service.setPortTypes(m.getTypes());
-            service.setScopesType(createWsDiscoveryScopesObject(m.getScopes()));
-            service.setXAddrs(m.getXAddrs());
-            service.setMetadataVersion(m.getMetadataVersion());
+            builder.setEndpointReference(createSOAPOverUDPEndpointReferenceType(m.getEndpointReference()));
+            builder.setPortTypes(m.getTypes());
+            builder.setScopesType(createWsDiscoveryScopesObject(m.getScopes()));
+            builder.setXAddrs(m.getXAddrs());
+            builder.setMetadataVersion(m.getMetadataVersion());
         } else
         if (jaxbbody instanceof ResolveMatchesType) {
             ResolveMatchType m = ((ResolveMatchesType)jaxbbody).getResolveMatch();
-            service.setEndpointReference(createSOAPOverUDPEndpointReferenceType(m.getEndpointReference()));
-            service.setPortTypes(m.getTypes());
-            service.setScopesType(createWsDiscoveryScopesObject(m.getScopes()));
-            service.setXAddrs(m.getXAddrs());
-            service.setMetadataVersion(m.getMetadataVersion());
+            builder.setEndpointReference(createSOAPOverUDPEndpointReferenceType(m.getEndpointReference()));
+            builder.setPortTypes(m.getTypes());
+            builder.setScopesType(createWsDiscoveryScopesObject(m.getScopes()));
+            builder.setXAddrs(m.getXAddrs());
+            builder.setMetadataVersion(m.getMetadataVersion());
         } else
         if (jaxbbody instanceof ResolveMatchType) {
             ResolveMatchType m = (ResolveMatchType)jaxbbody;
-            service.setEndpointReference(createSOAPOverUDPEndpointReferenceType(m.getEndpointReference()));
-            service.setPortTypes(m.getTypes());
-            service.setScopesType(createWsDiscoveryScopesObject(m.getScopes()));
-            service.setXAddrs(m.getXAddrs());
-            service.setMetadataVersion(m.getMetadataVersion());
+            builder.setEndpointReference(createSOAPOverUDPEndpointReferenceType(m.getEndpointReference()));
+            builder.setPortTypes(m.getTypes());
+            builder.setScopesType(createWsDiscoveryScopesObject(m.getScopes()));
+            builder.setXAddrs(m.getXAddrs());
+            builder.setMetadataVersion(m.getMetadataVersion());
         } else
         if (jaxbbody instanceof ProbeMatchesType) {
-            throw new WsDiscoveryServiceDirectoryException("Multiple service descriptions found.");
+            throw new WsDiscoveryServiceDirectoryException("Multiple builder descriptions found.");
         } else
             throw new WsDiscoveryServiceDirectoryException("Unsupported object type.");
-        return service;
+        return new WsDiscoveryService(builder.build());
     }
 
     /**
@@ -178,14 +182,13 @@ public class WsDiscoveryD2005Utilities {
      */
     public static ScopesType createScopesObject(WsDiscoveryService service) {
         ScopesType s = new ScopesType();
-        synchronized (service) {
-            if (service.getScopesMatchBy() != null) {
-                s.setMatchBy(service.getScopesMatchBy().toString());
-            }
-            if (service.getScopes() != null) {
-                for (URI u : service.getScopes()) {
-                    s.getValue().add(u.toString());
-                }
+        WsDiscoveryServiceRecord r = service.getRecord(); // Consistent without locking
+        if (r.getScopesMatchBy() != null) {
+            s.setMatchBy(r.getScopesMatchBy().toString());
+        }
+        if (r.getScopes() != null) {
+            for (URI u : r.getScopes()) {
+                s.getValue().add(u.toString());
             }
         }
         return s;
@@ -200,9 +203,67 @@ public class WsDiscoveryD2005Utilities {
         WsDiscoveryScopesType s = new WsDiscoveryScopesType(
                 WsDiscoveryFactory.getMatcher(scopes.getMatchBy(), defaultMatcher),
                 scopes.getValue(), scopes.getOtherAttributes());
+        if (MatchByRegistry.getCustom(scopes.getMatchBy()) != null)
+            s.setCustomMatchBy(URI.create(scopes.getMatchBy()));
         return s;
     }
 
+    /**
+     * Get a {@link ProbeMatchType} describing <code>service</code>. The object is
+     * built once per metadata version and cached in the service description, so
+     * the returned instance is shared and must not be modified.
+     *
+     * @param service Service to describe.
+     * @return ProbeMatch for the current metadata version of the service.
+     */
+    public static ProbeMatchType createProbeMatchTypeObject(WsDiscoveryService service) {
+        ProbeMatchType match = service.getMatchFragment(ProbeMatchType.class);
+        if (match != null)
+            return match;
+
+        synchronized (service) { // The service can not change while the fragment is built
+            match = service.getMatchFragment(ProbeMatchType.class);
+            if (match == null) {
+                match = wsDiscoveryObjectFactory.createProbeMatchType();
+                match.setEndpointReference(createEndpointReferenceTypeObject(service.getEndpointReference()));
+                match.setMetadataVersion(service.getMetadataVersion());
+                match.setScopes(createScopesObject(service));
+                match.getTypes().addAll(service.getPortTypes());
+                match.getXAddrs().addAll(service.getXAddrs());
+                service.setMatchFragment(ProbeMatchType.class, match);
+            }
+            return match;
+        }
+    }
+
+    /**
+     * Get a {@link ResolveMatchType} describing <code>service</code>. The object is
+     * built once per metadata version and cached in the service description, so
+     * the returned instance is shared and must not be modified.
+     *
+     * @param service Service to describe.
+     * @return ResolveMatch for the current metadata version of the service.
+     */
+    public static ResolveMatchType createResolveMatchTypeObject(WsDiscoveryService service) {
+        ResolveMatchType match = service.getMatchFragment(ResolveMatchType.class);
+        if (match != null)
+            return match;
+
+        synchronized (service) { // The service can not change while the fragment is built
+            match = service.getMatchFragment(ResolveMatchType.class);
+            if (match == null) {
+                match = wsDiscoveryObjectFactory.createResolveMatchType();
+                match.setEndpointReference(createEndpointReferenceTypeObject(service.getEndpointReference()));
+                match.setMetadataVersion(service.getMetadataVersion());
+                match.setScopes(createScopesObject(service));
+                match.getTypes().addAll(service.getPortTypes());
+                match.getXAddrs().addAll(service.getXAddrs());
+                service.setMatchFragment(ResolveMatchType.class, match);
+            }
+            return match;
+        }
+    }
+
     /**
      * Return default MatchBy.
      * @return
@@ -221,9 +282,7 @@ public class WsDiscoveryD2005Utilities {
      * @return True if <code>probe</code> matches.
      */
     public static boolean isServiceMatchedBy(WsDiscoveryService service, ProbeType probe) {
-        synchronized (service) {
-            return service.isMatchedBy(probe.getTypes(), createWsDiscoveryScopesObject(probe.getScopes()), WsDiscoveryNamespaces.WS_DISCOVERY_2005_04.getDefaultMatcher());
-        }
+        return service.isMatchedBy(probe.getTypes(), createWsDiscoveryScopesObject(probe.getScopes()), WsDiscoveryNamespaces.WS_DISCOVERY_2005_04.getDefaultMatcher());
     }
 
     /**
@@ -276,13 +335,17 @@ public class WsDiscoveryD2005Utilities {
      * be updated.
      * @param serviceDirectory Service directory.
      * @param probe Probe matches.
+     * @return The stored services.
      * @throws WsDiscoveryServiceDirectoryException if store failes.
      */
-    public static void storeProbesMatch(IWsDiscoveryServiceDirectory serviceDirectory, ProbeMatchesType probeMatches) throws WsDiscoveryServiceDirectoryException {
+    public static List<WsDiscoveryService> storeProbesMatch(IWsDiscoveryServiceDirectory serviceDirectory, ProbeMatchesType probeMatches) throws WsDiscoveryServiceDirectoryException {
+        List<WsDiscoveryService> res = new ArrayList<WsDiscoveryService>();
         // No locking necessary here
         if ((probeMatches != null) && (probeMatches.getProbeMatch() != null))
             for (ProbeMatchType p : probeMatches.getProbeMatch())
-                serviceDirectory.store(createWsDiscoveryService(p));
+                res.add(createWsDiscoveryService(p));
+        serviceDirectory.storeAll(res);
+        return res;
     }
 
     /**
@@ -294,11 +357,14 @@ public class WsDiscoveryD2005Utilities {
      *
      * @param serviceDirectory Service directory.
      * @param jaxbobject JAXB object.
+     * @return The stored service.
      * @throws WsDiscoveryServiceDirectoryException on failure.
      */
-    public static void storeJAXBObject(IWsDiscoveryServiceDirectory serviceDirectory, Object jaxbBody) throws WsDiscoveryServiceDirectoryException {
+    public static WsDiscoveryService storeJAXBObject(IWsDiscoveryServiceDirectory serviceDirectory, Object jaxbBody) throws WsDiscoveryServiceDirectoryException {
+        WsDiscoveryService service = createWsDiscoveryService(jaxbBody);
         // No locking necessary here
-        serviceDirectory.store(createWsDiscoveryService(jaxbBody));
+        serviceDirectory.store(service);
+        return service;
     }
 
     /**
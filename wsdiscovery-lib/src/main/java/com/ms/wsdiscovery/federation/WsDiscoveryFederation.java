@@ -0,0 +1,518 @@
+/*
+WsDiscoveryFederation.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.federation;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.exception.WsDiscoveryNetworkException;
+import com.ms.wsdiscovery.federation.interfaces.IWsDiscoveryFederationOwnership;
+import com.ms.wsdiscovery.logger.WsDiscoveryLogger;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.servicedirectory.exception.WsDiscoveryServiceDirectoryException;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceDirectory;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceDirectoryListener;
+import com.ms.wsdiscovery.servicedirectory.store.WsDiscoveryServiceCodec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Replicates the service directory of a proxy to other proxies, so that a
+ * proxy can answer Probes and Resolves for services announced at another 
+ * site without routing multicast between the sites.
+ * <p>
+ * Each proxy runs one federation, bound to its own UDP port, with the 
+ * addresses of the other proxies as peers, e.g.
+ * <pre>
+ * WsDiscoveryFederation f = new WsDiscoveryFederation("site1", 
+ *         server.getServiceDirectory(), new InetSocketAddress(3703));
+ * f.addPeer(new InetSocketAddress("proxy.site2", 3703));
+ * f.start();
+ * </pre>
+ * Services stored in the directory by others than the federation are 
+ * replicated when this proxy owns them (see {@link #setOwnership}). Each 
+ * change is sent to all peers as a versioned delta. Lost deltas are recovered
+ * by anti-entropy: every {@link #getSyncInterval()} milliseconds, the proxy
+ * sends its version vector to its peers, which reply with the changes it has
+ * not seen. Changes are forwarded the same way, so peers do not have to be
+ * fully meshed. See {@link WsDiscoveryFederationLog} for how conflicting
+ * changes are resolved.
+ * <p>
+ * Messages from addresses that are not peers are ignored. Messages are not
+ * authenticated, so the federation should only be used on trusted networks.
+ * A service description must fit in one datagram.
+ *
+ * @author Magnus Skjegstad
+ */
+public class WsDiscoveryFederation {
+    private static final int MAGIC = 0x57534631; // "WSF1"
+    private static final byte MESSAGE_SYNC = 1;
+    private static final byte MESSAGE_DELTA = 2;
+    private static final int MAX_PACKET_SIZE = 60000;
+
+    /**
+     * Own all services except proxy services. This is the default.
+     */
+    public static final IWsDiscoveryFederationOwnership OWN_ALL = new IWsDiscoveryFederationOwnership() {
+        public boolean isOwner(WsDiscoveryService service) {
+            return !service.getRecord().hasPortType(WsDiscoveryConstants.proxyPortType);
+        }
+    };
+
+    private final WsDiscoveryLogger logger;
+    private final IWsDiscoveryServiceDirectory directory;
+    private final WsDiscoveryFederationLog log;
+    private final DatagramSocket socket;
+    private final CopyOnWriteArrayList<InetSocketAddress> peers = new CopyOnWriteArrayList<InetSocketAddress>();
+    private final Listener listener = new Listener();
+    private volatile IWsDiscoveryFederationOwnership ownership = OWN_ALL;
+    private volatile long syncInterval = WsDiscoveryConstants.federationSyncInterval;
+    private volatile boolean threadDone = false;
+    private Thread thread = null;
+
+    private class Listener implements IWsDiscoveryServiceDirectoryListener {
+        public void serviceAdded(WsDiscoveryService service) {
+            stored(service);
+        }
+
+        public void serviceUpdated(WsDiscoveryService service) {
+            stored(service);
+        }
+
+        public void serviceRemoved(WsDiscoveryService service) {
+            removed(service);
+        }
+    }
+
+    /**
+     * Create a federation using {@link WsDiscoveryConstants#instanceId} as 
+     * incarnation.
+     *
+     * @param node Name of this proxy. Must be unique in the federation and
+     * stay the same when the proxy is restarted.
+     * @param directory Service directory to replicate.
+     * @param bindAddress Local address and port used to communicate with the
+     * other proxies.
+     * @throws WsDiscoveryNetworkException if the socket can not be bound.
+     */
+    public WsDiscoveryFederation(String node, IWsDiscoveryServiceDirectory directory,
+            InetSocketAddress bindAddress) throws WsDiscoveryNetworkException {
+        this(node, WsDiscoveryConstants.instanceId, directory, bindAddress);
+    }
+
+    /**
+     * Create a federation.
+     *
+     * @param node Name of this proxy. Must be unique in the federation and
+     * stay the same when the proxy is restarted.
+     * @param incarnation Must be higher than the incarnation used before the
+     * proxy was last restarted. The other proxies then forget the services
+     * replicated by the previous incarnation.
+     * @param directory Service directory to replicate.
+     * @param bindAddress Local address and port used to communicate with the
+     * other proxies.
+     * @throws WsDiscoveryNetworkException if the socket can not be bound.
+     */
+    public WsDiscoveryFederation(String node, long incarnation, IWsDiscoveryServiceDirectory directory,
+            InetSocketAddress bindAddress) throws WsDiscoveryNetworkException {
+        if ((node == null) || (directory == null))
+            throw new NullPointerException("node and directory can not be null");
+        this.directory = directory;
+        this.log = new WsDiscoveryFederationLog(node, incarnation);
+        this.logger = new WsDiscoveryLogger(WsDiscoveryFederation.class.getName() + "." + node);
+        try {
+            socket = new DatagramSocket(bindAddress);
+        } catch (SocketException ex) {
+            throw new WsDiscoveryNetworkException("Unable to bind federation socket to " + bindAddress, ex);
+        }
+    }
+
+    /**
+     * Get the name of this proxy.
+     * @return Name.
+     */
+    public String getNode() {
+        return log.getNode();
+    }
+
+    /**
+     * Get the address the federation socket is bound to.
+     * @return Local address.
+     */
+    public InetSocketAddress getLocalAddress() {
+        return (InetSocketAddress)socket.getLocalSocketAddress();
+    }
+
+    /**
+     * Add a proxy to replicate with.
+     * @param peer Address of the federation socket of the other proxy.
+     */
+    public void addPeer(InetSocketAddress peer) {
+        peers.addIfAbsent(peer);
+    }
+
+    /**
+     * Stop replicating with a proxy. Services already received from it are kept.
+     * @param peer Address of the federation socket of the other proxy.
+     */
+    public void removePeer(InetSocketAddress peer) {
+        peers.remove(peer);
+    }
+
+    /**
+     * Get the proxies this proxy replicates with.
+     * @return Peer addresses.
+     */
+    public List<InetSocketAddress> getPeers() {
+        return Collections.unmodifiableList(peers);
+    }
+
+    /**
+     * Get the policy deciding which services are replicated.
+     * @return Ownership policy.
+     */
+    public IWsDiscoveryFederationOwnership getOwnership() {
+        return ownership;
+    }
+
+    /**
+     * Set the policy deciding which services are replicated. Services already
+     * replicated are not affected.
+     * @param ownership Ownership policy. Defaults to {@link #OWN_ALL}.
+     */
+    public void setOwnership(IWsDiscoveryFederationOwnership ownership) {
+        if (ownership == null)
+            throw new NullPointerException("ownership can not be null");
+        this.ownership = ownership;
+    }
+
+    /**
+     * Get the time between anti-entropy syncs.
+     * @return Interval in milliseconds.
+     */
+    public long getSyncInterval() {
+        return syncInterval;
+    }
+
+    /**
+     * Set the time between anti-entropy syncs. Defaults to 
+     * {@link WsDiscoveryConstants#federationSyncInterval}.
+     * @param syncInterval Interval in milliseconds. 0 disables periodic syncs.
+     */
+    public void setSyncInterval(long syncInterval) {
+        this.syncInterval = syncInterval;
+    }
+
+    /**
+     * Start replicating. The services already in the directory are replicated
+     * if this proxy owns them.
+     */
+    public synchronized void start() {
+        if (thread != null)
+            return;
+
+        directory.addListener(listener, null, null);
+        try {
+            for (WsDiscoveryService s : directory.matchAll())
+                stored(s);
+        } catch (WsDiscoveryServiceDirectoryException ex) {
+            logger.severe("Unable to replicate existing services: " + ex.getMessage());
+        }
+
+        threadDone = false;
+        thread = new Thread(new Runnable() {
+            public void run() {
+                receive();
+            }
+        }, "WsDiscoveryFederation-" + getNode());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop replicating and close the socket. Services received from other 
+     * proxies are kept in the directory.
+     */
+    public synchronized void done() {
+        threadDone = true;
+        directory.removeListener(listener);
+        socket.close();
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        thread = null;
+    }
+
+    /**
+     * Are we replicating?
+     * @return True if started and not stopped.
+     */
+    public synchronized boolean isRunning() {
+        return (thread != null) && thread.isAlive();
+    }
+
+    /**
+     * Send our version vector to all peers now, asking for the changes we 
+     * have not seen and offering the ones they have not seen.
+     */
+    public void sync() {
+        byte[] message = encodeSync(true);
+        for (InetSocketAddress peer : peers)
+            send(peer, message);
+    }
+
+    private void stored(WsDiscoveryService service) {
+        URI address = service.getEndpointReference().getAddress();
+        if (directory.findService(address) != service)
+            return; // Changed again. Handled by a later notification.
+
+        WsDiscoveryFederationLog.Entry w = log.getWinner(address);
+        if ((w != null) && (w.service == service) && !w.node.equals(getNode()))
+            return; // Stored by us
+        if (!ownership.isOwner(service))
+            return;
+
+        WsDiscoveryFederationLog.Entry e = log.put(service);
+        if (e != null)
+            push(e);
+    }
+
+    private void removed(WsDiscoveryService service) {
+        URI address = service.getEndpointReference().getAddress();
+        if (directory.findService(address) != null)
+            return; // Stored again
+
+        WsDiscoveryFederationLog.Entry e = log.remove(address);
+        if (e != null)
+            push(e);
+    }
+
+    private void push(WsDiscoveryFederationLog.Entry e) {
+        List<WsDiscoveryFederationLog.Delta> deltas = Collections.singletonList(log.getDelta(e));
+        for (InetSocketAddress peer : peers)
+            sendDeltas(peer, deltas);
+    }
+
+    private void receive() {
+        byte[] buffer = new byte[65536];
+        long nextSync = 0;
+
+        logger.fine("Federation listening on " + getLocalAddress());
+        while (!threadDone) {
+            long interval = syncInterval;
+            long now = System.currentTimeMillis();
+            if ((interval > 0) && (now >= nextSync)) {
+                sync();
+                nextSync = now + interval;
+            }
+
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.setSoTimeout((int)((interval > 0) ? Math.min(interval, 1000) : 1000));
+                socket.receive(packet);
+            } catch (SocketTimeoutException ex) {
+                continue;
+            } catch (IOException ex) {
+                if (!threadDone)
+                    logger.warning("Unable to receive federation message: " + ex.getMessage());
+                continue;
+            }
+
+            InetSocketAddress from = (InetSocketAddress)packet.getSocketAddress();
+            if (!peers.contains(from)) {
+                logger.finer("Ignoring federation message from " + from + ", which is not a peer.");
+                continue;
+            }
+            try {
+                handle(from, new DataInputStream(new ByteArrayInputStream(packet.getData(), packet.getOffset(), packet.getLength())));
+            } catch (IOException ex) {
+                logger.warning("Invalid federation message from " + from + ": " + ex.getMessage());
+            } catch (IllegalArgumentException ex) {
+                logger.warning("Invalid federation message from " + from + ": " + ex.getMessage());
+            }
+        }
+        logger.fine("Federation stopped.");
+    }
+
+    private void handle(InetSocketAddress from, DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC)
+            throw new IOException("Not a federation message");
+
+        byte type = in.readByte();
+        switch (type) {
+            case MESSAGE_SYNC:
+                boolean reply = in.readBoolean();
+                List<WsDiscoveryFederationLog.Version> vector = readVector(in);
+                sendDeltas(from, log.getDeltas(vector));
+                // Ask for what the peer has that we lack, but only once
+                if (reply && log.isBehind(vector))
+                    send(from, encodeSync(false));
+                break;
+            case MESSAGE_DELTA:
+                apply(log.apply(readDelta(in)));
+                break;
+            default:
+                throw new IOException("Unknown message type " + type);
+        }
+    }
+
+    private void apply(List<WsDiscoveryFederationLog.Change> changes) {
+        for (WsDiscoveryFederationLog.Change c : changes) {
+            if (c.service == null) {
+                logger.fine("Removing replicated service " + c.address);
+                directory.remove(c.address);
+            } else {
+                logger.fine("Storing replicated service " + c.address);
+                try {
+                    directory.store(c.service);
+                } catch (WsDiscoveryServiceDirectoryException ex) {
+                    logger.warning("Unable to store replicated service " + c.address + ": " + ex.getMessage());
+                }
+            }
+        }
+    }
+
+    private void send(InetSocketAddress to, byte[] message) {
+        try {
+            socket.send(new DatagramPacket(message, message.length, to));
+        } catch (IOException ex) {
+            if (!threadDone)
+                logger.warning("Unable to send federation message to " + to + ": " + ex.getMessage());
+        }
+    }
+
+    private byte[] encodeSync(boolean reply) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeByte(MESSAGE_SYNC);
+            out.writeBoolean(reply);
+            List<WsDiscoveryFederationLog.Version> vector = log.getVector();
+            out.writeInt(vector.size());
+            for (WsDiscoveryFederationLog.Version v : vector) {
+                out.writeUTF(v.node);
+                out.writeLong(v.incarnation);
+                out.writeLong(v.version);
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex); // Not thrown by ByteArrayOutputStream
+        }
+    }
+
+    private static List<WsDiscoveryFederationLog.Version> readVector(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        List<WsDiscoveryFederationLog.Version> vector = new ArrayList<WsDiscoveryFederationLog.Version>();
+        for (int i = 0; i < n; i++)
+            vector.add(new WsDiscoveryFederationLog.Version(in.readUTF(), in.readLong(), in.readLong()));
+        return vector;
+    }
+
+    /**
+     * Send deltas, split over as many datagrams as needed. Each datagram 
+     * continues from the version the previous one ended at.
+     */
+    private void sendDeltas(InetSocketAddress to, List<WsDiscoveryFederationLog.Delta> deltas) {
+        try {
+            for (WsDiscoveryFederationLog.Delta d : deltas) {
+                long from = d.from;
+                int i = 0;
+                do {
+                    ByteArrayOutputStream body = new ByteArrayOutputStream();
+                    int count = 0;
+                    long last = from;
+                    while (i < d.entries.size()) {
+                        byte[] entry = encodeEntry(d.entries.get(i));
+                        if ((count > 0) && (body.size() + entry.length > MAX_PACKET_SIZE))
+                            break;
+                        body.write(entry);
+                        count++;
+                        last = d.entries.get(i).version;
+                        i++;
+                    }
+                    long until = (i == d.entries.size()) ? d.to : last;
+
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    DataOutputStream out = new DataOutputStream(bytes);
+                    out.writeInt(MAGIC);
+                    out.writeByte(MESSAGE_DELTA);
+                    out.writeUTF(d.node);
+                    out.writeLong(d.incarnation);
+                    out.writeLong(from);
+                    out.writeLong(until);
+                    out.writeInt(count);
+                    body.writeTo(out);
+                    out.flush();
+                    send(to, bytes.toByteArray());
+                    from = until;
+                } while (i < d.entries.size());
+            }
+        } catch (IOException ex) {
+            logger.warning("Unable to encode federation message: " + ex.getMessage());
+        }
+    }
+
+    private static byte[] encodeEntry(WsDiscoveryFederationLog.Entry e) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(e.version);
+        out.writeLong(e.stamp);
+        out.writeUTF(e.address.toString());
+        out.writeBoolean(e.service != null);
+        if (e.service != null)
+            WsDiscoveryServiceCodec.write(out, e.service);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static WsDiscoveryFederationLog.Delta readDelta(DataInputStream in) throws IOException {
+        String node = in.readUTF();
+        long incarnation = in.readLong();
+        long from = in.readLong();
+        long to = in.readLong();
+        int n = in.readInt();
+        List<WsDiscoveryFederationLog.Entry> entries = new ArrayList<WsDiscoveryFederationLog.Entry>();
+        for (int i = 0; i < n; i++) {
+            long version = in.readLong();
+            long stamp = in.readLong();
+            URI address = URI.create(in.readUTF());
+            WsDiscoveryService service = in.readBoolean() ? WsDiscoveryServiceCodec.read(in) : null;
+            entries.add(new WsDiscoveryFederationLog.Entry(node, version, stamp, address, service));
+        }
+        return new WsDiscoveryFederationLog.Delta(node, incarnation, from, to, entries);
+    }
+}
@@ -0,0 +1,348 @@
+/*
+WsDiscoveryFederationLog.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.federation;
+
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Versioned log of the services replicated between federated proxies. 
+ * <p>
+ * Each proxy (origin) numbers its own changes 1, 2, 3 and so on. Only the 
+ * latest change of each origin to each endpoint address is kept, so a proxy
+ * that is behind receives every change it has not seen as one delta per 
+ * origin. A proxy is up to date with an origin when it has applied all its
+ * changes up to a version, and the versions of all origins form its version
+ * vector. Deltas that do not start at or below the current version (e.g. 
+ * when a datagram was lost) are ignored until the next anti-entropy sync.
+ * <p>
+ * When several origins have changed the same service, the change with the
+ * highest Lamport timestamp wins, and ties are broken by the name of the
+ * origin. Removals are kept as tombstones. When a proxy restarts with a 
+ * higher incarnation number, the changes of its previous incarnation are 
+ * forgotten.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author Magnus Skjegstad
+ */
+class WsDiscoveryFederationLog {
+
+    /**
+     * One change. <code>service</code> is null when the service was removed.
+     */
+    static class Entry {
+        final String node;
+        final long version;
+        final long stamp;
+        final URI address;
+        final WsDiscoveryService service;
+
+        Entry(String node, long version, long stamp, URI address, WsDiscoveryService service) {
+            this.node = node;
+            this.version = version;
+            this.stamp = stamp;
+            this.address = address;
+            this.service = service;
+        }
+
+        boolean isNewerThan(Entry other) {
+            if (stamp != other.stamp)
+                return stamp > other.stamp;
+            return node.compareTo(other.node) > 0;
+        }
+    }
+
+    /**
+     * Version of one origin in a version vector.
+     */
+    static class Version {
+        final String node;
+        final long incarnation;
+        final long version;
+
+        Version(String node, long incarnation, long version) {
+            this.node = node;
+            this.incarnation = incarnation;
+            this.version = version;
+        }
+    }
+
+    /**
+     * The changes of one origin after version <code>from</code>, up to and
+     * including version <code>to</code>. Versions that are missing between
+     * the two have been superseded by later changes.
+     */
+    static class Delta {
+        final String node;
+        final long incarnation;
+        final long from;
+        final long to;
+        final List<Entry> entries;
+
+        Delta(String node, long incarnation, long from, long to, List<Entry> entries) {
+            this.node = node;
+            this.incarnation = incarnation;
+            this.from = from;
+            this.to = to;
+            this.entries = entries;
+        }
+    }
+
+    /**
+     * Change to make in the service directory after applying a delta. 
+     * <code>service</code> is null when the service should be removed.
+     */
+    static class Change {
+        final URI address;
+        final WsDiscoveryService service;
+
+        Change(URI address, WsDiscoveryService service) {
+            this.address = address;
+            this.service = service;
+        }
+    }
+
+    private static class Origin {
+        final String node;
+        final long incarnation;
+        long version = 0;
+        final Map<URI, Entry> byAddress = new HashMap<URI, Entry>();
+        final TreeMap<Long, Entry> byVersion = new TreeMap<Long, Entry>();
+
+        Origin(String node, long incarnation) {
+            this.node = node;
+            this.incarnation = incarnation;
+        }
+
+        void put(Entry e) {
+            Entry old = byAddress.put(e.address, e);
+            if (old != null)
+                byVersion.remove(old.version);
+            byVersion.put(e.version, e);
+        }
+    }
+
+    private final Origin self;
+    private final Map<String, Origin> origins = new LinkedHashMap<String, Origin>();
+    private long clock = 0;
+
+    /**
+     * Create an empty log.
+     * @param node Name of this proxy. Must be unique in the federation.
+     * @param incarnation Incarnation of this proxy. Must be higher than the
+     * incarnation used before the last restart.
+     */
+    WsDiscoveryFederationLog(String node, long incarnation) {
+        self = new Origin(node, incarnation);
+        origins.put(node, self);
+    }
+
+    String getNode() {
+        return self.node;
+    }
+
+    long getIncarnation() {
+        return self.incarnation;
+    }
+
+    /**
+     * Get the change that decides the state of a service.
+     * @param address Endpoint address.
+     * @return Latest change, or null if no origin has changed the service.
+     */
+    synchronized Entry getWinner(URI address) {
+        Entry winner = null;
+        for (Origin o : origins.values()) {
+            Entry e = o.byAddress.get(address);
+            if ((e != null) && ((winner == null) || e.isNewerThan(winner)))
+                winner = e;
+        }
+        return winner;
+    }
+
+    private Entry append(URI address, WsDiscoveryService service) {
+        Entry e = new Entry(self.node, ++self.version, ++clock, address, service);
+        self.put(e);
+        return e;
+    }
+
+    /**
+     * Record that this proxy has stored a service. Nothing is recorded when 
+     * the service is already in the log with the same content, e.g. when it
+     * was stored because it was received from another proxy.
+     * @param service Stored service.
+     * @return New change, or null if nothing changed.
+     */
+    synchronized Entry put(WsDiscoveryService service) {
+        URI address = service.getEndpointReference().getAddress();
+        Entry w = getWinner(address);
+        if ((w != null) && (w.service != null)) {
+            if (w.service == service) {
+                if (!w.node.equals(self.node))
+                    return null; // Received from the origin
+                // Our own service object may have been modified since
+            } else if (w.service.hasSameContent(service))
+                return null;
+        }
+        return append(address, service);
+    }
+
+    /**
+     * Record that this proxy has removed a service. Nothing is recorded 
+     * unless the latest change to the service was made by this proxy, as 
+     * services are only removed by the proxy they were last announced to.
+     * @param address Endpoint address.
+     * @return New change, or null if nothing changed.
+     */
+    synchronized Entry remove(URI address) {
+        Entry w = getWinner(address);
+        if ((w == null) || (w.service == null) || !w.node.equals(self.node))
+            return null;
+        return append(address, null);
+    }
+
+    /**
+     * Get the version vector of this log.
+     * @return Version of each known origin.
+     */
+    synchronized List<Version> getVector() {
+        List<Version> vector = new ArrayList<Version>(origins.size());
+        for (Origin o : origins.values())
+            vector.add(new Version(o.node, o.incarnation, o.version));
+        return vector;
+    }
+
+    /**
+     * Check whether another log has changes that this log has not seen.
+     * @param vector Version vector of the other log.
+     * @return True if this log is behind.
+     */
+    synchronized boolean isBehind(Collection<Version> vector) {
+        for (Version v : vector) {
+            if (v.node.equals(self.node))
+                continue;
+            Origin o = origins.get(v.node);
+            if (o == null) {
+                if (v.version > 0)
+                    return true;
+            } else if ((o.incarnation < v.incarnation) ||
+                    ((o.incarnation == v.incarnation) && (o.version < v.version)))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Get the changes another log has not seen.
+     * @param vector Version vector of the other log.
+     * @return One delta for each origin the other log is behind on.
+     */
+    synchronized List<Delta> getDeltas(Collection<Version> vector) {
+        Map<String, Version> peer = new HashMap<String, Version>();
+        for (Version v : vector)
+            peer.put(v.node, v);
+
+        List<Delta> deltas = new ArrayList<Delta>();
+        for (Origin o : origins.values()) {
+            Version v = peer.get(o.node);
+            long from = 0;
+            if (v == null) {
+                if (o.version == 0)
+                    continue;
+            } else if (v.incarnation > o.incarnation) {
+                continue; // The other log knows a newer incarnation
+            } else if (v.incarnation == o.incarnation) {
+                if (v.version >= o.version)
+                    continue;
+                from = v.version;
+            }
+            // else the other log knows an older incarnation, which it must forget
+            deltas.add(new Delta(o.node, o.incarnation, from, o.version,
+                    new ArrayList<Entry>(o.byVersion.tailMap(from + 1).values())));
+        }
+        return deltas;
+    }
+
+    /**
+     * Get a delta with a single change made by this proxy.
+     * @param e Change returned by put() or remove().
+     * @return Delta.
+     */
+    Delta getDelta(Entry e) {
+        List<Entry> entries = new ArrayList<Entry>(1);
+        entries.add(e);
+        return new Delta(self.node, self.incarnation, e.version - 1, e.version, entries);
+    }
+
+    /**
+     * Apply a delta received from another proxy.
+     * @param d Delta.
+     * @return Changes to make in the service directory. Empty if the delta 
+     * was outdated or did not continue from the current version.
+     */
+    synchronized List<Change> apply(Delta d) {
+        List<Change> changes = new ArrayList<Change>();
+        if (d.node.equals(self.node))
+            return changes;
+
+        Map<URI, Entry> before = new HashMap<URI, Entry>();
+        Origin o = origins.get(d.node);
+        if ((o != null) && (o.incarnation > d.incarnation))
+            return changes; // From an old incarnation
+        if ((o == null) || (o.incarnation < d.incarnation)) {
+            if (o != null) {
+                // The origin has restarted. Forget the previous incarnation.
+                for (URI a : o.byAddress.keySet())
+                    before.put(a, getWinner(a));
+            }
+            o = new Origin(d.node, d.incarnation);
+            origins.put(d.node, o);
+        }
+
+        if (d.from <= o.version) {
+            for (Entry e : d.entries) {
+                if (e.version <= o.version)
+                    continue;
+                if (!before.containsKey(e.address))
+                    before.put(e.address, getWinner(e.address));
+                clock = Math.max(clock, e.stamp);
+                o.put(e);
+            }
+            o.version = Math.max(o.version, d.to);
+        }
+
+        for (Map.Entry<URI, Entry> b : before.entrySet()) {
+            Entry after = getWinner(b.getKey());
+            WsDiscoveryService was = (b.getValue() != null) ? b.getValue().service : null;
+            WsDiscoveryService now = (after != null) ? after.service : null;
+            if (now != was)
+                changes.add(new Change(b.getKey(), now));
+        }
+        return changes;
+    }
+}
@@ -0,0 +1,40 @@
+/*
+IWsDiscoveryFederationOwnership.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.federation.interfaces;
+
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+
+/**
+ * Decides which of the services stored in the service directory of a proxy
+ * are replicated to the other proxies in the federation. See
+ * {@link com.ms.wsdiscovery.federation.WsDiscoveryFederation#setOwnership(IWsDiscoveryFederationOwnership)}.
+ *
+ * @author Magnus Skjegstad
+ */
+public interface IWsDiscoveryFederationOwnership {
+
+    /**
+     * Called when a service has been stored in the service directory by 
+     * someone other than the federation, e.g. after a Hello was received.
+     * @param service Stored service.
+     * @return True if this proxy owns the service and should replicate it.
+     */
+    boolean isOwner(WsDiscoveryService service);
+}
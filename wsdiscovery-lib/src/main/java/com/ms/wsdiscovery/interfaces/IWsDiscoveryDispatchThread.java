@@ -18,6 +18,8 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 package com.ms.wsdiscovery.interfaces;
 
+import com.ms.wsdiscovery.common.WsDiscoveryProbeTracker;
+import com.ms.wsdiscovery.common.WsDiscoveryProxySelector;
 import com.ms.wsdiscovery.exception.WsDiscoveryException;
 import com.ms.wsdiscovery.exception.WsDiscoveryNetworkException;
 import com.ms.wsdiscovery.exception.WsDiscoveryXMLException;
@@ -128,6 +130,31 @@ public interface IWsDiscoveryDispatchThread {
      */
     void sendProbe(List<QName> types, List<URI> scopes, MatchBy matchBy)  throws WsDiscoveryXMLException, WsDiscoveryNetworkException;;
 
+    /**
+     * Same as {@link #sendProbe(java.util.List, java.util.List, com.ms.wsdiscovery.servicedirectory.matcher.MatchBy)},
+     * but passes the services in ProbeMatches relating to the Probe to <code>listener</code>
+     * until it is removed from {@link #getProbeTracker()}.
+     *
+     * @param types A list of portTypes that is to be probed for. <code>null</code> matches all portTypes.
+     * @param scopes A list of scopes to search within.
+     * @param matchBy Match algorithm clients should use when matching scopes.
+     * @param listener Listener to notify. May be <code>null</code>.
+     */
+    void sendProbe(List<QName> types, List<URI> scopes, MatchBy matchBy, IWsDiscoveryProbeMatchesListener listener) throws WsDiscoveryXMLException, WsDiscoveryNetworkException;
+
+    /**
+     * Get the tracker of outstanding Probes sent with a listener.
+     * @return Probe tracker.
+     */
+    WsDiscoveryProbeTracker getProbeTracker();
+
+    /**
+     * Get the proxy servers known to this thread, used to select where 
+     * Probes and Resolves are sent in managed mode.
+     * @return Proxy selector.
+     */
+    WsDiscoveryProxySelector getProxySelector();
+
     /**
      * Sends a blank probe. Matches all services.
      */
@@ -0,0 +1,45 @@
+/*
+IWsDiscoveryProbeMatchesListener.java
+
+Copyright (C) 2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.interfaces;
+
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import java.net.URI;
+import java.util.List;
+
+/**
+ * Receives the services in ProbeMatches sent in response to a Probe. See
+ * {@link IWsDiscoveryServer#probe(java.util.List, java.util.List, com.ms.wsdiscovery.servicedirectory.matcher.MatchBy, IWsDiscoveryProbeMatchesListener)}.
+ * <p>
+ * Called from the thread handling the received message, so implementations
+ * should return quickly.
+ *
+ * @author Magnus Skjegstad
+ */
+public interface IWsDiscoveryProbeMatchesListener {
+
+    /**
+     * Called when ProbeMatches relating to a Probe sent with this listener
+     * has been received. The services have already been stored in the 
+     * service directory.
+     *
+     * @param relatesTo MessageID of the Probe.
+     * @param services Services in the ProbeMatches.
+     */
+    void probeMatched(URI relatesTo, List<WsDiscoveryService> services);
+}
@@ -0,0 +1,45 @@
+/*
+IWsDiscoveryProxyRequest.java
+
+Copyright (C) 2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.interfaces;
+
+import com.ms.wsdiscovery.common.WsDiscoveryProxySelector;
+import com.ms.wsdiscovery.exception.WsDiscoveryNetworkException;
+
+/**
+ * A Probe or Resolve sent through a {@link WsDiscoveryProxySelector}. The
+ * same message may be sent to several proxies, and finally multicast, until
+ * a proxy replies.
+ *
+ * @author Magnus Skjegstad
+ */
+public interface IWsDiscoveryProxyRequest {
+
+    /**
+     * Send the message unicast to a proxy.
+     * @param proxy Proxy to send to.
+     * @throws WsDiscoveryNetworkException if the message could not be sent.
+     */
+    void sendTo(WsDiscoveryProxySelector.Proxy proxy) throws WsDiscoveryNetworkException;
+
+    /**
+     * Send the message multicast, as in ad hoc mode.
+     * @throws WsDiscoveryNetworkException if the message could not be sent.
+     */
+    void sendMulticast() throws WsDiscoveryNetworkException;
+}
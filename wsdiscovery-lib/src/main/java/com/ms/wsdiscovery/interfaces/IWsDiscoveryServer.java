@@ -105,6 +105,24 @@ public interface IWsDiscoveryServer {
      */
     void probe(List<QName> types, List<URI> scopes, MatchBy matchBy) throws WsDiscoveryXMLException, WsDiscoveryNetworkException;;
 
+    /**
+     * Same as {@link #probe(java.util.List, java.util.List, com.ms.wsdiscovery.servicedirectory.matcher.MatchBy)},
+     * but passes the services in ProbeMatches relating to the Probe to 
+     * <code>listener</code> until {@link #removeProbeListener(IWsDiscoveryProbeMatchesListener)} is called.
+     * @param types portTypes to match. <code>null</code> is all portTypes.
+     * @param scopes scopes to match. <code>null</code> is all scopes.
+     * @param matchBy Matching algorithm to use when matching scopes.
+     * @param listener Listener to notify.
+     */
+    void probe(List<QName> types, List<URI> scopes, MatchBy matchBy, IWsDiscoveryProbeMatchesListener listener) throws WsDiscoveryXMLException, WsDiscoveryNetworkException;
+
+    /**
+     * Stop passing ProbeMatches to a listener given to 
+     * {@link #probe(java.util.List, java.util.List, com.ms.wsdiscovery.servicedirectory.matcher.MatchBy, IWsDiscoveryProbeMatchesListener)}.
+     * @param listener Listener to remove.
+     */
+    void removeProbeListener(IWsDiscoveryProbeMatchesListener listener);
+
     /**
      * Probes for a service with the specified portType and scope. Scopes
      * are matched by the matching algorithm specified in <code>matchBy</code>.
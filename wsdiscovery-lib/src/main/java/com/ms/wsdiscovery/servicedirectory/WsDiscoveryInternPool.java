@@ -0,0 +1,148 @@
+/*
+WsDiscoveryInternPool.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.servicedirectory;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.xml.namespace.QName;
+
+/**
+ * Pool of shared port types, scopes and XAddrs. Most services on a network 
+ * share the same few port types and scopes, so keeping one instance of each
+ * saves memory in large service directories and makes equal values cheap 
+ * to compare. Scopes are kept parsed (see {@link WsDiscoveryScope}), so 
+ * each distinct scope is only parsed once.
+ * <p>
+ * Values are pooled by their exact string form. QName and URI consider some
+ * values equal that are written differently, e.g. with another prefix or in
+ * another case, and these must be kept apart.
+ * <p>
+ * The pool is bounded by {@link WsDiscoveryConstants#internPoolSize}. When
+ * full, new values are used as they are.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author Magnus Skjegstad
+ */
+class WsDiscoveryInternPool {
+    private static final ConcurrentHashMap<String, QName> qnames =
+            new ConcurrentHashMap<String, QName>();
+    private static final ConcurrentHashMap<String, WsDiscoveryScope> scopes =
+            new ConcurrentHashMap<String, WsDiscoveryScope>();
+    private static final ConcurrentHashMap<String, String> strings =
+            new ConcurrentHashMap<String, String>();
+    private static final AtomicInteger size = new AtomicInteger(0);
+
+    private WsDiscoveryInternPool() {
+    }
+
+    private static <T> T intern(ConcurrentHashMap<String, T> pool, String key, T value) {
+        if (size.get() >= WsDiscoveryConstants.internPoolSize)
+            return value;
+
+        T found = pool.putIfAbsent(key, value);
+        if (found != null)
+            return found;
+        size.incrementAndGet();
+        return value;
+    }
+
+    /**
+     * Get the shared instance of a port type.
+     * @param type Port type.
+     * @return Shared QName with the same namespace, local part and prefix.
+     */
+    static QName intern(QName type) {
+        if (type == null)
+            return null;
+
+        String key = type.getNamespaceURI() + '\u0000' + type.getLocalPart() + '\u0000' + type.getPrefix();
+        QName found = qnames.get(key);
+        if (found != null)
+            return found;
+        return intern(qnames, key, type);
+    }
+
+    /**
+     * Get the shared instance of a scope. Known scopes are not parsed again.
+     * @param scope Scope URI as a string.
+     * @return Shared parsed scope.
+     */
+    static WsDiscoveryScope internScope(String scope) {
+        if (scope == null)
+            return null;
+
+        WsDiscoveryScope found = scopes.get(scope);
+        if (found != null)
+            return found;
+        return intern(scopes, scope, new WsDiscoveryScope(URI.create(scope)));
+    }
+
+    /**
+     * Get the shared instance of a scope.
+     * @param scope Scope URI.
+     * @return Shared parsed scope with the same string form.
+     */
+    static WsDiscoveryScope intern(URI scope) {
+        if (scope == null)
+            return null;
+
+        String key = scope.toString();
+        WsDiscoveryScope found = scopes.get(key);
+        if (found != null)
+            return found;
+        return intern(scopes, key, new WsDiscoveryScope(scope));
+    }
+
+    /**
+     * Get the shared instance of a scope if it is in the pool. The pool is 
+     * not changed.
+     * @param scope Scope URI as a string.
+     * @return Shared parsed scope, or <code>null</code> if not pooled.
+     */
+    static WsDiscoveryScope lookupScope(String scope) {
+        return scopes.get(scope);
+    }
+
+    /**
+     * Get the shared instance of a string, e.g. an XAddr.
+     * @param value String.
+     * @return Shared string equal to <code>value</code>.
+     */
+    static String intern(String value) {
+        if (value == null)
+            return null;
+
+        String found = strings.get(value);
+        if (found != null)
+            return found;
+        return intern(strings, value, value);
+    }
+
+    /**
+     * Number of values in the pool.
+     * @return Number of values.
+     */
+    static int size() {
+        return size.get();
+    }
+}
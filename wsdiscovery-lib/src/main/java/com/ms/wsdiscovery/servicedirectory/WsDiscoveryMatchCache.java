@@ -0,0 +1,220 @@
+/*
+WsDiscoveryMatchCache.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.servicedirectory;
+
+import com.ms.wsdiscovery.datatypes.WsDiscoveryScopesType;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceCollection;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchByRegistry;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import javax.xml.namespace.QName;
+
+/**
+ * Cache with the results of recent matchBy()-queries against a service directory.
+ * Queries are normalized before lookup, so that probes with the same types and
+ * scopes in a different order share the same entry. The service directory must
+ * call {@link #clear()} whenever its content changes.
+ * <p>
+ * The cache is bounded. When it is full, the least recently used query is evicted.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author Magnus Skjegstad
+ */
+public class WsDiscoveryMatchCache {
+    private final int maxEntries;
+    private final LinkedHashMap<String, Entry> entries;
+    private long hits = 0;
+    private long misses = 0;
+    private long invalidations = 0;
+
+    /**
+     * Cached result of one query.
+     */
+    public static class Entry {
+        private final IWsDiscoveryServiceCollection services;
+        private final Map<Object, Object> attachments = new HashMap<Object, Object>();
+
+        Entry(IWsDiscoveryServiceCollection services) {
+            this.services = services;
+        }
+
+        /**
+         * Get the matching services. The collection is shared between all
+         * users of the cache and must not be modified.
+         * @return Matching services.
+         */
+        public IWsDiscoveryServiceCollection getServices() {
+            return services;
+        }
+
+        /**
+         * Get data derived from the result, e.g. an encoded ProbeMatches body.
+         * @param key Key the data was stored with.
+         * @return Stored data or <code>null</code> if not found.
+         */
+        public synchronized Object getAttachment(Object key) {
+            return attachments.get(key);
+        }
+
+        /**
+         * Store data derived from the result. The data is discarded together
+         * with the entry.
+         * @param key Key, e.g. the WS-Discovery namespace used when encoding.
+         * @param value Data to store.
+         */
+        public synchronized void setAttachment(Object key, Object value) {
+            attachments.put(key, value);
+        }
+    }
+
+    /**
+     * Create a new match cache.
+     * @param maxEntries Maximum number of queries to remember. 0 disables the cache.
+     */
+    public WsDiscoveryMatchCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > WsDiscoveryMatchCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Create the normalized key of a query. Types and scopes are sorted and
+     * duplicates removed, as neither order nor duplicates affect the result.
+     *
+     * @param probeTypes Types in query.
+     * @param probeScopes Scopes in query.
+     * @param defaultMatcher Matcher used when probeScopes is <code>null</code>.
+     * @return Key.
+     */
+    public static String createKey(List<QName> probeTypes, WsDiscoveryScopesType probeScopes, MatchBy defaultMatcher) {
+        StringBuilder key = new StringBuilder();
+
+        if (probeTypes != null) {
+            TreeSet<String> types = new TreeSet<String>();
+            for (QName q : probeTypes)
+                types.add(q.toString());
+            key.append(types);
+        } else
+            key.append("null");
+
+        key.append(' ');
+        if (probeScopes != null) {
+            if (probeScopes.getCustomMatchBy() != null) {
+                // The algorithm behind the URI may have been replaced since
+                key.append(probeScopes.getCustomMatchBy());
+                key.append('#');
+                key.append(MatchByRegistry.getGeneration());
+            } else
+                key.append(probeScopes.getMatchBy());
+            key.append(new TreeSet<String>(probeScopes.getValue()));
+        } else {
+            key.append(defaultMatcher);
+            key.append("null");
+        }
+
+        return key.toString();
+    }
+
+    /**
+     * Check if the cache is enabled.
+     * @return True if results are stored.
+     */
+    public boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    /**
+     * Look up a query.
+     * @param key Normalized query, see {@link #createKey(java.util.List, com.ms.wsdiscovery.datatypes.WsDiscoveryScopesType, com.ms.wsdiscovery.servicedirectory.matcher.MatchBy)}.
+     * @return Cached entry or <code>null</code> if not found.
+     */
+    public synchronized Entry get(String key) {
+        Entry e = entries.get(key);
+        if (e == null)
+            misses++;
+        else
+            hits++;
+        return e;
+    }
+
+    /**
+     * Store the result of a query.
+     * @param key Normalized query.
+     * @param services Matching services. Must not be modified after this call.
+     * @return The new entry.
+     */
+    public synchronized Entry put(String key, IWsDiscoveryServiceCollection services) {
+        Entry e = new Entry(services);
+        if (maxEntries > 0)
+            entries.put(key, e);
+        return e;
+    }
+
+    /**
+     * Remove all entries. Called when the service directory changes.
+     */
+    public synchronized void clear() {
+        if (entries.isEmpty())
+            return;
+        entries.clear();
+        invalidations++;
+    }
+
+    /**
+     * Number of cached queries.
+     * @return Number of entries.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Number of lookups answered from the cache.
+     * @return Number of hits.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Number of lookups not found in the cache.
+     * @return Number of misses.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Number of times cached entries were discarded because the directory changed.
+     * @return Number of invalidations.
+     */
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+}
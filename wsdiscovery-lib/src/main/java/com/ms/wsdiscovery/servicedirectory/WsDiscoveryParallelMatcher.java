@@ -0,0 +1,172 @@
+/*
+WsDiscoveryParallelMatcher.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.servicedirectory;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchProbe;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Matches a compiled probe with the candidates of a query, using several 
+ * threads when there are more than 
+ * {@link WsDiscoveryConstants#parallelMatchThreshold} candidates.
+ * <p>
+ * The candidates are split in chunks. Helper tasks on 
+ * {@link WsDiscoveryConstants#matchExecutor} and the calling thread take
+ * chunks until none are left, so the query completes even if the executor 
+ * is busy or runs on the calling thread. The caller must make sure that the
+ * candidates are not modified until the match returns.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author Magnus Skjegstad
+ */
+class WsDiscoveryParallelMatcher {
+    private static final int CHUNKS_PER_THREAD = 4;
+    private static final int MIN_CHUNK_SIZE = 1000;
+    private static ExecutorService sharedExecutor = null; // Created on first use
+
+    private WsDiscoveryParallelMatcher() {
+    }
+
+    private static synchronized Executor getExecutor() {
+        if (WsDiscoveryConstants.matchExecutor != null)
+            return WsDiscoveryConstants.matchExecutor;
+
+        if (sharedExecutor == null)
+            sharedExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                private int count = 0;
+
+                public synchronized Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "WsDiscoveryParallelMatcher-" + (++count));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        return sharedExecutor;
+    }
+
+    /**
+     * One query being matched.
+     */
+    private static class Job implements Runnable {
+        final WsDiscoveryService[] candidates;
+        final boolean[] matched;
+        final MatchProbe probe;
+        final int chunkSize;
+        final int chunks;
+        final AtomicInteger next = new AtomicInteger(0);
+        final CountDownLatch done;
+        final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+
+        Job(WsDiscoveryService[] candidates, MatchProbe probe, int chunks) {
+            this.candidates = candidates;
+            this.matched = new boolean[candidates.length];
+            this.probe = probe;
+            this.chunkSize = (candidates.length + chunks - 1) / chunks;
+            this.chunks = (candidates.length + chunkSize - 1) / chunkSize;
+            this.done = new CountDownLatch(this.chunks);
+        }
+
+        /**
+         * Match chunks until there are none left.
+         */
+        public void run() {
+            int chunk;
+            while ((chunk = next.getAndIncrement()) < chunks) {
+                try {
+                    int end = Math.min(candidates.length, (chunk + 1) * chunkSize);
+                    for (int i = chunk * chunkSize; i < end; i++)
+                        matched[i] = probe.match(candidates[i]);
+                } catch (RuntimeException ex) {
+                    failure.compareAndSet(null, ex);
+                } finally {
+                    done.countDown();
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the candidates that match a probe.
+     * @param candidates Services to check.
+     * @param probe Compiled probe.
+     * @return Matching services, in the order of <code>candidates</code>.
+     */
+    static List<WsDiscoveryService> match(Collection<WsDiscoveryService> candidates, MatchProbe probe) {
+        int threads = WsDiscoveryConstants.matchThreads;
+        if (threads <= 0)
+            threads = Runtime.getRuntime().availableProcessors();
+        int threshold = WsDiscoveryConstants.parallelMatchThreshold;
+
+        if ((threshold <= 0) || (candidates.size() < threshold) || (threads < 2)) {
+            List<WsDiscoveryService> res = new ArrayList<WsDiscoveryService>();
+            for (WsDiscoveryService s : candidates)
+                if (probe.match(s))
+                    res.add(s);
+            return res;
+        }
+
+        WsDiscoveryService[] array = candidates.toArray(new WsDiscoveryService[candidates.size()]);
+        int chunks = Math.max(1, Math.min(threads * CHUNKS_PER_THREAD, array.length / MIN_CHUNK_SIZE));
+        Job job = new Job(array, probe, chunks);
+
+        // The calling thread takes part, so start one helper less than there are threads
+        Executor executor = getExecutor();
+        for (int i = 1; i < Math.min(threads, job.chunks); i++)
+            try {
+                executor.execute(job);
+            } catch (RejectedExecutionException ex) {
+                break; // Match the rest here
+            }
+        job.run();
+
+        // Wait for chunks taken by the helpers
+        boolean interrupted = false;
+        while (true)
+            try {
+                job.done.await();
+                break;
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        if (job.failure.get() != null)
+            throw job.failure.get();
+
+        List<WsDiscoveryService> res = new ArrayList<WsDiscoveryService>();
+        for (int i = 0; i < array.length; i++)
+            if (job.matched[i])
+                res.add(array[i]);
+        return res;
+    }
+}
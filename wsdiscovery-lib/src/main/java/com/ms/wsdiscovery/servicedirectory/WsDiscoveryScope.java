@@ -0,0 +1,296 @@
+/*
+WsDiscoveryScope.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package com.ms.wsdiscovery.servicedirectory;
+
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchScopeLDAP;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchScopeUUID;
+import java.net.URI;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * A scope parsed once into the forms compared by the matching algorithms: 
+ * the string form (strcmp0), the scheme and authority in upper case and 
+ * the path segments (RFC2396), the UUID (UUID) and the host and RDNs of 
+ * LDAP URLs (LDAP). Comparing two parsed scopes does not allocate memory.
+ * <p>
+ * The scopes of a {@link WsDiscoveryServiceRecord} are shared through 
+ * {@link WsDiscoveryInternPool}, so each distinct scope is only parsed once.
+ * <p>
+ * This class is immutable.
+ *
+ * @author Magnus Skjegstad
+ */
+public final class WsDiscoveryScope {
+    private final String value;
+    private final URI uri; // null if value is not a valid URI
+    private final String authorityKey; // null if no scheme, authority or path
+    private final String[] segments; // null if authorityKey is null
+    private final UUID uuid; // null if not a UUID
+    private final String ldapKey; // null if not an LDAP URL
+    private final String[] rdns; // null if ldapKey is null
+
+    /**
+     * Parse a scope.
+     * @param value Scope as a string.
+     */
+    WsDiscoveryScope(String value) {
+        this(value, toURI(value));
+    }
+
+    /**
+     * Parse a scope.
+     * @param uri Scope URI.
+     */
+    WsDiscoveryScope(URI uri) {
+        this(uri.toString(), uri);
+    }
+
+    private WsDiscoveryScope(String value, URI uri) {
+        this.value = value;
+        this.uri = uri;
+
+        if ((uri != null) && (uri.getScheme() != null) && (uri.getAuthority() != null) && (uri.getPath() != null)) {
+            authorityKey = uri.getScheme().toUpperCase(Locale.ENGLISH) + "://" +
+                    uri.getAuthority().toUpperCase(Locale.ENGLISH);
+            segments = uri.getPath().split("/");
+        } else {
+            authorityKey = null;
+            segments = null;
+        }
+
+        uuid = MatchScopeUUID.urnToUUID(value);
+
+        String[] dn = null;
+        if ((uri != null) && "ldap".equalsIgnoreCase(uri.getScheme()) && (uri.getPath() != null)) {
+            String path = uri.getPath(); // ldap://hostport/dn?attributes?scope?filter
+            dn = MatchScopeLDAP.parseDN(path.startsWith("/") ? path.substring(1) : path);
+        }
+        if (dn != null) {
+            ldapKey = "LDAP://" + (uri.getAuthority() == null ? "" : uri.getAuthority().toUpperCase(Locale.ENGLISH));
+            rdns = dn;
+        } else {
+            ldapKey = null;
+            rdns = null;
+        }
+    }
+
+    private static URI toURI(String value) {
+        try {
+            return URI.create(value);
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Get a parsed scope. Scopes known by the service directories are not 
+     * parsed again. Other scopes, e.g. those in a Probe, are parsed but not
+     * remembered.
+     * @param scope Scope as a string.
+     * @return Parsed scope, or <code>null</code> if <code>scope</code> is <code>null</code>.
+     */
+    public static WsDiscoveryScope parse(String scope) {
+        if (scope == null)
+            return null;
+        WsDiscoveryScope found = WsDiscoveryInternPool.lookupScope(scope);
+        if (found != null)
+            return found;
+        return new WsDiscoveryScope(scope);
+    }
+
+    /**
+     * Get a parsed scope. Same as {@link #parse(java.lang.String)}.
+     * @param scope Scope URI.
+     * @return Parsed scope, or <code>null</code> if <code>scope</code> is <code>null</code>.
+     */
+    public static WsDiscoveryScope parse(URI scope) {
+        if (scope == null)
+            return null;
+        WsDiscoveryScope found = WsDiscoveryInternPool.lookupScope(scope.toString());
+        if (found != null)
+            return found;
+        return new WsDiscoveryScope(scope);
+    }
+
+    /**
+     * Parse a list of scopes, e.g. the scopes in a Probe.
+     * @param scopes Scopes as strings.
+     * @return Parsed scopes.
+     */
+    public static WsDiscoveryScope[] parseAll(List<String> scopes) {
+        WsDiscoveryScope[] res = new WsDiscoveryScope[scopes.size()];
+        int i = 0;
+        for (String s : scopes)
+            res[i++] = parse(s);
+        return res;
+    }
+
+    /**
+     * Get the scope as a URI.
+     * @return URI, or <code>null</code> if the scope is not a valid URI.
+     */
+    public URI getURI() {
+        return uri;
+    }
+
+    /**
+     * Get the scheme and authority in upper case, as compared by the RFC2396 
+     * algorithm.
+     * @return "SCHEME://AUTHORITY", or <code>null</code> if the scope has no
+     * scheme, authority or path.
+     */
+    public String getAuthorityKey() {
+        return authorityKey;
+    }
+
+    /**
+     * Get the number of path segments, split the same way as by the RFC2396 
+     * algorithm.
+     * @return Number of segments, 0 if the scope has no authority key.
+     */
+    public int getSegmentCount() {
+        return segments == null ? 0 : segments.length;
+    }
+
+    /**
+     * Get a path segment.
+     * @param i Index of the segment.
+     * @return Segment.
+     */
+    public String getSegment(int i) {
+        return segments[i];
+    }
+
+    /**
+     * Get the UUID of the scope.
+     * @return UUID, or <code>null</code> if the scope is not a UUID.
+     * @see MatchScopeUUID#urnToUUID(java.lang.String)
+     */
+    public UUID getUUID() {
+        return uuid;
+    }
+
+    /**
+     * Get the host and port of an LDAP URL in upper case, as compared by the
+     * LDAP algorithm.
+     * @return "LDAP://HOSTPORT", or <code>null</code> if the scope is not an
+     * LDAP URL with a valid distinguished name.
+     */
+    public String getLDAPKey() {
+        return ldapKey;
+    }
+
+    /**
+     * Get the number of RDNs in the distinguished name of an LDAP URL.
+     * @return Number of RDNs, 0 if the scope has no LDAP key.
+     */
+    public int getRDNCount() {
+        return rdns == null ? 0 : rdns.length;
+    }
+
+    /**
+     * Get an RDN of the distinguished name of an LDAP URL.
+     * @param i Index of the RDN, counted from the root.
+     * @return RDN in the normalized form of {@link MatchScopeLDAP#parseDN(java.lang.String)}.
+     */
+    public String getRDN(int i) {
+        return rdns[i];
+    }
+
+    /**
+     * Path segments, for the index. Must not be modified.
+     */
+    String[] segments() {
+        return segments;
+    }
+
+    /**
+     * RDNs, for the index. Must not be modified.
+     */
+    String[] rdns() {
+        return rdns;
+    }
+
+    /**
+     * Check whether this scope matches <code>target</code> by the LDAP 
+     * algorithm, i.e. host and port are the same and the RDNs of this scope
+     * are a prefix of those of <code>target</code>, counted from the root.
+     * @param target Scope of a service.
+     * @return True if this scope matches.
+     */
+    public boolean isLDAPPrefixOf(WsDiscoveryScope target) {
+        if ((ldapKey == null) || (target.ldapKey == null) || (!ldapKey.equals(target.ldapKey)))
+            return false;
+        return isPrefix(rdns, target.rdns);
+    }
+
+    private static boolean isPrefix(String[] prefix, String[] of) {
+        if (prefix.length > of.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++)
+            if (!prefix[i].equals(of[i]))
+                return false;
+        return true;
+    }
+
+    /**
+     * Check whether this scope matches <code>target</code> by the RFC2396 
+     * algorithm, i.e. scheme and authority are the same and the path 
+     * segments of this scope are a prefix of those of <code>target</code>.
+     * @param target Scope of a service.
+     * @return True if this scope matches.
+     */
+    public boolean isRFC2396PrefixOf(WsDiscoveryScope target) {
+        if ((authorityKey == null) || (target.authorityKey == null))
+            return false;
+        if ((segments.length > target.segments.length) || (!authorityKey.equals(target.authorityKey)))
+            return false;
+        return isPrefix(segments, target.segments);
+    }
+
+    /**
+     * Get the scope as a string.
+     * @return Scope exactly as given.
+     */
+    @Override
+    public String toString() {
+        return value;
+    }
+
+    /**
+     * Scopes are equal if their string forms are the same.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this)
+            return true;
+        if (!(obj instanceof WsDiscoveryScope))
+            return false;
+        return value.equals(((WsDiscoveryScope)obj).value);
+    }
+
+    @Override
+    public int hashCode() {
+        return value.hashCode();
+    }
+}
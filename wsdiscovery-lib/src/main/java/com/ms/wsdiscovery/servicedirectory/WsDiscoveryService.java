@@ -19,81 +19,73 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 
 package com.ms.wsdiscovery.servicedirectory;
 
-import java.net.InetAddress;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.UUID;
 import javax.xml.namespace.QName;
 import com.ms.wsdiscovery.WsDiscoveryConstants;
 import com.skjegstad.soapoverudp.datatypes.SOAPOverUDPEndpointReferenceType;
 import com.ms.wsdiscovery.datatypes.WsDiscoveryScopesType;
 import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchProbe;
 
 /**
  * Class for storing a WS-Discovery service description. See the specification
  * or the schema for details on the different data types.
  * <p>
+ * The description is kept in an immutable {@link WsDiscoveryServiceRecord}. 
+ * The setters replace the record, so the getters can read it without locking.
+ * Lists returned by the getters are read-only.
+ * <p>
  * This class is thread safe.
  * 
  * @author Magnus Skjegstad
  */
 public class WsDiscoveryService {
     /**
-     * Endpoint reference
-     */
-    protected SOAPOverUDPEndpointReferenceType endpointReference = null;
-    
-    /**
-     * Port types
+     * Current content. Replaced, never modified.
      */
-    protected List<QName> portTypes = null;
-    
-    /**
-     * Scopes
-     */
-    protected List<URI> scopes = null;
-    
-    /**
-     * Algorithm for matching scopes
-     */
-    protected MatchBy scopesMatchBy = null;
-    
-    /**
-     * Invocation addresses (XAddrs)
-     */
-    protected List<String> xAddrs = null;
-    
-    /**
-     * Metadata version
-     */
-    protected long metadataVersion = 0;
-    
-    /**
-     * Creation time
-     */
-    protected Date created = new Date();
-    
+    private volatile WsDiscoveryServiceRecord record;
+
     /**
-     * Last time a Resolve-packet was sent for this service.
-     * Set when a resolve-packet has been sent for this endpoint
+     * Prebuilt match fragments (e.g. ProbeMatch and ResolveMatch JAXB objects) 
+     * for this service. Only valid for the record they were built from.
      */
-    protected Date triedToResolve = null;
-    
+    private volatile MatchFragments matchFragments = null;
+
     /**
-     * Set for all hosts that has received a ResolveMatch for this service. Used to enforce timeouts per host.
+     * Match fragments built from one record, keyed by fragment class. Since
+     * each protocol version has its own JAXB classes, this gives one entry 
+     * per protocol version and fragment type. Replaced, never modified.
      */
-    protected Map<InetAddress, Date> sentResolveMatch = new HashMap<InetAddress, Date>();
+    private static class MatchFragments {
+        final WsDiscoveryServiceRecord record;
+        final Class<?>[] types;
+        final Object[] fragments;
+
+        MatchFragments(WsDiscoveryServiceRecord record, Class<?>[] types, Object[] fragments) {
+            this.record = record;
+            this.types = types;
+            this.fragments = fragments;
+        }
+    }
 
     /**
      * Create a new, empty WS-Discovery service description.
      */
     public WsDiscoveryService() {
-        
+        this(new WsDiscoveryServiceRecord.Builder().build());
+    }
+
+    /**
+     * Create a new WS-Discovery service description.
+     *
+     * @param record Content of the service description.
+     */
+    public WsDiscoveryService(WsDiscoveryServiceRecord record) {
+        this.record = record;
     }
     
     /**
@@ -110,11 +102,13 @@ public class WsDiscoveryService {
             WsDiscoveryScopesType scopes,
             List<String> XAddrs,
             long version) {
-        setEndpointReference(endpoint);
-        setPortTypes(portTypes);
-        setScopesType(scopes);
-        setXAddrs(XAddrs);
-        setMetadataVersion(version);
+        this(new WsDiscoveryServiceRecord.Builder()
+                .setEndpointReference(endpoint)
+                .setPortTypes(portTypes)
+                .setScopesType(scopes)
+                .setXAddrs(XAddrs)
+                .setMetadataVersion(version)
+                .build());
     }
     
     /**
@@ -128,13 +122,8 @@ public class WsDiscoveryService {
     public WsDiscoveryService(List<QName> portTypes,
             WsDiscoveryScopesType scopes,
             List<String> XAddrs) {
-        SOAPOverUDPEndpointReferenceType endpoint = new SOAPOverUDPEndpointReferenceType();
-        endpoint.setAddress(URI.create("urn:uuid:"+UUID.randomUUID().toString()));
-        setEndpointReference(endpoint);
-        setPortTypes(portTypes);
-        setScopesType(scopes);
-        setXAddrs(XAddrs);
-        setMetadataVersion(1);
+        this(new SOAPOverUDPEndpointReferenceType(URI.create("urn:uuid:"+UUID.randomUUID().toString())),
+                portTypes, scopes, XAddrs, 1);
     }
             
     /**
@@ -161,50 +150,61 @@ public class WsDiscoveryService {
      * @return True if match.
      */
     public boolean isMatchedBy(List<QName> probeTypes, WsDiscoveryScopesType probeScopes, MatchBy defaultMatcher) {
-        MatchBy m = defaultMatcher;
-        if (probeScopes != null)
-            m = probeScopes.getMatchBy();
-
-        if (m == null)
-            return false;        
-        
-        return m.match(this, probeTypes, probeScopes);
+        return MatchProbe.compile(probeTypes, probeScopes, defaultMatcher).match(this);
     }              
 
+    /**
+     * Get the current content of this service description. The record does
+     * not change when the service is modified later.
+     * @return Current record.
+     */
+    public WsDiscoveryServiceRecord getRecord() {
+        return record;
+    }
+
+    /**
+     * Replace the content of this service description.
+     * @param record New record.
+     */
+    public synchronized void setRecord(WsDiscoveryServiceRecord record) {
+        this.record = record;
+        invalidateMatchFragments();
+    }
+
     /**
      * Sets the endpoint reference.
      * @param endpointReference WS-Discovery endpoint reference.
      */
-    public void setEndpointReference(SOAPOverUDPEndpointReferenceType endpointReference) {
-        this.endpointReference = endpointReference;
+    public synchronized void setEndpointReference(SOAPOverUDPEndpointReferenceType endpointReference) {
+        setRecord(record.toBuilder().setEndpointReference(endpointReference).build());
     }
 
-    public void setEndpointReference(URI endpointReferenceAddress) {
-        this.endpointReference = new SOAPOverUDPEndpointReferenceType(endpointReferenceAddress);
+    public synchronized void setEndpointReference(URI endpointReferenceAddress) {
+        setRecord(record.toBuilder().setEndpointReference(endpointReferenceAddress).build());
     }
 
     /**
      * Get endpoint reference.
      * @return Endpoint reference.
      */
-    public synchronized SOAPOverUDPEndpointReferenceType getEndpointReference() {
-        return this.endpointReference;
+    public SOAPOverUDPEndpointReferenceType getEndpointReference() {
+        return record.getEndpointReference();
     }
     
     /**
      * Create a copy of the current endpoint reference object.
      * @return Clone of endpoint reference.
      */
-    public synchronized SOAPOverUDPEndpointReferenceType createEndpointReferenceObject() {
-        return (SOAPOverUDPEndpointReferenceType) this.endpointReference.clone();
+    public SOAPOverUDPEndpointReferenceType createEndpointReferenceObject() {
+        return (SOAPOverUDPEndpointReferenceType) record.getEndpointReference().clone();
     }
 
     /**
      * Get metadata version.
      * @return Metadata version.
      */
-    public synchronized long getMetadataVersion() {
-        return metadataVersion;
+    public long getMetadataVersion() {
+        return record.getMetadataVersion();
     }
 
     /**
@@ -212,23 +212,23 @@ public class WsDiscoveryService {
      * @param metadataVersion New metadata version.
      */
     public synchronized void setMetadataVersion(long metadataVersion) {
-        this.metadataVersion = metadataVersion;
+        setRecord(record.toBuilder().setMetadataVersion(metadataVersion).build());
     }
 
     /**
      * Get list of scope URIs 
      * @return Scope URIs
      */
-    public synchronized List<URI> getScopes() {
-        return scopes;
+    public List<URI> getScopes() {
+        return record.getScopes();
     }
     
     /**
      * Get algorithm set in the MatchBy-attribute of the scopes.
      * @return MatchBy-algorithm
      */
-    public synchronized MatchBy getScopesMatchBy() {
-        return scopesMatchBy;
+    public MatchBy getScopesMatchBy() {
+        return record.getScopesMatchBy();
     }
     
     /**
@@ -236,25 +236,15 @@ public class WsDiscoveryService {
      * @param scopes New scopes.
      */
     public synchronized void setScopesType(WsDiscoveryScopesType scopes) {
-        this.scopes = Collections.synchronizedList(new ArrayList<URI>());
-        
-        if (scopes != null) {
-            if (scopes.getValue() != null)
-                for (String s : scopes.getValue())
-                    this.scopes.add(URI.create(s));
-            this.scopesMatchBy = scopes.getMatchBy();
-        }
+        setRecord(record.toBuilder().setScopesType(scopes).build());
     }
 
     /**
      * Set scopes.
      * @param scopes List of new scopes.
      */
-    public void setScopes(List<URI> scopes, MatchBy matcher) {
-        WsDiscoveryScopesType scopesType = new WsDiscoveryScopesType(matcher);
-        for (URI scope : scopes)
-            scopesType.getValue().add(scope.toString());
-        setScopesType(scopesType);
+    public synchronized void setScopes(List<URI> scopes, MatchBy matcher) {
+        setRecord(record.toBuilder().setScopes(scopes, matcher).build());
     }
 
     /**
@@ -269,8 +259,8 @@ public class WsDiscoveryService {
      * Get port types.
      * @return List of port types.
      */
-    public synchronized List<QName> getPortTypes() {
-        return Collections.synchronizedList(portTypes);
+    public List<QName> getPortTypes() {
+        return record.getPortTypes();
     }
 
     /**
@@ -278,19 +268,15 @@ public class WsDiscoveryService {
      * @param types List of port types.
      */
     public synchronized void setPortTypes(List<QName> types) {
-        if (types != null) {
-            this.portTypes = Collections.synchronizedList(new ArrayList<QName>());
-            this.portTypes.addAll(types);
-        } else
-            this.portTypes = null;
+        setRecord(record.toBuilder().setPortTypes(types).build());
     }
 
     /**
      * Get invocation addresses.
      * @return List of invocation addresses.
      */
-    public synchronized List<String> getXAddrs() {
-        return xAddrs;
+    public List<String> getXAddrs() {
+        return record.getXAddrs();
     }
 
     /**
@@ -298,42 +284,39 @@ public class WsDiscoveryService {
      * @param xAddrs List of invocation addresses.
      */
     public synchronized void setXAddrs(List<String> xAddrs) {
-        if (xAddrs != null) {
-            this.xAddrs =  Collections.synchronizedList(new ArrayList<String>());
-            this.xAddrs.addAll(xAddrs);
-        } else
-            this.xAddrs = null;        
+        setRecord(record.toBuilder().setXAddrs(xAddrs).build());
     }    
     
     @Override
-    public synchronized String toString() {
+    public String toString() {
+        WsDiscoveryServiceRecord r = record;
         List<String> l = new ArrayList<String>();
         
-        if (this.endpointReference != null)
-            l.add(this.endpointReference.toString());
+        if (r.getEndpointReference() != null)
+            l.add(r.getEndpointReference().toString());
         
-        if ((getPortTypes() != null) && (getPortTypes().size() > 0)) {
+        if (r.getPortTypes().size() > 0) {
             String s = new String();
-            for (QName q : getPortTypes())
+            for (QName q : r.getPortTypes())
                 if (q != null)
                     s += "Types: " + q.toString() + "\n";
             if (s.length() != 0)
                 l.add(s);
         }
         
-        if ((getXAddrs() != null) && (!getXAddrs().isEmpty())) {
+        if ((r.getXAddrs() != null) && (!r.getXAddrs().isEmpty())) {
             String s = new String();
-            for (String addr : getXAddrs())
+            for (String addr : r.getXAddrs())
                 s += "XAddrs: " + addr + "\n";
             if (s.length() != 0)
                 l.add(s);
         }
         
-        if (getScopes() != null) {
+        if (r.getScopes() != null) {
             String s = new String();
-            if (getScopesMatchBy() != null)
-                s += "Scopes.MatchBy: " + getScopesMatchBy()+ "\n";
-            for (URI scope : getScopes())
+            if (r.getScopesMatchBy() != null)
+                s += "Scopes.MatchBy: " + r.getScopesMatchBy()+ "\n";
+            for (URI scope : r.getScopes())
                 if (scope != null)
                     s += "Scopes: " + scope + "\n";            
             if (s.length() != 0)
@@ -349,46 +332,81 @@ public class WsDiscoveryService {
     }
 
     /**
-     * Get number of times the service has tried to resolve the invocation address.
-     * @return Number of Resolve-messages sent.
-     */
-    public synchronized Date getTriedToResolve() {
-        return triedToResolve;
+     * Get a cached match fragment previously stored with 
+     * {@link #setMatchFragment(Class, Object)}. Fragments are only returned
+     * if they were built from the current content of this service.
+     * <p>
+     * The returned object is shared between all callers and must not be modified.
+     *
+     * @param fragmentType Class of the fragment, e.g. a JAXB ProbeMatchType.
+     * @return Cached fragment or <code>null</code> if none is available for the current content.
+     */
+    public <T> T getMatchFragment(Class<T> fragmentType) {
+        MatchFragments f = matchFragments;
+        if ((f == null) || (f.record != record))
+            return null;
+        for (int i = 0; i < f.types.length; i++)
+            if (f.types[i] == fragmentType)
+                return fragmentType.cast(f.fragments[i]);
+        return null;
     }
 
     /**
-     * Sets the date and time of the last Resolve-message was sent for this service.
-     * @param lastResolved Date of last sent Resolve-message.
+     * Cache a match fragment built from the current state of this service.
+     *
+     * @param fragmentType Class of the fragment, e.g. a JAXB ProbeMatchType.
+     * @param fragment Fragment to cache.
      */
-    public synchronized void setTriedToResolve(Date lastResolved) {
-        this.triedToResolve = lastResolved;
+    public synchronized <T> void setMatchFragment(Class<T> fragmentType, T fragment) {
+        MatchFragments f = matchFragments;
+        if ((f == null) || (f.record != record))
+            f = new MatchFragments(record, new Class<?>[0], new Object[0]);
+
+        int n = f.types.length;
+        for (int i = 0; i < n; i++)
+            if (f.types[i] == fragmentType)
+                n = i; // Replace
+        Class<?>[] types = new Class<?>[Math.max(n + 1, f.types.length)];
+        Object[] fragments = new Object[types.length];
+        System.arraycopy(f.types, 0, types, 0, f.types.length);
+        System.arraycopy(f.fragments, 0, fragments, 0, f.fragments.length);
+        types[n] = fragmentType;
+        fragments[n] = fragment;
+        matchFragments = new MatchFragments(record, types, fragments);
     }
-    
+
     /**
-     * Get timestamp for when a ResolveMatch was sent to the specified address.
-     * @param address Receiver of ResolveMatch.
-     * @return Timestamp for last ResolveMatch sent to this address.
+     * Remove all cached match fragments. Called whenever the service description
+     * changes or is stored in a service directory.
      */
-    public synchronized Date getSentResolveMatch(InetAddress address) {
-        return sentResolveMatch.get(address);
-    }    
-    
+    public void invalidateMatchFragments() {
+        matchFragments = null;
+    }
+
     /**
-     * Set timestamp for ResolveMatch sent.
-     * @param address Address the ResolveMatch was sent to.
+     * Get a 64-bit fingerprint of the endpoint address, port types, scopes
+     * and XAddrs of this service. The metadata version is left out.
+     *
+     * @return Fingerprint. Services with different fingerprints have different content.
      */
-    public synchronized void setSentResolveMatch(InetAddress address) {
-        sentResolveMatch.put(address, new Date());
-    }
-    
-    @Override
-    public synchronized int hashCode() {
-        return super.hashCode();
+    public long getFingerprint() {
+        return record.getFingerprint();
     }
 
-    @Override
-    public synchronized boolean equals(Object obj) {
-        return super.equals(obj);
+    /**
+     * Check whether another service has the same endpoint address, port types,
+     * scopes and XAddrs as this one. The metadata version is not compared.
+     * The fingerprints are compared first, so services that differ are usually
+     * told apart without comparing their contents.
+     *
+     * @param other Service to compare with.
+     * @return True if the services have the same content.
+     */
+    public boolean hasSameContent(WsDiscoveryService other) {
+        if (other == this)
+            return true;
+        if (other == null)
+            return false;
+        return record.hasSameContent(other.record);
     }
-
 }
@@ -21,19 +21,28 @@ package com.ms.wsdiscovery.servicedirectory;
 
 import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceDirectory;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import javax.xml.namespace.QName;
+import com.ms.wsdiscovery.WsDiscoveryConstants;
 import com.ms.wsdiscovery.WsDiscoveryFactory;
 import com.skjegstad.soapoverudp.datatypes.SOAPOverUDPEndpointReferenceType;
 import com.ms.wsdiscovery.datatypes.WsDiscoveryScopesType;
 import com.ms.wsdiscovery.logger.WsDiscoveryLogger;
 import com.ms.wsdiscovery.servicedirectory.exception.WsDiscoveryServiceDirectoryException;
 import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceCollection;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceDirectoryListener;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceVisitor;
 import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchProbe;
 import com.ms.wsdiscovery.servicedirectory.store.WsDiscoveryServiceCollection;
+import com.ms.wsdiscovery.servicedirectory.store.WsDiscoveryServiceHashCollection;
 
 /**
  * Thread safe directory of {@link WsDiscoveryService} instances. Used by
@@ -55,13 +64,19 @@ public class WsDiscoveryServiceDirectory implements IWsDiscoveryServiceDirectory
     private Lock r = rwl.readLock();
     private Lock w = rwl.writeLock();
     private MatchBy defaultMatcher;
+    private WsDiscoveryMatchCache matchCache =
+            new WsDiscoveryMatchCache(WsDiscoveryConstants.matchCacheSize); // Cleared while holding the write lock
+    private WsDiscoveryServiceIndex index =
+            new WsDiscoveryServiceIndex(); // Modified while holding the write lock
+    private final WsDiscoveryServiceDirectoryNotifier notifier =
+            new WsDiscoveryServiceDirectoryNotifier(); // Changes are reported while holding the write lock
            
     /**
      * Create a new service directory.
      * @param name Name of service directory.
      */
     public WsDiscoveryServiceDirectory(String name, MatchBy defaultMatcher) {
-        services = new WsDiscoveryServiceCollection();
+        services = new WsDiscoveryServiceHashCollection();
         this.name = name;
         this.defaultMatcher = defaultMatcher;
     }
@@ -105,7 +120,11 @@ public class WsDiscoveryServiceDirectory implements IWsDiscoveryServiceDirectory
     public void clear() {
         w.lock();
         try {
+            if (notifier.hasListeners())
+                notifier.servicesRemoved(new ArrayList<WsDiscoveryService>(services));
             services.clear();
+            index.clear();
+            matchCache.clear();
         } finally {
             w.unlock();
         }
@@ -130,16 +149,10 @@ public class WsDiscoveryServiceDirectory implements IWsDiscoveryServiceDirectory
 
         r.lock();
         try {
-            for (WsDiscoveryService s : services)
-                if ((s.getEndpointReference() != null) &&
-                    (s.getEndpointReference().getAddress() != null) &&
-                    (s.getEndpointReference().getAddress().equals(address)))
-                            return s;
+            return services.get(address);
         } finally {
             r.unlock();
         }
-
-        return null;
     }
 
     /**
@@ -149,103 +162,118 @@ public class WsDiscoveryServiceDirectory implements IWsDiscoveryServiceDirectory
         return findService(endpoint.getAddress());
     }
            
-    private void add(WsDiscoveryService service) 
-            throws WsDiscoveryServiceDirectoryException {
-
-        logger.finer("serviceDirectory.add()");
-        logger.fine("Adding service " + service.getEndpointReference().getAddress().toString());
-        w.lock();
-        try {
-            Boolean res = false;
-                           
-            res = services.add(service);
-            if (!res)
-                throw new WsDiscoveryServiceDirectoryException("Unable to add new service to service directory.");
-        } finally {
-            w.unlock();
-        }
-     
-        logger.finest("Added service: \n" + service.toString());
-    }
-       
-    private void update(WsDiscoveryService service) 
+    /**
+     * Add or replace a service. Must be called while holding the write lock.
+     */
+    private void storeLocked(WsDiscoveryService service)
             throws WsDiscoveryServiceDirectoryException {
+        URI address = service.getEndpointReference().getAddress();
+        WsDiscoveryService found = services.get(address);
 
-        WsDiscoveryService foundService;
-        
-        logger.finer("serviceDirectory.update()");
-
-        if ((service == null) || (service.getEndpointReference() == null)) {
-            logger.finer("Parameter or endpoint reference was (null). Call to update() aborted.");
+        // Checked again, as the service may have been stored since isUnchanged()
+        if ((found != null) && (found != service) && found.hasSameContent(service))
             return;
-        }
-  
-
-        synchronized (this) { // Synchronize to avoid race cond. between r/w locks. findService read-locks, so we must wait with w lock.
-            foundService = findService(service.getEndpointReference());
-            
-            if (foundService == null) {
-                throw new WsDiscoveryServiceDirectoryException("Unable to update service. Service not found.");
-            }
 
-            w.lock(); // get write lock
+        if (found != null) {
+            logger.fine("Updating service @ " + address);
+            // Increase metadataversion if the content differs, unless the
+            // service already announces a higher one
+            if (!service.hasSameContent(found))
+                service.setMetadataVersion(Math.max(service.getMetadataVersion(), 
+                        found.getMetadataVersion() + 1));
+            // Cached match fragments may describe the old service
+            found.invalidateMatchFragments();
+        } else
+            logger.fine("Adding service " + address);
+
+        // Content the replaced service was stored with, even if it was modified since
+        WsDiscoveryServiceRecord previousRecord = null;
+        if (found != null) {
+            previousRecord = index.getRecord(found);
+            if (previousRecord == null)
+                previousRecord = found.getRecord();
         }
-        
-        try {
-            if (service.getEndpointReference().getAddress() != null) {
-                logger.fine("Updating service @ " + service.getEndpointReference().getAddress().toString());
-            } else {
-                logger.fine("Updating service " + service.getEndpointReference().toString());
-            }
 
-            // Increase metadataversion if hashcode differs
-            if (service.hashCode() != foundService.hashCode()) {
-                service.setMetadataVersion(foundService.getMetadataVersion() + 1);
-            }
+        service.invalidateMatchFragments();
+        matchCache.clear();
+        if (found != null ? !services.update(service) : !services.add(service))
+            throw new WsDiscoveryServiceDirectoryException("Unable to store service " + address + " in service directory.");
+        if (found != null)
+            index.remove(found);
+        index.add(service);
+        notifier.serviceStored(found, previousRecord, service);
 
-            // Update service
-            if (!services.update(service)) {
-                throw new WsDiscoveryServiceDirectoryException("Unable to update service. Update failed.");
-            }
-
-        } finally {
-            w.unlock();
-        }
+        logger.finest("Stored service: \n" + service.toString());
+    }
 
-        logger.finest("Updated service " + service.toString());
+    /**
+     * Check whether the directory already has another service object with 
+     * the same content, in which case storing <code>service</code> would 
+     * change nothing. Caches and indexes are left alone for such services.
+     */
+    private boolean isUnchanged(WsDiscoveryService service) {
+        WsDiscoveryService found = findService(service.getEndpointReference().getAddress());
+        // The same object may have been modified since it was stored
+        return (found != null) && (found != service) && found.hasSameContent(service);
     }
-    
+
     /**
      * {@inheritDoc}
      */
     public void store(WsDiscoveryService service) 
         throws WsDiscoveryServiceDirectoryException {
-        
-        // No locking necessary here
+        storeAll(Collections.singletonList(service));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void storeAll(Collection<WsDiscoveryService> newServices)
+            throws WsDiscoveryServiceDirectoryException {
+        // Re-announcements of unchanged services only take the read lock
+        List<WsDiscoveryService> changed = new ArrayList<WsDiscoveryService>();
+        for (WsDiscoveryService s : newServices) {
+            if ((s == null) || (s.getEndpointReference() == null) ||
+                    (s.getEndpointReference().getAddress() == null)) {
+                logger.finer("Parameter or endpoint address was (null). Service not stored.");
+                continue;
+            }
+            if (isUnchanged(s)) {
+                logger.finer("Service " + s.getEndpointReference().getAddress() + " is unchanged. Not stored.");
+                continue;
+            }
+            changed.add(s);
+        }
+
+        if (changed.isEmpty())
+            return;
+
+        w.lock();
         try {
-            update(service);
-        } catch (WsDiscoveryServiceDirectoryException ex) {
-            add(service);
+            for (WsDiscoveryService s : changed)
+                storeLocked(s);
+        } finally {
+            w.unlock();
         }
-        
     }
-    
+
     /**
      * {@inheritDoc}
      */
     public void remove(URI address) {
-        WsDiscoveryService foundService;
-        
-        // Synchronize to avoid race cond. when acquiring w-lock, as findservice r-locks.
-        synchronized(this) {
-            foundService = findService(address);
-            if (foundService == null)
-                return;
-            w.lock();
-        }
+        if ((address == null) || (findService(address) == null))
+            return;
 
+        w.lock();
         try {
+            // Look up again, as the service may have been replaced since
+            WsDiscoveryService foundService = services.get(address);
+            if (foundService == null)
+                return;
             services.remove(foundService);
+            index.remove(foundService);
+            matchCache.clear();
+            notifier.serviceRemoved(foundService);
         } finally {
             w.unlock();
         }
@@ -278,21 +306,128 @@ public class WsDiscoveryServiceDirectory implements IWsDiscoveryServiceDirectory
      */
     public IWsDiscoveryServiceCollection matchBy(List<QName> probeTypes,
             WsDiscoveryScopesType probeScopes) throws WsDiscoveryServiceDirectoryException {
-        
+
         IWsDiscoveryServiceCollection d = new WsDiscoveryServiceCollection();
 
-        // We must obtain a read lock to avoid changes while we loop through the iterator
+        // Copy, as the cached collection is shared
+        d.addAll(matchByCached(probeTypes, probeScopes).getServices());
+
+        return d;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public WsDiscoveryMatchCache.Entry matchByCached(List<QName> probeTypes,
+            WsDiscoveryScopesType probeScopes) throws WsDiscoveryServiceDirectoryException {
+
+        // We must obtain a read lock to avoid changes while we loop through the iterator.
+        // Holding it while storing the result also makes sure that the result is not
+        // stored after a change has cleared the cache.
         r.lock();
         try {
-            for (WsDiscoveryService s : services)
-                if (s.isMatchedBy(probeTypes, probeScopes, defaultMatcher))
-                    if (!d.add(s))
-                        throw new WsDiscoveryServiceDirectoryException("Unable to create Service collection for storing matchBy-results.");
+            String key = WsDiscoveryMatchCache.createKey(probeTypes, probeScopes, defaultMatcher);
+            if (matchCache.isEnabled()) {
+                WsDiscoveryMatchCache.Entry e = matchCache.get(key);
+                if (e != null)
+                    return e;
+            }
+
+            // Only check the services the index can not rule out
+            MatchProbe probe = MatchProbe.compile(probeTypes, probeScopes, defaultMatcher);
+            Collection<WsDiscoveryService> candidates = index.getCandidates(probeTypes, probeScopes, defaultMatcher, probe);
+            if (candidates == null)
+                candidates = services;
+
+            // Large queries are matched on several threads while we hold the read lock
+            IWsDiscoveryServiceCollection d = new WsDiscoveryServiceCollection();
+            for (WsDiscoveryService s : WsDiscoveryParallelMatcher.match(candidates, probe))
+                if (!d.add(s))
+                    throw new WsDiscoveryServiceDirectoryException("Unable to create Service collection for storing matchBy-results.");
+
+            return matchCache.put(key, d);
+        } finally {
+            r.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int visit(List<QName> probeTypes, WsDiscoveryScopesType probeScopes,
+            int limit, IWsDiscoveryServiceVisitor visitor) throws WsDiscoveryServiceDirectoryException {
+        r.lock();
+        try {
+            // Answer from a cached result if there is one. Results are not
+            // cached here, as the visitor may stop the query early.
+            if (matchCache.isEnabled()) {
+                WsDiscoveryMatchCache.Entry e = matchCache.get(
+                        WsDiscoveryMatchCache.createKey(probeTypes, probeScopes, defaultMatcher));
+                if (e != null)
+                    return visitMatching(e.getServices(), limit, visitor);
+            }
+
+            MatchProbe probe = MatchProbe.compile(probeTypes, probeScopes, defaultMatcher);
+            Collection<WsDiscoveryService> candidates = index.getCandidates(probeTypes, probeScopes, defaultMatcher, probe);
+            if (candidates == null)
+                candidates = services;
+
+            return visitMatching(candidates, probe, limit, visitor);
         } finally {
             r.unlock();
         }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int visitAll(int limit, IWsDiscoveryServiceVisitor visitor) throws WsDiscoveryServiceDirectoryException {
+        r.lock();
+        try {
+            return visitMatching(services, limit, visitor);
+        } finally {
+            r.unlock();
+        }
+    }
+
+    /**
+     * Pass the services among <code>candidates</code> that match a query to a
+     * visitor. Used by the service directory implementations.
+     * @param candidates Services to check.
+     * @param probe Compiled query.
+     * @param limit Maximum number of services to visit. 0 for no limit.
+     * @param visitor Visitor.
+     * @return Number of services visited.
+     */
+    static int visitMatching(Iterable<WsDiscoveryService> candidates, MatchProbe probe, int limit,
+            IWsDiscoveryServiceVisitor visitor) {
+        int visited = 0;
+        for (WsDiscoveryService s : candidates) {
+            if (!probe.match(s))
+                continue;
+            visited++;
+            if (!visitor.visit(s) || (visited == limit))
+                break;
+        }
+        return visited;
+    }
 
-        return d;        
+    /**
+     * Pass all services in <code>services</code> to a visitor.
+     * @param services Services to visit.
+     * @param limit Maximum number of services to visit. 0 for no limit.
+     * @param visitor Visitor.
+     * @return Number of services visited.
+     */
+    static int visitMatching(Iterable<WsDiscoveryService> services, int limit,
+            IWsDiscoveryServiceVisitor visitor) {
+        int visited = 0;
+        for (WsDiscoveryService s : services) {
+            visited++;
+            if (!visitor.visit(s) || (visited == limit))
+                break;
+        }
+        return visited;
     }
 
     /**
@@ -338,8 +473,7 @@ public class WsDiscoveryServiceDirectory implements IWsDiscoveryServiceDirectory
     public void addAll(IWsDiscoveryServiceCollection collection)
             throws WsDiscoveryServiceDirectoryException {
         if (collection != null)
-            for (WsDiscoveryService s : collection)
-                store(s);
+            storeAll(collection);
     }
 
     /**
@@ -350,7 +484,13 @@ public class WsDiscoveryServiceDirectory implements IWsDiscoveryServiceDirectory
         try {
             if (addExistingServices)
                 newServiceCollection.addAll(services);
+            IWsDiscoveryServiceCollection before = services;
             services = newServiceCollection;
+            index.clear();
+            for (WsDiscoveryService s : services)
+                index.add(s);
+            matchCache.clear();
+            notifier.servicesReplaced(before, services);
         } finally {
             w.unlock();
         }
@@ -367,7 +507,43 @@ public class WsDiscoveryServiceDirectory implements IWsDiscoveryServiceDirectory
      * {@inheritDoc} 
      */
     public void setDefaultMatcher(MatchBy defaultMatcher) {
-        this.defaultMatcher = defaultMatcher;
+        w.lock();
+        try {
+            this.defaultMatcher = defaultMatcher;
+            matchCache.clear();
+        } finally {
+            w.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public WsDiscoveryMatchCache getMatchCache() {
+        return matchCache;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void addListener(IWsDiscoveryServiceDirectoryListener listener,
+            List<QName> probeTypes, WsDiscoveryScopesType probeScopes) {
+        addListener(listener, probeTypes, probeScopes, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void addListener(IWsDiscoveryServiceDirectoryListener listener,
+            List<QName> probeTypes, WsDiscoveryScopesType probeScopes, Executor executor) {
+        notifier.addListener(listener, probeTypes, probeScopes, getDefaultMatcher(), executor);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void removeListener(IWsDiscoveryServiceDirectoryListener listener) {
+        notifier.removeListener(listener);
     }
 
     
@@ -0,0 +1,276 @@
+/*
+WsDiscoveryServiceDirectoryNotifier.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.servicedirectory;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.datatypes.WsDiscoveryScopesType;
+import com.ms.wsdiscovery.logger.WsDiscoveryLogger;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceCollection;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceDirectoryListener;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchProbe;
+import java.net.URI;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import javax.xml.namespace.QName;
+
+/**
+ * Delivers change notifications from a service directory to its listeners.
+ * The directory reports each change while holding its write lock, which only
+ * queues the change. Queries are evaluated and listeners called later on an
+ * {@link Executor}.
+ * <p>
+ * Each listener has its own queue, so notifications to one listener are
+ * delivered in order and a slow listener does not delay the others. When no
+ * listeners are registered, reporting a change does nothing.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author Magnus Skjegstad
+ */
+public class WsDiscoveryServiceDirectoryNotifier {
+    private static final WsDiscoveryLogger logger =
+            new WsDiscoveryLogger(WsDiscoveryServiceDirectoryNotifier.class.getName());
+    private static ExecutorService sharedExecutor = null; // Created on first use
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+
+    /**
+     * One change. <code>previous</code> is null when a service was added and
+     * <code>service</code> is null when it was removed. The content of both
+     * is captured when the change is reported, as the service objects may be
+     * modified before the change is delivered.
+     */
+    private static class Change {
+        final WsDiscoveryService previous;
+        final WsDiscoveryServiceRecord previousRecord;
+        final WsDiscoveryService service;
+        final WsDiscoveryServiceRecord record;
+
+        Change(WsDiscoveryService previous, WsDiscoveryServiceRecord previousRecord, WsDiscoveryService service) {
+            this.previous = previous;
+            this.previousRecord = previousRecord;
+            this.service = service;
+            this.record = (service == null ? null : service.getRecord());
+        }
+
+        Change(WsDiscoveryService previous, WsDiscoveryService service) {
+            this(previous, previous == null ? null : previous.getRecord(), service);
+        }
+    }
+
+    /**
+     * A listener, its query and its queue of undelivered changes.
+     */
+    private static class Subscription implements Runnable {
+        final IWsDiscoveryServiceDirectoryListener listener;
+        final MatchProbe probe; // null matches all
+        final Executor executor;
+        private final LinkedList<Change> queue = new LinkedList<Change>();
+        private boolean active = false;
+
+        Subscription(IWsDiscoveryServiceDirectoryListener listener, List<QName> probeTypes,
+                WsDiscoveryScopesType probeScopes, MatchBy defaultMatcher, Executor executor) {
+            this.listener = listener;
+            if ((probeTypes == null) && (probeScopes == null))
+                this.probe = null;
+            else
+                this.probe = MatchProbe.compile(probeTypes, probeScopes, defaultMatcher);
+            this.executor = executor;
+        }
+
+        boolean matches(WsDiscoveryServiceRecord record) {
+            if (record == null)
+                return false;
+            if (probe == null)
+                return true;
+            return probe.match(record);
+        }
+
+        void submit(Change c) {
+            synchronized (queue) {
+                queue.add(c);
+                if (active)
+                    return; // Picked up by the running delivery
+                active = true;
+            }
+            try {
+                executor.execute(this);
+            } catch (RuntimeException ex) {
+                synchronized (queue) {
+                    queue.clear();
+                    active = false;
+                }
+                logger.severe("Unable to deliver service directory notification: " + ex.getMessage());
+            }
+        }
+
+        public void run() {
+            while (true) {
+                Change c;
+                synchronized (queue) {
+                    c = queue.poll();
+                    if (c == null) {
+                        active = false;
+                        return;
+                    }
+                }
+                deliver(c);
+            }
+        }
+
+        private void deliver(Change c) {
+            boolean before = matches(c.previousRecord);
+            boolean after = matches(c.record);
+            try {
+                if (before && after)
+                    listener.serviceUpdated(c.service);
+                else if (after)
+                    listener.serviceAdded(c.service);
+                else if (before)
+                    listener.serviceRemoved(c.previous);
+            } catch (RuntimeException ex) {
+                logger.warning("Service directory listener failed: " + ex.toString());
+            }
+        }
+    }
+
+    private static synchronized Executor getSharedExecutor() {
+        if (WsDiscoveryConstants.listenerExecutor != null)
+            return WsDiscoveryConstants.listenerExecutor;
+
+        if (sharedExecutor == null)
+            sharedExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                private int count = 0;
+
+                public synchronized Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "WsDiscoveryServiceDirectoryNotifier-" + (++count));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        return sharedExecutor;
+    }
+
+    /**
+     * Register a listener. The query is compiled once, when the listener is
+     * registered.
+     *
+     * @param listener Listener to notify.
+     * @param probeTypes Only notify about services matching these port types. <code>null</code> matches all.
+     * @param probeScopes Only notify about services matching these scopes. <code>null</code> matches all.
+     * @param defaultMatcher Matcher used when <code>probeScopes</code> does not specify one.
+     * @param executor Executor used to call the listener. When <code>null</code>,
+     * {@link WsDiscoveryConstants#listenerExecutor} or a shared pool of daemon threads is used.
+     */
+    public void addListener(IWsDiscoveryServiceDirectoryListener listener, List<QName> probeTypes,
+            WsDiscoveryScopesType probeScopes, MatchBy defaultMatcher, Executor executor) {
+        if (listener == null)
+            throw new NullPointerException("listener can not be null");
+        if (executor == null)
+            executor = getSharedExecutor();
+        subscriptions.add(new Subscription(listener, probeTypes, probeScopes, defaultMatcher, executor));
+    }
+
+    /**
+     * Unregister all registrations of a listener. Notifications already
+     * queued may still be delivered.
+     * @param listener Listener to remove.
+     */
+    public void removeListener(IWsDiscoveryServiceDirectoryListener listener) {
+        for (Subscription s : subscriptions)
+            if (s.listener == listener)
+                subscriptions.remove(s);
+    }
+
+    /**
+     * Check whether any listeners are registered. Used to avoid collecting
+     * changes no one will be notified about.
+     * @return True if there are listeners.
+     */
+    public boolean hasListeners() {
+        return !subscriptions.isEmpty();
+    }
+
+    private void submit(Change c) {
+        for (Subscription s : subscriptions)
+            s.submit(c);
+    }
+
+    /**
+     * Report that a service was stored in the directory.
+     * @param previous Service replaced by <code>service</code>, or null if it was added.
+     * May be the same object as <code>service</code> if it was modified and stored again.
+     * @param previousRecord Content <code>previous</code> was stored with, or null if it was added.
+     * @param service Stored service.
+     */
+    public void serviceStored(WsDiscoveryService previous, WsDiscoveryServiceRecord previousRecord,
+            WsDiscoveryService service) {
+        if (hasListeners())
+            submit(new Change(previous, previousRecord, service));
+    }
+
+    /**
+     * Report that a service was removed from the directory.
+     * @param service Removed service.
+     */
+    public void serviceRemoved(WsDiscoveryService service) {
+        if (hasListeners())
+            submit(new Change(service, null));
+    }
+
+    /**
+     * Report that services were removed from the directory, e.g. when it
+     * was cleared.
+     * @param services Removed services.
+     */
+    public void servicesRemoved(Collection<WsDiscoveryService> services) {
+        if (hasListeners())
+            for (WsDiscoveryService s : services)
+                submit(new Change(s, null));
+    }
+
+    /**
+     * Report that the contents of the directory were replaced, e.g. by
+     * a new storage collection.
+     * @param before Services before the change.
+     * @param after Services after the change.
+     */
+    public void servicesReplaced(IWsDiscoveryServiceCollection before, IWsDiscoveryServiceCollection after) {
+        if (!hasListeners())
+            return;
+
+        for (WsDiscoveryService s : before) {
+            URI address = s.getEndpointReference().getAddress();
+            if (after.get(address) == null)
+                submit(new Change(s, null));
+        }
+        for (WsDiscoveryService s : after) {
+            WsDiscoveryService previous = before.get(s.getEndpointReference().getAddress());
+            if (previous != s)
+                submit(new Change(previous, s));
+        }
+    }
+}
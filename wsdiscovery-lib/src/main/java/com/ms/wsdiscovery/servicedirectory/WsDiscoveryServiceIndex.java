@@ -0,0 +1,458 @@
+/*
+WsDiscoveryServiceIndex.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.servicedirectory;
+
+import com.ms.wsdiscovery.datatypes.WsDiscoveryScopesType;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryIndexedScopeMatcher;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryScopeMatcher;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchProbe;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import javax.xml.namespace.QName;
+
+/**
+ * Secondary indexes over the services in a service directory, used to find
+ * the candidates for a matchBy()-query without looking at every service.
+ * <p>
+ * Services are indexed by port type, by the exact string of each scope
+ * (strcmp0), by the UUID of each scope (UUID) and by the path segments of
+ * each scope below its scheme and authority (RFC2396) and by the RDNs of
+ * each LDAP scope below its host and port (LDAP). Custom algorithms whose
+ * compiled scopes implement {@link IWsDiscoveryIndexedScopeMatcher} are
+ * looked up by the prefixes of the scope strings. Services without
+ * scopes are kept separately for the none-algorithm.
+ * <p>
+ * The candidates returned are a superset of the matching services. They must
+ * still be checked with {@link WsDiscoveryService#isMatchedBy}.
+ * <p>
+ * A service is indexed with the port types and scopes it has when it is added.
+ * It must be removed and added again if they change.
+ * <p>
+ * This class is not thread safe. Lookups may run in parallel, but the
+ * service directory must not let them run while the index is modified.
+ *
+ * @author Magnus Skjegstad
+ */
+public class WsDiscoveryServiceIndex {
+    private final Map<WsDiscoveryService, WsDiscoveryServiceRecord> indexed = new HashMap<WsDiscoveryService, WsDiscoveryServiceRecord>(); // Content when indexed
+    private final Map<QName, Set<WsDiscoveryService>> types = new HashMap<QName, Set<WsDiscoveryService>>();
+    private final TreeMap<String, Set<WsDiscoveryService>> strings = new TreeMap<String, Set<WsDiscoveryService>>(); // sorted for prefix lookups
+    private final Map<UUID, Set<WsDiscoveryService>> uuids = new HashMap<UUID, Set<WsDiscoveryService>>();
+    private final Map<String, PathNode> authorities = new HashMap<String, PathNode>();
+    private final Map<String, PathNode> ldapHosts = new HashMap<String, PathNode>();
+    private final Set<WsDiscoveryService> unscoped = new LinkedHashSet<WsDiscoveryService>();
+
+    /**
+     * Node in the RFC2396 path segment trie of one scheme and authority.
+     */
+    private static class PathNode {
+        final Map<String, PathNode> children = new HashMap<String, PathNode>();
+        final Set<WsDiscoveryService> services = new LinkedHashSet<WsDiscoveryService>();
+
+        PathNode() {
+        }
+
+        PathNode(PathNode other) {
+            services.addAll(other.services);
+            for (Map.Entry<String, PathNode> e : other.children.entrySet())
+                children.put(e.getKey(), new PathNode(e.getValue()));
+        }
+
+        boolean isEmpty() {
+            return children.isEmpty() && services.isEmpty();
+        }
+
+        void collect(Set<WsDiscoveryService> res) {
+            res.addAll(services);
+            for (PathNode child : children.values())
+                child.collect(res);
+        }
+    }
+
+    /**
+     * Create a new, empty index.
+     */
+    public WsDiscoveryServiceIndex() {
+    }
+
+    /**
+     * Create a copy of an index. The copy can be modified without affecting
+     * the original, and is cheaper to create than a new index with the same
+     * services.
+     * @param other Index to copy.
+     */
+    public WsDiscoveryServiceIndex(WsDiscoveryServiceIndex other) {
+        indexed.putAll(other.indexed); // Records are immutable
+        copySets(other.types, types);
+        copySets(other.strings, strings);
+        copySets(other.uuids, uuids);
+        copyPaths(other.authorities, authorities);
+        copyPaths(other.ldapHosts, ldapHosts);
+        unscoped.addAll(other.unscoped);
+    }
+
+    private static <K> void copySets(Map<K, Set<WsDiscoveryService>> from, Map<K, Set<WsDiscoveryService>> to) {
+        for (Map.Entry<K, Set<WsDiscoveryService>> e : from.entrySet())
+            to.put(e.getKey(), new LinkedHashSet<WsDiscoveryService>(e.getValue()));
+    }
+
+    private static void copyPaths(Map<String, PathNode> from, Map<String, PathNode> to) {
+        for (Map.Entry<String, PathNode> e : from.entrySet())
+            to.put(e.getKey(), new PathNode(e.getValue()));
+    }
+
+    private static <K> void put(Map<K, Set<WsDiscoveryService>> map, K key, WsDiscoveryService service) {
+        Set<WsDiscoveryService> s = map.get(key);
+        if (s == null) {
+            s = new LinkedHashSet<WsDiscoveryService>();
+            map.put(key, s);
+        }
+        s.add(service);
+    }
+
+    private static <K> void remove(Map<K, Set<WsDiscoveryService>> map, K key, WsDiscoveryService service) {
+        Set<WsDiscoveryService> s = map.get(key);
+        if (s == null)
+            return;
+        s.remove(service);
+        if (s.isEmpty())
+            map.remove(key);
+    }
+
+    /**
+     * Add a service to the index.
+     * @param service Service to add.
+     */
+    public void add(WsDiscoveryService service) {
+        if ((service == null) || indexed.containsKey(service))
+            return;
+
+        // Scopes are parsed when the record is built, so they are not parsed again here
+        WsDiscoveryServiceRecord r = service.getRecord();
+        indexed.put(service, r);
+
+        for (QName q : r.getPortTypes())
+            put(types, q, service);
+
+        if (r.getScopeCount() == 0)
+            unscoped.add(service);
+
+        for (int n = 0; n < r.getScopeCount(); n++) {
+            WsDiscoveryScope scope = r.getScope(n);
+            put(strings, scope.toString(), service);
+
+            UUID uuid = scope.getUUID();
+            if (uuid != null)
+                put(uuids, uuid, service);
+
+            if (scope.getAuthorityKey() != null)
+                addPath(authorities, scope.getAuthorityKey(), scope.segments(), service);
+            if (scope.getLDAPKey() != null)
+                addPath(ldapHosts, scope.getLDAPKey(), scope.rdns(), service);
+        }
+    }
+
+    /**
+     * Add a service to a trie.
+     */
+    private static void addPath(Map<String, PathNode> roots, String key, String[] path, WsDiscoveryService service) {
+        PathNode node = roots.get(key);
+        if (node == null) {
+            node = new PathNode();
+            roots.put(key, node);
+        }
+        for (String segment : path) {
+            PathNode child = node.children.get(segment);
+            if (child == null) {
+                child = new PathNode();
+                node.children.put(segment, child);
+            }
+            node = child;
+        }
+        node.services.add(service);
+    }
+
+    /**
+     * Remove a service from the index.
+     * @param service Service to remove.
+     */
+    public void remove(WsDiscoveryService service) {
+        WsDiscoveryServiceRecord r = indexed.remove(service);
+        if (r == null)
+            return;
+
+        for (QName q : r.getPortTypes())
+            remove(types, q, service);
+
+        unscoped.remove(service);
+
+        for (int n = 0; n < r.getScopeCount(); n++) {
+            WsDiscoveryScope scope = r.getScope(n);
+            remove(strings, scope.toString(), service);
+
+            UUID uuid = scope.getUUID();
+            if (uuid != null)
+                remove(uuids, uuid, service);
+
+            if (scope.getAuthorityKey() != null)
+                removePath(authorities, scope.getAuthorityKey(), scope.segments(), 0, service);
+            if (scope.getLDAPKey() != null)
+                removePath(ldapHosts, scope.getLDAPKey(), scope.rdns(), 0, service);
+        }
+    }
+
+    /**
+     * Remove a service from the trie and prune nodes left empty.
+     */
+    private static void removePath(Map<String, PathNode> parent, String key, String[] path, int pos, WsDiscoveryService service) {
+        PathNode node = parent.get(key);
+        if (node == null)
+            return;
+
+        if (pos < path.length)
+            removePath(node.children, path[pos], path, pos + 1, service);
+        else
+            node.services.remove(service);
+
+        if (node.isEmpty())
+            parent.remove(key);
+    }
+
+    /**
+     * Remove all services from the index.
+     */
+    public void clear() {
+        indexed.clear();
+        types.clear();
+        strings.clear();
+        uuids.clear();
+        authorities.clear();
+        ldapHosts.clear();
+        unscoped.clear();
+    }
+
+    /**
+     * Get the content a service had when it was indexed. Differs from its
+     * current content if the service was modified after it was added.
+     * @param service Indexed service.
+     * @return Record, or null if the service is not indexed.
+     */
+    public WsDiscoveryServiceRecord getRecord(WsDiscoveryService service) {
+        return indexed.get(service);
+    }
+
+    /**
+     * Number of indexed services.
+     * @return Number of services.
+     */
+    public int size() {
+        return indexed.size();
+    }
+
+    /**
+     * Get the candidates for a matchBy()-query. Candidate sets are looked up
+     * for each port type and scope in the query and intersected, starting
+     * with the smallest.
+     *
+     * @param probeTypes Port types to probe for (may be <code>null</code>).
+     * @param probeScopes Scopes to probe for (may be <code>null</code>).
+     * @param defaultMatcher Matcher used when probeScopes is <code>null</code>.
+     * @return Candidates or <code>null</code> if the query can not be narrowed
+     * by the index and all services must be checked.
+     */
+    public Collection<WsDiscoveryService> getCandidates(List<QName> probeTypes, WsDiscoveryScopesType probeScopes, MatchBy defaultMatcher) {
+        return getCandidates(probeTypes, probeScopes, defaultMatcher, null);
+    }
+
+    /**
+     * Same as {@link #getCandidates(java.util.List, com.ms.wsdiscovery.datatypes.WsDiscoveryScopesType, com.ms.wsdiscovery.servicedirectory.matcher.MatchBy)},
+     * but uses the compiled query when the scopes are matched by a custom 
+     * algorithm, instead of compiling it again.
+     *
+     * @param probeTypes Port types to probe for (may be <code>null</code>).
+     * @param probeScopes Scopes to probe for (may be <code>null</code>).
+     * @param defaultMatcher Matcher used when probeScopes is <code>null</code>.
+     * @param probe The same query compiled. May be <code>null</code>.
+     * @return Candidates or <code>null</code> if the query can not be narrowed
+     * by the index and all services must be checked.
+     */
+    public Collection<WsDiscoveryService> getCandidates(List<QName> probeTypes, WsDiscoveryScopesType probeScopes, MatchBy defaultMatcher, MatchProbe probe) {
+        List<Set<WsDiscoveryService>> sets = new ArrayList<Set<WsDiscoveryService>>();
+
+        if (probeTypes != null)
+            for (QName q : probeTypes) {
+                Set<WsDiscoveryService> s = types.get(q);
+                if (s == null)
+                    return new ArrayList<WsDiscoveryService>();
+                sets.add(s);
+            }
+
+        if ((probeScopes != null) && (probeScopes.getCustomMatchBy() != null)) {
+            if (probe == null)
+                probe = MatchProbe.compile(probeTypes, probeScopes, defaultMatcher);
+            if (!addCustomCandidates(sets, probe.getScopeMatcher()))
+                return new ArrayList<WsDiscoveryService>();
+        } else if (!addScopeCandidates(sets, probeScopes, defaultMatcher))
+            return new ArrayList<WsDiscoveryService>();
+
+        if (sets.isEmpty())
+            return null;
+
+        Set<WsDiscoveryService> smallest = sets.get(0);
+        for (Set<WsDiscoveryService> s : sets)
+            if (s.size() < smallest.size())
+                smallest = s;
+
+        List<WsDiscoveryService> res = new ArrayList<WsDiscoveryService>();
+        for (WsDiscoveryService service : smallest) {
+            boolean inAll = true;
+            for (Set<WsDiscoveryService> s : sets)
+                if ((s != smallest) && (!s.contains(service))) {
+                    inAll = false;
+                    break;
+                }
+            if (inAll)
+                res.add(service);
+        }
+        return res;
+    }
+
+    /**
+     * Add the candidate sets for scopes matched by a custom algorithm.
+     * @return False if no service can match the scopes.
+     */
+    private boolean addCustomCandidates(List<Set<WsDiscoveryService>> sets, IWsDiscoveryScopeMatcher matcher) {
+        if (matcher == null) // algorithm not registered
+            return false;
+        if (!(matcher instanceof IWsDiscoveryIndexedScopeMatcher))
+            return true;
+
+        for (String prefix : ((IWsDiscoveryIndexedScopeMatcher)matcher).getScopePrefixes()) {
+            Set<WsDiscoveryService> any = new LinkedHashSet<WsDiscoveryService>();
+            for (Map.Entry<String, Set<WsDiscoveryService>> e : strings.tailMap(prefix).entrySet()) {
+                if (!e.getKey().startsWith(prefix))
+                    break;
+                any.addAll(e.getValue());
+            }
+            if (any.isEmpty())
+                return false;
+            sets.add(any);
+        }
+        return true;
+    }
+
+    /**
+     * Add the candidate sets for the scopes in a query.
+     * @return False if no service can match the scopes.
+     */
+    private boolean addScopeCandidates(List<Set<WsDiscoveryService>> sets, WsDiscoveryScopesType probeScopes, MatchBy defaultMatcher) {
+        MatchBy m = defaultMatcher;
+        if (probeScopes != null)
+            m = probeScopes.getMatchBy();
+
+        if (m == null) // nothing matches without an algorithm
+            return false;
+
+        switch (m) {
+            case WSD200901_none:
+                sets.add(unscoped);
+                return true;
+            case WSD200504_strcmp0:
+            case WSD200901_strcmp0:
+                if ((probeScopes == null) || probeScopes.getValue().isEmpty())
+                    return true;
+                for (String scope : probeScopes.getValue()) {
+                    Set<WsDiscoveryService> s = strings.get(scope);
+                    if (s == null)
+                        return false;
+                    sets.add(s);
+                }
+                return true;
+            case WSD200504_UUID:
+            case WSD200901_UUID:
+                if (probeScopes == null)
+                    return true;
+                // Any of the scopes in the probe may match
+                Set<WsDiscoveryService> any = new LinkedHashSet<WsDiscoveryService>();
+                for (String scope : probeScopes.getValue()) {
+                    UUID uuid = WsDiscoveryScope.parse(scope).getUUID();
+                    if ((uuid != null) && uuids.containsKey(uuid))
+                        any.addAll(uuids.get(uuid));
+                }
+                if (any.isEmpty())
+                    return false;
+                sets.add(any);
+                return true;
+            case WSD200504_RFC2396:
+            case WSD200901_RFC2396:
+                if (probeScopes == null)
+                    return true;
+                for (String scope : probeScopes.getValue()) {
+                    WsDiscoveryScope probe = WsDiscoveryScope.parse(scope);
+                    if (probe.getAuthorityKey() == null) // not indexable, leave it to the matcher
+                        continue;
+                    Set<WsDiscoveryService> s = getPathCandidates(authorities, probe.getAuthorityKey(), probe.segments());
+                    if (s.isEmpty())
+                        return false;
+                    sets.add(s);
+                }
+                return true;
+            case WSD200504_LDAP:
+            case WSD200901_LDAP:
+                if (probeScopes == null)
+                    return true;
+                for (String scope : probeScopes.getValue()) {
+                    WsDiscoveryScope probe = WsDiscoveryScope.parse(scope);
+                    if (probe.getLDAPKey() == null) // never matches
+                        return false;
+                    Set<WsDiscoveryService> s = getPathCandidates(ldapHosts, probe.getLDAPKey(), probe.rdns());
+                    if (s.isEmpty())
+                        return false;
+                    sets.add(s);
+                }
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Get the services in a trie below the given path, e.g. the services with
+     * a scope having a given scope as RFC2396 prefix.
+     * @return Services. Never <code>null</code>.
+     */
+    private static Set<WsDiscoveryService> getPathCandidates(Map<String, PathNode> roots, String key, String[] path) {
+        Set<WsDiscoveryService> res = new LinkedHashSet<WsDiscoveryService>();
+        PathNode node = roots.get(key);
+        for (int n = 0; (n < path.length) && (node != null); n++)
+            node = node.children.get(path[n]);
+        if (node != null)
+            node.collect(res);
+        return res;
+    }
+}
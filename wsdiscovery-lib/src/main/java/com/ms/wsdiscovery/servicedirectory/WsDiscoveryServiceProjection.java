@@ -0,0 +1,115 @@
+/*
+WsDiscoveryServiceProjection.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.servicedirectory;
+
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceVisitor;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Visitor that keeps only the parts of each matching service the caller 
+ * needs, e.g. the endpoint address and XAddrs, instead of the services 
+ * themselves. The projections are independent of later changes to the 
+ * services.
+ * <p>
+ * Not thread safe. Use one instance per query.
+ *
+ * @param <T> Type of projection.
+ * @author Magnus Skjegstad
+ */
+public abstract class WsDiscoveryServiceProjection<T> implements IWsDiscoveryServiceVisitor {
+    private final List<T> results = new ArrayList<T>();
+
+    /**
+     * Endpoint address and transport addresses of a service.
+     */
+    public static class Endpoint {
+        private final URI address;
+        private final List<String> xAddrs;
+
+        public Endpoint(URI address, List<String> xAddrs) {
+            this.address = address;
+            this.xAddrs = xAddrs;
+        }
+
+        /**
+         * Get the endpoint address.
+         * @return Endpoint address.
+         */
+        public URI getAddress() {
+            return address;
+        }
+
+        /**
+         * Get the transport addresses.
+         * @return XAddrs. Never <code>null</code>.
+         */
+        public List<String> getXAddrs() {
+            return xAddrs;
+        }
+
+        @Override
+        public String toString() {
+            return address + " " + xAddrs;
+        }
+    }
+
+    /**
+     * Create a projection of a service. Called while the directory may hold a
+     * lock, so it should only copy what is needed.
+     * @param service Matching service.
+     * @return Projection, or <code>null</code> to leave the service out.
+     */
+    protected abstract T project(WsDiscoveryService service);
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean visit(WsDiscoveryService service) {
+        T p = project(service);
+        if (p != null)
+            results.add(p);
+        return true;
+    }
+
+    /**
+     * Get the projections of the services visited so far.
+     * @return Projections in the order the services were visited.
+     */
+    public List<T> getResults() {
+        return results;
+    }
+
+    /**
+     * Create a projection to the endpoint address and XAddrs of each service.
+     * @return New projection.
+     */
+    public static WsDiscoveryServiceProjection<Endpoint> endpoints() {
+        return new WsDiscoveryServiceProjection<Endpoint>() {
+            @Override
+            protected Endpoint project(WsDiscoveryService service) {
+                List<String> xAddrs = service.getXAddrs();
+                return new Endpoint(service.getEndpointReference().getAddress(),
+                        xAddrs != null ? new ArrayList<String>(xAddrs) : new ArrayList<String>());
+            }
+        };
+    }
+}
@@ -0,0 +1,407 @@
+/*
+WsDiscoveryServiceRecord.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.servicedirectory;
+
+import com.ms.wsdiscovery.datatypes.WsDiscoveryScopesType;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
+import com.skjegstad.soapoverudp.datatypes.SOAPOverUDPEndpointReferenceType;
+import java.net.URI;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javax.xml.namespace.QName;
+
+/**
+ * Immutable content of a {@link WsDiscoveryService}: endpoint reference, port
+ * types, scopes, XAddrs and metadata version. Port types, scopes and XAddrs
+ * are kept in arrays of shared instances (see {@link WsDiscoveryInternPool}),
+ * so a record takes little memory and can be read without locking.
+ * <p>
+ * Records are created with a {@link Builder}.
+ * <p>
+ * This class is thread safe. The endpoint reference must not be modified 
+ * after the record is built.
+ *
+ * @author Magnus Skjegstad
+ */
+public final class WsDiscoveryServiceRecord {
+    private static final QName[] NO_TYPES = new QName[0];
+    private static final WsDiscoveryScope[] NO_SCOPES = new WsDiscoveryScope[0];
+
+    private final SOAPOverUDPEndpointReferenceType endpointReference;
+    private final QName[] portTypes; // Never null
+    private final WsDiscoveryScope[] scopes; // null when not set
+    private final MatchBy scopesMatchBy;
+    private final String[] xAddrs; // null when not set
+    private final long metadataVersion;
+    private final long created;
+    private final long fingerprint;
+
+    /**
+     * Mutable builder of service records.
+     * <p>
+     * Not thread safe.
+     */
+    public static class Builder {
+        private SOAPOverUDPEndpointReferenceType endpointReference = null;
+        private QName[] portTypes = NO_TYPES;
+        private WsDiscoveryScope[] scopes = null;
+        private MatchBy scopesMatchBy = null;
+        private String[] xAddrs = null;
+        private long metadataVersion = 0;
+        private long created = System.currentTimeMillis();
+
+        /**
+         * Create a builder of an empty record.
+         */
+        public Builder() {
+        }
+
+        /**
+         * Create a builder with the content of an existing record.
+         * @param record Record to copy.
+         */
+        public Builder(WsDiscoveryServiceRecord record) {
+            endpointReference = record.endpointReference;
+            portTypes = record.portTypes;
+            scopes = record.scopes;
+            scopesMatchBy = record.scopesMatchBy;
+            xAddrs = record.xAddrs;
+            metadataVersion = record.metadataVersion;
+            created = record.created;
+        }
+
+        /**
+         * Set the endpoint reference.
+         * @param endpointReference Endpoint reference.
+         * @return This builder.
+         */
+        public Builder setEndpointReference(SOAPOverUDPEndpointReferenceType endpointReference) {
+            this.endpointReference = endpointReference;
+            return this;
+        }
+
+        /**
+         * Set the endpoint reference.
+         * @param address Endpoint address.
+         * @return This builder.
+         */
+        public Builder setEndpointReference(URI address) {
+            return setEndpointReference(new SOAPOverUDPEndpointReferenceType(address));
+        }
+
+        /**
+         * Set the port types.
+         * @param types Port types. <code>null</code> for none.
+         * @return This builder.
+         */
+        public Builder setPortTypes(List<QName> types) {
+            if ((types == null) || types.isEmpty()) {
+                portTypes = NO_TYPES;
+                return this;
+            }
+            portTypes = new QName[types.size()];
+            int i = 0;
+            for (QName q : types)
+                portTypes[i++] = WsDiscoveryInternPool.intern(q);
+            return this;
+        }
+
+        /**
+         * Set the scopes and the algorithm used to match them. If 
+         * <code>scopes</code> is <code>null</code>, the service gets no scopes
+         * and the matching algorithm is left unchanged.
+         * @param scopes Scopes.
+         * @return This builder.
+         */
+        public Builder setScopesType(WsDiscoveryScopesType scopes) {
+            if ((scopes == null) || (scopes.getValue() == null) || scopes.getValue().isEmpty())
+                this.scopes = NO_SCOPES;
+            else {
+                this.scopes = new WsDiscoveryScope[scopes.getValue().size()];
+                int i = 0;
+                for (String s : scopes.getValue())
+                    this.scopes[i++] = WsDiscoveryInternPool.internScope(s);
+            }
+            if (scopes != null)
+                this.scopesMatchBy = scopes.getMatchBy();
+            return this;
+        }
+
+        /**
+         * Set the scopes and the algorithm used to match them.
+         * @param scopes Scopes.
+         * @param matcher Matching algorithm. May be <code>null</code>.
+         * @return This builder.
+         */
+        public Builder setScopes(List<URI> scopes, MatchBy matcher) {
+            this.scopes = new WsDiscoveryScope[scopes.size()];
+            int i = 0;
+            for (URI u : scopes)
+                this.scopes[i++] = WsDiscoveryInternPool.intern(u);
+            this.scopesMatchBy = matcher;
+            return this;
+        }
+
+        /**
+         * Set the invocation addresses.
+         * @param xAddrs XAddrs. May be <code>null</code>.
+         * @return This builder.
+         */
+        public Builder setXAddrs(List<String> xAddrs) {
+            if (xAddrs == null) {
+                this.xAddrs = null;
+                return this;
+            }
+            this.xAddrs = new String[xAddrs.size()];
+            int i = 0;
+            for (String s : xAddrs)
+                this.xAddrs[i++] = WsDiscoveryInternPool.intern(s);
+            return this;
+        }
+
+        /**
+         * Set the metadata version.
+         * @param metadataVersion Metadata version.
+         * @return This builder.
+         */
+        public Builder setMetadataVersion(long metadataVersion) {
+            this.metadataVersion = metadataVersion;
+            return this;
+        }
+
+        /**
+         * Set the creation time.
+         * @param created Creation time in milliseconds since the epoch.
+         * @return This builder.
+         */
+        public Builder setCreated(long created) {
+            this.created = created;
+            return this;
+        }
+
+        /**
+         * Create a record with the current content of this builder. The 
+         * builder may be used again afterwards.
+         * @return New record.
+         */
+        public WsDiscoveryServiceRecord build() {
+            return new WsDiscoveryServiceRecord(this);
+        }
+    }
+
+    private WsDiscoveryServiceRecord(Builder b) {
+        endpointReference = b.endpointReference;
+        portTypes = b.portTypes;
+        scopes = b.scopes;
+        scopesMatchBy = b.scopesMatchBy;
+        xAddrs = b.xAddrs;
+        metadataVersion = b.metadataVersion;
+        created = b.created;
+        fingerprint = computeFingerprint();
+    }
+
+    /**
+     * Create a builder with the content of this record.
+     * @return New builder.
+     */
+    public Builder toBuilder() {
+        return new Builder(this);
+    }
+
+    /**
+     * Get the endpoint reference.
+     * @return Endpoint reference. May be <code>null</code>.
+     */
+    public SOAPOverUDPEndpointReferenceType getEndpointReference() {
+        return endpointReference;
+    }
+
+    /**
+     * Get the endpoint address.
+     * @return Endpoint address, or <code>null</code> if not set.
+     */
+    public URI getAddress() {
+        return endpointReference == null ? null : endpointReference.getAddress();
+    }
+
+    /**
+     * Get the port types.
+     * @return Read-only list of port types. Never <code>null</code>.
+     */
+    public List<QName> getPortTypes() {
+        return Collections.unmodifiableList(Arrays.asList(portTypes));
+    }
+
+    /**
+     * Check whether the service has a port type, without allocating memory.
+     * @param type Port type.
+     * @return True if one of the port types equals <code>type</code>.
+     */
+    public boolean hasPortType(QName type) {
+        for (QName q : portTypes)
+            if ((q == type) || ((q != null) && q.equals(type)))
+                return true;
+        return false;
+    }
+
+    /**
+     * Get the scopes.
+     * @return Read-only list of scopes, or <code>null</code> if not set.
+     */
+    public List<URI> getScopes() {
+        if (scopes == null)
+            return null;
+        return new AbstractList<URI>() {
+            public URI get(int index) {
+                return scopes[index].getURI();
+            }
+
+            public int size() {
+                return scopes.length;
+            }
+        };
+    }
+
+    /**
+     * Get the number of scopes.
+     * @return Number of scopes, 0 if not set.
+     */
+    public int getScopeCount() {
+        return scopes == null ? 0 : scopes.length;
+    }
+
+    /**
+     * Get a parsed scope. Used by the matching algorithms to compare scopes 
+     * without parsing them or allocating memory.
+     * @param i Index of the scope.
+     * @return Scope.
+     */
+    public WsDiscoveryScope getScope(int i) {
+        return scopes[i];
+    }
+
+    /**
+     * Get algorithm set in the MatchBy-attribute of the scopes.
+     * @return MatchBy-algorithm. May be <code>null</code>.
+     */
+    public MatchBy getScopesMatchBy() {
+        return scopesMatchBy;
+    }
+
+    /**
+     * Get the invocation addresses.
+     * @return Read-only list of XAddrs, or <code>null</code> if not set.
+     */
+    public List<String> getXAddrs() {
+        if (xAddrs == null)
+            return null;
+        return Collections.unmodifiableList(Arrays.asList(xAddrs));
+    }
+
+    /**
+     * Get the metadata version.
+     * @return Metadata version.
+     */
+    public long getMetadataVersion() {
+        return metadataVersion;
+    }
+
+    /**
+     * Get the time the first record of this service was built.
+     * @return Creation time in milliseconds since the epoch.
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * Get a 64-bit fingerprint of the endpoint address, port types, scopes
+     * and XAddrs. The metadata version is left out, as the directory assigns
+     * its own.
+     *
+     * @return Fingerprint. Records with different fingerprints have different content.
+     */
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    private long computeFingerprint() {
+        long h = 0xcbf29ce484222325L; // FNV-1a
+        URI address = getAddress();
+        if (address != null)
+            h = fingerprint(h, address.toString());
+        for (QName q : portTypes)
+            if (q != null)
+                h = fingerprint(fingerprint(h, q.getNamespaceURI()), q.getLocalPart());
+        h = fingerprint(h, scopesMatchBy == null ? null : scopesMatchBy.name());
+        if (scopes != null)
+            for (WsDiscoveryScope u : scopes)
+                h = fingerprint(h, u == null ? null : u.toString());
+        if (xAddrs != null)
+            for (String x : xAddrs)
+                h = fingerprint(h, x);
+
+        return (h == 0 ? 1 : h);
+    }
+
+    private static long fingerprint(long h, String s) {
+        if (s != null)
+            for (int i = 0; i < s.length(); i++) {
+                h ^= s.charAt(i);
+                h *= 0x100000001b3L;
+            }
+        h ^= 0xffff; // separator, not a valid char
+        h *= 0x100000001b3L;
+        return h;
+    }
+
+    /**
+     * Check whether another record has the same endpoint address, port types,
+     * scopes and XAddrs as this one. The metadata version is not compared.
+     * The fingerprints are compared first, so records that differ are usually
+     * told apart without comparing their contents.
+     *
+     * @param other Record to compare with.
+     * @return True if the records have the same content.
+     */
+    public boolean hasSameContent(WsDiscoveryServiceRecord other) {
+        if (other == this)
+            return true;
+        if ((other == null) || (fingerprint != other.fingerprint))
+            return false;
+
+        // Same fingerprint, so most likely the same. Rule out collisions.
+        URI a1 = getAddress();
+        URI a2 = other.getAddress();
+        return (a1 == null ? a2 == null : a1.equals(a2)) &&
+                (scopesMatchBy == other.scopesMatchBy) &&
+                sameArray(portTypes, other.portTypes) &&
+                sameArray(scopes, other.scopes) &&
+                sameArray(xAddrs, other.xAddrs);
+    }
+
+    private static boolean sameArray(Object[] a1, Object[] a2) {
+        if ((a1 == null) || (a1.length == 0))
+            return (a2 == null) || (a2.length == 0);
+        return Arrays.equals(a1, a2);
+    }
+}
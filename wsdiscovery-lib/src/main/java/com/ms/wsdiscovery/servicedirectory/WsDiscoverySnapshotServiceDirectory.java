@@ -0,0 +1,574 @@
+/*
+WsDiscoverySnapshotServiceDirectory.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.servicedirectory;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.datatypes.WsDiscoveryScopesType;
+import com.ms.wsdiscovery.logger.WsDiscoveryLogger;
+import com.ms.wsdiscovery.servicedirectory.exception.WsDiscoveryServiceDirectoryException;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceCollection;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceDirectory;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceDirectoryListener;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceVisitor;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchProbe;
+import com.ms.wsdiscovery.servicedirectory.store.WsDiscoveryServiceCollection;
+import com.ms.wsdiscovery.servicedirectory.store.WsDiscoveryServiceHashCollection;
+import com.skjegstad.soapoverudp.datatypes.SOAPOverUDPEndpointReferenceType;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.xml.namespace.QName;
+
+/**
+ * Service directory where readers never block. The services and their
+ * indexes are kept in an immutable snapshot published through an atomic
+ * reference. Readers use the snapshot current when they start.
+ * <p>
+ * Writers copy the snapshot, apply their change and publish the copy. Changes
+ * arriving while a copy is being made are queued and applied together by the
+ * next writer, so a burst of Hello messages results in a few copies rather
+ * than one per message.
+ * <p>
+ * When a storage collection is set with {@link #useStorage}, every change is
+ * also written to it. The collection is only read when it is set.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author Magnus Skjegstad
+ */
+public class WsDiscoverySnapshotServiceDirectory implements IWsDiscoveryServiceDirectory {
+    private final String name;
+    private final WsDiscoveryLogger logger =
+            new WsDiscoveryLogger(WsDiscoverySnapshotServiceDirectory.class.getName());
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>(new Snapshot());
+    private final ConcurrentLinkedQueue<Change> pending = new ConcurrentLinkedQueue<Change>();
+    private final Lock w = new ReentrantLock(); // held while applying changes
+    private final WsDiscoveryMatchCache matchCache =
+            new WsDiscoveryMatchCache(WsDiscoveryConstants.matchCacheSize); // Keys include the snapshot version
+    private IWsDiscoveryServiceCollection storage = null; // Only accessed while holding w
+    private volatile MatchBy defaultMatcher;
+    private final WsDiscoveryServiceDirectoryNotifier notifier =
+            new WsDiscoveryServiceDirectoryNotifier(); // Changes are reported while holding w
+
+    /**
+     * Services and indexes at one point in time. Never modified after it
+     * has been published.
+     */
+    private static class Snapshot {
+        final long version;
+        final WsDiscoveryServiceHashCollection services;
+        final WsDiscoveryServiceIndex index;
+
+        Snapshot() {
+            version = 0;
+            services = new WsDiscoveryServiceHashCollection();
+            index = new WsDiscoveryServiceIndex();
+        }
+
+        Snapshot(Snapshot other) {
+            version = other.version + 1;
+            services = new WsDiscoveryServiceHashCollection();
+            services.addAll(other.services);
+            index = new WsDiscoveryServiceIndex(other.index);
+        }
+    }
+
+    /**
+     * A queued change to the directory.
+     */
+    private abstract class Change {
+        boolean done = false; // Only accessed while holding w
+        WsDiscoveryServiceDirectoryException error = null;
+
+        /**
+         * Apply the change to an unpublished snapshot and the storage collection.
+         */
+        abstract void apply(Snapshot next) throws WsDiscoveryServiceDirectoryException;
+    }
+
+    /**
+     * Create a new service directory.
+     * @param name Name of service directory.
+     * @param defaultMatcher Matcher used when a query does not specify one.
+     */
+    public WsDiscoverySnapshotServiceDirectory(String name, MatchBy defaultMatcher) {
+        this.name = name;
+        this.defaultMatcher = defaultMatcher;
+    }
+
+    /**
+     * Create a new, empty service directory.
+     * @param defaultMatcher Matcher used when a query does not specify one.
+     */
+    public WsDiscoverySnapshotServiceDirectory(MatchBy defaultMatcher) {
+        this("", defaultMatcher);
+    }
+
+    /**
+     * Queue a change and wait until it has been applied, either by this
+     * thread or by another writer.
+     */
+    private void commit(Change change) throws WsDiscoveryServiceDirectoryException {
+        pending.add(change);
+
+        w.lock();
+        try {
+            if (!change.done)
+                applyPending();
+        } finally {
+            w.unlock();
+        }
+
+        if (change.error != null)
+            throw change.error;
+    }
+
+    /**
+     * Apply all queued changes to one copy of the snapshot and publish it.
+     * Must be called while holding w.
+     */
+    private void applyPending() {
+        Snapshot next = new Snapshot(snapshot.get());
+        int count = 0;
+
+        Change c;
+        while ((c = pending.poll()) != null) {
+            try {
+                c.apply(next);
+            } catch (WsDiscoveryServiceDirectoryException ex) {
+                c.error = ex;
+            } catch (RuntimeException ex) { // e.g. from the storage collection
+                c.error = new WsDiscoveryServiceDirectoryException("Unable to apply change to service directory.", ex);
+            }
+            c.done = true;
+            count++;
+        }
+
+        snapshot.set(next);
+        matchCache.clear();
+        logger.finer("Applied " + count + " changes to service directory " + name);
+    }
+
+    /**
+     * Check whether <code>found</code> is another service object with the
+     * same content as <code>service</code>, so that storing it would change
+     * nothing. The same object may have been modified since it was stored.
+     */
+    private static boolean isUnchanged(WsDiscoveryService found, WsDiscoveryService service) {
+        return (found != null) && (found != service) && found.hasSameContent(service);
+    }
+
+    /**
+     * Add or replace a service in an unpublished snapshot.
+     */
+    private void store(Snapshot next, WsDiscoveryService service) {
+        URI address = service.getEndpointReference().getAddress();
+        WsDiscoveryService found = next.services.get(address);
+
+        if (isUnchanged(found, service))
+            return;
+
+        // Content the replaced service was stored with, even if it was modified since
+        WsDiscoveryServiceRecord previousRecord = null;
+        if (found != null) {
+            previousRecord = next.index.getRecord(found);
+            if (previousRecord == null)
+                previousRecord = found.getRecord();
+        }
+
+        if (found != null) {
+            logger.fine("Updating service @ " + address);
+            // Increase metadataversion if the content differs, unless the
+            // service already announces a higher one
+            if (!service.hasSameContent(found))
+                service.setMetadataVersion(Math.max(service.getMetadataVersion(), 
+                        found.getMetadataVersion() + 1));
+            found.invalidateMatchFragments();
+            next.index.remove(found);
+        } else
+            logger.fine("Adding service " + address);
+
+        service.invalidateMatchFragments();
+        next.services.add(service);
+        next.index.add(service);
+        notifier.serviceStored(found, previousRecord, service);
+
+        if ((storage != null) && (!storage.update(service)))
+            storage.add(service);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void store(final WsDiscoveryService service) throws WsDiscoveryServiceDirectoryException {
+        if ((service == null) || (service.getEndpointReference() == null) ||
+            (service.getEndpointReference().getAddress() == null)) {
+            logger.finer("Parameter or endpoint address was (null). Call to store() aborted.");
+            return;
+        }
+
+        // Re-announcements of an unchanged service do not copy the snapshot
+        if (isUnchanged(findService(service.getEndpointReference().getAddress()), service)) {
+            logger.finer("Service " + service.getEndpointReference().getAddress() + " is unchanged. Not stored.");
+            return;
+        }
+
+        commit(new Change() {
+            void apply(Snapshot next) {
+                store(next, service);
+            }
+        });
+
+        logger.finest("Stored service: \n" + service.toString());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void addAll(IWsDiscoveryServiceCollection collection) throws WsDiscoveryServiceDirectoryException {
+        if (collection != null)
+            storeAll(collection);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void storeAll(final Collection<WsDiscoveryService> services) throws WsDiscoveryServiceDirectoryException {
+        // Re-announcements of unchanged services do not copy the snapshot
+        Snapshot current = snapshot.get();
+        final List<WsDiscoveryService> changed = new ArrayList<WsDiscoveryService>();
+        for (WsDiscoveryService s : services)
+            if ((s != null) && (s.getEndpointReference() != null) && (s.getEndpointReference().getAddress() != null) &&
+                    !isUnchanged(current.services.get(s.getEndpointReference().getAddress()), s))
+                changed.add(s);
+
+        if (changed.isEmpty())
+            return;
+
+        commit(new Change() {
+            void apply(Snapshot next) {
+                for (WsDiscoveryService s : changed)
+                    store(next, s);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void remove(final URI address) {
+        if ((address == null) || (findService(address) == null))
+            return;
+
+        try {
+            commit(new Change() {
+                void apply(Snapshot next) {
+                    WsDiscoveryService found = next.services.get(address);
+                    if (found == null) // removed by another writer
+                        return;
+                    next.services.remove(found);
+                    next.index.remove(found);
+                    notifier.serviceRemoved(found);
+                    if (storage != null)
+                        storage.remove(found);
+                }
+            });
+        } catch (WsDiscoveryServiceDirectoryException ex) {
+            logger.severe("Unable to remove service " + address + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void remove(String address) {
+        if (address == null)
+            return;
+        remove(URI.create(address));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void remove(SOAPOverUDPEndpointReferenceType endpoint) {
+        remove(endpoint.getAddress());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void remove(WsDiscoveryService service) {
+        remove(service.getEndpointReference());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void clear() {
+        try {
+            commit(new Change() {
+                void apply(Snapshot next) {
+                    if (notifier.hasListeners())
+                        notifier.servicesRemoved(new ArrayList<WsDiscoveryService>(next.services));
+                    next.services.clear();
+                    next.index.clear();
+                    if (storage != null)
+                        storage.clear();
+                }
+            });
+        } catch (WsDiscoveryServiceDirectoryException ex) {
+            logger.severe("Unable to clear service directory: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void useStorage(final IWsDiscoveryServiceCollection newServiceCollection, final boolean addExistingServices) {
+        try {
+            commit(new Change() {
+                void apply(Snapshot next) {
+                    if (addExistingServices)
+                        newServiceCollection.addAll(next.services);
+                    storage = newServiceCollection;
+
+                    next.services.clear();
+                    next.index.clear();
+                    for (WsDiscoveryService s : newServiceCollection)
+                        if (next.services.add(s))
+                            next.index.add(s);
+                    notifier.servicesReplaced(snapshot.get().services, next.services);
+                }
+            });
+        } catch (WsDiscoveryServiceDirectoryException ex) {
+            logger.severe("Unable to use new storage: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public WsDiscoveryService findService(String address) {
+        if (address == null)
+            return null;
+
+        return findService(URI.create(address));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public WsDiscoveryService findService(URI address) {
+        if (address == null)
+            return null;
+
+        return snapshot.get().services.get(address);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public WsDiscoveryService findService(SOAPOverUDPEndpointReferenceType endpoint) {
+        return findService(endpoint.getAddress());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public IWsDiscoveryServiceCollection matchBy(List<QName> probeTypes,
+            WsDiscoveryScopesType probeScopes) throws WsDiscoveryServiceDirectoryException {
+
+        IWsDiscoveryServiceCollection d = new WsDiscoveryServiceCollection();
+
+        // Copy, as the cached collection is shared
+        d.addAll(matchByCached(probeTypes, probeScopes).getServices());
+
+        return d;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public WsDiscoveryMatchCache.Entry matchByCached(List<QName> probeTypes,
+            WsDiscoveryScopesType probeScopes) throws WsDiscoveryServiceDirectoryException {
+
+        Snapshot s = snapshot.get();
+        MatchBy matcher = defaultMatcher;
+
+        // An entry computed from an old snapshot can never be returned for a newer one
+        String key = s.version + " " + WsDiscoveryMatchCache.createKey(probeTypes, probeScopes, matcher);
+        if (matchCache.isEnabled()) {
+            WsDiscoveryMatchCache.Entry e = matchCache.get(key);
+            if (e != null)
+                return e;
+        }
+
+        MatchProbe probe = MatchProbe.compile(probeTypes, probeScopes, matcher);
+        Collection<WsDiscoveryService> candidates = s.index.getCandidates(probeTypes, probeScopes, matcher, probe);
+        if (candidates == null)
+            candidates = s.services;
+
+        IWsDiscoveryServiceCollection d = new WsDiscoveryServiceCollection();
+        for (WsDiscoveryService service : WsDiscoveryParallelMatcher.match(candidates, probe))
+            if (!d.add(service))
+                throw new WsDiscoveryServiceDirectoryException("Unable to create Service collection for storing matchBy-results.");
+
+        return matchCache.put(key, d);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The services are taken from the current snapshot, so the visitor is 
+     * called without holding any lock.
+     */
+    public int visit(List<QName> probeTypes, WsDiscoveryScopesType probeScopes,
+            int limit, IWsDiscoveryServiceVisitor visitor) throws WsDiscoveryServiceDirectoryException {
+        Snapshot s = snapshot.get();
+        MatchBy matcher = defaultMatcher;
+
+        // Results are not cached here, as the visitor may stop the query early
+        if (matchCache.isEnabled()) {
+            WsDiscoveryMatchCache.Entry e = matchCache.get(
+                    s.version + " " + WsDiscoveryMatchCache.createKey(probeTypes, probeScopes, matcher));
+            if (e != null)
+                return WsDiscoveryServiceDirectory.visitMatching(e.getServices(), limit, visitor);
+        }
+
+        MatchProbe probe = MatchProbe.compile(probeTypes, probeScopes, matcher);
+        Collection<WsDiscoveryService> candidates = s.index.getCandidates(probeTypes, probeScopes, matcher, probe);
+        if (candidates == null)
+            candidates = s.services;
+
+        return WsDiscoveryServiceDirectory.visitMatching(candidates, probe, limit, visitor);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int visitAll(int limit, IWsDiscoveryServiceVisitor visitor) throws WsDiscoveryServiceDirectoryException {
+        return WsDiscoveryServiceDirectory.visitMatching(snapshot.get().services, limit, visitor);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public IWsDiscoveryServiceCollection matchBy(List<QName> probeTypes,
+            List<URI> scopes, MatchBy matchBy) throws WsDiscoveryServiceDirectoryException {
+
+        if (matchBy == null)
+            throw new WsDiscoveryServiceDirectoryException("MatchBy must not be null");
+
+        WsDiscoveryScopesType st = null;
+        if (scopes != null) {
+            st = new WsDiscoveryScopesType(matchBy);
+            for (URI u : scopes)
+                st.getValue().add(u.toString());
+        }
+        return matchBy(probeTypes, st);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public IWsDiscoveryServiceCollection matchAll() throws WsDiscoveryServiceDirectoryException {
+        IWsDiscoveryServiceCollection d = new WsDiscoveryServiceCollection();
+
+        for (WsDiscoveryService s : snapshot.get().services)
+            if (!d.add(s))
+                throw new WsDiscoveryServiceDirectoryException("Unable to create Service collection for storing matchBy-results.");
+
+        return d;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public WsDiscoveryMatchCache getMatchCache() {
+        return matchCache;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int size() {
+        return snapshot.get().services.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public MatchBy getDefaultMatcher() {
+        return defaultMatcher;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setDefaultMatcher(MatchBy defaultMatcher) {
+        this.defaultMatcher = defaultMatcher; // Part of the match cache key
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void addListener(IWsDiscoveryServiceDirectoryListener listener,
+            List<QName> probeTypes, WsDiscoveryScopesType probeScopes) {
+        addListener(listener, probeTypes, probeScopes, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void addListener(IWsDiscoveryServiceDirectoryListener listener,
+            List<QName> probeTypes, WsDiscoveryScopesType probeScopes, Executor executor) {
+        notifier.addListener(listener, probeTypes, probeScopes, defaultMatcher, executor);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void removeListener(IWsDiscoveryServiceDirectoryListener listener) {
+        notifier.removeListener(listener);
+    }
+
+    /**
+     * Get the version of the current snapshot. The version increases each
+     * time a batch of changes is published.
+     * @return Snapshot version.
+     */
+    public long getVersion() {
+        return snapshot.get().version;
+    }
+}
@@ -0,0 +1,513 @@
+/*
+WsDiscoveryStripedServiceDirectory.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.servicedirectory;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.datatypes.WsDiscoveryScopesType;
+import com.ms.wsdiscovery.servicedirectory.exception.WsDiscoveryServiceDirectoryException;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceCollection;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceDirectory;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceDirectoryListener;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceVisitor;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
+import com.ms.wsdiscovery.servicedirectory.store.WsDiscoveryServiceCollection;
+import com.ms.wsdiscovery.servicedirectory.store.WsDiscoveryServiceHashCollection;
+import com.skjegstad.soapoverudp.datatypes.SOAPOverUDPEndpointReferenceType;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.xml.namespace.QName;
+
+/**
+ * Service directory split into stripes by endpoint address. Each stripe is a
+ * {@link WsDiscoveryServiceDirectory} with its own lock, so writers storing
+ * different services rarely wait for each other. Batches stored with 
+ * {@link #storeAll(java.util.Collection)} are grouped by stripe and take 
+ * each stripe lock once.
+ * <p>
+ * Queries are run against each stripe and the results merged. Results are
+ * cached with the number of changes made to the directory as part of the key.
+ * <p>
+ * When a storage collection is set with {@link #useStorage}, the stripes 
+ * write their changes through to it. Writes to the storage collection are
+ * serialized.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author Magnus Skjegstad
+ */
+public class WsDiscoveryStripedServiceDirectory implements IWsDiscoveryServiceDirectory {
+    private final String name;
+    private final WsDiscoveryServiceDirectory[] stripes;
+    private final AtomicLong version = new AtomicLong(0); // Incremented after each change
+    private final WsDiscoveryMatchCache matchCache =
+            new WsDiscoveryMatchCache(WsDiscoveryConstants.matchCacheSize); // Keys include the version
+    private volatile MatchBy defaultMatcher;
+
+    /**
+     * The services of one stripe. Changes are also written to a storage 
+     * collection shared by all stripes. Only modified while holding the write
+     * lock of the stripe, so the storage collection sees the changes to each
+     * service in order.
+     */
+    private static class StripeStorage extends WsDiscoveryServiceHashCollection {
+        private final IWsDiscoveryServiceCollection shared;
+
+        StripeStorage(IWsDiscoveryServiceCollection shared) {
+            this.shared = shared;
+        }
+
+        /**
+         * Add a service loaded from the shared storage without writing it back.
+         */
+        void load(WsDiscoveryService service) {
+            super.add(service);
+        }
+
+        @Override
+        public boolean add(WsDiscoveryService service) {
+            synchronized (shared) {
+                if (!shared.add(service))
+                    return false;
+            }
+            return super.add(service);
+        }
+
+        @Override
+        public boolean update(WsDiscoveryService service) {
+            if (!super.update(service))
+                return false;
+            synchronized (shared) {
+                if (!shared.update(service))
+                    shared.add(service);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (!super.remove(o))
+                return false;
+            synchronized (shared) {
+                shared.remove(o);
+            }
+            return true;
+        }
+
+        @Override
+        public void clear() {
+            synchronized (shared) {
+                for (WsDiscoveryService s : this)
+                    shared.remove(s);
+            }
+            super.clear();
+        }
+    }
+
+    /**
+     * Passes services on to another visitor and remembers if it stopped the query.
+     */
+    private static class StoppableVisitor implements IWsDiscoveryServiceVisitor {
+        private final IWsDiscoveryServiceVisitor visitor;
+        private boolean stopped = false;
+
+        StoppableVisitor(IWsDiscoveryServiceVisitor visitor) {
+            this.visitor = visitor;
+        }
+
+        public boolean visit(WsDiscoveryService service) {
+            if (!visitor.visit(service))
+                stopped = true;
+            return !stopped;
+        }
+    }
+
+    /**
+     * Create a new service directory.
+     * @param name Name of service directory.
+     * @param defaultMatcher Matcher used when a query does not specify one.
+     * @param stripes Number of stripes.
+     */
+    public WsDiscoveryStripedServiceDirectory(String name, MatchBy defaultMatcher, int stripes) {
+        this.name = name;
+        this.defaultMatcher = defaultMatcher;
+        this.stripes = new WsDiscoveryServiceDirectory[Math.max(1, stripes)];
+        for (int i = 0; i < this.stripes.length; i++)
+            this.stripes[i] = new WsDiscoveryServiceDirectory(name + "-" + i, defaultMatcher);
+    }
+
+    /**
+     * Create a new, empty service directory.
+     * @param defaultMatcher Matcher used when a query does not specify one.
+     * @param stripes Number of stripes.
+     */
+    public WsDiscoveryStripedServiceDirectory(MatchBy defaultMatcher, int stripes) {
+        this("", defaultMatcher, stripes);
+    }
+
+    private int stripeOf(URI address) {
+        return (address.hashCode() & 0x7fffffff) % stripes.length;
+    }
+
+    private WsDiscoveryServiceDirectory getStripe(URI address) {
+        return stripes[stripeOf(address)];
+    }
+
+    /**
+     * Called after each change. Cached results are keyed on the version, so
+     * the cache is only cleared to release memory.
+     */
+    private void changed() {
+        version.incrementAndGet();
+        matchCache.clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void store(WsDiscoveryService service) throws WsDiscoveryServiceDirectoryException {
+        storeAll(Collections.singletonList(service));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @SuppressWarnings("unchecked")
+    public void storeAll(Collection<WsDiscoveryService> services) throws WsDiscoveryServiceDirectoryException {
+        List<WsDiscoveryService>[] groups = new List[stripes.length];
+        for (WsDiscoveryService s : services) {
+            if ((s == null) || (s.getEndpointReference() == null) || (s.getEndpointReference().getAddress() == null))
+                continue;
+            int i = stripeOf(s.getEndpointReference().getAddress());
+            // Re-announcements of unchanged services must not invalidate cached results
+            WsDiscoveryService found = stripes[i].findService(s.getEndpointReference().getAddress());
+            if ((found != null) && (found != s) && found.hasSameContent(s))
+                continue;
+            if (groups[i] == null)
+                groups[i] = new ArrayList<WsDiscoveryService>();
+            groups[i].add(s);
+        }
+
+        boolean any = false;
+        try {
+            for (int i = 0; i < groups.length; i++)
+                if (groups[i] != null) {
+                    any = true;
+                    stripes[i].storeAll(groups[i]);
+                }
+        } finally {
+            if (any)
+                changed();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void addAll(IWsDiscoveryServiceCollection collection) throws WsDiscoveryServiceDirectoryException {
+        if (collection != null)
+            storeAll(collection);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void remove(URI address) {
+        if (address == null)
+            return;
+        getStripe(address).remove(address);
+        changed();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void remove(String address) {
+        if (address == null)
+            return;
+        remove(URI.create(address));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void remove(SOAPOverUDPEndpointReferenceType endpoint) {
+        remove(endpoint.getAddress());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void remove(WsDiscoveryService service) {
+        remove(service.getEndpointReference());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void clear() {
+        for (WsDiscoveryServiceDirectory stripe : stripes)
+            stripe.clear();
+        changed();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The stripes switch to the new storage one by one, so this should be 
+     * called before the directory is in use.
+     */
+    public void useStorage(IWsDiscoveryServiceCollection newServiceCollection, boolean addExistingServices) {
+        synchronized (newServiceCollection) {
+            if (addExistingServices)
+                for (WsDiscoveryServiceDirectory stripe : stripes)
+                    try {
+                        newServiceCollection.addAll(stripe.matchAll());
+                    } catch (WsDiscoveryServiceDirectoryException ex) {
+                        // matchAll() only fails if the result collection refuses a service
+                    }
+
+            StripeStorage[] storage = new StripeStorage[stripes.length];
+            for (int i = 0; i < stripes.length; i++)
+                storage[i] = new StripeStorage(newServiceCollection);
+            for (WsDiscoveryService s : newServiceCollection)
+                if ((s.getEndpointReference() != null) && (s.getEndpointReference().getAddress() != null))
+                    storage[stripeOf(s.getEndpointReference().getAddress())].load(s);
+
+            for (int i = 0; i < stripes.length; i++)
+                stripes[i].useStorage(storage[i], false);
+        }
+        changed();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public WsDiscoveryService findService(String address) {
+        if (address == null)
+            return null;
+
+        return findService(URI.create(address));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public WsDiscoveryService findService(URI address) {
+        if (address == null)
+            return null;
+
+        return getStripe(address).findService(address);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public WsDiscoveryService findService(SOAPOverUDPEndpointReferenceType endpoint) {
+        return findService(endpoint.getAddress());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public IWsDiscoveryServiceCollection matchBy(List<QName> probeTypes,
+            WsDiscoveryScopesType probeScopes) throws WsDiscoveryServiceDirectoryException {
+
+        IWsDiscoveryServiceCollection d = new WsDiscoveryServiceCollection();
+
+        // Copy, as the cached collection is shared
+        d.addAll(matchByCached(probeTypes, probeScopes).getServices());
+
+        return d;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public WsDiscoveryMatchCache.Entry matchByCached(List<QName> probeTypes,
+            WsDiscoveryScopesType probeScopes) throws WsDiscoveryServiceDirectoryException {
+
+        // Read before the stripes, so a result is never cached under a version newer than its content
+        long v = version.get();
+        String key = v + " " + WsDiscoveryMatchCache.createKey(probeTypes, probeScopes, defaultMatcher);
+        if (matchCache.isEnabled()) {
+            WsDiscoveryMatchCache.Entry e = matchCache.get(key);
+            if (e != null)
+                return e;
+        }
+
+        IWsDiscoveryServiceCollection d = new WsDiscoveryServiceCollection();
+        for (WsDiscoveryServiceDirectory stripe : stripes)
+            d.addAll(stripe.matchByCached(probeTypes, probeScopes).getServices());
+
+        return matchCache.put(key, d);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The stripes are visited one at a time, each while holding its read lock.
+     */
+    public int visit(List<QName> probeTypes, WsDiscoveryScopesType probeScopes,
+            int limit, IWsDiscoveryServiceVisitor visitor) throws WsDiscoveryServiceDirectoryException {
+        if (matchCache.isEnabled()) {
+            WsDiscoveryMatchCache.Entry e = matchCache.get(version.get() + " " +
+                    WsDiscoveryMatchCache.createKey(probeTypes, probeScopes, defaultMatcher));
+            if (e != null)
+                return WsDiscoveryServiceDirectory.visitMatching(e.getServices(), limit, visitor);
+        }
+
+        return visitStripes(probeTypes, probeScopes, true, limit, visitor);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int visitAll(int limit, IWsDiscoveryServiceVisitor visitor) throws WsDiscoveryServiceDirectoryException {
+        return visitStripes(null, null, false, limit, visitor);
+    }
+
+    private int visitStripes(List<QName> probeTypes, WsDiscoveryScopesType probeScopes,
+            boolean match, int limit, IWsDiscoveryServiceVisitor visitor) throws WsDiscoveryServiceDirectoryException {
+        StoppableVisitor v = new StoppableVisitor(visitor);
+        int visited = 0;
+        for (WsDiscoveryServiceDirectory stripe : stripes) {
+            int remaining = limit > 0 ? limit - visited : 0;
+            if (match)
+                visited += stripe.visit(probeTypes, probeScopes, remaining, v);
+            else
+                visited += stripe.visitAll(remaining, v);
+            if (v.stopped || ((limit > 0) && (visited >= limit)))
+                break;
+        }
+        return visited;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public IWsDiscoveryServiceCollection matchBy(List<QName> probeTypes,
+            List<URI> scopes, MatchBy matchBy) throws WsDiscoveryServiceDirectoryException {
+
+        if (matchBy == null)
+            throw new WsDiscoveryServiceDirectoryException("MatchBy must not be null");
+
+        WsDiscoveryScopesType st = null;
+        if (scopes != null) {
+            st = new WsDiscoveryScopesType(matchBy);
+            for (URI u : scopes)
+                st.getValue().add(u.toString());
+        }
+        return matchBy(probeTypes, st);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public IWsDiscoveryServiceCollection matchAll() throws WsDiscoveryServiceDirectoryException {
+        IWsDiscoveryServiceCollection d = new WsDiscoveryServiceCollection();
+
+        for (WsDiscoveryServiceDirectory stripe : stripes)
+            d.addAll(stripe.matchAll());
+
+        return d;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public WsDiscoveryMatchCache getMatchCache() {
+        return matchCache;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int size() {
+        int res = 0;
+        for (WsDiscoveryServiceDirectory stripe : stripes)
+            res += stripe.size();
+        return res;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public MatchBy getDefaultMatcher() {
+        return defaultMatcher;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setDefaultMatcher(MatchBy defaultMatcher) {
+        this.defaultMatcher = defaultMatcher;
+        for (WsDiscoveryServiceDirectory stripe : stripes)
+            stripe.setDefaultMatcher(defaultMatcher);
+        changed();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void addListener(IWsDiscoveryServiceDirectoryListener listener,
+            List<QName> probeTypes, WsDiscoveryScopesType probeScopes) {
+        addListener(listener, probeTypes, probeScopes, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Changes to the same service are delivered in order. Changes to services
+     * in different stripes may be delivered out of order.
+     */
+    public void addListener(IWsDiscoveryServiceDirectoryListener listener,
+            List<QName> probeTypes, WsDiscoveryScopesType probeScopes, Executor executor) {
+        for (WsDiscoveryServiceDirectory stripe : stripes)
+            stripe.addListener(listener, probeTypes, probeScopes, executor);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void removeListener(IWsDiscoveryServiceDirectoryListener listener) {
+        for (WsDiscoveryServiceDirectory stripe : stripes)
+            stripe.removeListener(listener);
+    }
+
+    /**
+     * Get the number of stripes.
+     * @return Number of stripes.
+     */
+    public int getStripeCount() {
+        return stripes.length;
+    }
+}
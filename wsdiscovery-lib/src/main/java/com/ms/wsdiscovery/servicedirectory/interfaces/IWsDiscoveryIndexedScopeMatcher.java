@@ -0,0 +1,39 @@
+/*
+IMatchScope.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.servicedirectory.interfaces;
+
+import java.util.List;
+
+/**
+ * Compiled scopes that can be looked up in the index of a service directory.
+ * Implemented by custom matching algorithms to avoid checking every service
+ * in the directory.
+ *
+ * @author Magnus Skjegstad
+ */
+public interface IWsDiscoveryIndexedScopeMatcher extends IWsDiscoveryScopeMatcher {
+    /**
+     * Get strings that the scopes of a matching service must start with. A
+     * service only matches if, for each string returned, it has a scope 
+     * starting with that string.
+     *
+     * @return Prefixes of the service scopes. May be empty.
+     */
+    public List<String> getScopePrefixes();
+}
@@ -40,4 +40,14 @@ public interface IWsDiscoveryMatchScope {
      * @return True if there's a match.
      */
     public boolean matchScope(WsDiscoveryService target, WsDiscoveryScopesType probeScopes);
+
+    /**
+     * Parse the scopes in a probe once, to match them with many services.
+     * The result must match the same services as 
+     * {@link #matchScope(com.ms.wsdiscovery.servicedirectory.WsDiscoveryService, com.ms.wsdiscovery.datatypes.WsDiscoveryScopesType)}.
+     *
+     * @param probeScopes Scopes in probe. May be <code>null</code>.
+     * @return Compiled matcher.
+     */
+    public IWsDiscoveryScopeMatcher compile(WsDiscoveryScopesType probeScopes);
 }
@@ -0,0 +1,40 @@
+/*
+IMatchScope.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.servicedirectory.interfaces;
+
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryServiceRecord;
+
+/**
+ * The scopes of a probe compiled by a matching algorithm (see 
+ * {@link IWsDiscoveryMatchScope#compile}). The probe scopes are parsed once, 
+ * so a compiled matcher can be checked against many services cheaply.
+ * <p>
+ * Implementations must be thread safe.
+ *
+ * @author Magnus Skjegstad
+ */
+public interface IWsDiscoveryScopeMatcher {
+    /**
+     * Match the compiled probe scopes with a service.
+     *
+     * @param target Content of the target service.
+     * @return True if there's a match.
+     */
+    public boolean matchScope(WsDiscoveryServiceRecord target);
+}
@@ -20,6 +20,7 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 package com.ms.wsdiscovery.servicedirectory.interfaces;
 
 import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import java.net.URI;
 import java.util.Collection;
 
 /**
@@ -61,4 +62,12 @@ public interface IWsDiscoveryServiceCollection extends Collection<WsDiscoverySer
      * @return WsDiscoveryService-object on success or null on failure.
      */
     public WsDiscoveryService get(String endpointReference);
+
+    /**
+     * Retrieve the first service object in the collection with the given endpoint address.
+     *
+     * @param endpointAddress is the endpoint address to search for.
+     * @return WsDiscoveryService-object on success or null on failure.
+     */
+    public WsDiscoveryService get(URI endpointAddress);
 }
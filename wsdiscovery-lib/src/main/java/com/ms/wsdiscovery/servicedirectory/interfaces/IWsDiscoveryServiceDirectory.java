@@ -21,11 +21,14 @@ package com.ms.wsdiscovery.servicedirectory.interfaces;
 
 import com.skjegstad.soapoverudp.datatypes.SOAPOverUDPEndpointReferenceType;
 import com.ms.wsdiscovery.datatypes.WsDiscoveryScopesType;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryMatchCache;
 import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
 import com.ms.wsdiscovery.servicedirectory.exception.WsDiscoveryServiceDirectoryException;
 import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
 import java.net.URI;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.Executor;
 import javax.xml.namespace.QName;
 
 /**
@@ -77,6 +80,23 @@ public interface IWsDiscoveryServiceDirectory {
      */
     IWsDiscoveryServiceCollection matchBy(List<QName> probeTypes, WsDiscoveryScopesType probeScopes) throws WsDiscoveryServiceDirectoryException;
 
+    /**
+     * Same as {@link #matchBy(java.util.List, com.ms.wsdiscovery.datatypes.WsDiscoveryScopesType)}, 
+     * but returns the cached result when the same query has been made since the 
+     * directory last changed. 
+     * @param probeTypes List of probe types to match.
+     * @param probeScopes List of scopes to match.
+     * @return Cache entry with matching services. The collection is shared and must not be modified.
+     * @throws WsDiscoveryServiceDirectoryException on failure when creating new service directory.
+     */
+    WsDiscoveryMatchCache.Entry matchByCached(List<QName> probeTypes, WsDiscoveryScopesType probeScopes) throws WsDiscoveryServiceDirectoryException;
+
+    /**
+     * Get the cache used by matchByCached().
+     * @return Match cache.
+     */
+    WsDiscoveryMatchCache getMatchCache();
+
     /**
      * Creates a new service collection containing the services in the directory.
      * that matches the parameters.
@@ -96,6 +116,31 @@ public interface IWsDiscoveryServiceDirectory {
      */
     IWsDiscoveryServiceCollection matchAll() throws WsDiscoveryServiceDirectoryException;
 
+    /**
+     * Pass the services that match the parameters to a visitor, without 
+     * copying them to a new collection. The query stops when 
+     * <code>limit</code> services have been visited or when the visitor 
+     * returns <code>false</code>. Matching algorithm is specified in 
+     * <code>probeScopes</code>.
+     * @param probeTypes List of probe types to match. <code>null</code> matches all.
+     * @param probeScopes List of scopes to match. <code>null</code> matches all.
+     * @param limit Maximum number of services to visit. 0 for no limit.
+     * @param visitor Visitor called for each matching service.
+     * @return Number of services visited.
+     * @throws WsDiscoveryServiceDirectoryException on failure.
+     */
+    int visit(List<QName> probeTypes, WsDiscoveryScopesType probeScopes, int limit, IWsDiscoveryServiceVisitor visitor) throws WsDiscoveryServiceDirectoryException;
+
+    /**
+     * Pass all services in the directory to a visitor, without copying them
+     * to a new collection. 
+     * @param limit Maximum number of services to visit. 0 for no limit.
+     * @param visitor Visitor called for each service.
+     * @return Number of services visited.
+     * @throws WsDiscoveryServiceDirectoryException on failure.
+     */
+    int visitAll(int limit, IWsDiscoveryServiceVisitor visitor) throws WsDiscoveryServiceDirectoryException;
+
     /**
      * Remove service from service directory based on endpoint address.
      * @param address Endpoint address.
@@ -133,6 +178,16 @@ public interface IWsDiscoveryServiceDirectory {
      */
     void store(WsDiscoveryService service) throws WsDiscoveryServiceDirectoryException;
 
+    /**
+     * Store several service descriptions in the service directory as one 
+     * batch, e.g. all services in a ProbeMatches message. Cheaper than calling
+     * {@link #store(com.ms.wsdiscovery.servicedirectory.WsDiscoveryService)} 
+     * once per service.
+     * @param services Service descriptions.
+     * @throws WsDiscoveryServiceDirectoryException if a service could not be stored.
+     */
+    void storeAll(Collection<WsDiscoveryService> services) throws WsDiscoveryServiceDirectoryException;
+
     /**
      * Add all entries from another implementation of IWsDiscoveryServiceCollction.
      *
@@ -153,4 +208,34 @@ public interface IWsDiscoveryServiceDirectory {
 
     MatchBy getDefaultMatcher();
     void setDefaultMatcher(MatchBy defaultMatcher);
+
+    /**
+     * Register a listener that is notified when services matching the given
+     * port types and scopes are added, updated or removed. Notifications are
+     * delivered asynchronously. The matching algorithm is taken from
+     * <code>probeScopes</code>, or the default matcher of the directory if unset.
+     *
+     * @param listener Listener to notify.
+     * @param probeTypes List of probe types to match. <code>null</code> matches all.
+     * @param probeScopes List of scopes to match. <code>null</code> matches all.
+     */
+    void addListener(IWsDiscoveryServiceDirectoryListener listener, List<QName> probeTypes, WsDiscoveryScopesType probeScopes);
+
+    /**
+     * Same as {@link #addListener(IWsDiscoveryServiceDirectoryListener, java.util.List, com.ms.wsdiscovery.datatypes.WsDiscoveryScopesType)},
+     * but calls the listener on the given executor.
+     *
+     * @param listener Listener to notify.
+     * @param probeTypes List of probe types to match. <code>null</code> matches all.
+     * @param probeScopes List of scopes to match. <code>null</code> matches all.
+     * @param executor Executor used to call the listener. <code>null</code> uses
+     * {@link com.ms.wsdiscovery.WsDiscoveryConstants#listenerExecutor}.
+     */
+    void addListener(IWsDiscoveryServiceDirectoryListener listener, List<QName> probeTypes, WsDiscoveryScopesType probeScopes, Executor executor);
+
+    /**
+     * Stop notifying a listener.
+     * @param listener Listener to remove.
+     */
+    void removeListener(IWsDiscoveryServiceDirectoryListener listener);
 }
@@ -0,0 +1,57 @@
+/*
+IWsDiscoveryServiceDirectoryListener.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.servicedirectory.interfaces;
+
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+
+/**
+ * Receives notifications when services are added to, updated in or removed
+ * from a service directory. See
+ * {@link IWsDiscoveryServiceDirectory#addListener(IWsDiscoveryServiceDirectoryListener, java.util.List, com.ms.wsdiscovery.datatypes.WsDiscoveryScopesType)}.
+ * <p>
+ * Notifications are delivered asynchronously, one at a time and in the order
+ * the changes were made. The directory may already have changed again when a
+ * notification is delivered.
+ *
+ * @author Magnus Skjegstad
+ */
+public interface IWsDiscoveryServiceDirectoryListener {
+
+    /**
+     * Called when a service has been added, or when an updated service
+     * starts matching the query of the listener.
+     * @param service Added service.
+     */
+    void serviceAdded(WsDiscoveryService service);
+
+    /**
+     * Called when a service that matched the query of the listener has been
+     * updated and still matches.
+     * @param service Updated service.
+     */
+    void serviceUpdated(WsDiscoveryService service);
+
+    /**
+     * Called when a service has been removed, or when an updated service
+     * no longer matches the query of the listener.
+     * @param service Removed service, as it was before it was removed or updated.
+     */
+    void serviceRemoved(WsDiscoveryService service);
+}
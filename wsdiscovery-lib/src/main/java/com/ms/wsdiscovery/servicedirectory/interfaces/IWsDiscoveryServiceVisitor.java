@@ -0,0 +1,42 @@
+/*
+IWsDiscoveryServiceVisitor.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.servicedirectory.interfaces;
+
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+
+/**
+ * Receives the services matching a query, one at a time, without the results
+ * being copied to a new collection first. See
+ * {@link IWsDiscoveryServiceDirectory#visit(java.util.List, com.ms.wsdiscovery.datatypes.WsDiscoveryScopesType, int, IWsDiscoveryServiceVisitor)}.
+ * <p>
+ * The visitor may be called while the directory holds a lock. It should 
+ * return quickly and must not modify the directory.
+ *
+ * @author Magnus Skjegstad
+ */
+public interface IWsDiscoveryServiceVisitor {
+
+    /**
+     * Called for each matching service.
+     * @param service Matching service. Must not be modified.
+     * @return <code>true</code> to continue, <code>false</code> to stop the query.
+     */
+    boolean visit(WsDiscoveryService service);
+}
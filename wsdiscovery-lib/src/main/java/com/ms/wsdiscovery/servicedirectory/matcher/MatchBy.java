@@ -20,16 +20,21 @@ package com.ms.wsdiscovery.servicedirectory.matcher;
 
 import com.ms.wsdiscovery.datatypes.WsDiscoveryScopesType;
 import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryMatchScope;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryScopeMatcher;
 import java.net.URI;
 import java.util.List;
 import javax.xml.namespace.QName;
 import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryServiceRecord;
 
 /**
  * Enum class with the available match algorithms used to match
  * scopes when receiving a Probe-message.
  * <p>
  * All algorithms must implement the {@link IMatchScope} interface.
+ * <p>
+ * The algorithms are stateless, so any number of threads may match at the 
+ * same time without locking.
  * 
  * @author Magnus Skjegstad
  */
@@ -87,16 +92,14 @@ public enum MatchBy {
     
     @Override
     public String toString() {
-        synchronized (this) {
-            return matchType.toString();
-        }
+        return matchType.toString();
     }
     
     /**
      * The MatchBy-algorithm represented as a URI.
      * @return URI of algorithm.
      */
-    public synchronized URI toURI() {
+    public URI toURI() {
         return matchType;
     }
 
@@ -108,15 +111,38 @@ public enum MatchBy {
      * @param probeScopes Scopes to probe for (may be <code>null</code>).
      * @return True if there is a match, false otherwise.
      */
-    public synchronized boolean match(WsDiscoveryService target, List<QName> probeTypes, WsDiscoveryScopesType probeScopes) {
+    public boolean match(WsDiscoveryService target, List<QName> probeTypes, WsDiscoveryScopesType probeScopes) {
+        WsDiscoveryServiceRecord r = target.getRecord();
+
         // Match types first. 
-        if ((probeTypes != null) && (!target.getPortTypes().containsAll(probeTypes)))
-                return false; 
+        if (probeTypes != null)
+            for (QName q : probeTypes)
+                if (!r.hasPortType(q))
+                    return false; 
         
         // Match scopes 
-        return serviceMatcher.matchScope(target, probeScopes);
+        return serviceMatcher.compile(probeScopes).matchScope(r);
+    }
+
+    /**
+     * Parse the scopes in a probe once, to match them with many services.
+     * See also {@link MatchProbe}.
+     * @param probeScopes Scopes to probe for (may be <code>null</code>).
+     * @return Compiled matcher.
+     */
+    public IWsDiscoveryScopeMatcher compile(WsDiscoveryScopesType probeScopes) {
+        return serviceMatcher.compile(probeScopes);
     }
 
+    /**
+     * Compiled matcher used when a probe has no scopes.
+     */
+    static final IWsDiscoveryScopeMatcher MATCH_ALL = new IWsDiscoveryScopeMatcher() {
+        public boolean matchScope(WsDiscoveryServiceRecord target) {
+            return true;
+        }
+    };
+
     MatchBy(String matchType, IWsDiscoveryMatchScope matcher) {
         this.matchType = URI.create(matchType);
         this.serviceMatcher = matcher;
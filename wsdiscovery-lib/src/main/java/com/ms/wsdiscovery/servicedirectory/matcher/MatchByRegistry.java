@@ -0,0 +1,127 @@
+/*
+MatchByRegistry.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.servicedirectory.matcher;
+
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryMatchScope;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Registry of matching algorithms by their MatchBy URI. The algorithms of 
+ * {@link MatchBy} are always registered. Site-specific algorithms (see e.g. 
+ * {@link MatchScopePrefix}, {@link MatchScopeGlob} and {@link MatchScopeRegex})
+ * can be registered with their own URI, and are then used to answer Probes
+ * with that MatchBy URI.
+ * <p>
+ * Custom algorithms are compiled once per Probe with 
+ * {@link IWsDiscoveryMatchScope#compile}. If the compiled matcher implements
+ * {@link com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryIndexedScopeMatcher},
+ * the service directory index is used to narrow down the candidates.
+ * <p>
+ * Lookups are hash lookups. This class is thread safe.
+ *
+ * @author Magnus Skjegstad
+ */
+public class MatchByRegistry {
+    private static final Map<String, MatchBy> builtIn = new HashMap<String, MatchBy>();
+    private static final ConcurrentHashMap<String, IWsDiscoveryMatchScope> custom =
+            new ConcurrentHashMap<String, IWsDiscoveryMatchScope>();
+    private static final AtomicInteger generation = new AtomicInteger();
+
+    static {
+        for (MatchBy m : MatchBy.values())
+            builtIn.put(m.toString(), m);
+    }
+
+    private MatchByRegistry() {
+    }
+
+    /**
+     * Get the built-in algorithm with the given URI.
+     * @param matchBy MatchBy URI as a string.
+     * @return Algorithm, or <code>null</code> if <code>matchBy</code> is not 
+     * the URI of a built-in algorithm.
+     */
+    public static MatchBy getMatchBy(String matchBy) {
+        if (matchBy == null)
+            return null;
+        return builtIn.get(matchBy);
+    }
+
+    /**
+     * Register a custom algorithm. An algorithm already registered with the
+     * same URI is replaced.
+     * @param matchBy MatchBy URI used in Probes.
+     * @param matcher Algorithm.
+     * @throws IllegalArgumentException if <code>matchBy</code> is the URI of
+     * a built-in algorithm.
+     */
+    public static void register(URI matchBy, IWsDiscoveryMatchScope matcher) {
+        if ((matchBy == null) || (matcher == null))
+            throw new NullPointerException("matchBy and matcher can not be null");
+        if (builtIn.containsKey(matchBy.toString()))
+            throw new IllegalArgumentException("Built-in algorithm can not be replaced: " + matchBy);
+        custom.put(matchBy.toString(), matcher);
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Remove a custom algorithm. Probes with its URI are afterwards answered
+     * with the default algorithm.
+     * @param matchBy MatchBy URI.
+     */
+    public static void unregister(URI matchBy) {
+        if ((matchBy != null) && (custom.remove(matchBy.toString()) != null))
+            generation.incrementAndGet();
+    }
+
+    /**
+     * Get a number that changes each time a custom algorithm is registered
+     * or removed. Used to tell cached results of custom algorithms apart.
+     * @return Registry generation.
+     */
+    public static int getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Get a custom algorithm.
+     * @param matchBy MatchBy URI as a string.
+     * @return Algorithm, or <code>null</code> if none is registered with this URI.
+     */
+    public static IWsDiscoveryMatchScope getCustom(String matchBy) {
+        if (matchBy == null)
+            return null;
+        return custom.get(matchBy);
+    }
+
+    /**
+     * Get a custom algorithm.
+     * @param matchBy MatchBy URI.
+     * @return Algorithm, or <code>null</code> if none is registered with this URI.
+     */
+    public static IWsDiscoveryMatchScope getCustom(URI matchBy) {
+        if (matchBy == null)
+            return null;
+        return custom.get(matchBy.toString());
+    }
+}
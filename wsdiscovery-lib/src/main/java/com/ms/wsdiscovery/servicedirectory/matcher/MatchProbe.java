@@ -0,0 +1,116 @@
+/*
+MatchProbe.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.servicedirectory.matcher;
+
+import com.ms.wsdiscovery.datatypes.WsDiscoveryScopesType;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryServiceRecord;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryMatchScope;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryScopeMatcher;
+import java.util.List;
+import javax.xml.namespace.QName;
+
+/**
+ * A probe compiled once to be matched with many services. Matches the same
+ * services as {@link WsDiscoveryService#isMatchedBy}, but the port types and
+ * scopes of the probe are only parsed when it is compiled, and matching a 
+ * service does not allocate memory.
+ * <p>
+ * The probe may not be modified after it is compiled. This class is thread safe.
+ *
+ * @author Magnus Skjegstad
+ */
+public final class MatchProbe {
+    private final QName[] probeTypes; // null matches all
+    private final IWsDiscoveryScopeMatcher scopeMatcher; // null matches nothing
+
+    private MatchProbe(QName[] probeTypes, IWsDiscoveryScopeMatcher scopeMatcher) {
+        this.probeTypes = probeTypes;
+        this.scopeMatcher = scopeMatcher;
+    }
+
+    /**
+     * Compile a probe. The matching algorithm is taken from <code>probeScopes</code>,
+     * or <code>defaultMatcher</code> if it is not set there. A custom algorithm
+     * set in <code>probeScopes</code> is looked up in {@link MatchByRegistry}.
+     *
+     * @param probeTypes Port types in probe. <code>null</code> is always a match.
+     * @param probeScopes Scopes in probe. <code>null</code> is always a match.
+     * @param defaultMatcher is the matching algorithm that is used if MatchBy is unset in probeScopes.
+     * @return Compiled probe.
+     */
+    public static MatchProbe compile(List<QName> probeTypes, WsDiscoveryScopesType probeScopes, MatchBy defaultMatcher) {
+        QName[] types = null;
+        if (probeTypes != null)
+            types = probeTypes.toArray(new QName[probeTypes.size()]);
+
+        if ((probeScopes != null) && (probeScopes.getCustomMatchBy() != null)) {
+            IWsDiscoveryMatchScope custom = MatchByRegistry.getCustom(probeScopes.getCustomMatchBy());
+            if (custom == null) // unregistered since the probe was received
+                return new MatchProbe(types, null);
+            return new MatchProbe(types, custom.compile(probeScopes));
+        }
+
+        MatchBy m = defaultMatcher;
+        if (probeScopes != null)
+            m = probeScopes.getMatchBy();
+
+        if (m == null) // nothing matches without an algorithm
+            return new MatchProbe(types, null);
+
+        return new MatchProbe(types, m.compile(probeScopes));
+    }
+
+    /**
+     * Get the compiled scopes of the probe.
+     * @return Compiled scopes, or <code>null</code> if the probe has no 
+     * matching algorithm and matches nothing.
+     */
+    public IWsDiscoveryScopeMatcher getScopeMatcher() {
+        return scopeMatcher;
+    }
+
+    /**
+     * Match a service with the probe.
+     * @param target Target service.
+     * @return True if match.
+     */
+    public boolean match(WsDiscoveryService target) {
+        return match(target.getRecord());
+    }
+
+    /**
+     * Match the content of a service with the probe.
+     * @param target Content of the target service.
+     * @return True if match.
+     */
+    public boolean match(WsDiscoveryServiceRecord target) {
+        if (scopeMatcher == null)
+            return false;
+
+        // Match types first. 
+        if (probeTypes != null)
+            for (QName q : probeTypes)
+                if (!target.hasPortType(q))
+                    return false;
+
+        // Match scopes 
+        return scopeMatcher.matchScope(target);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+MatchScopeGlob.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.servicedirectory.matcher;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Custom algorithm where a scope in the probe is a glob pattern that must 
+ * match the whole string of a service scope. '*' matches any number of 
+ * characters and '?' matches one character. All other characters are 
+ * compared case-sensitively. E.g. "http://example.com/*&#47;printers" matches
+ * "http://example.com/floor2/printers".
+ * <p>
+ * Not defined by the WS-Discovery specification. Must be registered with 
+ * {@link MatchByRegistry#register} under a site-specific URI.
+ *
+ * @author Magnus Skjegstad
+ */
+public class MatchScopeGlob extends MatchScopePattern<MatchScopeGlob.Glob> {
+
+    /**
+     * Glob pattern split at each '*'. Matching does not allocate memory.
+     */
+    public static class Glob {
+        private final String[] parts; // Text between the stars, may contain '?'
+        private final boolean leadingStar;
+        private final boolean trailingStar;
+
+        Glob(String pattern) {
+            List<String> p = new ArrayList<String>();
+            int start = 0;
+            for (int i = 0; i <= pattern.length(); i++)
+                if ((i == pattern.length()) || (pattern.charAt(i) == '*')) {
+                    if (i > start)
+                        p.add(pattern.substring(start, i));
+                    start = i + 1;
+                }
+            parts = p.toArray(new String[p.size()]);
+            leadingStar = pattern.startsWith("*");
+            trailingStar = pattern.endsWith("*") && (pattern.length() > 0);
+        }
+
+        /**
+         * Check whether a part matches <code>s</code> at position <code>pos</code>.
+         */
+        private static boolean matchesAt(String s, int pos, String part) {
+            if (pos + part.length() > s.length())
+                return false;
+            for (int i = 0; i < part.length(); i++) {
+                char c = part.charAt(i);
+                if ((c != '?') && (c != s.charAt(pos + i)))
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * Check whether the pattern matches the whole string.
+         * @param s String.
+         * @return True on match.
+         */
+        public boolean matches(String s) {
+            if (parts.length == 0) // "" or only stars
+                return leadingStar || (s.length() == 0);
+
+            int first = 0;
+            int last = parts.length - 1;
+            int pos = 0;
+            int end = s.length();
+
+            if (!leadingStar) {
+                if (!matchesAt(s, 0, parts[0]))
+                    return false;
+                pos = parts[0].length();
+                first = 1;
+            }
+            if (!trailingStar && (last >= first)) {
+                end = s.length() - parts[last].length();
+                if ((end < pos) || !matchesAt(s, end, parts[last]))
+                    return false;
+                last--;
+            } else if (!trailingStar)
+                return pos == s.length(); // only one part and no stars
+
+            // Parts between stars, the leftmost match is always good enough
+            for (int p = first; p <= last; p++) {
+                boolean found = false;
+                for (; pos + parts[p].length() <= end; pos++)
+                    if (matchesAt(s, pos, parts[p])) {
+                        found = true;
+                        break;
+                    }
+                if (!found)
+                    return false;
+                pos += parts[p].length();
+            }
+            return true;
+        }
+    }
+
+    @Override
+    protected Glob compilePattern(String probeScope) {
+        return new Glob(probeScope);
+    }
+
+    @Override
+    protected boolean matches(Glob pattern, String serviceScope) {
+        return pattern.matches(serviceScope);
+    }
+
+    @Override
+    protected String getLiteralPrefix(String probeScope) {
+        int i = 0;
+        while ((i < probeScope.length()) && (probeScope.charAt(i) != '*') && (probeScope.charAt(i) != '?'))
+            i++;
+        return probeScope.substring(0, i);
+    }
+}
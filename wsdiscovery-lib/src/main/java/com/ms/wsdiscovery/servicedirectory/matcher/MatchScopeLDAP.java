@@ -20,15 +20,173 @@ package com.ms.wsdiscovery.servicedirectory.matcher;
 
 import com.ms.wsdiscovery.datatypes.WsDiscoveryScopesType;
 import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryMatchScope;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryScopeMatcher;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryScope;
 import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryServiceRecord;
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
 
 /**
  * Match scope against target service using the LDAP algorithm.
  * See the WS-Discovery specification or {@link MatchBy} for details.     
+ * <p>
+ * Distinguished names are parsed as specified in RFC 2253 (and RFC 4514),
+ * without the variants described in section 4 of RFC 2253, i.e. spaces 
+ * around separators, ';' as separator and quoted values are not accepted.
+ * Attribute types are compared case-insensitively, values case-sensitively
+ * after escapes are decoded. The order of the attributes in a multi-valued
+ * RDN does not matter.
  * @author Magnus Skjegstad
  */
 public class MatchScopeLDAP implements IWsDiscoveryMatchScope {
 
+    /**
+     * Parse a distinguished name into its RDNs.
+     * @param dn Distinguished name in the string form of RFC 2253, e.g.
+     * "ou=Sales,o=Example". The empty string is the root.
+     * @return RDNs in normalized form, ordered from the root (i.e. the last 
+     * RDN in the string comes first), or <code>null</code> if <code>dn</code> 
+     * is not a valid distinguished name.
+     */
+    public static String[] parseDN(String dn) {
+        if (dn == null)
+            return null;
+
+        List<String> rdns = new ArrayList<String>();
+        List<String> avas = new ArrayList<String>();
+        int pos = 0;
+        int len = dn.length();
+
+        while (pos < len) {
+            // attributeType
+            int start = pos;
+            while ((pos < len) && (dn.charAt(pos) != '='))
+                pos++;
+            if ((pos == len) || (pos == start) || !isAttributeType(dn, start, pos))
+                return null;
+            String type = dn.substring(start, pos).toUpperCase(Locale.ENGLISH);
+            pos++; // skip '='
+
+            // attributeValue
+            StringBuilder value = new StringBuilder();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            if ((pos < len) && (dn.charAt(pos) == '#')) { // hexstring, kept as it is
+                value.append('#');
+                pos++;
+                start = pos;
+                while ((pos < len) && (hexValue(dn.charAt(pos)) >= 0))
+                    pos++;
+                if ((pos == start) || ((pos - start) % 2 != 0))
+                    return null;
+                value.append(dn.substring(start, pos).toLowerCase(Locale.ENGLISH));
+            } else
+                while ((pos < len) && (dn.charAt(pos) != ',') && (dn.charAt(pos) != '+')) {
+                    char c = dn.charAt(pos);
+                    if (c == '\\') {
+                        if (pos + 1 == len)
+                            return null;
+                        char e = dn.charAt(pos + 1);
+                        if ((pos + 2 < len) && (hexValue(e) >= 0) && (hexValue(dn.charAt(pos + 2)) >= 0)) {
+                            bytes.write(hexValue(e) * 16 + hexValue(dn.charAt(pos + 2)));
+                            pos += 3;
+                            continue;
+                        }
+                        if (",+\"\\<>;=# ".indexOf(e) < 0)
+                            return null;
+                        if (!decode(bytes, value))
+                            return null;
+                        value.append(e);
+                        pos += 2;
+                        continue;
+                    }
+                    if ("\"<>;".indexOf(c) >= 0) // must be escaped
+                        return null;
+                    if (!decode(bytes, value))
+                        return null;
+                    value.append(c);
+                    pos++;
+                }
+            if (!decode(bytes, value))
+                return null;
+            // A value ends at the end of the DN or at a separator
+            if ((pos < len) && (dn.charAt(pos) != ',') && (dn.charAt(pos) != '+'))
+                return null;
+
+            avas.add(type + '\u0000' + value);
+
+            if ((pos < len) && (dn.charAt(pos) == '+')) {
+                pos++;
+                if (pos == len)
+                    return null;
+                continue;
+            }
+
+            // End of RDN
+            Collections.sort(avas);
+            StringBuilder rdn = new StringBuilder();
+            for (String ava : avas) {
+                if (rdn.length() > 0)
+                    rdn.append('\u0001');
+                rdn.append(ava);
+            }
+            rdns.add(rdn.toString());
+            avas.clear();
+
+            if (pos < len) { // skip ','
+                pos++;
+                if (pos == len)
+                    return null;
+            }
+        }
+
+        Collections.reverse(rdns);
+        return rdns.toArray(new String[rdns.size()]);
+    }
+
+    private static boolean isAttributeType(String dn, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = dn.charAt(i);
+            if (!(((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z')) ||
+                    ((c >= '0') && (c <= '9')) || (c == '-') || (c == '.')))
+                return false;
+        }
+        return true;
+    }
+
+    private static int hexValue(char c) {
+        if ((c >= '0') && (c <= '9'))
+            return c - '0';
+        if ((c >= 'a') && (c <= 'f'))
+            return c - 'a' + 10;
+        if ((c >= 'A') && (c <= 'F'))
+            return c - 'A' + 10;
+        return -1;
+    }
+
+    /**
+     * Append the UTF-8 bytes given as escaped hex pairs to the value.
+     * @return False if the bytes are not valid UTF-8.
+     */
+    private static boolean decode(ByteArrayOutputStream bytes, StringBuilder value) {
+        if (bytes.size() == 0)
+            return true;
+        try {
+            String s = new String(bytes.toByteArray(), "UTF-8");
+            if (s.indexOf('\uFFFD') >= 0) // malformed
+                return false;
+            value.append(s);
+        } catch (UnsupportedEncodingException ex) {
+            return false;
+        }
+        bytes.reset();
+        return true;
+    }
+
     /**
      * Match scope against target service using the LDAP algorithm.
      * See the WS-Discovery specification or {@link MatchBy} for details.
@@ -37,7 +195,39 @@ public class MatchScopeLDAP implements IWsDiscoveryMatchScope {
      * @return True on success, false on failure.
      */
     public boolean matchScope(WsDiscoveryService target, WsDiscoveryScopesType probeScopes) {
-        throw new UnsupportedOperationException("Match by LDAP not supported yet.");
+        return compile(probeScopes).matchScope(target.getRecord());
+    }
+
+    /**
+     * Parse the distinguished names of the probe scopes once. Those of the
+     * service scopes are parsed when the service is stored.
+     * @param probeScopes Scopes to probe for.
+     * @return Compiled matcher.
+     */
+    public IWsDiscoveryScopeMatcher compile(WsDiscoveryScopesType probeScopes) {
+        if (probeScopes == null)
+            return MatchBy.MATCH_ALL;
+
+        final WsDiscoveryScope[] probe = WsDiscoveryScope.parseAll(probeScopes.getValue());
+        return new IWsDiscoveryScopeMatcher() {
+            public boolean matchScope(WsDiscoveryServiceRecord target) {
+                // All scopes in probe must match target
+                for (WsDiscoveryScope probescope : probe) {
+                    boolean match = false;
+
+                    for (int i = 0; i < target.getScopeCount(); i++)
+                        if (probescope.isLDAPPrefixOf(target.getScope(i))) {
+                            match = true;
+                            break;
+                        }
+
+                    if (!match)
+                        return false;
+                }
+
+                return true;
+            }
+        };
     }
 
 }
@@ -20,7 +20,9 @@ package com.ms.wsdiscovery.servicedirectory.matcher;
 
 import com.ms.wsdiscovery.datatypes.WsDiscoveryScopesType;
 import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryServiceRecord;
 import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryMatchScope;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryScopeMatcher;
 
 /**
  * Match all services that are not registered with a matching scope.
@@ -36,7 +38,22 @@ public class MatchScopeNone implements IWsDiscoveryMatchScope {
      * @return True on success, false on failure.
      */
     public boolean matchScope(WsDiscoveryService target, WsDiscoveryScopesType probeScopes) {
-        return (target.getScopes().size() == 0); // match services without scopes
+        return MATCH_UNSCOPED.matchScope(target.getRecord());
     }
 
+    /**
+     * Get the matcher of services without scope.
+     * @param probeScopes Scopes to probe for. This parameter is ignored.
+     * @return Compiled matcher.
+     */
+    public IWsDiscoveryScopeMatcher compile(WsDiscoveryScopesType probeScopes) {
+        return MATCH_UNSCOPED;
+    }
+
+    private static final IWsDiscoveryScopeMatcher MATCH_UNSCOPED = new IWsDiscoveryScopeMatcher() {
+        public boolean matchScope(WsDiscoveryServiceRecord target) {
+            return (target.getScopeCount() == 0); // match services without scopes
+        }
+    };
+
 }
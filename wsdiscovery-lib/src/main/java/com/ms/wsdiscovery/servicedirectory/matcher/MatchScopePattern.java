@@ -0,0 +1,126 @@
+/*
+MatchScopePattern.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.servicedirectory.matcher;
+
+import com.ms.wsdiscovery.datatypes.WsDiscoveryScopesType;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryServiceRecord;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryIndexedScopeMatcher;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryMatchScope;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryScopeMatcher;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Base class of custom algorithms where each scope in the probe is a 
+ * pattern over the string form of the service scopes. A service matches if
+ * each pattern in the probe matches at least one of its scopes. Patterns 
+ * are compiled once per probe.
+ * <p>
+ * Custom algorithms are registered with {@link MatchByRegistry#register}.
+ *
+ * @param <T> Compiled pattern.
+ * @author Magnus Skjegstad
+ */
+public abstract class MatchScopePattern<T> implements IWsDiscoveryMatchScope {
+
+    /**
+     * Compile a scope in a probe.
+     * @param probeScope Scope in probe.
+     * @return Compiled pattern, or <code>null</code> if the scope is not a
+     * valid pattern and matches nothing.
+     */
+    protected abstract T compilePattern(String probeScope);
+
+    /**
+     * Check whether a compiled pattern matches a service scope. Called by 
+     * several threads at the same time.
+     * @param pattern Compiled pattern.
+     * @param serviceScope Scope of a service.
+     * @return True on match.
+     */
+    protected abstract boolean matches(T pattern, String serviceScope);
+
+    /**
+     * Get a string that all service scopes matched by a pattern start with. 
+     * Used to look up the candidates in the index of the service directory.
+     * @param probeScope Scope in probe.
+     * @return Prefix. The empty string if the index can not be used.
+     */
+    protected abstract String getLiteralPrefix(String probeScope);
+
+    /**
+     * Match scope against target service.
+     * @param target Target service. 
+     * @param probeScopes Scopes to probe for.
+     * @return True on success, false on failure.
+     */
+    public boolean matchScope(WsDiscoveryService target, WsDiscoveryScopesType probeScopes) {
+        return compile(probeScopes).matchScope(target.getRecord());
+    }
+
+    /**
+     * Compile the patterns of a probe.
+     * @param probeScopes Scopes to probe for.
+     * @return Compiled matcher. Implements {@link IWsDiscoveryIndexedScopeMatcher}.
+     */
+    public IWsDiscoveryScopeMatcher compile(WsDiscoveryScopesType probeScopes) {
+        if (probeScopes == null)
+            return MatchBy.MATCH_ALL;
+
+        final List<T> patterns = new ArrayList<T>();
+        final List<String> prefixes = new ArrayList<String>();
+        boolean valid = true;
+        for (String s : probeScopes.getValue()) {
+            T pattern = compilePattern(s);
+            if (pattern == null)
+                valid = false;
+            patterns.add(pattern);
+            String prefix = getLiteralPrefix(s);
+            if ((prefix != null) && (prefix.length() > 0))
+                prefixes.add(prefix);
+        }
+        final boolean matchesAny = valid;
+
+        return new IWsDiscoveryIndexedScopeMatcher() {
+            public boolean matchScope(WsDiscoveryServiceRecord target) {
+                if (!matchesAny)
+                    return false;
+
+                // All patterns in probe must match a scope in target
+                for (int p = 0; p < patterns.size(); p++) {
+                    boolean match = false;
+                    for (int i = 0; i < target.getScopeCount(); i++)
+                        if (matches(patterns.get(p), target.getScope(i).toString())) {
+                            match = true;
+                            break;
+                        }
+                    if (!match)
+                        return false;
+                }
+                return true;
+            }
+
+            public List<String> getScopePrefixes() {
+                return Collections.unmodifiableList(prefixes);
+            }
+        };
+    }
+}
@@ -0,0 +1,47 @@
+/*
+MatchScopePrefix.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.servicedirectory.matcher;
+
+/**
+ * Custom algorithm where a scope in the probe matches the service scopes 
+ * that start with it, compared as case-sensitive strings. E.g. 
+ * "http://example.com/a" matches "http://example.com/abc".
+ * <p>
+ * Not defined by the WS-Discovery specification. Must be registered with 
+ * {@link MatchByRegistry#register} under a site-specific URI.
+ *
+ * @author Magnus Skjegstad
+ */
+public class MatchScopePrefix extends MatchScopePattern<String> {
+
+    @Override
+    protected String compilePattern(String probeScope) {
+        return probeScope;
+    }
+
+    @Override
+    protected boolean matches(String pattern, String serviceScope) {
+        return serviceScope.startsWith(pattern);
+    }
+
+    @Override
+    protected String getLiteralPrefix(String probeScope) {
+        return probeScope;
+    }
+}
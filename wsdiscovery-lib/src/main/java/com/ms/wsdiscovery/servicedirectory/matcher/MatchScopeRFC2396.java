@@ -20,8 +20,11 @@ package com.ms.wsdiscovery.servicedirectory.matcher;
 
 import com.ms.wsdiscovery.datatypes.WsDiscoveryScopesType;
 import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryMatchScope;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryScopeMatcher;
 import java.net.URI;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryScope;
 import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryServiceRecord;
 
 /**
  * Match scope against target service using the RFC2396 algorithm.
@@ -38,57 +41,57 @@ public class MatchScopeRFC2396 implements IWsDiscoveryMatchScope {
      * @return True on success, false on failure.
      */
     public boolean matchScope(WsDiscoveryService target, WsDiscoveryScopesType probeScopes) {
-        // All scopes in probe must match target
-        if (probeScopes != null)
-            for (String probescope : probeScopes.getValue()) {
-                boolean match = false; 
-                URI probeuri = URI.create(probescope);
+        return compile(probeScopes).matchScope(target.getRecord());
+    }
+
+    /**
+     * Parse the probe scopes once. Scheme, authority and path segments of
+     * the service scopes are parsed when the service is stored.
+     * @param probeScopes Scopes to probe for.
+     * @return Compiled matcher.
+     */
+    public IWsDiscoveryScopeMatcher compile(WsDiscoveryScopesType probeScopes) {
+        if (probeScopes == null)
+            return MatchBy.MATCH_ALL;
+
+        final WsDiscoveryScope[] probe = WsDiscoveryScope.parseAll(probeScopes.getValue());
+        return new IWsDiscoveryScopeMatcher() {
+            public boolean matchScope(WsDiscoveryServiceRecord target) {
+                // All scopes in probe must match target
+                for (WsDiscoveryScope probescope : probe) {
+                    boolean match = false;
 
-                // Loop through scopes in target to find a match
-                for (URI targetscope : target.getScopes())
-                    if (matchURIByRFC2396(targetscope, probeuri)) {
-                        match = true;
-                        break;
-                    }
+                    // Loop through scopes in target to find a match
+                    for (int i = 0; i < target.getScopeCount(); i++)
+                        if (probescope.isRFC2396PrefixOf(target.getScope(i))) {
+                            match = true;
+                            break;
+                        }
 
-                // No match found for this probe scope, return false
-                if (!match)
-                    return false;
+                    // No match found for this probe scope, return false
+                    if (!match)
+                        return false;
+                }
+
+                // All scopes in probe matched
+                return true;
             }
-                
-        // All scopes in probe matched
-        return true;
+        };
     }
     
     /**
-     * Helper for {@link MatchScopeRFC2396#matchURIByRFC2396(java.net.URI, java.net.URI)}. Matches
-     * a scope in the target service against a scope in the probe.
+     * Matches a scope in the target service against a scope in the probe.
      * @param target Target service scope URI.
      * @param probe Probe scope URI.
      * @return True on success, false on failure.
      */
     protected boolean matchURIByRFC2396(URI target, URI probe) {
         // See WsDiscovery, section 5.1 for details
-        if (((target != null) && (probe != null)) && // Fail if one or both of the parameters are null
-            ((target.getScheme() != null) && (probe.getScheme() != null)) && // Fail if the scheme is not set
-            (target.getScheme().toUpperCase().equals(probe.getScheme().toUpperCase()))) // Compare scheme
-                if (target.getAuthority().toUpperCase().equals(probe.getAuthority().toUpperCase())) { // Compare server (authority)
-                    String[] targetsegments = target.getPath().split("/"); // Split path into segments
-                    String[] probesegments = probe.getPath().split("/");
-                    
-                    if (probesegments.length <= targetsegments.length) { // If probe has more segments than target, a match is not possible
-                        for (int i = 0; i < probesegments.length; i++) // Check if each segment in probe matches a segment in target
-                            if (!probesegments[i].equals(targetsegments[i])) 
-                                return false;
-                            // I.e http://example.com/abc matches http://example.com/abc/def, 
-                            // but http://example.com/a does not.
-                    } else
-                        return false;
-                    
-                    // If we get here, all tests are ok - return true
-                    return true;
-                }
-                    
-        return false;
+        if ((target == null) || (probe == null)) // Fail if one or both of the parameters are null
+            return false;
+
+        // I.e http://example.com/abc matches http://example.com/abc/def, 
+        // but http://example.com/a does not.
+        return WsDiscoveryScope.parse(probe).isRFC2396PrefixOf(WsDiscoveryScope.parse(target));
     }    
 }
@@ -0,0 +1,384 @@
+/*
+MatchScopeRegex.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.ms.wsdiscovery.servicedirectory.matcher;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Custom algorithm where a scope in the probe is a regular expression that 
+ * must match the whole string of a service scope. Probe scopes that are not
+ * valid expressions, use unsupported syntax or are longer than 
+ * {@link #MAX_PATTERN_LENGTH} characters match nothing.
+ * <p>
+ * Expressions are compiled into automata and matched in time linear in the
+ * length of the scope, as probes are received from the network. The syntax 
+ * is a subset of {@link java.util.regex.Pattern}: literal characters, 
+ * escaped characters, '.', character classes such as [a-z] and [^/], 
+ * \d, \w, \s and their negations, groups (also "(?:"), '|', and the 
+ * quantifiers '*', '+' and '?' (optionally followed by '?'). '^' and '$' are
+ * allowed at the start and end of the expression. Counted repetition, 
+ * back references and lookaround are not supported.
+ * <p>
+ * Matching a probe still costs time proportional to the length of its
+ * expressions for each candidate service. Only register this algorithm on 
+ * networks where the senders of probes are trusted.
+ * <p>
+ * Not defined by the WS-Discovery specification. Must be registered with 
+ * {@link MatchByRegistry#register} under a site-specific URI.
+ *
+ * @author Magnus Skjegstad
+ */
+public class MatchScopeRegex extends MatchScopePattern<MatchScopeRegex.Automaton> {
+
+    /**
+     * Longest expression accepted in a probe.
+     */
+    public static final int MAX_PATTERN_LENGTH = 256;
+
+    /**
+     * Nondeterministic automaton of a regular expression. Matching follows 
+     * all states at once, so no input makes it backtrack. Immutable once 
+     * compiled.
+     */
+    public static class Automaton {
+        private static final int CHAR = 0;   // Consumes a character in the class
+        private static final int EMPTY = 1;  // Moves to out without input
+        private static final int SPLIT = 2;  // Moves to out and out2 without input
+        private static final int MATCH = 3;
+
+        private final List<State> states = new ArrayList<State>();
+        private final State start;
+        private final String pattern;
+        private int pos = 0;
+
+        private static class State {
+            final int id;
+            int type;
+            char[] ranges; // Pairs of first and last character, for CHAR
+            boolean negated;
+            State out;
+            State out2;
+
+            State(int id, int type) {
+                this.id = id;
+                this.type = type;
+            }
+
+            boolean accepts(char c) {
+                boolean found = false;
+                for (int i = 0; (i < ranges.length) && !found; i += 2)
+                    found = (c >= ranges[i]) && (c <= ranges[i + 1]);
+                return found != negated;
+            }
+        }
+
+        /**
+         * Part of the automaton with one entry and one exit state. The exit
+         * is an EMPTY state whose out is set when the part is connected.
+         */
+        private static class Fragment {
+            final State first;
+            final State last;
+
+            Fragment(State first, State last) {
+                this.first = first;
+                this.last = last;
+            }
+        }
+
+        /**
+         * Compile an expression.
+         * @param pattern Regular expression.
+         * @throws IllegalArgumentException if the expression is invalid or
+         * uses unsupported syntax.
+         */
+        public Automaton(String pattern) {
+            this.pattern = pattern;
+            if (pattern.startsWith("^"))
+                pos++;
+            Fragment f = parseAlternatives();
+            if ((pos < pattern.length()) && (pattern.charAt(pos) == '$') && (pos == pattern.length() - 1))
+                pos++;
+            if (pos < pattern.length())
+                throw new IllegalArgumentException("Unexpected '" + pattern.charAt(pos) + "' at position " + pos);
+            f.last.out = newState(MATCH);
+            start = f.first;
+        }
+
+        private State newState(int type) {
+            State s = new State(states.size(), type);
+            states.add(s);
+            return s;
+        }
+
+        private Fragment empty() {
+            State s = newState(EMPTY);
+            return new Fragment(s, s);
+        }
+
+        private boolean peek(char c) {
+            return (pos < pattern.length()) && (pattern.charAt(pos) == c);
+        }
+
+        private Fragment parseAlternatives() {
+            Fragment f = parseSequence();
+            while (peek('|')) {
+                pos++;
+                Fragment g = parseSequence();
+                State split = newState(SPLIT);
+                split.out = f.first;
+                split.out2 = g.first;
+                State last = newState(EMPTY);
+                f.last.out = last;
+                g.last.out = last;
+                f = new Fragment(split, last);
+            }
+            return f;
+        }
+
+        private Fragment parseSequence() {
+            Fragment f = empty();
+            while ((pos < pattern.length()) && !peek('|') && !peek(')') &&
+                    !(peek('$') && (pos == pattern.length() - 1))) {
+                Fragment g = parseRepeat();
+                f.last.out = g.first;
+                f = new Fragment(f.first, g.last);
+            }
+            return f;
+        }
+
+        private Fragment parseRepeat() {
+            Fragment f = parseAtom();
+            if ((pos < pattern.length()) && ("*+?".indexOf(pattern.charAt(pos)) >= 0)) {
+                char q = pattern.charAt(pos++);
+                if (peek('?'))
+                    pos++; // Reluctant, matches the same strings
+                if ((pos < pattern.length()) && ("*+?{".indexOf(pattern.charAt(pos)) >= 0))
+                    throw new IllegalArgumentException("Unsupported quantifier at position " + pos);
+
+                State split = newState(SPLIT);
+                State last = newState(EMPTY);
+                split.out = f.first;
+                split.out2 = last;
+                if (q == '?') {
+                    f.last.out = last;
+                    return new Fragment(split, last);
+                }
+                f.last.out = split; // Loop
+                return new Fragment(q == '*' ? split : f.first, last);
+            }
+            return f;
+        }
+
+        private Fragment parseAtom() {
+            char c = pattern.charAt(pos++);
+            switch (c) {
+                case '(':
+                    if (peek('?')) {
+                        if (!pattern.startsWith("?:", pos))
+                            throw new IllegalArgumentException("Unsupported group at position " + pos);
+                        pos += 2;
+                    }
+                    Fragment f = parseAlternatives();
+                    if (!peek(')'))
+                        throw new IllegalArgumentException("Missing ')'");
+                    pos++;
+                    return f;
+                case '[':
+                    return parseClass();
+                case '.':
+                    return charFragment(new char[] {'\n', '\n', '\r', '\r'}, true);
+                case '\\':
+                    return parseEscape(false);
+                case '*': case '+': case '?': case '{': case ')': case '^': case '$':
+                    throw new IllegalArgumentException("Unexpected '" + c + "' at position " + (pos - 1));
+                default:
+                    return charFragment(new char[] {c, c}, false);
+            }
+        }
+
+        private Fragment charFragment(char[] ranges, boolean negated) {
+            State s = newState(CHAR);
+            s.ranges = ranges;
+            s.negated = negated;
+            State last = newState(EMPTY);
+            s.out = last;
+            return new Fragment(s, last);
+        }
+
+        /**
+         * Parse the character after a backslash. Returns a fragment or, in a
+         * character class, a fragment whose first state holds the ranges.
+         */
+        private Fragment parseEscape(boolean inClass) {
+            if (pos == pattern.length())
+                throw new IllegalArgumentException("Trailing '\\'");
+            char c = pattern.charAt(pos++);
+            switch (c) {
+                case 'd': return charFragment(new char[] {'0', '9'}, false);
+                case 'D': return classOnly(inClass, charFragment(new char[] {'0', '9'}, true));
+                case 'w': return charFragment(new char[] {'a', 'z', 'A', 'Z', '0', '9', '_', '_'}, false);
+                case 'W': return classOnly(inClass, charFragment(new char[] {'a', 'z', 'A', 'Z', '0', '9', '_', '_'}, true));
+                case 's': return charFragment(new char[] {' ', ' ', '\t', '\r'}, false);
+                case 'S': return classOnly(inClass, charFragment(new char[] {' ', ' ', '\t', '\r'}, true));
+                case 't': return charFragment(new char[] {'\t', '\t'}, false);
+                case 'n': return charFragment(new char[] {'\n', '\n'}, false);
+                case 'r': return charFragment(new char[] {'\r', '\r'}, false);
+                default:
+                    if (Character.isLetterOrDigit(c))
+                        throw new IllegalArgumentException("Unsupported escape '\\" + c + "'");
+                    return charFragment(new char[] {c, c}, false);
+            }
+        }
+
+        private static Fragment classOnly(boolean inClass, Fragment f) {
+            if (inClass)
+                throw new IllegalArgumentException("Negated escapes are not supported in character classes");
+            return f;
+        }
+
+        private Fragment parseClass() {
+            boolean negated = peek('^');
+            if (negated)
+                pos++;
+            StringBuilder ranges = new StringBuilder();
+            boolean first = true;
+            while (first || !peek(']')) {
+                if (pos == pattern.length())
+                    throw new IllegalArgumentException("Missing ']'");
+                first = false;
+                char c = pattern.charAt(pos++);
+                if (c == '[' || ((c == '&') && peek('&')))
+                    throw new IllegalArgumentException("Nested character classes are not supported");
+                if (c == '\\') {
+                    // Ranges of the escape, the unused states are never reached
+                    ranges.append(parseEscape(true).first.ranges);
+                    continue;
+                }
+                char to = c;
+                if (peek('-') && (pos + 1 < pattern.length()) && (pattern.charAt(pos + 1) != ']')) {
+                    to = pattern.charAt(pos + 1);
+                    if ((to == '\\') || (to == '[') || (to < c))
+                        throw new IllegalArgumentException("Invalid range at position " + pos);
+                    pos += 2;
+                }
+                ranges.append(c).append(to);
+            }
+            pos++; // ']'
+            char[] r = new char[ranges.length()];
+            ranges.getChars(0, r.length, r, 0);
+            return charFragment(r, negated);
+        }
+
+        /**
+         * Check whether the expression matches the whole string.
+         * @param s String.
+         * @return True on match.
+         */
+        public boolean matches(String s) {
+            int[] mark = new int[states.size()]; // Step a state was last added in
+            State[] current = new State[states.size()];
+            State[] next = new State[states.size()];
+            State[] stack = new State[2 * states.size() + 1]; // Each state pushes at most two
+            int count = add(current, 0, start, mark, 1, stack);
+
+            for (int i = 0; (i < s.length()) && (count > 0); i++) {
+                char c = s.charAt(i);
+                int nextCount = 0;
+                for (int n = 0; n < count; n++)
+                    if ((current[n].type == CHAR) && current[n].accepts(c))
+                        nextCount = add(next, nextCount, current[n].out, mark, i + 2, stack);
+                State[] t = current;
+                current = next;
+                next = t;
+                count = nextCount;
+            }
+
+            for (int n = 0; n < count; n++)
+                if (current[n].type == MATCH)
+                    return true;
+            return false;
+        }
+
+        /**
+         * Add a state and the states reachable from it without input to a 
+         * list, unless already added in this step.
+         */
+        private static int add(State[] list, int count, State s, int[] mark, int step, State[] stack) {
+            int top = 0;
+            stack[top++] = s;
+            while (top > 0) {
+                State t = stack[--top];
+                if (mark[t.id] == step)
+                    continue;
+                mark[t.id] = step;
+                if (t.type == EMPTY)
+                    stack[top++] = t.out;
+                else if (t.type == SPLIT) {
+                    stack[top++] = t.out2;
+                    stack[top++] = t.out;
+                } else
+                    list[count++] = t;
+            }
+            return count;
+        }
+    }
+
+    @Override
+    protected Automaton compilePattern(String probeScope) {
+        if (probeScope.length() > MAX_PATTERN_LENGTH)
+            return null;
+        try {
+            return new Automaton(probeScope);
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    @Override
+    protected boolean matches(Automaton pattern, String serviceScope) {
+        return pattern.matches(serviceScope);
+    }
+
+    /**
+     * Get the literal characters the expression starts with. Expressions 
+     * with alternatives have no prefix.
+     */
+    @Override
+    protected String getLiteralPrefix(String probeScope) {
+        if (probeScope.indexOf('|') >= 0)
+            return "";
+
+        StringBuilder prefix = new StringBuilder();
+        int i = probeScope.startsWith("^") ? 1 : 0;
+        for (; i < probeScope.length(); i++) {
+            char c = probeScope.charAt(i);
+            if (".[]{}()\\*+?^$".indexOf(c) >= 0)
+                break;
+            prefix.append(c);
+        }
+
+        // A quantifier applies to the last literal character
+        if ((i < probeScope.length()) && ("*?{".indexOf(probeScope.charAt(i)) >= 0) && (prefix.length() > 0))
+            prefix.setLength(prefix.length() - 1);
+
+        return prefix.toString();
+    }
+}
@@ -17,12 +17,14 @@ You should have received a copy of the GNU Lesser General Public License
 along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 
+
 package com.ms.wsdiscovery.servicedirectory.matcher;
 
 import com.ms.wsdiscovery.datatypes.WsDiscoveryScopesType;
 import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryMatchScope;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryScopeMatcher;
 import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
-import java.net.URI;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryServiceRecord;
 
 /**
  * Match scope against target service using the string comparison.
@@ -38,23 +40,36 @@ public class MatchScopeStrcmp0 implements IWsDiscoveryMatchScope {
      * @return True on success, false on failure.
      */
     public boolean matchScope(WsDiscoveryService target, WsDiscoveryScopesType probeScopes) {
+        return compile(probeScopes).matchScope(target.getRecord());
+    }
+
+    /**
+     * Copy the probe scopes once.
+     * @param probeScopes Scopes to probe for.
+     * @return Compiled matcher.
+     */
+    public IWsDiscoveryScopeMatcher compile(WsDiscoveryScopesType probeScopes) {
         if (probeScopes == null) // The probe didn't include scope
-            return true;
-        
-        // "Using a case-sensitive comparison, the string representation of S1 and S2 is the same"        
-        boolean found = false;
-        for (String s : probeScopes.getValue()) {
-            found = false;
-            for (URI u : target.getScopes())
-                if (u.toString().equals(s)) {
-                    found = true;
-                    continue;
-                }
-            if (!found)
-                break;
-        }
+            return MatchBy.MATCH_ALL;
 
+        final String[] probe = probeScopes.getValue().toArray(new String[0]);
+        return new IWsDiscoveryScopeMatcher() {
+            public boolean matchScope(WsDiscoveryServiceRecord target) {
+                // "Using a case-sensitive comparison, the string representation of S1 and S2 is the same"        
+                boolean found = false;
+                for (String s : probe) {
+                    found = false;
+                    for (int i = 0; i < target.getScopeCount(); i++)
+                        if (target.getScope(i).toString().equals(s)) {
+                            found = true;
+                            break;
+                        }
+                    if (!found)
+                        break;
+                }
 
-        return found;
+                return found;
+            }
+        };
     }
 }
@@ -20,8 +20,12 @@ package com.ms.wsdiscovery.servicedirectory.matcher;
 
 import com.ms.wsdiscovery.datatypes.WsDiscoveryScopesType;
 import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryMatchScope;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryScopeMatcher;
 import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryServiceRecord;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 /**
@@ -31,7 +35,12 @@ import java.util.UUID;
  */
 public class MatchScopeUUID implements IWsDiscoveryMatchScope {
 
-    private UUID urnToUUID(String urn) {
+    /**
+     * Get the UUID of a scope.
+     * @param urn Scope as a plain UUID, uuid:-URI or urn:uuid:-URI.
+     * @return UUID or <code>null</code> if the scope is not a UUID.
+     */
+    public static UUID urnToUUID(String urn) {
         UUID uuid = null; // default to null 
         try {
             URI uri = URI.create(urn);
@@ -58,33 +67,44 @@ public class MatchScopeUUID implements IWsDiscoveryMatchScope {
      * @return True on success, false on failure.
      */
     public boolean matchScope(WsDiscoveryService target, WsDiscoveryScopesType probeScopes) {
+        return compile(probeScopes).matchScope(target.getRecord());
+    }
+
+    /**
+     * Parse the UUIDs of the probe scopes once. The UUIDs of the service
+     * scopes are parsed when the service is stored.
+     * @param probeScopes Scopes to probe for.
+     * @return Compiled matcher.
+     */
+    public IWsDiscoveryScopeMatcher compile(WsDiscoveryScopesType probeScopes) {
         /**
      * From the WS-Discovery Specification Draft, 2005:<p>
      * Using a case-insensitive comparison, the scheme of S1 and S2 is "uuid" and each of the
      * unsigned integer fields in S1 is equal to the corresponding field in S2, or equivalently, the
      * 128 bits of the in-memory representation of S1 and S2 are the same 128 bit unsigned integer.
      */
-         if (probeScopes == null) // The probe didn't include scope
-            return true;
+        if (probeScopes == null) // The probe didn't include scope
+            return MatchBy.MATCH_ALL;
 
-        boolean found = false;
+        List<UUID> uuids = new ArrayList<UUID>();
         for (String s : probeScopes.getValue()) {
-
             UUID uuid = urnToUUID(s);
-            if (uuid == null)
-                continue;
-
-            for (URI u : target.getScopes())
-                if (urnToUUID(u.toString()).equals(uuid)) {
-                    found = true;
-                    break;
-                }
-
-            if (found)
-                break;
+            if (uuid != null)
+                uuids.add(uuid);
         }
 
-        return found;
+        final UUID[] probe = uuids.toArray(new UUID[uuids.size()]);
+        return new IWsDiscoveryScopeMatcher() {
+            public boolean matchScope(WsDiscoveryServiceRecord target) {
+                // Any of the scopes in the probe may match
+                for (UUID uuid : probe)
+                    for (int i = 0; i < target.getScopeCount(); i++)
+                        if (uuid.equals(target.getScope(i).getUUID()))
+                            return true;
+
+                return false;
+            }
+        };
     }
 
 }
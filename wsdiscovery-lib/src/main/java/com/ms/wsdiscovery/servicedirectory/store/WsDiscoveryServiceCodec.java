@@ -0,0 +1,111 @@
+/*
+WsDiscoveryServiceCodec.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.servicedirectory.store;
+
+import com.ms.wsdiscovery.datatypes.WsDiscoveryScopesType;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
+import com.skjegstad.soapoverudp.datatypes.SOAPOverUDPEndpointReferenceType;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.namespace.QName;
+
+/**
+ * Compact binary encoding of service descriptions, used by
+ * {@link WsDiscoveryServiceJournalCollection} and when replicating service
+ * directories between proxies.
+ * <p>
+ * Only the endpoint address, port types, scopes, XAddrs and metadata version
+ * of a service are encoded.
+ *
+ * @author Magnus Skjegstad
+ */
+public final class WsDiscoveryServiceCodec {
+
+    private WsDiscoveryServiceCodec() {
+    }
+
+    /**
+     * Read a service description written by {@link #write}.
+     * @param in Input.
+     * @return New service description.
+     * @throws IOException on read errors.
+     * @throws IllegalArgumentException if the input contains an invalid value.
+     */
+    public static WsDiscoveryService read(DataInput in) throws IOException {
+        URI address = URI.create(in.readUTF());
+        long metadataVersion = in.readLong();
+
+        int n = in.readInt();
+        List<QName> portTypes = new ArrayList<QName>(n);
+        for (int i = 0; i < n; i++)
+            portTypes.add(new QName(in.readUTF(), in.readUTF(), in.readUTF()));
+
+        String matchBy = in.readUTF();
+        WsDiscoveryScopesType scopes = new WsDiscoveryScopesType(matchBy.length() > 0 ? MatchBy.valueOf(matchBy) : null);
+        n = in.readInt();
+        for (int i = 0; i < n; i++)
+            scopes.getValue().add(in.readUTF());
+
+        n = in.readInt();
+        List<String> xAddrs = new ArrayList<String>(n);
+        for (int i = 0; i < n; i++)
+            xAddrs.add(in.readUTF());
+
+        return new WsDiscoveryService(new SOAPOverUDPEndpointReferenceType(address),
+                portTypes, scopes, xAddrs, metadataVersion);
+    }
+
+    /**
+     * Write a service description.
+     * @param out Output.
+     * @param service Service description. Must have an endpoint address.
+     * @throws IOException on write errors.
+     */
+    public static void write(DataOutput out, WsDiscoveryService service) throws IOException {
+        out.writeUTF(service.getEndpointReference().getAddress().toString());
+        out.writeLong(service.getMetadataVersion());
+
+        List<QName> portTypes = service.getPortTypes();
+        out.writeInt(portTypes.size());
+        for (QName q : portTypes) {
+            out.writeUTF(q.getNamespaceURI());
+            out.writeUTF(q.getLocalPart());
+            out.writeUTF(q.getPrefix());
+        }
+
+        out.writeUTF(service.getScopesMatchBy() != null ? service.getScopesMatchBy().name() : "");
+        List<URI> scopes = service.getScopes();
+        out.writeInt(scopes != null ? scopes.size() : 0);
+        if (scopes != null)
+            for (URI u : scopes)
+                out.writeUTF(u.toString());
+
+        List<String> xAddrs = service.getXAddrs();
+        out.writeInt(xAddrs != null ? xAddrs.size() : 0);
+        if (xAddrs != null)
+            for (String x : xAddrs)
+                out.writeUTF(x);
+    }
+}
@@ -21,6 +21,7 @@ package com.ms.wsdiscovery.servicedirectory.store;
 
 import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
 import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceCollection;
+import java.net.URI;
 import java.util.ArrayList;
 
 /**
@@ -45,8 +46,12 @@ public class WsDiscoveryServiceCollection extends ArrayList<WsDiscoveryService>
     }
 
     public boolean update(WsDiscoveryService service) {
-        int i = this.indexOf(service.getEndpointReference());
-        
+        if ((service.getEndpointReference() == null) ||
+            (service.getEndpointReference().getAddress() == null))
+            return false;
+
+        int i = this.indexOf(service.getEndpointReference().getAddress().toString());
+
         if (i < 0)
             return false;
 
@@ -71,5 +76,11 @@ public class WsDiscoveryServiceCollection extends ArrayList<WsDiscoveryService>
             return null;
         return this.get(i);
     }
+
+    public WsDiscoveryService get(URI endpointAddress) {
+        if (endpointAddress == null)
+            return null;
+        return get(endpointAddress.toString());
+    }
         
 }
@@ -0,0 +1,134 @@
+/*
+WsDiscoveryServiceHashCollection.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.servicedirectory.store;
+
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceCollection;
+import java.net.URI;
+import java.util.AbstractCollection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A memory based, transient implementation of IWsDiscoveryServiceCollection
+ * indexed by endpoint address. Lookup, update and removal by endpoint address
+ * take constant time. Services are iterated in the order they were added.
+ * <p>
+ * At most one service is stored per endpoint address. Adding a service with
+ * the same endpoint address as a stored service replaces it. Services
+ * without an endpoint address can not be added.
+ *
+ * @author Magnus Skjegstad
+ */
+public class WsDiscoveryServiceHashCollection extends AbstractCollection<WsDiscoveryService> implements IWsDiscoveryServiceCollection {
+    private final LinkedHashMap<URI, WsDiscoveryService> services = new LinkedHashMap<URI, WsDiscoveryService>();
+
+    /**
+     * Get the key of a service.
+     * @param service Service.
+     * @return Endpoint address or <code>null</code> if the service has none.
+     */
+    protected static URI getKey(WsDiscoveryService service) {
+        if ((service == null) || (service.getEndpointReference() == null))
+            return null;
+        return service.getEndpointReference().getAddress();
+    }
+
+    @Override
+    public boolean add(WsDiscoveryService service) {
+        URI key = getKey(service);
+        if (key == null)
+            return false;
+
+        services.put(key, service);
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof WsDiscoveryService))
+            return false;
+
+        URI key = getKey((WsDiscoveryService)o);
+        if (key == null)
+            return false;
+
+        return (services.remove(key) != null);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof WsDiscoveryService))
+            return false;
+        return contains((WsDiscoveryService)o);
+    }
+
+    @Override
+    public Iterator<WsDiscoveryService> iterator() {
+        return services.values().iterator();
+    }
+
+    @Override
+    public int size() {
+        return services.size();
+    }
+
+    @Override
+    public void clear() {
+        services.clear();
+    }
+
+    public boolean update(WsDiscoveryService service) {
+        URI key = getKey(service);
+        if ((key == null) || (!services.containsKey(key)))
+            return false;
+
+        services.put(key, service); // keeps the position of the old entry
+        return true;
+    }
+
+    public boolean contains(String endpointReference) {
+        return (get(endpointReference) != null);
+    }
+
+    public boolean contains(WsDiscoveryService service) {
+        URI key = getKey(service);
+        return ((key != null) && services.containsKey(key));
+    }
+
+    public WsDiscoveryService get(String endpointReference) {
+        if (endpointReference == null)
+            return null;
+
+        URI key;
+        try {
+            key = URI.create(endpointReference);
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+        return get(key);
+    }
+
+    public WsDiscoveryService get(URI endpointAddress) {
+        if (endpointAddress == null)
+            return null;
+        return services.get(endpointAddress);
+    }
+}
@@ -0,0 +1,474 @@
+/*
+WsDiscoveryServiceJournalCollection.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.ms.wsdiscovery.servicedirectory.store;
+
+import com.ms.wsdiscovery.logger.WsDiscoveryLogger;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+
+/**
+ * Persistent implementation of IWsDiscoveryServiceCollection. Services are
+ * kept in memory, indexed by endpoint address, and every change is appended
+ * to a journal file that is memory mapped. When the collection is created,
+ * the journal is replayed, so a service directory using it with
+ * {@link com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceDirectory#useStorage}
+ * starts with the services known before a restart, e.g.
+ * <pre>
+ * server.useServiceStore(new WsDiscoveryServiceJournalCollection(new File("directory.journal")));
+ * </pre>
+ * The journal is compacted when it holds more outdated records than live
+ * services. Compaction rewrites the live services to a new file, which
+ * replaces the journal. Where the journal can not be replaced in one step,
+ * it is first moved aside, and a journal left missing by a crash in between
+ * is recovered when the collection is created.
+ * <p>
+ * Only the endpoint address, port types, scopes, XAddrs and metadata version
+ * of each service are stored. A record that was being written when the
+ * process stopped is ignored on replay.
+ * <p>
+ * This class is not thread safe. Use it through a service directory.
+ *
+ * @author Magnus Skjegstad
+ */
+public class WsDiscoveryServiceJournalCollection extends WsDiscoveryServiceHashCollection {
+    private static final int MAGIC = 0x57534a31; // "WSJ1"
+    private static final int HEADER_SIZE = 4;
+    private static final int MIN_MAP_SIZE = 64 * 1024;
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_REMOVE = 2;
+    private static final byte RECORD_CLEAR = 3;
+
+    private final WsDiscoveryLogger logger =
+            new WsDiscoveryLogger(WsDiscoveryServiceJournalCollection.class.getName());
+    private final File file;
+    private final int compactionMinRecords;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int position; // End of the last complete record
+    private int records; // Records in the journal
+    private boolean replaying = false;
+
+    /**
+     * Open or create a journal with the default compaction threshold.
+     *
+     * @param file Journal file. Created if it does not exist.
+     * @throws IOException if the file can not be opened or is not a journal.
+     */
+    public WsDiscoveryServiceJournalCollection(File file) throws IOException {
+        this(file, 1024);
+    }
+
+    /**
+     * Open or create a journal.
+     *
+     * @param file Journal file. Created if it does not exist.
+     * @param compactionMinRecords The journal is never compacted while it has
+     * fewer outdated records than this.
+     * @throws IOException if the file can not be opened or is not a journal.
+     */
+    public WsDiscoveryServiceJournalCollection(File file, int compactionMinRecords) throws IOException {
+        this.file = file;
+        this.compactionMinRecords = compactionMinRecords;
+        recover();
+        open();
+        replay();
+        logger.fine("Loaded " + size() + " services from " + file + " (" + records + " records)");
+    }
+
+    private File getCompactedFile() {
+        return new File(file.getPath() + ".tmp");
+    }
+
+    private File getReplacedFile() {
+        return new File(file.getPath() + ".old");
+    }
+
+    /**
+     * Finish or undo a compaction that was interrupted while the journal was
+     * moved aside. The compacted file is complete once the journal has been 
+     * moved, so it is preferred over the old journal.
+     */
+    private void recover() throws IOException {
+        File tmp = getCompactedFile();
+        File old = getReplacedFile();
+        if (!file.exists() && old.exists()) {
+            if (tmp.exists() && tmp.renameTo(file))
+                logger.warning("Recovered compacted service journal " + file);
+            else if (old.renameTo(file))
+                logger.warning("Recovered service journal " + file + " from before compaction");
+            else
+                throw new IOException("Unable to recover service journal " + file + " from " + old);
+        }
+        // Leftovers of an interrupted compaction
+        tmp.delete();
+        old.delete();
+    }
+
+    private void open() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+
+        long length = raf.length();
+        if (length > Integer.MAX_VALUE)
+            throw new IOException("Journal too large: " + file);
+        map(Math.max((int)length, MIN_MAP_SIZE));
+
+        if (length == 0)
+            buffer.putInt(0, MAGIC);
+        else if ((length < HEADER_SIZE) || (buffer.getInt(0) != MAGIC))
+            throw new IOException("Not a service journal: " + file);
+
+        position = HEADER_SIZE;
+        records = 0;
+    }
+
+    private void map(int size) throws IOException {
+        MappedByteBuffer old = buffer;
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size); // extends the file if needed
+        unmap(old);
+    }
+
+    /**
+     * Release a mapping without waiting for the garbage collector, as some
+     * platforms do not allow a mapped file to be replaced. There is no public
+     * API for this, so it is done on a best effort basis. The buffer must not
+     * be used afterwards.
+     */
+    private static void unmap(MappedByteBuffer b) {
+        if (b == null)
+            return;
+        try {
+            // Java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), b);
+            return;
+        } catch (Exception ex) {
+            // Try the older API
+        }
+        try {
+            Method cleaner = b.getClass().getMethod("cleaner");
+            cleaner.setAccessible(true);
+            Object c = cleaner.invoke(b);
+            if (c != null)
+                c.getClass().getMethod("clean").invoke(c);
+        } catch (Exception ex) {
+            // Released by the garbage collector
+        }
+    }
+
+    /**
+     * Make room for <code>bytes</code> more bytes after the current position,
+     * plus the length field that terminates the journal.
+     */
+    private void ensureCapacity(int bytes) throws IOException {
+        long needed = (long)position + bytes + 4;
+        if (needed <= buffer.capacity())
+            return;
+
+        long size = buffer.capacity();
+        while (size < needed)
+            size *= 2;
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("Journal too large: " + file);
+        map((int)size);
+    }
+
+    private void replay() throws IOException {
+        replaying = true;
+        try {
+            while (position + 4 <= buffer.capacity()) {
+                int length = buffer.getInt(position);
+                if ((length <= 0) || ((long)position + 4 + length > buffer.capacity()))
+                    break; // end of journal, or a partial record
+
+                byte[] record = new byte[length];
+                buffer.position(position + 4);
+                buffer.get(record);
+
+                try {
+                    apply(record);
+                } catch (IOException ex) {
+                    logger.warning("Ignoring corrupt journal record at offset " + position + ": " + ex.getMessage());
+                    break;
+                } catch (IllegalArgumentException ex) {
+                    logger.warning("Ignoring corrupt journal record at offset " + position + ": " + ex.getMessage());
+                    break;
+                }
+                position += 4 + length;
+                records++;
+            }
+            // Anything after the last complete record is overwritten
+            ensureCapacity(0);
+            buffer.putInt(position, 0);
+        } finally {
+            replaying = false;
+        }
+    }
+
+    private void apply(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte type = in.readByte();
+        switch (type) {
+            case RECORD_PUT:
+                super.add(WsDiscoveryServiceCodec.read(in));
+                break;
+            case RECORD_REMOVE:
+                WsDiscoveryService s = get(URI.create(in.readUTF()));
+                if (s != null)
+                    super.remove(s);
+                break;
+            case RECORD_CLEAR:
+                super.clear();
+                break;
+            default:
+                throw new IOException("Unknown record type " + type);
+        }
+    }
+
+    /**
+     * Append a record to the journal. The length is written last, so that a
+     * partial record is never replayed.
+     */
+    private void append(byte type, WsDiscoveryService service, URI address) {
+        if (replaying)
+            return;
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(type);
+            if (service != null)
+                WsDiscoveryServiceCodec.write(out, service);
+            if (address != null)
+                out.writeUTF(address.toString());
+            out.flush();
+
+            byte[] record = bytes.toByteArray();
+            ensureCapacity(4 + record.length);
+            buffer.position(position + 4);
+            buffer.put(record);
+            buffer.putInt(position + 4 + record.length, 0);
+            buffer.putInt(position, record.length);
+            position += 4 + record.length;
+            records++;
+        } catch (IOException ex) {
+            logger.severe("Unable to write to service journal " + file + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Compact the journal if it holds more outdated records than live services.
+     */
+    private void compactIfNeeded() {
+        if (records - size() <= Math.max(size(), compactionMinRecords))
+            return;
+
+        try {
+            compact();
+        } catch (IOException ex) {
+            logger.severe("Unable to compact service journal " + file + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Rewrite the journal with one record for each live service.
+     * @throws IOException on failure. The old journal is kept.
+     */
+    public void compact() throws IOException {
+        File tmp = getCompactedFile();
+        tmp.delete();
+
+        int length;
+        RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(bytes);
+            data.writeInt(MAGIC);
+            for (WsDiscoveryService s : this) {
+                ByteArrayOutputStream record = new ByteArrayOutputStream();
+                DataOutputStream recordOut = new DataOutputStream(record);
+                recordOut.writeByte(RECORD_PUT);
+                WsDiscoveryServiceCodec.write(recordOut, s);
+                recordOut.flush();
+                data.writeInt(record.size());
+                record.writeTo(data);
+            }
+            data.flush();
+            length = bytes.size();
+            data.writeInt(0);
+            data.flush();
+            out.write(bytes.toByteArray());
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        int oldPosition = position;
+        int oldRecords = records;
+        close(); // Also releases the mapping
+        if (!replace(tmp)) {
+            tmp.delete();
+            open(); // Continue with the old journal
+            position = oldPosition;
+            records = oldRecords;
+            throw new IOException("Unable to replace " + file + " with compacted journal");
+        }
+
+        // The services in memory are kept, as a service directory may refer to them
+        open();
+        position = length;
+        records = size();
+        logger.fine("Compacted service journal " + file + " to " + records + " records");
+    }
+
+    /**
+     * Replace the journal with the compacted file. Where the journal can not
+     * be replaced in one step, it is moved aside until the compacted file is 
+     * in place, so that recover() finds one of them after a crash.
+     * @return False if the journal was not replaced. It is then unchanged.
+     */
+    private boolean replace(File tmp) {
+        if (tmp.renameTo(file))
+            return true;
+
+        File old = getReplacedFile();
+        old.delete();
+        if (!file.renameTo(old))
+            return false;
+        if (!tmp.renameTo(file)) {
+            old.renameTo(file);
+            return false;
+        }
+        old.delete();
+        return true;
+    }
+
+    /**
+     * Write changes to the storage device.
+     */
+    public void sync() {
+        buffer.force();
+    }
+
+    /**
+     * Write changes to the storage device and close the journal. The
+     * collection must not be modified afterwards.
+     * @throws IOException on failure.
+     */
+    public void close() throws IOException {
+        if (buffer != null)
+            buffer.force();
+        unmap(buffer);
+        buffer = null;
+        if (channel != null)
+            channel.close();
+        if (raf != null)
+            raf.close();
+    }
+
+    /**
+     * Get the journal file.
+     * @return Journal file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Number of records in the journal, including outdated ones.
+     * @return Number of records.
+     */
+    public int getRecordCount() {
+        return records;
+    }
+
+    @Override
+    public boolean add(WsDiscoveryService service) {
+        if (!super.add(service))
+            return false;
+        append(RECORD_PUT, service, null);
+        compactIfNeeded();
+        return true;
+    }
+
+    @Override
+    public boolean update(WsDiscoveryService service) {
+        if (!super.update(service))
+            return false;
+        append(RECORD_PUT, service, null);
+        compactIfNeeded();
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!super.remove(o))
+            return false;
+        append(RECORD_REMOVE, null, getKey((WsDiscoveryService)o));
+        compactIfNeeded();
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        append(RECORD_CLEAR, null, null);
+        compactIfNeeded();
+    }
+
+    @Override
+    public Iterator<WsDiscoveryService> iterator() {
+        final Iterator<WsDiscoveryService> i = super.iterator();
+        return new Iterator<WsDiscoveryService>() {
+            private WsDiscoveryService last = null;
+
+            public boolean hasNext() {
+                return i.hasNext();
+            }
+
+            public WsDiscoveryService next() {
+                last = i.next();
+                return last;
+            }
+
+            public void remove() {
+                i.remove();
+                append(RECORD_REMOVE, null, getKey(last)); // Not compacted while iterating
+            }
+        };
+    }
+}
@@ -18,13 +18,19 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 package com.ms.wsdiscovery.standard11;
 
+import org.w3c.dom.Document;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceDirectory;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceVisitor;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryMatchCache;
 import com.ms.wsdiscovery.common.WsDiscoveryDispatchThread;
-import java.net.InetAddress;
+import com.ms.wsdiscovery.common.WsDiscoveryProxySelector;
+import com.ms.wsdiscovery.interfaces.IWsDiscoveryProxyRequest;
+import com.ms.wsdiscovery.interfaces.IWsDiscoveryProbeMatchesListener;
 import java.net.URI;
-import java.util.Date;
 import java.util.List;
 import javax.xml.namespace.QName;
 import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.datatypes.WsDiscoveryActionTypes;
 import com.ms.wsdiscovery.datatypes.WsDiscoveryNamespaces;
 import com.ms.wsdiscovery.datatypes.WsDiscoveryScopesType;
 import com.ms.wsdiscovery.exception.WsDiscoveryException;
@@ -36,18 +42,16 @@ import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
 import com.ms.wsdiscovery.exception.WsDiscoveryXMLException;
 import com.ms.wsdiscovery.jaxb.standard11.wsdiscovery.ByeType;
 import com.ms.wsdiscovery.jaxb.standard11.wsdiscovery.HelloType;
-import com.ms.wsdiscovery.jaxb.standard11.wsdiscovery.ProbeMatchType;
 import com.ms.wsdiscovery.jaxb.standard11.wsdiscovery.ProbeMatchesType;
 import com.ms.wsdiscovery.jaxb.standard11.wsdiscovery.ProbeType;
-import com.ms.wsdiscovery.jaxb.standard11.wsdiscovery.ResolveMatchType;
 import com.ms.wsdiscovery.jaxb.standard11.wsdiscovery.ResolveMatchesType;
 import com.ms.wsdiscovery.jaxb.standard11.wsdiscovery.ResolveType;
 import com.ms.wsdiscovery.jaxb.standard11.wsdiscovery.ScopesType;
-import com.ms.wsdiscovery.servicedirectory.WsDiscoveryServiceDirectory;
 import com.skjegstad.soapoverudp.SOAPOverUDP11;
 import com.skjegstad.soapoverudp.datatypes.SOAPOverUDPEndpointReferenceType;
 import com.skjegstad.soapoverudp.datatypes.SOAPOverUDPWsAddressingNamespaces;
 import com.skjegstad.soapoverudp.exceptions.SOAPOverUDPException;
+import com.skjegstad.soapoverudp.interfaces.ISOAPOverUDP;
 import com.skjegstad.soapoverudp.interfaces.ISOAPOverUDPMessage;
 import com.skjegstad.soapoverudp.interfaces.ISOAPOverUDPTransport;
 import java.nio.charset.Charset;
@@ -96,8 +100,8 @@ public class WsDiscoveryS11DispatchThread extends WsDiscoveryDispatchThread {
             throw new WsDiscoveryNetworkException("Illegal Access while instantiating transport layer", ex);
         }      
         
-        localServices = new WsDiscoveryServiceDirectory(defaultMatcher);
-        serviceDirectory = new WsDiscoveryServiceDirectory(defaultMatcher);
+        localServices = createServiceDirectory(defaultMatcher);
+        serviceDirectory = createServiceDirectory(defaultMatcher);
         
         this.setDaemon(true);
     }
@@ -123,11 +127,33 @@ public class WsDiscoveryS11DispatchThread extends WsDiscoveryDispatchThread {
         this.soapOverUDP = new SOAPOverUDP11(transportType, 
             encoding);
         
-        localServices = new WsDiscoveryServiceDirectory(defaultMatcher);
-        serviceDirectory = new WsDiscoveryServiceDirectory(defaultMatcher);
+        localServices = createServiceDirectory(defaultMatcher);
+        serviceDirectory = createServiceDirectory(defaultMatcher);
         
         this.setDaemon(true);
     }
+
+    /**
+     * Creates a new {@link DispatchThread} instance using an existing transport
+     * layer and existing service directories. Used when several WS-Discovery 
+     * versions share one socket, see {@link com.ms.wsdiscovery.common.WsDiscoveryMultiVersionDispatchThread}.
+     * Received messages are passed to {@link #dispatch(ISOAPOverUDPMessage)} by 
+     * the owner of the transport layer, so this thread should not be started.
+     *
+     * @param soapOverUDP Transport layer.
+     * @param localServices Service directory containing published local services.
+     * @param serviceDirectory Service directory containing discovered services.
+     */
+    public WsDiscoveryS11DispatchThread(ISOAPOverUDP soapOverUDP, IWsDiscoveryServiceDirectory localServices,
+            IWsDiscoveryServiceDirectory serviceDirectory) throws WsDiscoveryNetworkException {
+        super();
+
+        this.soapOverUDP = soapOverUDP;
+        this.localServices = localServices;
+        this.serviceDirectory = serviceDirectory;
+
+        this.setDaemon(true);
+    }
     
     /**
      * <p>
@@ -145,6 +171,13 @@ public class WsDiscoveryS11DispatchThread extends WsDiscoveryDispatchThread {
      * @param matchBy Match algorithm clients should use when matching scopes. When set to <code>null</code> WsDiscoveryConstants.defaultMatchBy will be assumed. Some clients may not support all matching methods.
      */
     public void sendProbe(List<QName> types, List<URI> scopes, MatchBy matchBy) throws WsDiscoveryXMLException, WsDiscoveryNetworkException {
+        sendProbe(types, scopes, matchBy, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void sendProbe(List<QName> types, List<URI> scopes, MatchBy matchBy, IWsDiscoveryProbeMatchesListener listener) throws WsDiscoveryXMLException, WsDiscoveryNetworkException {
         WsDiscoveryS11SOAPMessage<ProbeType> probe;
         try {
             probe = WsDiscoveryS11Utilities.createWsdSOAPMessageProbe();
@@ -175,24 +208,48 @@ public class WsDiscoveryS11DispatchThread extends WsDiscoveryDispatchThread {
             probe.getJAXBBody().getTypes().addAll(types);
         }
 
-        // Send packet multicast or to proxy
-        if (useProxy) {
-            logger.fine("Sending probe unicast to proxy at " + useProxyAddress + ":" + useProxyPort);
-            probe.setTo(remoteProxyService.getEndpointReference().getAddress());
-            try {
-                soapOverUDP.send(probe, useProxyAddress, useProxyPort);
-            } catch (SOAPOverUDPException ex) {
-                throw new WsDiscoveryNetworkException("Unable to unicast probe to proxy server", ex);
+        // Track before sending, as matches may arrive before send() returns
+        probeTracker.track(probe.getMessageId(), listener);
+
+        // Send packet to the best proxy or multicast
+        proxySelector.send(probe.getMessageId(), createProxyRequest(probe, "probe"));
+    }
+
+    /**
+     * Create a request that sends <code>m</code> unicast to a proxy server or
+     * multicast. The proxy selector may send it more than once if a proxy 
+     * server does not reply in time.
+     *
+     * @param m Probe or Resolve message.
+     * @param name Message name used in log messages.
+     * @return Request to pass to the proxy selector.
+     */
+    private IWsDiscoveryProxyRequest createProxyRequest(final WsDiscoveryS11SOAPMessage m, final String name) {
+        return new IWsDiscoveryProxyRequest() {
+            public void sendTo(WsDiscoveryProxySelector.Proxy proxy) throws WsDiscoveryNetworkException {
+                logger.fine("Sending " + name + " unicast to proxy at " + proxy.getAddress() + ":" + proxy.getPort());
+                synchronized (m) {
+                    m.setTo(proxy.getEndpointAddress());
+                    try {
+                        soapOverUDP.send(m, proxy.getAddress(), proxy.getPort());
+                    } catch (SOAPOverUDPException ex) {
+                        throw new WsDiscoveryNetworkException("Unable to unicast " + name + " to proxy server", ex);
+                    }
+                }
             }
-        } else {
-            logger.fine("Multicasting probe (not using proxy).");
-            probe.setTo(multicastTo);
-            try {
-                soapOverUDP.sendMulticast(probe);
-            } catch (SOAPOverUDPException ex) {
-                throw new WsDiscoveryNetworkException("Unable to multicast probe", ex);
+
+            public void sendMulticast() throws WsDiscoveryNetworkException {
+                logger.fine("Multicasting " + name + " (not using proxy).");
+                synchronized (m) {
+                    m.setTo(multicastTo);
+                    try {
+                        soapOverUDP.sendMulticast(m);
+                    } catch (SOAPOverUDPException ex) {
+                        throw new WsDiscoveryNetworkException("Unable to multicast " + name, ex);
+                    }
+                }
             }
-        }
+        };
     }
 
     /**
@@ -211,6 +268,8 @@ public class WsDiscoveryS11DispatchThread extends WsDiscoveryDispatchThread {
     private void recvHello(WsDiscoveryS11SOAPMessage m)
             throws WsDiscoveryNetworkException {
         logger.finer("recvHello()");
+        if (!decodeBody(m))
+            return;
 
         if (m.getJAXBBody() instanceof HelloType) {
             HelloType hello = (HelloType) m.getJAXBBody();
@@ -221,6 +280,11 @@ public class WsDiscoveryS11DispatchThread extends WsDiscoveryDispatchThread {
                 logger.warning("Hello received without endpoint reference.");
             }
 
+            // Drop Hellos sent before the service restarted
+            if ((hello.getEndpointReference() != null) && !isFromCurrentInstance(m,
+                    WsDiscoveryS11Utilities.createSOAPOverUDPEndpointReferenceType(hello.getEndpointReference()).getAddress()))
+                return;
+
             // if RelatesTo is set and @Relationship="Suppression", use sender as proxy.
             if (m.getRelatesTo() != null) {
                 // TODO Verify relatesTo
@@ -230,28 +294,10 @@ public class WsDiscoveryS11DispatchThread extends WsDiscoveryDispatchThread {
                     if (m.getRelationshipType().equals(proxySuppressionRelationship)) {
                         logger.fine("Received proxy suppression.");
                         try {
-                            // Find proxy address from hello body                            
-                            URI addr = URI.create(hello.getXAddrs().get(0));
-                            useProxyAddress = InetAddress.getByName((addr.getHost()));
-                            if (addr.getPort() == -1) {
-                                useProxyPort = WsDiscoveryConstants.multicastPort;
-                            } else {
-                                useProxyPort = addr.getPort();
-                            }
-
-                            remoteProxyService = WsDiscoveryS11Utilities.createWsDiscoveryService(hello);
-
-                            if (remoteProxyService.getEndpointReference() == null)
-                                throw new WsDiscoveryNetworkException("Received proxy without endpoint reference");
-                            if (remoteProxyService.getEndpointReference().getAddress() == null)
-                                throw new WsDiscoveryNetworkException("Received proxy without endpoint address");
-
-                            useProxy = true;
-                            logger.fine("Using proxy server at " + useProxyAddress.toString() + ", port " + useProxyPort);
+                            useProxy(WsDiscoveryS11Utilities.createWsDiscoveryService(hello));
                         } catch (Exception ex) {
                             logger.warning("Proxy suppression received, but contained invalid data. Aborted (not using proxy).");
                             ex.printStackTrace();
-                            useProxy = false;
                         }
                     }
                 }
@@ -259,7 +305,8 @@ public class WsDiscoveryS11DispatchThread extends WsDiscoveryDispatchThread {
 
             // Store service information
             try {
-                WsDiscoveryS11Utilities.storeJAXBObject(serviceDirectory, hello);
+                refreshService(WsDiscoveryS11Utilities.storeJAXBObject(serviceDirectory, hello),
+                        WsDiscoveryConstants.helloTimeToLive);
             } catch (WsDiscoveryServiceDirectoryException ex) {
                 throw new WsDiscoveryNetworkException("Unable to store service received in Hello-message.", ex);
             }
@@ -278,6 +325,8 @@ public class WsDiscoveryS11DispatchThread extends WsDiscoveryDispatchThread {
     private void recvProbeMatches(WsDiscoveryS11SOAPMessage m)
             throws WsDiscoveryNetworkException {
         logger.finer("recvProbeMatches()");
+        if (!decodeBody(m))
+            return;
         if (m.getJAXBBody() instanceof ProbeMatchesType) {
             ProbeMatchesType pmt = (ProbeMatchesType) m.getJAXBBody();
             if (pmt.getProbeMatch() != null) {
@@ -287,7 +336,11 @@ public class WsDiscoveryS11DispatchThread extends WsDiscoveryDispatchThread {
             }
 
             try {
-                WsDiscoveryS11Utilities.storeProbesMatch(serviceDirectory, pmt);
+                List<WsDiscoveryService> stored = WsDiscoveryS11Utilities.storeProbesMatch(serviceDirectory, pmt);
+                for (WsDiscoveryService s : stored)
+                    refreshService(s, WsDiscoveryConstants.probeMatchesTimeToLive);
+                probeTracker.matched(m.getRelatesTo(), stored);
+                proxySelector.replied(m.getRelatesTo(), m.getSrcAddress());
             } catch (WsDiscoveryServiceDirectoryException ex) {
                 throw new WsDiscoveryNetworkException("Unable to store remote service.", ex);
             }
@@ -305,11 +358,15 @@ public class WsDiscoveryS11DispatchThread extends WsDiscoveryDispatchThread {
     private void recvResolveMatches(WsDiscoveryS11SOAPMessage m)
             throws WsDiscoveryNetworkException {
         logger.finer("recvResolveMatches()");
+        if (!decodeBody(m))
+            return;
         if (m.getJAXBBody() instanceof ResolveMatchesType) {
             ResolveMatchesType rmt = (ResolveMatchesType) m.getJAXBBody();
             logger.fine("ResolveMatches received for " + rmt.getResolveMatch().getEndpointReference() + " from " + m.getSrcAddress() + ":" + m.getSrcPort());
+            proxySelector.replied(m.getRelatesTo(), m.getSrcAddress());
             try {
-                WsDiscoveryS11Utilities.storeJAXBObject(serviceDirectory, rmt);
+                refreshService(WsDiscoveryS11Utilities.storeJAXBObject(serviceDirectory, rmt),
+                        WsDiscoveryConstants.resolveMatchesTimeToLive);
             } catch (WsDiscoveryServiceDirectoryException ex) {
                 throw new WsDiscoveryNetworkException("Unable to store results from ResolveMatches-message.", ex);
             }
@@ -327,6 +384,8 @@ public class WsDiscoveryS11DispatchThread extends WsDiscoveryDispatchThread {
     private void recvBye(WsDiscoveryS11SOAPMessage m)
             throws WsDiscoveryNetworkException {
         logger.finer("recvBye()");
+        if (!decodeBody(m))
+            return;
         if (m.getJAXBBody() instanceof ByeType) {
             ByeType bt = (ByeType) m.getJAXBBody();
             SOAPOverUDPEndpointReferenceType btEndpoint =
@@ -338,16 +397,17 @@ public class WsDiscoveryS11DispatchThread extends WsDiscoveryDispatchThread {
                 logger.warning("Bye received without endpoint reference.");
             }
 
-            if (useProxy) // Check if the proxy server sent bye                
-            {
-                if ((btEndpoint.getAddress() != null) &&
-                        (btEndpoint.getAddress().equals(remoteProxyService.getEndpointReference().getAddress()))) {
-                    logger.fine("Proxy service left the network. Disabling proxy.");
-                    useProxy = false; // Stop using the proxy server
-                }
-            }
+            // Drop Byes sent before the service restarted
+            if (!isFromCurrentInstance(m, btEndpoint.getAddress()))
+                return;
+
+            // Check if a proxy server sent bye
+            if ((btEndpoint.getAddress() != null) && proxySelector.remove(btEndpoint.getAddress()))
+                logger.fine("Proxy service left the network. Disabling proxy.");
 
             WsDiscoveryS11Utilities.removeServiceBye(serviceDirectory, bt);
+            if (btEndpoint.getAddress() != null)
+                serviceExpiry.remove(btEndpoint.getAddress());
 
         } else {
             throw new WsDiscoveryNetworkException("Message of unknown type passed to recvBye()");
@@ -364,6 +424,8 @@ public class WsDiscoveryS11DispatchThread extends WsDiscoveryDispatchThread {
     private void recvResolve(WsDiscoveryS11SOAPMessage m)
             throws WsDiscoveryNetworkException, WsDiscoveryXMLException {
         logger.finer("recvResolve()");
+        if (!decodeBody(m))
+            return;
         if (m.getJAXBBody() instanceof ResolveType) {
             logger.fine("Received Resolve for service " +
                     ((ResolveType) m.getJAXBBody()).getEndpointReference().getAddress().getValue());
@@ -377,7 +439,7 @@ public class WsDiscoveryS11DispatchThread extends WsDiscoveryDispatchThread {
                 logger.fine("Service found locally. Sending resolve match.");
 
                 // Service found, send resolve match
-                sendResolveMatch(match, m);
+                sendResolveMatch(match, resolveEndpoint.getAddress(), m);
             } else {
                 if (isProxy) { // We are running in proxy mode. Check full service directory                   
                     match = serviceDirectory.findService(resolveEndpoint);
@@ -386,7 +448,7 @@ public class WsDiscoveryS11DispatchThread extends WsDiscoveryDispatchThread {
                     } else {
                         logger.fine("Service not found. Sending empty resolve match in proxy mode.");
                     }
-                    sendResolveMatch(match, m);
+                    sendResolveMatch(match, resolveEndpoint.getAddress(), m);
                 } else // If in normal mode, just log failure.
                 {
                     logger.fine("Service not found locally. No reply sent.");
@@ -407,34 +469,42 @@ public class WsDiscoveryS11DispatchThread extends WsDiscoveryDispatchThread {
     private void recvProbe(WsDiscoveryS11SOAPMessage m)
             throws WsDiscoveryNetworkException {
         logger.finer("recvProbe()");
+        if (!decodeBody(m))
+            return;
 
         if (m.getJAXBBody() instanceof ProbeType) {
 
             ProbeType probe = (ProbeType) m.getJAXBBody();
             logger.fine("Probe received from " + m.getSrcAddress() + ", port " + m.getSrcPort());
 
-            IWsDiscoveryServiceCollection totalMatches;
             WsDiscoveryScopesType scopes = null;
             if (probe.getScopes() != null)
                 scopes = WsDiscoveryS11Utilities.createWsDiscoveryScopesObject(probe.getScopes());
 
-            if (!isProxy) { // Not in proxy mode; match local services only                
-                try {
-                    totalMatches = localServices.matchBy(probe.getTypes(), scopes);
-                } catch (WsDiscoveryServiceDirectoryException ex) {
-                    throw new WsDiscoveryNetworkException("Unable to get MatchBy-results for received Probe-message.", ex);
-                }
-            } else { // If we are in proxy mode, search full service directory
+            IWsDiscoveryServiceDirectory directory = isProxy ? serviceDirectory : localServices;
+
+            // Without a match cache, matches are added to the reply as they are found
+            if (!directory.getMatchCache().isEnabled()) {
                 try {
-                    totalMatches = serviceDirectory.matchBy(probe.getTypes(), scopes);
-                } catch (WsDiscoveryServiceDirectoryException ex) {
-                    throw new WsDiscoveryNetworkException("Unable to search remote services for match.", ex);
+                    sendProbeMatch(directory, probe.getTypes(), scopes, m);
+                } catch (WsDiscoveryException ex) {
+                    throw new WsDiscoveryNetworkException("Unable to send ProbeMatch", ex);
                 }
+                return;
             }
 
+            // Identical queries are answered from the match cache until the directory changes
+            WsDiscoveryMatchCache.Entry result;
+            try {
+                result = directory.matchByCached(probe.getTypes(), scopes);
+            } catch (WsDiscoveryServiceDirectoryException ex) {
+                throw new WsDiscoveryNetworkException("Unable to get MatchBy-results for received Probe-message.", ex);
+            }
+            IWsDiscoveryServiceCollection totalMatches = result.getServices();
+
             if ((totalMatches.size() > 0) || isProxy) { // Proxy MUST reply with match, even if empty                
                 try {
-                    sendProbeMatch(totalMatches, m);
+                    sendProbeMatch(result, true, m);
                 } catch (WsDiscoveryException ex) {
                     throw new WsDiscoveryNetworkException("Unable to send ProbeMatch", ex);
                 }
@@ -447,18 +517,17 @@ public class WsDiscoveryS11DispatchThread extends WsDiscoveryDispatchThread {
     }
 
     /**
-     * Send Resolve. Only sent every 10 seconds for each service to avoid network floods.
+     * Send Resolve. Only sent every {@link WsDiscoveryConstants#resolveInterval}
+     * milliseconds for each service to avoid network floods.
      * 
      * @param service Service to resolve
      */
     public void sendResolve(WsDiscoveryService service) throws WsDiscoveryXMLException, WsDiscoveryNetworkException {
         logger.finer("sendResolve()");
-        // Return if less than 10 seconds from last time we tried to resolve this service
-        if (service.getTriedToResolve() != null) {
-            if (service.getTriedToResolve().getTime() + 10000 > (new Date()).getTime()) {
-                logger.finer("sendResolve() called too often for service " + service.getEndpointReference().getAddress());
-                return;
-            }
+        // Return if we recently tried to resolve this service
+        if (!resolveLimiter.tryAcquire(service.getEndpointReference().getAddress(), null)) {
+            logger.finer("sendResolve() called too often for service " + service.getEndpointReference().getAddress());
+            return;
         }
 
         logger.finer("sendResolve() Sent Resolve for service " + service.getEndpointReference().getAddress());
@@ -474,27 +543,7 @@ public class WsDiscoveryS11DispatchThread extends WsDiscoveryDispatchThread {
                 WsDiscoveryS11Utilities.createEndpointReferenceTypeObject(service.getEndpointReference()));
 
         // Send multicast in normal mode or unicast in proxy mode
-        if (useProxy) // Unicast
-        {
-            resolve.setTo(remoteProxyService.getEndpointReference().getAddress());
-            try {
-                // Unicast
-                soapOverUDP.send(resolve, useProxyAddress, useProxyPort);
-            } catch (SOAPOverUDPException ex) {
-                throw new WsDiscoveryNetworkException("Unable to send resolve to proxy server.");
-            }
-        } else // Multicast
-        {
-            resolve.setTo(multicastTo);
-            try {
-                // Multicast
-                soapOverUDP.sendMulticast(resolve);
-            } catch (SOAPOverUDPException ex) {
-                throw new WsDiscoveryNetworkException("Unable to send multicast resolve.");
-            }
-        }
-
-        service.setTriedToResolve(new Date());
+        proxySelector.send(resolve.getMessageId(), createProxyRequest(resolve, "resolve"));
     }
 
     /**
@@ -536,11 +585,12 @@ public class WsDiscoveryS11DispatchThread extends WsDiscoveryDispatchThread {
         } catch (SOAPOverUDPException ex) {
             throw new WsDiscoveryXMLException("Unable to create Hello message", ex);
         }
-        if (useProxy) { // managed mode
-            hello.setTo(remoteProxyService.getEndpointReference().getAddress()); // add proxy address as To (MUST)
+        WsDiscoveryProxySelector.Proxy proxy = proxySelector.select();
+        if (proxy != null) { // managed mode
+            hello.setTo(proxy.getEndpointAddress()); // add proxy address as To (MUST)
             hello.setAddAppSequence(false); // SHOULD be false in managed mode
             try {
-                soapOverUDP.send(hello, useProxyAddress, useProxyPort); // unicast to proxy
+                soapOverUDP.send(hello, proxy.getAddress(), proxy.getPort()); // unicast to proxy
             } catch (SOAPOverUDPException ex) {
                 throw new WsDiscoveryNetworkException("Unable to send managed Hello message", ex);
             }
@@ -568,11 +618,12 @@ public class WsDiscoveryS11DispatchThread extends WsDiscoveryDispatchThread {
         } catch (SOAPOverUDPException ex) {
             throw new WsDiscoveryXMLException("Unable to create Bye message", ex);
         }
-        if (useProxy) { // managed mode
-            bye.setTo(remoteProxyService.getEndpointReference().getAddress());
+        WsDiscoveryProxySelector.Proxy proxy = proxySelector.select();
+        if (proxy != null) { // managed mode
+            bye.setTo(proxy.getEndpointAddress());
             bye.setAddAppSequence(false); // SHOULD be false in managed mode
             try {
-                soapOverUDP.send(bye, useProxyAddress, useProxyPort);
+                soapOverUDP.send(bye, proxy.getAddress(), proxy.getPort());
             } catch (SOAPOverUDPException ex) {
                 throw new WsDiscoveryNetworkException("Unable to multicast Bye message in managed mode");
             }
@@ -589,23 +640,25 @@ public class WsDiscoveryS11DispatchThread extends WsDiscoveryDispatchThread {
     }
 
     /**
-     * Send ResolveMatch. Will only be sent once every 10 seconds for each 
-     * service to avoid network floods.
+     * Send ResolveMatch. Will only be sent once every 
+     * {@link WsDiscoveryConstants#resolveMatchInterval} milliseconds for each 
+     * service and requesting host to avoid network floods.
      * 
      * @param matchedService The service that matched the Resolve - may be null.
+     * @param resolvedAddress Endpoint address requested in the Resolve.
      * @param originalMessage Original message as received from transport layer.
      * @param dstAddress Destination address.
      * @param dstPort Destination port.
      */
-    private void sendResolveMatch(WsDiscoveryService matchedService,
+    private void sendResolveMatch(WsDiscoveryService matchedService, URI resolvedAddress,
             WsDiscoveryS11SOAPMessage originalMessage) throws WsDiscoveryXMLException, WsDiscoveryNetworkException {
         
-        // Return if less than 10 seconds since we sent a resolve match for this service to the requesting host
-        if ((matchedService != null) && (matchedService.getTriedToResolve() != null)) {
-            if (matchedService.getTriedToResolve().getTime() + 10000 > (new Date()).getTime()) {
-                logger.finer("sendResolveMatch() called too often for service " + matchedService.getEndpointReference());
-                return;
-            }
+        // Return if we recently replied to a Resolve for this endpoint from the
+        // requesting host. Keyed on the requested address, as empty replies
+        // from a proxy have no matched service.
+        if (!resolveMatchLimiter.tryAcquire(resolvedAddress, originalMessage.getSrcAddress())) {
+            logger.finer("sendResolveMatch() called too often for service " + resolvedAddress + " and host " + originalMessage.getSrcAddress());
+            return;
         }
 
         // Send resolve match
@@ -616,7 +669,7 @@ public class WsDiscoveryS11DispatchThread extends WsDiscoveryDispatchThread {
             throw new WsDiscoveryXMLException("Unable to create ResolveMatches message", ex);
         }
         
-        m.setAddAppSequence(!useProxy); // SHOULD be false in managed mode
+        m.setAddAppSequence(!isUsingProxy()); // SHOULD be false in managed mode
 
         // RelatesTo must contain the original MessageID
         m.setRelatesTo(originalMessage.getMessageId());
@@ -627,38 +680,24 @@ public class WsDiscoveryS11DispatchThread extends WsDiscoveryDispatchThread {
         } else
             m.setTo(SOAPOverUDPWsAddressingNamespaces.WS_ADDRESSING_2005_08.getAnonymousReplyTo());
 
-        ResolveMatchType match = null;
-        if (matchedService != null) {
-            match = new ResolveMatchType();
-
-            match.setEndpointReference(WsDiscoveryS11Utilities.createEndpointReferenceTypeObject(matchedService.getEndpointReference()));
-            match.setMetadataVersion(matchedService.getMetadataVersion());
-            match.setScopes(WsDiscoveryS11Utilities.createScopesObject(matchedService));
-            match.getTypes().addAll(matchedService.getPortTypes());
-            match.getXAddrs().addAll(matchedService.getXAddrs());
-
-            m.getJAXBBody().setResolveMatch(match);
-        }
+        if (matchedService != null)
+            m.getJAXBBody().setResolveMatch(WsDiscoveryS11Utilities.createResolveMatchTypeObject(matchedService));
         try {
             // Try to send to the port/address set by ReplyTo. If it is not set, we default to srcPort/address
             soapOverUDP.send(m, originalMessage.getReplyAddress(), originalMessage.getReplyPort());
-            // Store time
-            matchedService.setSentResolveMatch(originalMessage.getSrcAddress());
         } catch (SOAPOverUDPException ex) {
             throw new WsDiscoveryNetworkException("Unable to send ResolveMatch", ex);
         }
     }
 
     /**
-     * Send unicast ProbeMatch for all services in "matches". 
-     * 
-     * @param matches Services to include in ProbeMatch.
-     * @param originalMessage Original message as received from transport layer.
-     * @param dstAddress Destination address.
-     * @param dstPort Destination port.
+     * Create an empty ProbeMatches message replying to a Probe.
+     *
+     * @param originalMessage Probe as received from transport layer.
+     * @return ProbeMatches message without matches.
      */
-    private void sendProbeMatch(IWsDiscoveryServiceCollection matches,
-            WsDiscoveryS11SOAPMessage originalMessage) throws WsDiscoveryException {
+    private WsDiscoveryS11SOAPMessage<ProbeMatchesType> createProbeMatches(WsDiscoveryS11SOAPMessage originalMessage)
+            throws WsDiscoveryException {
         
         // Create probe match
         WsDiscoveryS11SOAPMessage<ProbeMatchesType> m;
@@ -671,19 +710,43 @@ public class WsDiscoveryS11DispatchThread extends WsDiscoveryDispatchThread {
         // RelatesTo must contain the original MessageID
         m.setRelatesTo(originalMessage.getMessageId());
        
-        m.setAddAppSequence(!useProxy); // MUST be included in ad-hoc, SHOULD not be included in managed (using http)
+        m.setAddAppSequence(!isUsingProxy()); // MUST be included in ad-hoc, SHOULD not be included in managed (using http)
 
-        for (WsDiscoveryService service : matches) {
-            ProbeMatchType match = new ProbeMatchType();
+        return m;
+    }
 
-            match.setEndpointReference(WsDiscoveryS11Utilities.createEndpointReferenceTypeObject(service.getEndpointReference()));
-            match.setMetadataVersion(service.getMetadataVersion());
-            match.setScopes(WsDiscoveryS11Utilities.createScopesObject(service));
-            match.getTypes().addAll(service.getPortTypes());
-            match.getXAddrs().addAll(service.getXAddrs());
+    /**
+     * Send unicast ProbeMatch for all services in "matches". 
+     * 
+     * @param matches Services to include in ProbeMatch.
+     * @param originalMessage Original message as received from transport layer.
+     * @param dstAddress Destination address.
+     * @param dstPort Destination port.
+     */
+    private void sendProbeMatch(WsDiscoveryMatchCache.Entry result, boolean cached,
+            WsDiscoveryS11SOAPMessage originalMessage) throws WsDiscoveryException {
+        WsDiscoveryS11SOAPMessage<ProbeMatchesType> m = createProbeMatches(originalMessage);
+
+        IWsDiscoveryServiceCollection matches = result.getServices();
 
-            m.getJAXBBody().getProbeMatch().add(match);
+        // Reuse the body encoded for an earlier reply to the same query
+        Document encodedBody = null;
+        if (cached && WsDiscoveryConstants.matchCacheEncodedReplies)
+            encodedBody = (Document) result.getAttachment(WsDiscoveryNamespaces.WS_DISCOVERY_2009_01);
+
+        if (encodedBody == null) {
+            for (WsDiscoveryService service : matches)
+                m.getJAXBBody().getProbeMatch().add(WsDiscoveryS11Utilities.createProbeMatchTypeObject(service));
+
+            if (cached && WsDiscoveryConstants.matchCacheEncodedReplies) {
+                encodedBody = m.encodeJAXBBody();
+                result.setAttachment(WsDiscoveryNamespaces.WS_DISCOVERY_2009_01, encodedBody);
+            }
         }
+
+        if (encodedBody != null)
+            m.setEncodedBody(encodedBody);
+
         
         try {
             logger.fine("ProbeMatches sent with " + matches.size() + " matches to " + originalMessage.getReplyAddress() + ":" + originalMessage.getReplyPort());
@@ -693,6 +756,41 @@ public class WsDiscoveryS11DispatchThread extends WsDiscoveryDispatchThread {
         }
     }
 
+    /**
+     * Send unicast ProbeMatch for the services in <code>directory</code> 
+     * matching a Probe. The matches are added to the reply as the directory 
+     * finds them, without collecting them first. Nothing is sent if no 
+     * services match, unless running in proxy mode.
+     *
+     * @param directory Service directory to search.
+     * @param types Types in Probe.
+     * @param scopes Scopes in Probe.
+     * @param originalMessage Original message as received from transport layer.
+     */
+    private void sendProbeMatch(IWsDiscoveryServiceDirectory directory, List<QName> types,
+            WsDiscoveryScopesType scopes, WsDiscoveryS11SOAPMessage originalMessage) throws WsDiscoveryException {
+        final WsDiscoveryS11SOAPMessage<ProbeMatchesType> m = createProbeMatches(originalMessage);
+
+        int count = directory.visit(types, scopes, 0, new IWsDiscoveryServiceVisitor() {
+            public boolean visit(WsDiscoveryService service) {
+                m.getJAXBBody().getProbeMatch().add(WsDiscoveryS11Utilities.createProbeMatchTypeObject(service));
+                return true;
+            }
+        });
+
+        if ((count == 0) && !isProxy) { // Proxy MUST reply with match, even if empty
+            logger.fine("ProbeMatches NOT found. No reply sent.");
+            return;
+        }
+
+        try {
+            logger.fine("ProbeMatches sent with " + count + " matches to " + originalMessage.getReplyAddress() + ":" + originalMessage.getReplyPort());
+            soapOverUDP.send(m, originalMessage.getReplyAddress(), originalMessage.getReplyPort());            
+        } catch (SOAPOverUDPException ex) {
+            throw new WsDiscoveryNetworkException("Unable to send ProbeMatch",ex);
+        }
+    }
+
     /**
      * Dispatcher. Should be called from the while-loop in run().
      * 
@@ -700,20 +798,46 @@ public class WsDiscoveryS11DispatchThread extends WsDiscoveryDispatchThread {
      */
     protected void dispatch() throws InterruptedException, WsDiscoveryException {
 
-        WsDiscoveryS11SOAPMessage message;
+        ISOAPOverUDPMessage m;
         try {
-            ISOAPOverUDPMessage m = soapOverUDP.recv(1000);
-            if (m == null) // recv() timed out
-                return;
-            message = new WsDiscoveryS11SOAPMessage(m);
+            m = soapOverUDP.recv(getRecvTimeout());
         } catch (SOAPOverUDPException ex) {
             throw new WsDiscoveryNetworkException("Unable to receive message from SOAPOverUDP", ex);
         }
 
-        if (message == null) {
+        if (m == null) // recv() timed out
             return;
+
+        dispatch(m);
+    }
+
+    /**
+     * Handle one message received from the transport layer.
+     *
+     * @param m Received message.
+     * @throws wsdiscovery.network.exception.WsDiscoveryNetworkException on errors.
+     */
+    protected void dispatch(ISOAPOverUDPMessage m) throws WsDiscoveryException {
+
+        WsDiscoveryS11SOAPMessage message;
+        try {
+            message = new WsDiscoveryS11SOAPMessage(m);
+        } catch (SOAPOverUDPException ex) {
+            throw new WsDiscoveryNetworkException("Unable to parse message from SOAPOverUDP", ex);
         }
 
+        dispatch(message);
+    }
+
+    /**
+     * Route a received message on its action and pass it to the handler. The
+     * body is not unmarshalled here, so messages that are dropped are never decoded.
+     *
+     * @param message Received message with parsed headers.
+     * @throws wsdiscovery.network.exception.WsDiscoveryNetworkException on errors.
+     */
+    protected void dispatch(WsDiscoveryS11SOAPMessage message) throws WsDiscoveryException {
+
         // Was message sent multicast or unicast?
         boolean isMulticast = (message.getDstAddress().equals(soapOverUDP.getTransport().getMulticastAddress()) ||
                 (message.getDstPort() == soapOverUDP.getTransport().getMulticastPort()));
@@ -729,41 +853,130 @@ public class WsDiscoveryS11DispatchThread extends WsDiscoveryDispatchThread {
             return;
         }
 
-        // HELLO
-        if (message.getJAXBBody() == null) {
-            logger.fine("Received empty message (JAXB did not return data)");
-        } else
-        if (message.getJAXBBody() instanceof HelloType) {
-            recvHello(message); // Add new service, even when using proxy
-        } else // PROBE
-        if (message.getJAXBBody() instanceof ProbeType) {
-            if (isMulticast && isProxy) { // Respond to multicast probes with unicast proxy announcement
-                logger.fine("Sending proxy announce in response to multicast Probe with MessageID: " + message.getMessageId());
-                sendProxyAnnounce(message);
+        // Route on the WS-Addressing action. The body is not unmarshalled
+        // until we know that we are going to handle the message.
+        WsDiscoveryActionTypes action = message.getActionType();
+        if (action == null) {
+            logger.fine("Dropped message with unknown action " + message.getAction());
+            return;
+        }
+
+        // Drop stale and out-of-order announcements before they reach the service directory
+        if (((action == WsDiscoveryActionTypes.HELLO) || (action == WsDiscoveryActionTypes.BYE) ||
+                (action == WsDiscoveryActionTypes.PROBEMATCHES)) && message.hasReceivedAppSequence()) {
+            if (!appSequenceFilter.accept(message.getInstanceId(), message.getSequenceId(), message.getMessageNumber())) {
+                logger.fine("Dropped stale " + action + " with MessageID " + message.getMessageId() +
+                        " (MessageNumber " + message.getMessageNumber() + ")");
+                return;
             }
-            recvProbe(message);
-        } else // PROBE MATCHES
-        if (message.getJAXBBody() instanceof ProbeMatchesType) {
-            recvProbeMatches(message); // Add services from probe matches
-        } else // RESOLVE
-        if (message.getJAXBBody() instanceof ResolveType) {
-            if (isMulticast && isProxy) { // Respond to multicast resolves with unicast proxy announcement
-                logger.fine("Sending proxy announce in response to multicast Resolve with MessageID " + message.getMessageId());
-                sendProxyAnnounce(message);
+        }
+
+        // Drop announcements we would not use
+        if (isUnwanted(action, message)) {
+            logger.finer("Dropped " + action + " with MessageID " + message.getMessageId() + " (not storing remote services)");
+            return;
+        }
+
+        // Respond to multicast probes and resolves with unicast proxy announcement
+        if (isMulticast && isProxy &&
+                ((action == WsDiscoveryActionTypes.PROBE) || (action == WsDiscoveryActionTypes.RESOLVE))) {
+            logger.fine("Sending proxy announce in response to multicast " + action + " with MessageID " + message.getMessageId());
+            sendProxyAnnounce(message);
+        }
+
+        // Probes are answered in parallel. Other messages are handled in the 
+        // order they were received from each sender, so that a Bye is not 
+        // overtaken by an earlier Hello for the same service. The key is taken
+        // from the headers, as the body is only unmarshalled by the handlers.
+        final WsDiscoveryS11SOAPMessage handledMessage = message;
+        final WsDiscoveryActionTypes handledAction = action;
+        Object orderKey = (action == WsDiscoveryActionTypes.PROBE ? null : message.getSrcAddress());
+
+        dispatchHandler(orderKey, new Runnable() {
+            public void run() {
+                try {
+                    handle(handledMessage, handledAction);
+                } catch (WsDiscoveryException ex) {
+                    logger.severe(ex.getMessage());
+                    ex.printStackTrace();
+                } catch (RuntimeException ex) {
+                    logger.severe(ex.getMessage());
+                    ex.printStackTrace();
+                }
             }
-            recvResolve(message); // Send resolve match
-        } else // RESOLVE MATCHES
-        if (message.getJAXBBody() instanceof ResolveMatchesType) {
-            recvResolveMatches(message); // Add updates from resolve matches
-        } else // BYE
-        if (message.getJAXBBody() instanceof ByeType) {
-            recvBye(message); // Remove service
-        } else {
-            throw new WsDiscoveryNetworkException("Don't know how to handle message with element " + message.getJAXBBody().getClass().getName());
+        });
+    }
+
+    /**
+     * Pass a received message to the handler for its action. The handlers 
+     * unmarshal the body. Called from dispatch(), either directly or via the 
+     * dispatch executor.
+     *
+     * @param message Received message.
+     * @param action Action of the message.
+     * @throws WsDiscoveryException on failure.
+     */
+    protected void handle(WsDiscoveryS11SOAPMessage message, WsDiscoveryActionTypes action) throws WsDiscoveryException {
+        switch (action) {
+            case HELLO:
+                recvHello(message); // Add new service, even when using proxy
+                break;
+            case PROBE:
+                recvProbe(message);
+                break;
+            case PROBEMATCHES:
+                recvProbeMatches(message); // Add services from probe matches
+                break;
+            case RESOLVE:
+                recvResolve(message); // Send resolve match
+                break;
+            case RESOLVEMATCHES:
+                recvResolveMatches(message); // Add updates from resolve matches
+                break;
+            case BYE:
+                recvBye(message); // Remove service
+                break;
         }
 
     }
 
+    /**
+     * Check that a Hello or Bye is not from an older instance of the service 
+     * than one we have already heard from, i.e. sent before it restarted.
+     *
+     * @param m Received message.
+     * @param endpoint Endpoint address of the service. May be null.
+     * @return False if the message should be dropped.
+     */
+    private boolean isFromCurrentInstance(WsDiscoveryS11SOAPMessage m, URI endpoint) {
+        if (!m.hasReceivedAppSequence() || appSequenceFilter.acceptInstance(endpoint, m.getInstanceId()))
+            return true;
+        logger.fine("Dropped " + m.getActionType() + " for " + endpoint + " from an older instance (InstanceId " + m.getInstanceId() + ")");
+        return false;
+    }
+
+    /**
+     * Unmarshal the body of a received message. Called by the handlers before
+     * they read the body.
+     *
+     * @param m Received message.
+     * @return False if the body was empty.
+     * @throws WsDiscoveryNetworkException if the body could not be unmarshalled.
+     */
+    private boolean decodeBody(WsDiscoveryS11SOAPMessage m) throws WsDiscoveryNetworkException {
+        try {
+            m.decodeJAXBBody();
+        } catch (WsDiscoveryException ex) {
+            throw new WsDiscoveryNetworkException("Unable to unmarshal body of message " + m.getMessageId(), ex);
+        }
+
+        if (m.getJAXBBody() == null) {
+            logger.fine("Received empty message (JAXB did not return data)");
+            return false;
+        }
+        return true;
+    }
+
     public MatchBy getDefaultMatchBy() {
         return WsDiscoveryS11Utilities.getDefaultMatchBy();
     }
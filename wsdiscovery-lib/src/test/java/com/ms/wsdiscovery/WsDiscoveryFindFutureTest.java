@@ -0,0 +1,177 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.ms.wsdiscovery;
+
+import com.ms.wsdiscovery.common.WsDiscoveryProbeTracker;
+import com.ms.wsdiscovery.interfaces.IWsDiscoveryProbeMatchesListener;
+import com.ms.wsdiscovery.interfaces.IWsDiscoveryServer;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.xml.namespace.QName;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author magnus
+ */
+public class WsDiscoveryFindFutureTest {
+
+    private QName portType;
+    private WsDiscoveryProbeTracker tracker;
+    private IWsDiscoveryServer server;
+    private URI messageId;
+
+    public WsDiscoveryFindFutureTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+    }
+
+    @Before
+    public void setUp() {
+        portType = new QName("http://localhost/portType", "localPart", "ns");
+        tracker = new WsDiscoveryProbeTracker();
+        messageId = URI.create("urn:uuid:00000000-0000-0000-0000-000000000001");
+        // Only removeProbeListener() is used by the future
+        server = (IWsDiscoveryServer) Proxy.newProxyInstance(IWsDiscoveryServer.class.getClassLoader(),
+                new Class[] { IWsDiscoveryServer.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("removeProbeListener"))
+                    tracker.remove((IWsDiscoveryProbeMatchesListener) args[0]);
+                return null;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    private List<WsDiscoveryService> createServices(int count) {
+        List<WsDiscoveryService> res = new ArrayList<WsDiscoveryService>();
+        for (int i = 0; i < count; i++)
+            res.add(WsDiscoveryFactory.createService(portType, "http://www.test.com/a", "http://10.0.0.1:1234/" + i));
+        return res;
+    }
+
+    /**
+     * Test that the future completes after maxResults services.
+     */
+    @Test
+    public void testMaxResults() throws Exception {
+        System.out.println("maxResults");
+        WsDiscoveryFindFuture instance = new WsDiscoveryFindFuture(server, 3, 0, 0, null);
+        tracker.track(messageId, instance);
+
+        List<WsDiscoveryService> first = createServices(2);
+        assertTrue(tracker.matched(messageId, first));
+        assertTrue(tracker.matched(messageId, first)); // duplicates are ignored
+        assertFalse(instance.isDone());
+        assertFalse(tracker.matched(URI.create("urn:uuid:other"), first));
+
+        assertTrue(tracker.matched(messageId, createServices(2)));
+        assertTrue(instance.isDone());
+        assertEquals(3, instance.get().size());
+        assertEquals(0, tracker.size());
+    }
+
+    /**
+     * Test that the future completes after a quiet period or timeout.
+     */
+    @Test
+    public void testQuietPeriodAndTimeout() throws Exception {
+        System.out.println("quietPeriodAndTimeout");
+        WsDiscoveryFindFuture instance = new WsDiscoveryFindFuture(server, 0, 50, 0, null);
+        tracker.track(messageId, instance);
+
+        try {
+            instance.get(100, TimeUnit.MILLISECONDS); // Quiet period starts at the first result
+            fail("Expected TimeoutException");
+        } catch (TimeoutException ex) {
+        }
+
+        tracker.matched(messageId, createServices(1));
+        assertEquals(1, instance.get(1, TimeUnit.SECONDS).size());
+
+        instance = new WsDiscoveryFindFuture(server, 0, 0, 50, null);
+        assertEquals(0, instance.get(1, TimeUnit.SECONDS).size());
+    }
+
+    /**
+     * Test that results are streamed to the result listener.
+     */
+    @Test
+    public void testResultListener() throws Exception {
+        System.out.println("resultListener");
+        final List<WsDiscoveryService> streamed = new ArrayList<WsDiscoveryService>();
+        WsDiscoveryFindFuture instance = new WsDiscoveryFindFuture(server, 0, 0, 0, new IWsDiscoveryProbeMatchesListener() {
+            public void probeMatched(URI relatesTo, List<WsDiscoveryService> services) {
+                streamed.addAll(services);
+            }
+        });
+        tracker.track(messageId, instance);
+
+        List<WsDiscoveryService> services = createServices(2);
+        tracker.matched(messageId, services);
+        tracker.matched(messageId, services);
+        assertEquals(2, streamed.size());
+
+        assertTrue(instance.cancel(false));
+        assertTrue(instance.isCancelled());
+        assertEquals(0, tracker.size());
+    }
+
+    /**
+     * Test that a future nobody waits for stops receiving results at its
+     * deadline and is no longer tracked.
+     */
+    @Test
+    public void testExpire() throws Exception {
+        System.out.println("expire");
+        final List<WsDiscoveryService> streamed = new ArrayList<WsDiscoveryService>();
+        WsDiscoveryFindFuture instance = new WsDiscoveryFindFuture(server, 0, 0, 50, new IWsDiscoveryProbeMatchesListener() {
+            public void probeMatched(URI relatesTo, List<WsDiscoveryService> services) {
+                streamed.addAll(services);
+            }
+        });
+        tracker.track(messageId, instance);
+        tracker.matched(messageId, createServices(1));
+        assertEquals(1, streamed.size());
+
+        Thread.sleep(100);
+        tracker.matched(messageId, createServices(2));
+        assertEquals(1, streamed.size());
+        assertEquals(0, tracker.size());
+
+        // Expired by the dispatch thread without any further ProbeMatches
+        instance = new WsDiscoveryFindFuture(server, 0, 0, 50, null);
+        tracker.track(messageId, instance);
+        tracker.expire(System.currentTimeMillis());
+        assertEquals(1, tracker.size());
+
+        Thread.sleep(100);
+        tracker.expire(System.currentTimeMillis() + 1000);
+        assertEquals(0, tracker.size());
+        assertTrue(instance.isDone());
+    }
+}
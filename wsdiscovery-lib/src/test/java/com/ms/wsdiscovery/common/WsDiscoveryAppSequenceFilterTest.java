@@ -0,0 +1,113 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.ms.wsdiscovery.common;
+
+import java.net.URI;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author magnus
+ */
+public class WsDiscoveryAppSequenceFilterTest {
+
+    private WsDiscoveryAppSequenceFilter instance;
+    private String sequenceId;
+
+    public WsDiscoveryAppSequenceFilterTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+    }
+
+    @Before
+    public void setUp() {
+        instance = new WsDiscoveryAppSequenceFilter(2);
+        sequenceId = "urn:uuid:9b2ba1f4-0000-4b4f-8cfe-1c6aa0e1a7f0";
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Test of accept method, of class WsDiscoveryAppSequenceFilter.
+     */
+    @Test
+    public void testAccept() {
+        System.out.println("accept");
+
+        assertEquals(true, instance.accept(1, sequenceId, 5));
+        assertEquals(true, instance.accept(1, sequenceId, 6));
+        assertEquals(false, instance.accept(1, sequenceId, 6)); // retransmission
+        assertEquals(false, instance.accept(1, sequenceId, 4)); // out of order
+        assertEquals(true, instance.accept(1, null, 1)); // other sender
+        assertEquals(true, instance.accept(2, sequenceId, 1)); // other instance
+        assertEquals(2, instance.getRejectedCount());
+    }
+
+    /**
+     * Test of acceptInstance method, of class WsDiscoveryAppSequenceFilter.
+     */
+    @Test
+    public void testAcceptInstance() {
+        System.out.println("acceptInstance");
+        URI endpoint = URI.create("urn:uuid:00000000-0000-0000-0000-000000000001");
+
+        assertEquals(true, instance.acceptInstance(endpoint, 1));
+        assertEquals(true, instance.acceptInstance(endpoint, 1)); // same instance
+        assertEquals(true, instance.acceptInstance(endpoint, 2)); // restarted
+        assertEquals(false, instance.acceptInstance(endpoint, 1)); // sent before the restart
+        assertEquals(true, instance.acceptInstance(URI.create("urn:uuid:00000000-0000-0000-0000-000000000002"), 1));
+        assertEquals(true, instance.acceptInstance(null, 0));
+        assertEquals(1, instance.getRejectedCount());
+
+        // Late message from the old instance, with a new MessageNumber
+        assertEquals(true, instance.accept(1, sequenceId, 7));
+        assertEquals(false, instance.acceptInstance(endpoint, 1));
+    }
+
+    /**
+     * Test of eviction, of class WsDiscoveryAppSequenceFilter.
+     */
+    @Test
+    public void testEviction() {
+        System.out.println("eviction");
+
+        instance.accept(1, sequenceId, 5);
+        instance.accept(2, sequenceId, 5);
+        instance.accept(1, sequenceId, 6); // sender 1 is now most recently seen
+        instance.accept(3, sequenceId, 5); // evicts sender 2
+
+        assertEquals(2, instance.size());
+        assertEquals(1, instance.getEvictedCount());
+        assertEquals(false, instance.accept(1, sequenceId, 6));
+        assertEquals(true, instance.accept(2, sequenceId, 5)); // forgotten
+    }
+
+    /**
+     * Test of accept method with the filter disabled.
+     */
+    @Test
+    public void testDisabled() {
+        System.out.println("disabled");
+        instance = new WsDiscoveryAppSequenceFilter(0);
+        assertEquals(true, instance.accept(1, sequenceId, 5));
+        assertEquals(true, instance.accept(1, sequenceId, 5));
+        assertEquals(0, instance.size());
+    }
+
+}
@@ -0,0 +1,156 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.ms.wsdiscovery.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author magnus
+ */
+public class WsDiscoveryDispatchExecutorTest {
+
+    private ExecutorService pool;
+    private WsDiscoveryDispatchExecutor instance;
+
+    public WsDiscoveryDispatchExecutorTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+    }
+
+    @Before
+    public void setUp() {
+        pool = Executors.newFixedThreadPool(4);
+        instance = new WsDiscoveryDispatchExecutor(pool, 4);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Test of execute method, of class WsDiscoveryDispatchExecutor. Handlers 
+     * with the same key run one at a time in the order they were submitted.
+     */
+    @Test
+    public void testExecuteOrdered() throws Exception {
+        System.out.println("executeOrdered");
+        final List<Integer> order = new ArrayList<Integer>();
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(200);
+
+        for (int i = 0; i < 200; i++) {
+            final int n = i;
+            instance.execute("urn:uuid:endpoint", new Runnable() {
+                public void run() {
+                    if (running.incrementAndGet() > 1)
+                        overlaps.incrementAndGet();
+                    synchronized (order) {
+                        order.add(n);
+                    }
+                    Thread.yield();
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, overlaps.get());
+        for (int i = 0; i < 200; i++)
+            assertEquals(i, order.get(i).intValue());
+    }
+
+    /**
+     * Test of execute method, of class WsDiscoveryDispatchExecutor. Handlers
+     * in different lanes, or without a key, run in parallel.
+     */
+    @Test
+    public void testExecuteParallel() throws Exception {
+        System.out.println("executeParallel");
+        final CountDownLatch started = new CountDownLatch(3);
+        final CountDownLatch done = new CountDownLatch(3);
+
+        // Each handler waits for the others, so they must run at the same time
+        Runnable handler = new Runnable() {
+            public void run() {
+                started.countDown();
+                try {
+                    if (started.await(10, TimeUnit.SECONDS))
+                        done.countDown();
+                } catch (InterruptedException ex) {
+                }
+            }
+        };
+
+        instance.execute(Integer.valueOf(0), handler); // lane 0
+        instance.execute(Integer.valueOf(1), handler); // lane 1
+        instance.execute(null, handler);
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Test of execute method, of class WsDiscoveryDispatchExecutor. A lane is
+     * usable again after the executor has rejected a handler, also when other
+     * handlers were queued while it was being scheduled.
+     */
+    @Test
+    public void testExecuteRejected() throws Exception {
+        System.out.println("executeRejected");
+        final AtomicInteger ran = new AtomicInteger();
+        final Runnable handler = new Runnable() {
+            public void run() {
+                ran.incrementAndGet();
+            }
+        };
+        final boolean[] reject = new boolean[] { true };
+        final WsDiscoveryDispatchExecutor[] rejecting = new WsDiscoveryDispatchExecutor[1];
+        rejecting[0] = new WsDiscoveryDispatchExecutor(new Executor() {
+            public void execute(Runnable command) {
+                if (reject[0]) {
+                    // Another handler for the lane arrives meanwhile
+                    rejecting[0].execute("key", handler);
+                    throw new RejectedExecutionException("rejected");
+                }
+                command.run();
+            }
+        }, 1);
+
+        try {
+            rejecting[0].execute("key", handler);
+            fail("Rejection not passed on");
+        } catch (RejectedExecutionException ex) {
+        }
+        assertEquals(0, ran.get());
+
+        reject[0] = false;
+        rejecting[0].execute("key", handler);
+        assertEquals(1, ran.get());
+    }
+}
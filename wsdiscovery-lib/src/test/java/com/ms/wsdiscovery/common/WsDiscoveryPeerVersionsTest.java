@@ -0,0 +1,89 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.ms.wsdiscovery.common;
+
+import com.ms.wsdiscovery.datatypes.WsDiscoveryNamespaces;
+import java.net.InetAddress;
+import java.util.List;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author magnus
+ */
+public class WsDiscoveryPeerVersionsTest {
+
+    private WsDiscoveryPeerVersions instance;
+    private InetAddress peer1;
+    private InetAddress peer2;
+
+    public WsDiscoveryPeerVersionsTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        instance = new WsDiscoveryPeerVersions(1, 1000);
+        peer1 = InetAddress.getByName("10.0.0.1");
+        peer2 = InetAddress.getByName("10.0.0.2");
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Test of getVersions method, of class WsDiscoveryPeerVersions.
+     */
+    @Test
+    public void testGetVersions() {
+        System.out.println("getVersions");
+
+        instance.heard(peer1, WsDiscoveryNamespaces.WS_DISCOVERY_2005_04, 10);
+        instance.heard(peer1, WsDiscoveryNamespaces.WS_DISCOVERY_2009_01, 20);
+
+        List<WsDiscoveryNamespaces> result = instance.getVersions(peer1);
+        assertEquals(2, result.size());
+        assertEquals(WsDiscoveryNamespaces.WS_DISCOVERY_2009_01, result.get(0));
+
+        instance.heard(peer2, WsDiscoveryNamespaces.WS_DISCOVERY_2005_04, 30); // peer1 is evicted
+        assertEquals(1, instance.size());
+        assertEquals(0, instance.getVersions(peer1).size());
+    }
+
+    /**
+     * Test of getPresentVersions method, of class WsDiscoveryPeerVersions.
+     */
+    @Test
+    public void testGetPresentVersions() {
+        System.out.println("getPresentVersions");
+
+        assertEquals(0, instance.getPresentVersions(0).size());
+
+        instance.heard(peer1, WsDiscoveryNamespaces.WS_DISCOVERY_2009_01, 100);
+        instance.heard(peer2, WsDiscoveryNamespaces.WS_DISCOVERY_2005_04, 500);
+
+        List<WsDiscoveryNamespaces> result = instance.getPresentVersions(1000);
+        assertEquals(2, result.size());
+        assertEquals(WsDiscoveryNamespaces.WS_DISCOVERY_2005_04, result.get(0));
+
+        result = instance.getPresentVersions(1200); // 2009/01 not heard for too long
+        assertEquals(1, result.size());
+        assertEquals(WsDiscoveryNamespaces.WS_DISCOVERY_2005_04, result.get(0));
+    }
+}
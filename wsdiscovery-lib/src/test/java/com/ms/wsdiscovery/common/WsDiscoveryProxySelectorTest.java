@@ -0,0 +1,226 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.ms.wsdiscovery.common;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.WsDiscoveryFactory;
+import com.ms.wsdiscovery.exception.WsDiscoveryNetworkException;
+import com.ms.wsdiscovery.interfaces.IWsDiscoveryProxyRequest;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import java.net.InetAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.namespace.QName;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author magnus
+ */
+public class WsDiscoveryProxySelectorTest {
+
+    private long proxyReplyTimeout;
+    private int proxyMaxFailures;
+    private long proxyRetryInterval;
+
+    private InetAddress address1;
+    private InetAddress address2;
+    private WsDiscoveryService proxy1;
+    private WsDiscoveryService proxy2;
+
+    public WsDiscoveryProxySelectorTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        proxyReplyTimeout = WsDiscoveryConstants.proxyReplyTimeout;
+        proxyMaxFailures = WsDiscoveryConstants.proxyMaxFailures;
+        proxyRetryInterval = WsDiscoveryConstants.proxyRetryInterval;
+        WsDiscoveryConstants.proxyReplyTimeout = 1000;
+        WsDiscoveryConstants.proxyMaxFailures = 2;
+        WsDiscoveryConstants.proxyRetryInterval = 30000;
+
+        address1 = InetAddress.getByAddress(new byte[] {10, 0, 0, 1});
+        address2 = InetAddress.getByAddress(new byte[] {10, 0, 0, 2});
+        QName portType = new QName("http://example.com", "proxy");
+        proxy1 = WsDiscoveryFactory.createService(portType, "http://www.test.com/a", "http://10.0.0.1:3702/");
+        proxy2 = WsDiscoveryFactory.createService(portType, "http://www.test.com/a", "http://10.0.0.2:3702/");
+    }
+
+    @After
+    public void tearDown() {
+        WsDiscoveryConstants.proxyReplyTimeout = proxyReplyTimeout;
+        WsDiscoveryConstants.proxyMaxFailures = proxyMaxFailures;
+        WsDiscoveryConstants.proxyRetryInterval = proxyRetryInterval;
+    }
+
+    private static URI messageId(int i) {
+        return URI.create("urn:uuid:10000000-0000-0000-0000-00000000000" + i);
+    }
+
+    /**
+     * Records where a request was sent.
+     */
+    private static class Recorder implements IWsDiscoveryProxyRequest {
+        final List<String> sent = new ArrayList<String>();
+        boolean fail = false;
+
+        public void sendTo(WsDiscoveryProxySelector.Proxy proxy) throws WsDiscoveryNetworkException {
+            sent.add(proxy.getAddress().getHostAddress());
+            if (fail)
+                throw new WsDiscoveryNetworkException("Unable to send");
+        }
+
+        public void sendMulticast() throws WsDiscoveryNetworkException {
+            sent.add("multicast");
+        }
+    }
+
+    /**
+     * Test of select method, of class WsDiscoveryProxySelector.
+     */
+    @Test
+    public void testSelect() throws Exception {
+        System.out.println("select");
+        WsDiscoveryProxySelector instance = new WsDiscoveryProxySelector(16, 1024);
+        assertNull(instance.select());
+
+        instance.heard(proxy1, address1, 3702);
+        instance.heard(proxy2, address2, 3702);
+        assertEquals(2, instance.getProxies().size());
+
+        // Unmeasured proxies are tried first, the most recently heard on ties
+        Recorder r = new Recorder();
+        instance.send(messageId(1), r, 0);
+        instance.replied(messageId(1), address2, 200);
+        instance.send(messageId(2), r, 1000);
+        instance.replied(messageId(2), address1, 1050);
+        assertEquals(0, instance.getPendingRequests());
+
+        WsDiscoveryProxySelector.Proxy p = instance.select();
+        assertEquals(address1, p.getAddress());
+        assertEquals(50, p.getRoundTripTime());
+
+        // Smoothed round-trip time
+        instance.send(messageId(3), r, 2000);
+        instance.replied(messageId(3), address1, 2450);
+        assertEquals(100, p.getRoundTripTime());
+        assertEquals(address1, instance.select().getAddress());
+
+        instance.send(messageId(4), r, 3000);
+        assertEquals(address2, instance.getProxies().get(1).getAddress());
+        assertEquals("[10.0.0.2, 10.0.0.1, 10.0.0.1, 10.0.0.1]", r.sent.toString());
+    }
+
+    /**
+     * Test of expire method, of class WsDiscoveryProxySelector.
+     */
+    @Test
+    public void testExpire() throws Exception {
+        System.out.println("expire");
+        WsDiscoveryProxySelector instance = new WsDiscoveryProxySelector(16, 1024);
+        assertEquals(Long.MAX_VALUE, instance.getNextDeadline());
+        instance.heard(proxy1, address1, 3702);
+        instance.heard(proxy2, address2, 3702);
+
+        Recorder r = new Recorder();
+        instance.send(messageId(1), r, 0);
+        assertEquals(1000, instance.getNextDeadline());
+
+        instance.expire(999);
+        assertEquals(1, r.sent.size());
+
+        // Second proxy, then multicast
+        instance.expire(1000);
+        assertEquals(2000, instance.getNextDeadline());
+        instance.expire(2000);
+        assertEquals("[10.0.0.2, 10.0.0.1, multicast]", r.sent.toString());
+        assertEquals(0, instance.getPendingRequests());
+
+        // A late reply is ignored, but shows that the proxy is up
+        instance.replied(messageId(1), address2, 2100);
+        assertEquals(0, instance.getProxies().get(1).getFailures());
+        assertEquals(-1, instance.getProxies().get(1).getRoundTripTime());
+
+        // Failed unicast is failed over at the next expire()
+        Recorder failing = new Recorder();
+        failing.fail = true;
+        instance.send(messageId(2), failing, 3000);
+        assertEquals(3000, instance.getNextDeadline());
+        failing.fail = false;
+        instance.expire(3000);
+        assertEquals("[10.0.0.2, 10.0.0.1]", failing.sent.toString());
+    }
+
+    /**
+     * Test of proxies going down and up, of class WsDiscoveryProxySelector.
+     */
+    @Test
+    public void testDown() throws Exception {
+        System.out.println("down");
+        WsDiscoveryProxySelector instance = new WsDiscoveryProxySelector(16, 1024);
+        WsDiscoveryProxySelector.Proxy p = instance.heard(proxy1, address1, 3702);
+
+        Recorder r = new Recorder();
+        instance.send(messageId(1), r, 0);
+        instance.expire(1000);
+        assertEquals(1, p.getFailures());
+        assertTrue(p.isUp(1000));
+
+        instance.send(messageId(2), r, 2000);
+        instance.expire(3000);
+        assertEquals(2, p.getFailures());
+        assertFalse(p.isUp(3000));
+
+        // Multicast while the proxy is down
+        instance.send(messageId(3), r, 4000);
+        assertEquals(0, instance.getPendingRequests());
+        assertEquals("[10.0.0.1, multicast, 10.0.0.1, multicast, multicast]", r.sent.toString());
+
+        // Retried after proxyRetryInterval
+        assertTrue(p.isUp(33000));
+        r.sent.clear();
+        instance.send(messageId(4), r, 33000);
+        assertEquals("[10.0.0.1]", r.sent.toString());
+        instance.replied(messageId(4), address1, 33100);
+        assertEquals(0, p.getFailures());
+        assertEquals(100, p.getRoundTripTime());
+    }
+
+    /**
+     * Test of remove method, of class WsDiscoveryProxySelector.
+     */
+    @Test
+    public void testRemove() throws Exception {
+        System.out.println("remove");
+        WsDiscoveryProxySelector instance = new WsDiscoveryProxySelector(1, 1024);
+        instance.heard(proxy1, address1, 3702);
+        instance.heard(proxy2, address2, 3702); // proxy1 is forgotten
+        assertEquals(1, instance.getProxies().size());
+        assertFalse(instance.remove(proxy1.getEndpointReference().getAddress()));
+        assertTrue(instance.remove(proxy2.getEndpointReference().getAddress()));
+        assertNull(instance.select());
+
+        Recorder r = new Recorder();
+        instance.send(messageId(1), r, 0);
+        assertEquals("[multicast]", r.sent.toString());
+        assertEquals(0, instance.getPendingRequests());
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.ms.wsdiscovery.common;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author magnus
+ */
+public class WsDiscoveryRateLimiterTest {
+
+    private WsDiscoveryRateLimiter instance;
+
+    public WsDiscoveryRateLimiterTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+    }
+
+    @Before
+    public void setUp() {
+        instance = new WsDiscoveryRateLimiter(1000, 2);
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Test of tryAcquire method, of class WsDiscoveryRateLimiter.
+     */
+    @Test
+    public void testTryAcquire() {
+        System.out.println("tryAcquire");
+
+        assertEquals(true, instance.tryAcquire("service", "host1", 0));
+        assertEquals(false, instance.tryAcquire("service", "host1", 999));
+        assertEquals(true, instance.tryAcquire("service", "host2", 999)); // other requester
+        assertEquals(true, instance.tryAcquire("service", "host1", 1000)); // window expired
+        assertEquals(1, instance.getThrottledCount());
+        assertEquals(true, instance.tryAcquire(null, null, 1500));
+        assertEquals(false, instance.tryAcquire(null, null, 1600));
+    }
+
+    /**
+     * Test of expiry and eviction, of class WsDiscoveryRateLimiter.
+     */
+    @Test
+    public void testExpiry() {
+        System.out.println("expiry");
+
+        instance.tryAcquire("a", "host", 0);
+        instance.tryAcquire("b", "host", 100);
+        instance.tryAcquire("c", "host", 200); // table full, a is evicted
+        assertEquals(2, instance.size());
+        assertEquals(1, instance.getEvictedCount());
+        assertEquals(true, instance.tryAcquire("a", "host", 300));
+
+        instance.tryAcquire("d", "host", 5000); // everything else has expired
+        assertEquals(1, instance.size());
+        assertEquals(2, instance.getExpiredCount());
+    }
+
+    /**
+     * Test of setWindow method, of class WsDiscoveryRateLimiter.
+     */
+    @Test
+    public void testDisabled() {
+        System.out.println("disabled");
+
+        instance.setWindow(0);
+        assertEquals(true, instance.tryAcquire("service", "host", 0));
+        assertEquals(true, instance.tryAcquire("service", "host", 0));
+        assertEquals(0, instance.size());
+    }
+}
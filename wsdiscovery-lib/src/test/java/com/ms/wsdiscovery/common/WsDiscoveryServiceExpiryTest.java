@@ -0,0 +1,103 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.ms.wsdiscovery.common;
+
+import java.net.URI;
+import java.util.List;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author magnus
+ */
+public class WsDiscoveryServiceExpiryTest {
+
+    private URI service1;
+    private URI service2;
+    private URI service3;
+
+    public WsDiscoveryServiceExpiryTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+    }
+
+    @Before
+    public void setUp() {
+        service1 = URI.create("urn:uuid:00000000-0000-0000-0000-000000000001");
+        service2 = URI.create("urn:uuid:00000000-0000-0000-0000-000000000002");
+        service3 = URI.create("urn:uuid:00000000-0000-0000-0000-000000000003");
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Test of expire method, of class WsDiscoveryServiceExpiry.
+     */
+    @Test
+    public void testExpire() {
+        System.out.println("expire");
+        WsDiscoveryServiceExpiry instance = new WsDiscoveryServiceExpiry(8, 100, 0);
+
+        instance.refresh(service1, 250, 1000);
+        instance.refresh(service2, 5000, 1000); // several rounds of the wheel
+        instance.refresh(service3, 0, 1000); // never expires
+
+        assertEquals(0, instance.expire(1200).size());
+        instance.refresh(service1, 250, 1200); // pushed forward to 1450
+
+        assertEquals(0, instance.expire(1300).size());
+        List<URI> result = instance.expire(1450);
+        assertEquals(1, result.size());
+        assertEquals(service1, result.get(0));
+
+        assertEquals(0, instance.expire(5999).size());
+        result = instance.expire(100000); // long gap, every slot is visited once
+        assertEquals(1, result.size());
+        assertEquals(service2, result.get(0));
+
+        assertEquals(1, instance.size());
+        assertEquals(2, instance.getExpiredCount());
+    }
+
+    /**
+     * Test of eviction when full, of class WsDiscoveryServiceExpiry.
+     */
+    @Test
+    public void testEviction() {
+        System.out.println("eviction");
+        WsDiscoveryServiceExpiry instance = new WsDiscoveryServiceExpiry(8, 100, 2);
+
+        instance.refresh(service1, 1000, 0);
+        instance.refresh(service2, 1000, 0);
+        instance.refresh(service1, 1000, 10); // service2 is now least recently heard
+        instance.refresh(service3, 1000, 20);
+
+        List<URI> result = instance.expire(30);
+        assertEquals(1, result.size());
+        assertEquals(service2, result.get(0));
+        assertEquals(2, instance.size());
+        assertEquals(1, instance.getEvictedCount());
+
+        instance.remove(service1);
+        assertEquals(1, instance.size());
+        result = instance.expire(2000);
+        assertEquals(1, result.size());
+        assertEquals(service3, result.get(0));
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.ms.wsdiscovery.federation;
+
+import com.ms.wsdiscovery.datatypes.WsDiscoveryScopesType;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.skjegstad.soapoverudp.datatypes.SOAPOverUDPEndpointReferenceType;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.xml.namespace.QName;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author magnus
+ */
+public class WsDiscoveryFederationLogTest {
+
+    private WsDiscoveryFederationLog a;
+    private WsDiscoveryFederationLog b;
+
+    public WsDiscoveryFederationLogTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+    }
+
+    @Before
+    public void setUp() {
+        a = new WsDiscoveryFederationLog("a", 1);
+        b = new WsDiscoveryFederationLog("b", 1);
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    private static WsDiscoveryService service(String address, String xAddr) {
+        WsDiscoveryScopesType scopes = new WsDiscoveryScopesType(null);
+        scopes.getValue().add("http://example.com/scope");
+        return new WsDiscoveryService(new SOAPOverUDPEndpointReferenceType(URI.create(address)),
+                Collections.singletonList(new QName("http://example.com", "printer")),
+                scopes, Collections.singletonList(xAddr), 1);
+    }
+
+    /**
+     * Apply all changes in <code>from</code> that <code>to</code> has not seen.
+     */
+    private static List<WsDiscoveryFederationLog.Change> sync(WsDiscoveryFederationLog from, WsDiscoveryFederationLog to) {
+        List<WsDiscoveryFederationLog.Change> changes = new ArrayList<WsDiscoveryFederationLog.Change>();
+        for (WsDiscoveryFederationLog.Delta d : from.getDeltas(to.getVector()))
+            changes.addAll(to.apply(d));
+        return changes;
+    }
+
+    /**
+     * Test of put and remove methods, of class WsDiscoveryFederationLog.
+     */
+    @Test
+    public void testPutRemove() {
+        System.out.println("putRemove");
+        WsDiscoveryService s = service("urn:a", "http://10.0.0.1/a");
+        WsDiscoveryFederationLog.Entry e = a.put(s);
+        assertEquals(1, e.version);
+        assertSame(e, a.getWinner(URI.create("urn:a")));
+        assertNull(a.put(service("urn:a", "http://10.0.0.1/a"))); // Same content
+        assertEquals(2, a.put(service("urn:a", "http://10.0.0.2/a")).version);
+
+        assertNull(a.remove(URI.create("urn:b"))); // Unknown
+        assertNull(a.remove(URI.create("urn:a")).service);
+        assertNull(a.remove(URI.create("urn:a"))); // Already removed
+    }
+
+    /**
+     * Test of getDeltas and apply methods, of class WsDiscoveryFederationLog.
+     */
+    @Test
+    public void testApply() {
+        System.out.println("apply");
+        WsDiscoveryService s1 = service("urn:1", "http://10.0.0.1/1");
+        WsDiscoveryService s2 = service("urn:2", "http://10.0.0.1/2");
+        a.put(s1);
+        a.put(s2);
+
+        assertTrue(b.isBehind(a.getVector()));
+        List<WsDiscoveryFederationLog.Change> changes = sync(a, b);
+        assertEquals(2, changes.size());
+        assertFalse(b.isBehind(a.getVector()));
+        assertTrue(sync(a, b).isEmpty());
+
+        // b does not re-originate services received from a
+        assertNull(b.put(s1));
+        assertNull(b.remove(URI.create("urn:1")));
+
+        // A delta that does not continue from the current version is ignored
+        WsDiscoveryFederationLog.Entry e3 = a.put(service("urn:3", "http://10.0.0.1/3"));
+        WsDiscoveryFederationLog.Entry e4 = a.remove(URI.create("urn:2"));
+        assertTrue(b.apply(a.getDelta(e4)).isEmpty());
+        assertTrue(b.isBehind(a.getVector()));
+        assertEquals(1, b.apply(a.getDelta(e3)).size());
+
+        // Superseded versions are skipped when catching up
+        changes = sync(a, b);
+        assertEquals(1, changes.size());
+        assertEquals(URI.create("urn:2"), changes.get(0).address);
+        assertNull(changes.get(0).service);
+        // A new log gets one change per service: urn:1, urn:3 and the removal of urn:2
+        assertEquals(3, a.getDeltas(new WsDiscoveryFederationLog("c", 1).getVector()).get(0).entries.size());
+    }
+
+    /**
+     * Test that concurrent changes to the same service converge.
+     */
+    @Test
+    public void testConflict() {
+        System.out.println("conflict");
+        WsDiscoveryService sa = service("urn:x", "http://site-a/x");
+        WsDiscoveryService sb = service("urn:x", "http://site-b/x");
+        a.put(sa);
+        b.put(sb);
+
+        // Same timestamp, so the origin with the highest name wins
+        List<WsDiscoveryFederationLog.Change> changes = sync(b, a);
+        assertEquals(1, changes.size());
+        assertSame(sb, changes.get(0).service);
+        assertTrue(sync(a, b).isEmpty());
+        assertSame(sb, a.getWinner(URI.create("urn:x")).service);
+        assertSame(sb, b.getWinner(URI.create("urn:x")).service);
+
+        // A later announcement at a wins
+        WsDiscoveryService sa2 = service("urn:x", "http://site-a/x2");
+        assertNotNull(a.put(sa2));
+        changes = sync(a, b);
+        assertEquals(1, changes.size());
+        assertSame(sa2, changes.get(0).service);
+
+        // Only the last owner removes it
+        assertNull(b.remove(URI.create("urn:x")));
+        assertNotNull(a.remove(URI.create("urn:x")));
+        changes = sync(a, b);
+        assertEquals(1, changes.size());
+        assertNull(changes.get(0).service);
+    }
+
+    /**
+     * Test that services of a previous incarnation are forgotten.
+     */
+    @Test
+    public void testRestart() {
+        System.out.println("restart");
+        a.put(service("urn:1", "http://10.0.0.1/1"));
+        a.put(service("urn:2", "http://10.0.0.1/2"));
+        sync(a, b);
+
+        WsDiscoveryFederationLog restarted = new WsDiscoveryFederationLog("a", 2);
+        assertTrue(b.isBehind(restarted.getVector()));
+        List<WsDiscoveryFederationLog.Change> changes = sync(restarted, b);
+        assertEquals(2, changes.size());
+        for (WsDiscoveryFederationLog.Change c : changes)
+            assertNull(c.service);
+        assertNull(b.getWinner(URI.create("urn:1")));
+
+        // Deltas from the old incarnation are ignored
+        assertTrue(b.apply(a.getDelta(a.put(service("urn:3", "http://10.0.0.1/3")))).isEmpty());
+        assertTrue(a.getDeltas(b.getVector()).isEmpty());
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.ms.wsdiscovery.federation;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.WsDiscoveryFactory;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryServiceDirectory;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceDirectory;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.namespace.QName;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author magnus
+ */
+public class WsDiscoveryFederationTest {
+
+    private static final QName portType = new QName("http://localhost/portType", "localPart", "ns");
+    private final List<WsDiscoveryFederation> federations = new ArrayList<WsDiscoveryFederation>();
+
+    public WsDiscoveryFederationTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+    }
+
+    @Before
+    public void setUp() {
+    }
+
+    @After
+    public void tearDown() {
+        for (WsDiscoveryFederation f : federations)
+            f.done();
+    }
+
+    private WsDiscoveryFederation start(String node, long incarnation, IWsDiscoveryServiceDirectory directory) throws Exception {
+        WsDiscoveryFederation f = new WsDiscoveryFederation(node, incarnation, directory,
+                new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        f.setSyncInterval(100);
+        federations.add(f);
+        return f;
+    }
+
+    private static void peer(WsDiscoveryFederation f1, WsDiscoveryFederation f2) {
+        f1.addPeer(f2.getLocalAddress());
+        f2.addPeer(f1.getLocalAddress());
+    }
+
+    private static void waitFor(IWsDiscoveryServiceDirectory directory, URI address, boolean present) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            if ((directory.findService(address) != null) == present)
+                return;
+            Thread.sleep(50);
+        }
+        fail(address + (present ? " not replicated" : " not removed"));
+    }
+
+    /**
+     * Test replication between three proxies, where a and c only know b.
+     */
+    @Test
+    public void testReplication() throws Exception {
+        System.out.println("replication");
+        IWsDiscoveryServiceDirectory da = new WsDiscoveryServiceDirectory(MatchBy.WSD200901_RFC2396);
+        IWsDiscoveryServiceDirectory db = new WsDiscoveryServiceDirectory(MatchBy.WSD200901_RFC2396);
+        IWsDiscoveryServiceDirectory dc = new WsDiscoveryServiceDirectory(MatchBy.WSD200901_RFC2396);
+
+        // Stored before the federation is started
+        WsDiscoveryService s1 = WsDiscoveryFactory.createService(portType, "http://site-a/1", "http://10.0.0.1/1");
+        da.store(s1);
+
+        WsDiscoveryFederation fa = start("a", 1, da);
+        WsDiscoveryFederation fb = start("b", 1, db);
+        WsDiscoveryFederation fc = start("c", 1, dc);
+        peer(fa, fb);
+        peer(fb, fc);
+        fa.start();
+        fb.start();
+        fc.start();
+
+        URI a1 = s1.getEndpointReference().getAddress();
+        waitFor(dc, a1, true);
+
+        WsDiscoveryService s2 = WsDiscoveryFactory.createService(portType, "http://site-c/2", "http://10.0.0.3/2");
+        dc.store(s2);
+        URI a2 = s2.getEndpointReference().getAddress();
+        waitFor(da, a2, true);
+        assertEquals(2, da.matchBy(null, null).size());
+        assertEquals("http://10.0.0.3/2", da.findService(a2).getXAddrs().get(0));
+
+        // Updates and removals follow
+        WsDiscoveryService s2moved = WsDiscoveryFactory.createService(portType, "http://site-c/2", "http://10.0.0.4/2");
+        s2moved.setEndpointReference(a2);
+        dc.store(s2moved);
+        da.remove(a1);
+        waitFor(dc, a1, false);
+        waitFor(db, a1, false);
+        for (int i = 0; (i < 100) && !da.findService(a2).getXAddrs().contains("http://10.0.0.4/2"); i++)
+            Thread.sleep(50);
+        assertEquals("http://10.0.0.4/2", da.findService(a2).getXAddrs().get(0));
+
+        // Proxy services are not replicated
+        WsDiscoveryService proxy = WsDiscoveryFactory.createService(WsDiscoveryConstants.proxyPortType,
+                "", "soap.udp://10.0.0.1:3702/DiscoveryProxy");
+        da.store(proxy);
+        Thread.sleep(500);
+        assertNull(db.findService(proxy.getEndpointReference().getAddress()));
+    }
+
+    /**
+     * Test that a restarted proxy replaces the services of its previous incarnation.
+     */
+    @Test
+    public void testRestart() throws Exception {
+        System.out.println("restart");
+        IWsDiscoveryServiceDirectory da = new WsDiscoveryServiceDirectory(MatchBy.WSD200901_RFC2396);
+        IWsDiscoveryServiceDirectory db = new WsDiscoveryServiceDirectory(MatchBy.WSD200901_RFC2396);
+        WsDiscoveryFederation fa = start("a", 1, da);
+        WsDiscoveryFederation fb = start("b", 1, db);
+        peer(fa, fb);
+        fa.start();
+        fb.start();
+
+        WsDiscoveryService s1 = WsDiscoveryFactory.createService(portType, "http://site-a/1", "http://10.0.0.1/1");
+        da.store(s1);
+        URI a1 = s1.getEndpointReference().getAddress();
+        waitFor(db, a1, true);
+
+        // Restart a with an empty directory
+        fa.done();
+        fb.removePeer(fa.getLocalAddress());
+        IWsDiscoveryServiceDirectory da2 = new WsDiscoveryServiceDirectory(MatchBy.WSD200901_RFC2396);
+        WsDiscoveryFederation fa2 = start("a", 2, da2);
+        peer(fa2, fb);
+        fa2.start();
+
+        waitFor(db, a1, false);
+        WsDiscoveryService s2 = WsDiscoveryFactory.createService(portType, "http://site-a/2", "http://10.0.0.1/2");
+        da2.store(s2);
+        waitFor(db, s2.getEndpointReference().getAddress(), true);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.ms.wsdiscovery.servicedirectory;
+
+import com.ms.wsdiscovery.WsDiscoveryFactory;
+import com.ms.wsdiscovery.datatypes.WsDiscoveryScopesType;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.namespace.QName;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author magnus
+ */
+public class WsDiscoveryMatchCacheTest {
+
+    private QName portType;
+    private WsDiscoveryServiceDirectory directory;
+
+    public WsDiscoveryMatchCacheTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        portType = new QName("http://localhost/portType", "localPart", "ns");
+        directory = new WsDiscoveryServiceDirectory(MatchBy.WSD200901_strcmp0);
+        directory.store(WsDiscoveryFactory.createService(portType, "http://www.test.com/a", "http://10.0.0.1:1234/a"));
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Test of createKey method, of class WsDiscoveryMatchCache.
+     */
+    @Test
+    public void testCreateKey() {
+        System.out.println("createKey");
+        QName other = new QName("http://localhost/portType", "other");
+
+        List<QName> a = new ArrayList<QName>();
+        a.add(portType);
+        a.add(other);
+        List<QName> b = new ArrayList<QName>();
+        b.add(other);
+        b.add(portType);
+        b.add(other);
+
+        WsDiscoveryScopesType sa = new WsDiscoveryScopesType(MatchBy.WSD200901_strcmp0);
+        sa.getValue().add("http://www.test.com/a");
+        sa.getValue().add("http://www.test.com/b");
+        WsDiscoveryScopesType sb = new WsDiscoveryScopesType(MatchBy.WSD200901_strcmp0);
+        sb.getValue().add("http://www.test.com/b");
+        sb.getValue().add("http://www.test.com/a");
+
+        String expResult = WsDiscoveryMatchCache.createKey(a, sa, null);
+        String result = WsDiscoveryMatchCache.createKey(b, sb, null);
+        assertEquals(expResult, result);
+
+        sb.setMatchBy(MatchBy.WSD200901_RFC2396);
+        result = WsDiscoveryMatchCache.createKey(b, sb, null);
+        assertFalse(expResult.equals(result));
+
+        assertFalse(WsDiscoveryMatchCache.createKey(null, null, null).equals(
+                WsDiscoveryMatchCache.createKey(new ArrayList<QName>(), null, null)));
+    }
+
+    /**
+     * Test of matchByCached method, of class WsDiscoveryServiceDirectory.
+     */
+    @Test
+    public void testMatchByCached() throws Exception {
+        System.out.println("matchByCached");
+        List<QName> types = new ArrayList<QName>();
+        types.add(portType);
+
+        WsDiscoveryMatchCache.Entry first = directory.matchByCached(types, null);
+        WsDiscoveryMatchCache.Entry second = directory.matchByCached(types, null);
+        assertSame(first, second);
+        assertEquals(1, second.getServices().size());
+        assertEquals(1, directory.getMatchCache().getHits());
+
+        // Changing the directory must invalidate the result
+        directory.store(WsDiscoveryFactory.createService(portType, "http://www.test.com/b", "http://10.0.0.2:1234/b"));
+        WsDiscoveryMatchCache.Entry third = directory.matchByCached(types, null);
+        assertNotSame(first, third);
+        assertEquals(2, third.getServices().size());
+
+        directory.remove(third.getServices().iterator().next());
+        assertEquals(1, directory.matchByCached(types, null).getServices().size());
+
+        // matchBy() returns a copy
+        directory.matchBy(types, null).clear();
+        assertEquals(1, directory.matchByCached(types, null).getServices().size());
+    }
+
+    /**
+     * Test of eviction, of class WsDiscoveryMatchCache.
+     */
+    @Test
+    public void testEviction() {
+        System.out.println("eviction");
+        WsDiscoveryMatchCache instance = new WsDiscoveryMatchCache(1);
+        instance.put("a", null);
+        instance.put("b", null);
+        assertEquals(1, instance.size());
+        assertNull(instance.get("a"));
+        assertNotNull(instance.get("b"));
+
+        instance = new WsDiscoveryMatchCache(0);
+        instance.put("a", null);
+        assertEquals(false, instance.isEnabled());
+        assertEquals(0, instance.size());
+    }
+}
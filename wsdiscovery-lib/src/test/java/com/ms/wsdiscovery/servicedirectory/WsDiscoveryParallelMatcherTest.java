@@ -0,0 +1,101 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.ms.wsdiscovery.servicedirectory;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.WsDiscoveryFactory;
+import com.ms.wsdiscovery.datatypes.WsDiscoveryScopesType;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchProbe;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.namespace.QName;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author magnus
+ */
+public class WsDiscoveryParallelMatcherTest {
+
+    private List<WsDiscoveryService> services;
+    private int oldThreshold;
+    private int oldThreads;
+
+    public WsDiscoveryParallelMatcherTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+    }
+
+    @Before
+    public void setUp() {
+        oldThreshold = WsDiscoveryConstants.parallelMatchThreshold;
+        oldThreads = WsDiscoveryConstants.matchThreads;
+        WsDiscoveryConstants.parallelMatchThreshold = 1;
+        WsDiscoveryConstants.matchThreads = 4;
+
+        QName portType = new QName("http://localhost/portType", "localPart", "ns");
+        services = new ArrayList<WsDiscoveryService>();
+        for (int i = 0; i < 5000; i++)
+            services.add(WsDiscoveryFactory.createService(portType,
+                    "http://www.test.com/" + (i % 10) + "/" + i, "http://10.0.0.1:1234/" + i));
+    }
+
+    @After
+    public void tearDown() {
+        WsDiscoveryConstants.parallelMatchThreshold = oldThreshold;
+        WsDiscoveryConstants.matchThreads = oldThreads;
+    }
+
+    /**
+     * Test of match method, of class WsDiscoveryParallelMatcher.
+     */
+    @Test
+    public void testMatch() {
+        System.out.println("match");
+        WsDiscoveryScopesType scopes = new WsDiscoveryScopesType(MatchBy.WSD200901_RFC2396);
+        scopes.getValue().add("http://www.test.com/3");
+        MatchProbe probe = MatchProbe.compile(null, scopes, null);
+
+        List<WsDiscoveryService> expected = new ArrayList<WsDiscoveryService>();
+        for (WsDiscoveryService s : services)
+            if (probe.match(s))
+                expected.add(s);
+        assertEquals(500, expected.size());
+
+        // Same services in the same order
+        assertEquals(expected, WsDiscoveryParallelMatcher.match(services, probe));
+
+        WsDiscoveryConstants.parallelMatchThreshold = 0;
+        assertEquals(expected, WsDiscoveryParallelMatcher.match(services, probe));
+    }
+
+    /**
+     * Test that failures in helper threads reach the caller.
+     */
+    @Test
+    public void testFailure() {
+        System.out.println("failure");
+        MatchProbe probe = MatchProbe.compile(null, null, MatchBy.WSD200901_RFC2396);
+        services.set(4321, null);
+        try {
+            WsDiscoveryParallelMatcher.match(services, probe);
+            fail("Matching null must fail");
+        } catch (NullPointerException ex) {
+        }
+    }
+}
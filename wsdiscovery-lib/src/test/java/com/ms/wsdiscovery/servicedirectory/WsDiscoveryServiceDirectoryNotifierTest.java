@@ -0,0 +1,245 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.ms.wsdiscovery.servicedirectory;
+
+import com.ms.wsdiscovery.WsDiscoveryFactory;
+import com.ms.wsdiscovery.datatypes.WsDiscoveryScopesType;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceDirectoryListener;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import javax.xml.namespace.QName;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author magnus
+ */
+public class WsDiscoveryServiceDirectoryNotifierTest {
+
+    private QName portType;
+    private Executor inline;
+
+    /**
+     * Records notifications as "added", "updated" or "removed" followed by the address.
+     */
+    private static class Recorder implements IWsDiscoveryServiceDirectoryListener {
+        final List<String> events = new ArrayList<String>();
+
+        public void serviceAdded(WsDiscoveryService service) {
+            events.add("added " + service.getEndpointReference().getAddress());
+        }
+
+        public void serviceUpdated(WsDiscoveryService service) {
+            events.add("updated " + service.getEndpointReference().getAddress());
+        }
+
+        public void serviceRemoved(WsDiscoveryService service) {
+            events.add("removed " + service.getEndpointReference().getAddress());
+        }
+    }
+
+    public WsDiscoveryServiceDirectoryNotifierTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+    }
+
+    @Before
+    public void setUp() {
+        portType = new QName("http://localhost/portType", "localPart", "ns");
+        inline = new Executor() {
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Test notifications from WsDiscoveryServiceDirectory.
+     */
+    @Test
+    public void testNotifications() throws Exception {
+        System.out.println("notifications");
+        WsDiscoveryServiceDirectory instance = new WsDiscoveryServiceDirectory(MatchBy.WSD200901_strcmp0);
+        Recorder recorder = new Recorder();
+        instance.addListener(recorder, null, null, inline);
+
+        WsDiscoveryService service = WsDiscoveryFactory.createService(portType, "http://www.test.com/a", "http://10.0.0.1:1234/a");
+        String address = service.getEndpointReference().getAddress().toString();
+        instance.store(service);
+        instance.store(service);
+        instance.remove(service);
+        instance.store(service);
+        instance.clear();
+
+        assertEquals(5, recorder.events.size());
+        assertEquals("added " + address, recorder.events.get(0));
+        assertEquals("updated " + address, recorder.events.get(1));
+        assertEquals("removed " + address, recorder.events.get(2));
+        assertEquals("added " + address, recorder.events.get(3));
+        assertEquals("removed " + address, recorder.events.get(4));
+
+        instance.removeListener(recorder);
+        instance.store(service);
+        assertEquals(5, recorder.events.size());
+    }
+
+    /**
+     * Test that a repeated Hello with unchanged content and metadata version
+     * leaves the stored version, cached matches and listeners alone.
+     */
+    @Test
+    public void testStoreUnchanged() throws Exception {
+        System.out.println("storeUnchanged");
+        WsDiscoveryServiceDirectory instance = new WsDiscoveryServiceDirectory(MatchBy.WSD200901_strcmp0);
+        Recorder recorder = new Recorder();
+        instance.addListener(recorder, null, null, inline);
+
+        WsDiscoveryService service = WsDiscoveryFactory.createService(portType, "http://www.test.com/a", "http://10.0.0.1:1234/a");
+        instance.store(service);
+        List<QName> types = new ArrayList<QName>();
+        types.add(portType);
+        WsDiscoveryMatchCache.Entry cached = instance.matchByCached(types, null);
+
+        for (int i = 0; i < 2; i++) {
+            instance.store(copy(service, 1));
+            assertSame(service, instance.findService(service.getEndpointReference()));
+            assertEquals(1, instance.findService(service.getEndpointReference()).getMetadataVersion());
+            assertSame(cached, instance.matchByCached(types, null));
+            assertEquals(1, recorder.events.size());
+        }
+
+        // A version announced by the service itself is kept when higher than ours
+        WsDiscoveryService changed = copy(service, 5);
+        List<String> xAddrs = new ArrayList<String>();
+        xAddrs.add("http://10.0.0.2:1234/a");
+        changed.setXAddrs(xAddrs);
+        instance.store(changed);
+        assertEquals(5, changed.getMetadataVersion());
+        assertEquals(2, recorder.events.size());
+
+        instance.store(copy(changed, 5));
+        assertSame(changed, instance.findService(service.getEndpointReference()));
+        assertEquals(5, changed.getMetadataVersion());
+        assertEquals(2, recorder.events.size());
+    }
+
+    /**
+     * Create a new service object with the content of another.
+     */
+    private WsDiscoveryService copy(WsDiscoveryService s, long version) {
+        WsDiscoveryService res = new WsDiscoveryService(s.getEndpointReference(),
+                s.getPortTypes(), null, s.getXAddrs(), version);
+        res.setScopes(s.getScopes(), s.getScopesMatchBy());
+        return res;
+    }
+
+    /**
+     * Test that only changes matching the query are delivered.
+     */
+    @Test
+    public void testQuery() throws Exception {
+        System.out.println("query");
+        WsDiscoveryServiceDirectory instance = new WsDiscoveryServiceDirectory(MatchBy.WSD200901_strcmp0);
+        Recorder recorder = new Recorder();
+        WsDiscoveryScopesType scopes = new WsDiscoveryScopesType(MatchBy.WSD200901_strcmp0);
+        scopes.getValue().add("http://www.test.com/a");
+        instance.addListener(recorder, null, scopes, inline);
+
+        WsDiscoveryService other = WsDiscoveryFactory.createService(portType, "http://www.test.com/b", "http://10.0.0.2:1234/b");
+        instance.store(other);
+        assertEquals(0, recorder.events.size());
+
+        // Moving into the scope adds, moving out removes
+        WsDiscoveryService moved = WsDiscoveryFactory.createService(portType, "http://www.test.com/a", "http://10.0.0.2:1234/b");
+        moved.setEndpointReference(other.getEndpointReference());
+        String address = other.getEndpointReference().getAddress().toString();
+        instance.store(moved);
+        instance.store(other);
+
+        assertEquals(2, recorder.events.size());
+        assertEquals("added " + address, recorder.events.get(0));
+        assertEquals("removed " + address, recorder.events.get(1));
+    }
+
+    /**
+     * Test that a service modified in place and stored again is reported with
+     * the content it had when each change was reported.
+     */
+    @Test
+    public void testModifiedInPlace() throws Exception {
+        System.out.println("modifiedInPlace");
+        WsDiscoveryServiceDirectory instance = new WsDiscoveryServiceDirectory(MatchBy.WSD200901_strcmp0);
+        Recorder recorder = new Recorder();
+        WsDiscoveryScopesType scopes = new WsDiscoveryScopesType(MatchBy.WSD200901_strcmp0);
+        scopes.getValue().add("http://www.test.com/a");
+        final List<Runnable> queued = new ArrayList<Runnable>();
+        instance.addListener(recorder, null, scopes, new Executor() {
+            public void execute(Runnable command) {
+                queued.add(command);
+            }
+        });
+
+        WsDiscoveryService service = WsDiscoveryFactory.createService(portType, "http://www.test.com/a", "http://10.0.0.1:1234/a");
+        String address = service.getEndpointReference().getAddress().toString();
+        instance.store(service);
+
+        // Moved out of the scope before the first change is delivered
+        List<URI> moved = new ArrayList<URI>();
+        moved.add(URI.create("http://www.test.com/b"));
+        service.setScopes(moved, MatchBy.WSD200901_strcmp0);
+        instance.store(service);
+
+        assertEquals(1, queued.size());
+        queued.remove(0).run();
+        assertEquals(2, recorder.events.size());
+        assertEquals("added " + address, recorder.events.get(0));
+        assertEquals("removed " + address, recorder.events.get(1));
+    }
+
+    /**
+     * Test asynchronous delivery from WsDiscoverySnapshotServiceDirectory.
+     */
+    @Test
+    public void testAsynchronous() throws Exception {
+        System.out.println("asynchronous");
+        WsDiscoverySnapshotServiceDirectory instance = new WsDiscoverySnapshotServiceDirectory(MatchBy.WSD200901_strcmp0);
+        final CountDownLatch added = new CountDownLatch(10);
+        instance.addListener(new IWsDiscoveryServiceDirectoryListener() {
+            public void serviceAdded(WsDiscoveryService service) {
+                added.countDown();
+            }
+            public void serviceUpdated(WsDiscoveryService service) {
+            }
+            public void serviceRemoved(WsDiscoveryService service) {
+            }
+        }, null, null);
+
+        for (int i = 0; i < 10; i++)
+            instance.store(WsDiscoveryFactory.createService(portType, "http://www.test.com/a", "http://10.0.0.1:1234/" + i));
+
+        assertTrue(added.await(5, TimeUnit.SECONDS));
+    }
+}
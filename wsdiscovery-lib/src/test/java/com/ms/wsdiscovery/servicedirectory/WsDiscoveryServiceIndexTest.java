@@ -0,0 +1,147 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.ms.wsdiscovery.servicedirectory;
+
+import com.ms.wsdiscovery.WsDiscoveryFactory;
+import com.ms.wsdiscovery.datatypes.WsDiscoveryScopesType;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import javax.xml.namespace.QName;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author magnus
+ */
+public class WsDiscoveryServiceIndexTest {
+
+    private QName portType;
+    private QName otherType;
+    private WsDiscoveryServiceIndex instance;
+    private WsDiscoveryService service1;
+    private WsDiscoveryService service2;
+    private WsDiscoveryService service3;
+
+    public WsDiscoveryServiceIndexTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+    }
+
+    @Before
+    public void setUp() {
+        portType = new QName("http://localhost/portType", "localPart", "ns");
+        otherType = new QName("http://localhost/portType", "other", "ns");
+        service1 = WsDiscoveryFactory.createService(portType, "http://www.test.com/a/b", "http://10.0.0.1:1234/a");
+        service2 = WsDiscoveryFactory.createService(portType, "HTTP://WWW.TEST.COM/a", "http://10.0.0.2:1234/b");
+        service3 = WsDiscoveryFactory.createService(otherType, "urn:uuid:6cbd1b1a-6ee1-4a1d-8a2b-2d2b1b1f7a10", "http://10.0.0.3:1234/c");
+        instance = new WsDiscoveryServiceIndex();
+        instance.add(service1);
+        instance.add(service2);
+        instance.add(service3);
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    private static WsDiscoveryScopesType scopes(MatchBy matchBy, String... values) {
+        WsDiscoveryScopesType s = new WsDiscoveryScopesType(matchBy);
+        for (String v : values)
+            s.getValue().add(v);
+        return s;
+    }
+
+    /**
+     * Test of getCandidates method, of class WsDiscoveryServiceIndex.
+     */
+    @Test
+    public void testGetCandidates() {
+        System.out.println("getCandidates");
+        List<QName> types = new ArrayList<QName>();
+        types.add(portType);
+
+        assertNull(instance.getCandidates(null, null, MatchBy.WSD200901_RFC2396));
+        assertEquals(2, instance.getCandidates(types, null, MatchBy.WSD200901_RFC2396).size());
+
+        // Scheme and authority are case-insensitive, path segments are not
+        Collection<WsDiscoveryService> result = instance.getCandidates(null,
+                scopes(MatchBy.WSD200901_RFC2396, "http://www.test.com/a"), null);
+        assertEquals(2, result.size());
+        result = instance.getCandidates(null,
+                scopes(MatchBy.WSD200901_RFC2396, "http://www.test.com/a/b"), null);
+        assertEquals(1, result.size());
+        assertTrue(result.contains(service1));
+        assertEquals(0, instance.getCandidates(null,
+                scopes(MatchBy.WSD200901_RFC2396, "http://www.test.com/A"), null).size());
+
+        result = instance.getCandidates(null,
+                scopes(MatchBy.WSD200901_strcmp0, "HTTP://WWW.TEST.COM/a"), null);
+        assertEquals(1, result.size());
+        assertTrue(result.contains(service2));
+
+        result = instance.getCandidates(null,
+                scopes(MatchBy.WSD200901_UUID, "uuid:6CBD1B1A-6EE1-4A1D-8A2B-2D2B1B1F7A10"), null);
+        assertEquals(1, result.size());
+        assertTrue(result.contains(service3));
+
+        types.add(otherType);
+        assertEquals(0, instance.getCandidates(types, null, MatchBy.WSD200901_RFC2396).size());
+    }
+
+    /**
+     * Test that the candidates contain every matching service.
+     */
+    @Test
+    public void testMatchBy() throws Exception {
+        System.out.println("matchBy");
+        WsDiscoveryServiceDirectory directory = new WsDiscoveryServiceDirectory(MatchBy.WSD200901_RFC2396);
+        directory.store(service1);
+        directory.store(service2);
+        directory.store(service3);
+
+        String[] probes = {"http://www.test.com", "http://www.test.com/", "http://www.test.com/a",
+                "http://www.test.com/a/", "http://www.test.com/a/b/c", "http://www.other.com/a"};
+        for (String probe : probes) {
+            WsDiscoveryScopesType s = scopes(MatchBy.WSD200901_RFC2396, probe);
+            int expResult = 0;
+            for (WsDiscoveryService service : directory.matchAll())
+                if (service.isMatchedBy(null, s, null))
+                    expResult++;
+            assertEquals(probe, expResult, directory.matchBy(null, s).size());
+        }
+    }
+
+    /**
+     * Test of remove method, of class WsDiscoveryServiceIndex.
+     */
+    @Test
+    public void testRemove() {
+        System.out.println("remove");
+
+        instance.remove(service1);
+        assertEquals(2, instance.size());
+        assertEquals(0, instance.getCandidates(null,
+                scopes(MatchBy.WSD200901_RFC2396, "http://www.test.com/a/b"), null).size());
+        assertEquals(1, instance.getCandidates(null,
+                scopes(MatchBy.WSD200901_RFC2396, "http://www.test.com/a"), null).size());
+
+        instance.clear();
+        assertEquals(0, instance.size());
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.ms.wsdiscovery.servicedirectory;
+
+import com.ms.wsdiscovery.datatypes.WsDiscoveryScopesType;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.xml.namespace.QName;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author magnus
+ */
+public class WsDiscoveryServiceRecordTest {
+
+    public WsDiscoveryServiceRecordTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+    }
+
+    @Before
+    public void setUp() {
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    private static WsDiscoveryServiceRecord build(String address, String prefix, String scope) {
+        WsDiscoveryScopesType scopes = new WsDiscoveryScopesType(MatchBy.WSD200901_strcmp0);
+        scopes.getValue().add(scope);
+        return new WsDiscoveryServiceRecord.Builder()
+                .setEndpointReference(URI.create(address))
+                .setPortTypes(Collections.singletonList(new QName("http://localhost/portType", "localPart", prefix)))
+                .setScopesType(scopes)
+                .setXAddrs(Collections.singletonList("http://10.0.0.1:1234/a"))
+                .setMetadataVersion(1)
+                .build();
+    }
+
+    /**
+     * Test that equal values are shared between records.
+     */
+    @Test
+    public void testInterned() {
+        System.out.println("interned");
+        WsDiscoveryServiceRecord r1 = build("urn:uuid:1", "ns", "http://www.test.com/a");
+        WsDiscoveryServiceRecord r2 = build("urn:uuid:2", "ns", "http://www.test.com/a");
+        assertSame(r1.getPortTypes().get(0), r2.getPortTypes().get(0));
+        assertSame(r1.getScopes().get(0), r2.getScopes().get(0));
+        assertSame(r1.getXAddrs().get(0), r2.getXAddrs().get(0));
+
+        // Values QName and URI consider equal, but are written differently, are kept apart
+        WsDiscoveryServiceRecord r3 = build("urn:uuid:3", "other", "HTTP://WWW.TEST.COM/a");
+        assertEquals("other", r3.getPortTypes().get(0).getPrefix());
+        assertEquals("HTTP://WWW.TEST.COM/a", r3.getScopes().get(0).toString());
+    }
+
+    /**
+     * Test of Builder and toBuilder methods, of class WsDiscoveryServiceRecord.
+     */
+    @Test
+    public void testBuilder() {
+        System.out.println("builder");
+        WsDiscoveryServiceRecord r1 = build("urn:uuid:1", "ns", "http://www.test.com/a");
+        WsDiscoveryServiceRecord r2 = r1.toBuilder().build();
+        assertNotSame(r1, r2);
+        assertTrue(r1.hasSameContent(r2));
+        assertEquals(r1.getCreated(), r2.getCreated());
+
+        List<String> xAddrs = new ArrayList<String>();
+        xAddrs.add("http://10.0.0.2:1234/a");
+        WsDiscoveryServiceRecord r3 = r1.toBuilder().setXAddrs(xAddrs).build();
+        assertFalse(r1.hasSameContent(r3));
+        assertEquals("http://10.0.0.1:1234/a", r1.getXAddrs().get(0));
+
+        // The builder copies its input
+        xAddrs.clear();
+        assertEquals(1, r3.getXAddrs().size());
+
+        try {
+            r3.getXAddrs().clear();
+            fail("Records must be read-only");
+        } catch (UnsupportedOperationException ex) {
+        }
+
+        WsDiscoveryServiceRecord empty = new WsDiscoveryServiceRecord.Builder().build();
+        assertNull(empty.getAddress());
+        assertEquals(0, empty.getPortTypes().size());
+        assertNull(empty.getScopes());
+        assertNull(empty.getXAddrs());
+    }
+}
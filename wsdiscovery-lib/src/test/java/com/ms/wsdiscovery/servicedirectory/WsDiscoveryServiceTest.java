@@ -0,0 +1,102 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.ms.wsdiscovery.servicedirectory;
+
+import com.ms.wsdiscovery.WsDiscoveryFactory;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.namespace.QName;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author magnus
+ */
+public class WsDiscoveryServiceTest {
+
+    private QName portType;
+    private WsDiscoveryService service;
+
+    public WsDiscoveryServiceTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+    }
+
+    @Before
+    public void setUp() {
+        portType = new QName("http://localhost/portType", "localPart", "ns");
+        service = WsDiscoveryFactory.createService(portType, "http://www.test.com/a", "http://10.0.0.1:1234/a");
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    private WsDiscoveryService copy(WsDiscoveryService s) {
+        WsDiscoveryService res = new WsDiscoveryService(s.getEndpointReference(),
+                s.getPortTypes(), null, s.getXAddrs(), s.getMetadataVersion());
+        res.setScopes(s.getScopes(), s.getScopesMatchBy());
+        return res;
+    }
+
+    /**
+     * Test of hasSameContent method, of class WsDiscoveryService.
+     */
+    @Test
+    public void testHasSameContent() {
+        System.out.println("hasSameContent");
+        WsDiscoveryService copy = copy(service);
+        assertTrue(service.hasSameContent(copy));
+        assertEquals(service.getFingerprint(), copy.getFingerprint());
+
+        // The metadata version is not part of the content
+        copy.setMetadataVersion(2);
+        assertTrue(service.hasSameContent(copy));
+        assertEquals(service.getFingerprint(), copy.getFingerprint());
+
+        copy = copy(service);
+        List<String> xAddrs = new ArrayList<String>();
+        xAddrs.add("http://10.0.0.2:1234/a");
+        copy.setXAddrs(xAddrs);
+        assertFalse(service.hasSameContent(copy));
+
+        copy = copy(service);
+        List<URI> scopes = new ArrayList<URI>();
+        scopes.add(URI.create("http://www.test.com/b"));
+        copy.setScopes(scopes, service.getScopesMatchBy());
+        assertFalse(service.hasSameContent(copy));
+    }
+
+    /**
+     * Test that the fingerprint follows changes.
+     */
+    @Test
+    public void testGetFingerprint() {
+        System.out.println("getFingerprint");
+        long before = service.getFingerprint();
+        assertEquals(before, service.getFingerprint());
+
+        service.setPortTypes(null);
+        assertTrue(before != service.getFingerprint());
+
+        List<QName> types = new ArrayList<QName>();
+        types.add(portType);
+        service.setPortTypes(types);
+        assertEquals(before, service.getFingerprint());
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.ms.wsdiscovery.servicedirectory;
+
+import com.ms.wsdiscovery.WsDiscoveryFactory;
+import com.ms.wsdiscovery.datatypes.WsDiscoveryScopesType;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceVisitor;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.namespace.QName;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author magnus
+ */
+public class WsDiscoverySnapshotServiceDirectoryTest {
+
+    private QName portType;
+    private WsDiscoverySnapshotServiceDirectory instance;
+
+    public WsDiscoverySnapshotServiceDirectoryTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+    }
+
+    @Before
+    public void setUp() {
+        portType = new QName("http://localhost/portType", "localPart", "ns");
+        instance = new WsDiscoverySnapshotServiceDirectory(MatchBy.WSD200901_strcmp0);
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Test of store method, of class WsDiscoverySnapshotServiceDirectory.
+     */
+    @Test
+    public void testStore() throws Exception {
+        System.out.println("store");
+        WsDiscoveryService service = WsDiscoveryFactory.createService(portType, "http://www.test.com/a", "http://10.0.0.1:1234/a");
+
+        instance.store(service);
+        assertEquals(1, instance.size());
+        assertEquals(1, instance.getVersion());
+        assertSame(service, instance.findService(service.getEndpointReference()));
+
+        WsDiscoveryService copy = new WsDiscoveryService(service.getEndpointReference(),
+                service.getPortTypes(), null, service.getXAddrs(), service.getMetadataVersion());
+        instance.store(copy);
+        assertEquals(1, instance.size());
+        assertSame(copy, instance.findService(service.getEndpointReference()));
+        assertEquals(service.getMetadataVersion() + 1, copy.getMetadataVersion());
+
+        List<URI> scopes = new ArrayList<URI>();
+        scopes.add(URI.create("http://www.test.com/a"));
+        assertEquals(0, instance.matchBy(null, scopes, MatchBy.WSD200901_strcmp0).size());
+
+        instance.remove(copy);
+        assertEquals(0, instance.size());
+    }
+
+    /**
+     * Test that storing an unchanged copy of a service changes nothing.
+     */
+    @Test
+    public void testStoreUnchanged() throws Exception {
+        System.out.println("storeUnchanged");
+        WsDiscoveryService service = WsDiscoveryFactory.createService(portType, "http://www.test.com/a", "http://10.0.0.1:1234/a");
+        instance.store(service);
+        long version = instance.getVersion();
+
+        WsDiscoveryService copy = new WsDiscoveryService(service.getEndpointReference(),
+                service.getPortTypes(), null, service.getXAddrs(), service.getMetadataVersion());
+        copy.setScopes(service.getScopes(), service.getScopesMatchBy());
+        instance.store(copy);
+
+        assertEquals(version, instance.getVersion());
+        assertSame(service, instance.findService(service.getEndpointReference()));
+        assertEquals(1, service.getMetadataVersion());
+
+        // An unchanged service announcing another version is still unchanged
+        copy.setMetadataVersion(7);
+        instance.store(copy);
+        assertEquals(version, instance.getVersion());
+        assertSame(service, instance.findService(service.getEndpointReference()));
+        assertEquals(1, service.getMetadataVersion());
+
+        // A changed service keeps its own version when higher than ours
+        List<String> xAddrs = new ArrayList<String>();
+        xAddrs.add("http://10.0.0.2:1234/a");
+        copy.setXAddrs(xAddrs);
+        instance.store(copy);
+        assertSame(copy, instance.findService(service.getEndpointReference()));
+        assertEquals(7, copy.getMetadataVersion());
+    }
+
+    /**
+     * Test that cached results are not returned after a change.
+     */
+    @Test
+    public void testMatchByCached() throws Exception {
+        System.out.println("matchByCached");
+        instance.store(WsDiscoveryFactory.createService(portType, "http://www.test.com/a", "http://10.0.0.1:1234/a"));
+
+        List<QName> types = new ArrayList<QName>();
+        types.add(portType);
+        assertEquals(1, instance.matchByCached(types, null).getServices().size());
+        assertSame(instance.matchByCached(types, null), instance.matchByCached(types, null));
+
+        instance.store(WsDiscoveryFactory.createService(portType, "http://www.test.com/b", "http://10.0.0.2:1234/b"));
+        assertEquals(2, instance.matchByCached(types, null).getServices().size());
+    }
+
+
+    /**
+     * Test of visit method, of class WsDiscoverySnapshotServiceDirectory.
+     */
+    @Test
+    public void testVisit() throws Exception {
+        System.out.println("visit");
+        for (int i = 0; i < 10; i++)
+            instance.store(WsDiscoveryFactory.createService(portType, "http://www.test.com/" + (i % 2), "http://10.0.0.1:1234/" + i));
+
+        WsDiscoveryScopesType scopes = new WsDiscoveryScopesType(MatchBy.WSD200901_strcmp0);
+        scopes.getValue().add("http://www.test.com/1");
+
+        WsDiscoveryServiceProjection<WsDiscoveryServiceProjection.Endpoint> p = WsDiscoveryServiceProjection.endpoints();
+        assertEquals(5, instance.visit(null, scopes, 0, p));
+        assertEquals(5, p.getResults().size());
+        for (WsDiscoveryServiceProjection.Endpoint e : p.getResults())
+            assertEquals(1, e.getXAddrs().size());
+
+        p = WsDiscoveryServiceProjection.endpoints();
+        assertEquals(3, instance.visit(null, scopes, 3, p));
+        assertEquals(3, p.getResults().size());
+
+        final List<WsDiscoveryService> visited = new ArrayList<WsDiscoveryService>();
+        int count = instance.visitAll(0, new IWsDiscoveryServiceVisitor() {
+            public boolean visit(WsDiscoveryService service) {
+                visited.add(service);
+                return visited.size() < 2;
+            }
+        });
+        assertEquals(2, count);
+        assertEquals(2, visited.size());
+        assertEquals(10, instance.visitAll(0, p));
+    }
+    /**
+     * Test of concurrent writers, of class WsDiscoverySnapshotServiceDirectory.
+     */
+    @Test
+    public void testConcurrentStore() throws Exception {
+        System.out.println("concurrentStore");
+        final int threads = 4;
+        final int services = 250;
+
+        Thread[] t = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int n = i;
+            t[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < services; j++)
+                            instance.store(WsDiscoveryFactory.createService(portType,
+                                    "http://www.test.com/" + n, "http://10.0.0." + n + ":1234/" + j));
+                    } catch (Exception ex) {
+                        ex.printStackTrace();
+                    }
+                }
+            };
+            t[i].start();
+        }
+        for (int i = 0; i < threads; i++)
+            t[i].join();
+
+        assertEquals(threads * services, instance.size());
+        assertTrue(instance.getVersion() <= threads * services);
+
+        List<URI> scopes = new ArrayList<URI>();
+        scopes.add(URI.create("http://www.test.com/1"));
+        assertEquals(services, instance.matchBy(null, scopes, MatchBy.WSD200901_strcmp0).size());
+    }
+}
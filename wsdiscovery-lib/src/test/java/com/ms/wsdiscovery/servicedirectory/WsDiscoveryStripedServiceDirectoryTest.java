@@ -0,0 +1,185 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.ms.wsdiscovery.servicedirectory;
+
+import com.ms.wsdiscovery.WsDiscoveryFactory;
+import com.ms.wsdiscovery.datatypes.WsDiscoveryScopesType;
+import com.ms.wsdiscovery.servicedirectory.interfaces.IWsDiscoveryServiceVisitor;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
+import com.ms.wsdiscovery.servicedirectory.store.WsDiscoveryServiceCollection;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.namespace.QName;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author magnus
+ */
+public class WsDiscoveryStripedServiceDirectoryTest {
+
+    private QName portType;
+    private WsDiscoveryStripedServiceDirectory instance;
+
+    public WsDiscoveryStripedServiceDirectoryTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+    }
+
+    @Before
+    public void setUp() {
+        portType = new QName("http://localhost/portType", "localPart", "ns");
+        instance = new WsDiscoveryStripedServiceDirectory(MatchBy.WSD200901_strcmp0, 4);
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Test of storeAll method, of class WsDiscoveryStripedServiceDirectory.
+     */
+    @Test
+    public void testStoreAll() throws Exception {
+        System.out.println("storeAll");
+        List<WsDiscoveryService> services = new ArrayList<WsDiscoveryService>();
+        for (int i = 0; i < 20; i++)
+            services.add(WsDiscoveryFactory.createService(portType, "http://www.test.com/" + (i % 2), "http://10.0.0.1:1234/" + i));
+
+        instance.storeAll(services);
+        assertEquals(20, instance.size());
+        for (WsDiscoveryService s : services)
+            assertSame(s, instance.findService(s.getEndpointReference()));
+
+        List<URI> scopes = new ArrayList<URI>();
+        scopes.add(URI.create("http://www.test.com/1"));
+        assertEquals(10, instance.matchBy(null, scopes, MatchBy.WSD200901_strcmp0).size());
+        assertEquals(20, instance.matchAll().size());
+
+        instance.remove(services.get(0));
+        assertEquals(19, instance.size());
+        assertNull(instance.findService(services.get(0).getEndpointReference()));
+
+        WsDiscoveryServiceCollection storage = new WsDiscoveryServiceCollection();
+        instance.useStorage(storage, true);
+        assertEquals(19, storage.size());
+        instance.remove(services.get(1));
+        assertEquals(18, storage.size());
+
+        instance.clear();
+        assertEquals(0, instance.size());
+        assertEquals(0, storage.size());
+    }
+
+    /**
+     * Test that cached results are not returned after a change.
+     */
+    @Test
+    public void testMatchByCached() throws Exception {
+        System.out.println("matchByCached");
+        instance.store(WsDiscoveryFactory.createService(portType, "http://www.test.com/a", "http://10.0.0.1:1234/a"));
+
+        List<QName> types = new ArrayList<QName>();
+        types.add(portType);
+        assertEquals(1, instance.matchByCached(types, null).getServices().size());
+        assertSame(instance.matchByCached(types, null), instance.matchByCached(types, null));
+
+        instance.store(WsDiscoveryFactory.createService(portType, "http://www.test.com/b", "http://10.0.0.2:1234/b"));
+        assertEquals(2, instance.matchByCached(types, null).getServices().size());
+
+        instance.clear();
+        assertEquals(0, instance.matchByCached(types, null).getServices().size());
+    }
+
+
+    /**
+     * Test of visit method, of class WsDiscoveryStripedServiceDirectory.
+     */
+    @Test
+    public void testVisit() throws Exception {
+        System.out.println("visit");
+        for (int i = 0; i < 10; i++)
+            instance.store(WsDiscoveryFactory.createService(portType, "http://www.test.com/" + (i % 2), "http://10.0.0.1:1234/" + i));
+
+        WsDiscoveryScopesType scopes = new WsDiscoveryScopesType(MatchBy.WSD200901_strcmp0);
+        scopes.getValue().add("http://www.test.com/1");
+
+        WsDiscoveryServiceProjection<WsDiscoveryServiceProjection.Endpoint> p = WsDiscoveryServiceProjection.endpoints();
+        assertEquals(5, instance.visit(null, scopes, 0, p));
+        assertEquals(5, p.getResults().size());
+        for (WsDiscoveryServiceProjection.Endpoint e : p.getResults())
+            assertEquals(1, e.getXAddrs().size());
+
+        p = WsDiscoveryServiceProjection.endpoints();
+        assertEquals(3, instance.visit(null, scopes, 3, p));
+        assertEquals(3, p.getResults().size());
+
+        final List<WsDiscoveryService> visited = new ArrayList<WsDiscoveryService>();
+        int count = instance.visitAll(0, new IWsDiscoveryServiceVisitor() {
+            public boolean visit(WsDiscoveryService service) {
+                visited.add(service);
+                return visited.size() < 2;
+            }
+        });
+        assertEquals(2, count);
+        assertEquals(2, visited.size());
+        assertEquals(10, instance.visitAll(0, p));
+    }
+    /**
+     * Test of concurrent writers, of class WsDiscoveryStripedServiceDirectory.
+     */
+    @Test
+    public void testConcurrentStore() throws Exception {
+        System.out.println("concurrentStore");
+        final int threads = 4;
+        final int services = 250;
+
+        Thread[] t = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int n = i;
+            t[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        List<WsDiscoveryService> batch = new ArrayList<WsDiscoveryService>();
+                        for (int j = 0; j < services; j++) {
+                            batch.add(WsDiscoveryFactory.createService(portType,
+                                    "http://www.test.com/" + n, "http://10.0.0." + n + ":1234/" + j));
+                            if (batch.size() == 10) {
+                                instance.storeAll(batch);
+                                batch.clear();
+                            }
+                        }
+                        instance.storeAll(batch);
+                    } catch (Exception ex) {
+                        ex.printStackTrace();
+                    }
+                }
+            };
+            t[i].start();
+        }
+        for (int i = 0; i < threads; i++)
+            t[i].join();
+
+        assertEquals(threads * services, instance.size());
+
+        List<URI> scopes = new ArrayList<URI>();
+        scopes.add(URI.create("http://www.test.com/1"));
+        assertEquals(services, instance.matchBy(null, scopes, MatchBy.WSD200901_strcmp0).size());
+    }
+}
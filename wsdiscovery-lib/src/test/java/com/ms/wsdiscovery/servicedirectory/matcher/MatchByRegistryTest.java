@@ -0,0 +1,163 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.ms.wsdiscovery.servicedirectory.matcher;
+
+import com.ms.wsdiscovery.WsDiscoveryFactory;
+import com.ms.wsdiscovery.datatypes.WsDiscoveryScopesType;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryServiceDirectory;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryServiceIndex;
+import java.net.URI;
+import javax.xml.namespace.QName;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author magnus
+ */
+public class MatchByRegistryTest {
+
+    private static final URI PREFIX = URI.create("http://example.com/matchby/prefix");
+    private static final URI GLOB = URI.create("http://example.com/matchby/glob");
+    private static final URI REGEX = URI.create("http://example.com/matchby/regex");
+
+    private WsDiscoveryServiceDirectory directory;
+    private WsDiscoveryServiceIndex index;
+
+    public MatchByRegistryTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MatchByRegistry.register(PREFIX, new MatchScopePrefix());
+        MatchByRegistry.register(GLOB, new MatchScopeGlob());
+        MatchByRegistry.register(REGEX, new MatchScopeRegex());
+
+        QName portType = new QName("http://localhost/portType", "localPart", "ns");
+        directory = new WsDiscoveryServiceDirectory(MatchBy.WSD200901_RFC2396);
+        index = new WsDiscoveryServiceIndex();
+        String[] scopes = {"http://example.com/floor1/printer", "http://example.com/floor2/printer",
+            "http://example.com/floor2/scanner", "urn:site:oslo"};
+        for (int i = 0; i < scopes.length; i++) {
+            directory.store(WsDiscoveryFactory.createService(portType, scopes[i], "http://10.0.0.1:1234/" + i));
+            index.add(WsDiscoveryFactory.createService(portType, scopes[i], "http://10.0.0.2:1234/" + i));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        MatchByRegistry.unregister(PREFIX);
+        MatchByRegistry.unregister(GLOB);
+        MatchByRegistry.unregister(REGEX);
+    }
+
+    private static WsDiscoveryScopesType scopes(URI matchBy, String... values) {
+        WsDiscoveryScopesType s = new WsDiscoveryScopesType(null);
+        s.setCustomMatchBy(matchBy);
+        for (String v : values)
+            s.getValue().add(v);
+        return s;
+    }
+
+    /**
+     * Test of getMatchBy and register methods, of class MatchByRegistry.
+     */
+    @Test
+    public void testRegister() {
+        System.out.println("register");
+        for (MatchBy m : MatchBy.values()) {
+            assertSame(m, MatchByRegistry.getMatchBy(m.toString()));
+            assertSame(m, WsDiscoveryFactory.getMatcher(m.toString(), null));
+        }
+        assertNull(MatchByRegistry.getMatchBy(GLOB.toString()));
+        assertNotNull(MatchByRegistry.getCustom(GLOB.toString()));
+
+        try {
+            MatchByRegistry.register(MatchBy.WSD200901_RFC2396.toURI(), new MatchScopePrefix());
+            fail("Built-in algorithms can not be replaced");
+        } catch (IllegalArgumentException ex) {
+        }
+    }
+
+    /**
+     * Test of the glob patterns of MatchScopeGlob.
+     */
+    @Test
+    public void testGlob() {
+        System.out.println("glob");
+        String[][] yes = {{"abc", "abc"}, {"a*", "abc"}, {"*c", "abc"}, {"a*c", "ac"}, {"*b*", "abc"},
+            {"a?c", "abc"}, {"*", ""}, {"", ""}, {"a*b*c", "aXbYbc"}, {"*a*a", "aaa"}};
+        String[][] no = {{"abc", "abcd"}, {"a*", "bc"}, {"*c", "cb"}, {"a*c", "a"}, {"a?c", "ac"},
+            {"", "a"}, {"a*b*c", "aXcYb"}, {"ab*ba", "aba"}};
+        for (String[] t : yes)
+            assertTrue(t[0] + " " + t[1], new MatchScopeGlob.Glob(t[0]).matches(t[1]));
+        for (String[] t : no)
+            assertFalse(t[0] + " " + t[1], new MatchScopeGlob.Glob(t[0]).matches(t[1]));
+    }
+
+    /**
+     * Test of the automata of MatchScopeRegex.
+     */
+    @Test
+    public void testRegex() {
+        System.out.println("regex");
+        String[][] yes = {{"abc", "abc"}, {"a.c", "abc"}, {"a*", ""}, {"a+b?", "aaa"}, {"(ab|cd)*", "abcdab"},
+            {"[a-c]+", "cab"}, {"[^/]+/x", "abc/x"}, {"\\d\\w\\s", "1a "}, {"a\\.b", "a.b"}, {"^a$", "a"},
+            {"(?:a|b)c", "bc"}, {"a*?b", "aab"}, {"(a*)*b", "aab"}, {"", ""}, {"[-a]", "-"}};
+        String[][] no = {{"abc", "abcd"}, {"a.c", "ac"}, {"a+", ""}, {"(ab|cd)*", "abc"}, {"[a-c]+", "abd"},
+            {"[^/]+/x", "a/b/x"}, {"\\d", "a"}, {"a\\.b", "axb"}, {"", "a"}, {"(a+)+b", "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa"}};
+        MatchScopeRegex regex = new MatchScopeRegex();
+        for (String[] t : yes)
+            assertTrue(t[0] + " " + t[1], regex.compilePattern(t[0]).matches(t[1]));
+        for (String[] t : no)
+            assertFalse(t[0] + " " + t[1], regex.compilePattern(t[0]).matches(t[1]));
+
+        // Invalid, or not supported
+        String[] invalid = {"(", "a)", "*a", "a**", "a{2}", "\\1", "(?=a)", "a*+", "[a", "[b-a]", "\\b", "a^"};
+        for (String p : invalid)
+            assertTrue(p, regex.compilePattern(p) == null);
+        StringBuilder longPattern = new StringBuilder();
+        for (int i = 0; i <= MatchScopeRegex.MAX_PATTERN_LENGTH; i++)
+            longPattern.append('a');
+        assertNull(regex.compilePattern(longPattern.toString()));
+    }
+
+    /**
+     * Test that custom algorithms answer queries and narrow down the candidates.
+     */
+    @Test
+    public void testMatchBy() throws Exception {
+        System.out.println("matchBy");
+        assertEquals(3, directory.matchBy(null, scopes(PREFIX, "http://example.com/floor")).size());
+        assertEquals(2, directory.matchBy(null, scopes(GLOB, "http://example.com/*/printer")).size());
+        assertEquals(1, directory.matchBy(null, scopes(GLOB, "http://example.com/floor?/scanner")).size());
+        assertEquals(2, directory.matchBy(null, scopes(REGEX, "http://example\\.com/floor2/.*")).size());
+        assertEquals(4, directory.matchBy(null, scopes(REGEX, ".*")).size());
+        assertEquals(0, directory.matchBy(null, scopes(REGEX, "(")).size());
+
+        // The index returns only services with scopes starting with the literal prefix
+        assertEquals(1, index.getCandidates(null, scopes(GLOB, "urn:site:*"), null).size());
+        assertEquals(1, index.getCandidates(null, scopes(REGEX, "urn:site:[a-z]+"), null).size());
+        assertEquals(0, index.getCandidates(null, scopes(PREFIX, "urn:other"), null).size());
+        assertNull(index.getCandidates(null, scopes(REGEX, "a|b"), null));
+
+        // Unregistered algorithms match nothing
+        MatchByRegistry.unregister(PREFIX);
+        assertEquals(0, directory.matchBy(null, scopes(PREFIX, "http://example.com/floor")).size());
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.ms.wsdiscovery.servicedirectory.matcher;
+
+import com.ms.wsdiscovery.WsDiscoveryFactory;
+import com.ms.wsdiscovery.datatypes.WsDiscoveryScopesType;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryScope;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import javax.xml.namespace.QName;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author magnus
+ */
+public class MatchProbeTest {
+
+    private QName portType;
+    private WsDiscoveryService[] services;
+
+    public MatchProbeTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+    }
+
+    @Before
+    public void setUp() {
+        portType = new QName("http://localhost/portType", "localPart", "ns");
+        services = new WsDiscoveryService[] {
+            WsDiscoveryFactory.createService(portType, "http://www.test.com/a/b", "http://10.0.0.1:1234/a"),
+            WsDiscoveryFactory.createService(portType, "HTTP://WWW.TEST.COM/a", "http://10.0.0.2:1234/a"),
+            WsDiscoveryFactory.createService(new QName("other"), "http://www.test.com/a/b/c", "http://10.0.0.3:1234/a"),
+            WsDiscoveryFactory.createService(portType, "urn:uuid:" + UUID.randomUUID(), "http://10.0.0.4:1234/a"),
+            WsDiscoveryFactory.createService(portType, "ldap:///ou=a,o=b", "http://10.0.0.5:1234/a")
+        };
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Test of parse method, of class WsDiscoveryScope.
+     */
+    @Test
+    public void testParse() {
+        System.out.println("parse");
+        WsDiscoveryScope scope = WsDiscoveryScope.parse("Http://Www.Test.com/a/B/");
+        assertEquals("HTTP://WWW.TEST.COM", scope.getAuthorityKey());
+        assertEquals(3, scope.getSegmentCount());
+        assertEquals("B", scope.getSegment(2));
+        assertEquals("Http://Www.Test.com/a/B/", scope.toString());
+        assertNull(scope.getUUID());
+
+        UUID uuid = UUID.randomUUID();
+        scope = WsDiscoveryScope.parse("urn:uuid:" + uuid);
+        assertEquals(uuid, scope.getUUID());
+        assertNull(scope.getAuthorityKey());
+
+        // Scopes that are not valid URIs can still be compared as strings
+        scope = WsDiscoveryScope.parse("not a uri");
+        assertNull(scope.getURI());
+        assertNull(scope.getAuthorityKey());
+        assertFalse(scope.isRFC2396PrefixOf(WsDiscoveryScope.parse("http://www.test.com/a")));
+
+        assertTrue(WsDiscoveryScope.parse("http://www.test.com/a").isRFC2396PrefixOf(
+                WsDiscoveryScope.parse("HTTP://www.TEST.com/a/b")));
+        assertFalse(WsDiscoveryScope.parse("http://www.test.com/A").isRFC2396PrefixOf(
+                WsDiscoveryScope.parse("http://www.test.com/a/b")));
+    }
+
+    /**
+     * Test that a compiled probe matches the same services as isMatchedBy.
+     */
+    @Test
+    public void testCompile() {
+        System.out.println("compile");
+        String[][] queries = {
+            {},
+            {"http://www.test.com/a"},
+            {"http://www.test.com/a/b", "http://www.test.com/a"},
+            {"http://www.test.com/a/b/c"},
+            {"HTTP://www.test.com/a/b"},
+            {services[3].getScopes().get(0).toString()},
+            {"fail"},
+            {"ldap:///o=b"}
+        };
+
+        for (MatchBy m : MatchBy.values()) {
+            for (String[] query : queries)
+                for (int t = 0; t < 2; t++) {
+                    WsDiscoveryScopesType scopes = new WsDiscoveryScopesType(m);
+                    for (String s : query)
+                        scopes.getValue().add(s);
+                    List<QName> types = (t == 0 ? null : Collections.singletonList(portType));
+
+                    MatchProbe probe = MatchProbe.compile(types, scopes, null);
+                    for (WsDiscoveryService service : services)
+                        assertEquals(m + " " + Arrays.toString(query) + " " + service.getScopes(),
+                                m.match(service, types, scopes), probe.match(service));
+                }
+        }
+
+        WsDiscoveryScopesType scopes = new WsDiscoveryScopesType(MatchBy.WSD200901_RFC2396);
+        scopes.getValue().add("http://www.test.com/a");
+        MatchProbe probe = MatchProbe.compile(Collections.singletonList(portType), scopes, null);
+        assertTrue(probe.match(services[0]));
+        assertTrue(probe.match(services[1]));
+        assertFalse(probe.match(services[2]));
+        assertFalse(probe.match(services[3]));
+
+        // No algorithm matches nothing, no scopes match all
+        assertFalse(MatchProbe.compile(null, new WsDiscoveryScopesType(null), null).match(services[0]));
+        assertTrue(MatchProbe.compile(null, null, MatchBy.WSD200901_RFC2396).match(services[0]));
+        assertFalse(MatchProbe.compile(null, null, null).match(services[0]));
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.ms.wsdiscovery.servicedirectory.matcher;
+
+import com.ms.wsdiscovery.WsDiscoveryFactory;
+import com.ms.wsdiscovery.datatypes.WsDiscoveryScopesType;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryServiceDirectory;
+import java.util.Arrays;
+import java.util.List;
+import javax.xml.namespace.QName;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author magnus
+ */
+public class MatchScopeLDAPTest {
+
+    private WsDiscoveryService service;
+    private QName servicePortType;
+    private MatchScopeLDAP instance;
+
+    public MatchScopeLDAPTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+    }
+
+    @Before
+    public void setUp() {
+        instance = new MatchScopeLDAP();
+        servicePortType = new QName("http://localhost/portType", "localPart", "ns");
+        service = WsDiscoveryFactory.createService(servicePortType,
+                "ldap://ldap.example.com/cn=Device%201,ou=Floor%202+l=Oslo,o=Example", "http://10.0.0.1:1234/localPart");
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    private static List<String> dn(String dn) {
+        String[] rdns = MatchScopeLDAP.parseDN(dn);
+        return rdns == null ? null : Arrays.asList(rdns);
+    }
+
+    private static WsDiscoveryScopesType scopes(String... values) {
+        WsDiscoveryScopesType s = new WsDiscoveryScopesType(MatchBy.WSD200901_LDAP);
+        for (String v : values)
+            s.getValue().add(v);
+        return s;
+    }
+
+    /**
+     * Test of parseDN method, of class MatchScopeLDAP.
+     */
+    @Test
+    public void testParseDN() {
+        System.out.println("parseDN");
+        List<String> result = dn("CN=Steve Kille,O=Isode Limited,C=GB");
+        assertEquals(3, result.size());
+        assertEquals(dn("c=GB"), Arrays.asList(result.get(0)));
+
+        assertEquals(0, dn("").size());
+
+        // Escapes, hex pairs and the order in multi-valued RDNs
+        assertEquals(dn("CN=L. Eagle,O=Sue\\, Grabbit and Runn,C=GB"),
+                dn("CN=L. Eagle,O=Sue\\2C Grabbit and Runn,C=GB"));
+        assertEquals(dn("OU=Sales+CN=J. Smith,O=Widget Inc.,C=US"),
+                dn("cn=J. Smith+ou=Sales,o=Widget Inc.,c=US"));
+        assertEquals(dn("CN=Lu\\C4\\8Di\\C4\\87"),
+                dn("CN=Lu\u010Di\u0107"));
+        assertFalse(dn("CN=a").equals(dn("CN=A")));
+        assertNotNull(dn("1.3.6.1.4.1.1466.0=#04024869,O=Test,C=GB"));
+
+        // Invalid, or variants not supported
+        assertNull(dn("CN"));
+        assertNull(dn("=a"));
+        assertNull(dn("CN=a,"));
+        assertNull(dn("CN=a;O=b"));
+        assertNull(dn("CN=\"a\""));
+        assertNull(dn("CN=a, O=b"));
+        assertNull(dn("CN=a\\"));
+        assertNull(dn("cn=#12xo=a"));
+        assertNull(dn("cn=#12 ,o=a"));
+    }
+
+    /**
+     * Test of matchScope method, of class MatchScopeLDAP.
+     */
+    @Test
+    public void testMatchScope() {
+        System.out.println("matchScope");
+        assertTrue(instance.matchScope(service, null));
+        assertTrue(instance.matchScope(service, scopes("ldap://ldap.example.com/o=Example")));
+        assertTrue(instance.matchScope(service, scopes("LDAP://LDAP.EXAMPLE.COM/O=Example")));
+        assertTrue(instance.matchScope(service, scopes("ldap://ldap.example.com/l=Oslo+ou=Floor%202,o=Example")));
+        assertTrue(instance.matchScope(service, scopes("ldap://ldap.example.com/cn=Device%201,ou=Floor%202+l=Oslo,o=Example")));
+        assertTrue(instance.matchScope(service, scopes("ldap://ldap.example.com/")));
+        assertTrue(instance.matchScope(service, scopes("ldap://ldap.example.com/o=Example??sub")));
+
+        assertFalse(instance.matchScope(service, scopes("ldap://ldap.example.com/o=example")));
+        assertFalse(instance.matchScope(service, scopes("ldap://ldap.example.com/ou=Floor%202,o=Example")));
+        assertFalse(instance.matchScope(service, scopes("ldap://other.example.com/o=Example")));
+        assertFalse(instance.matchScope(service, scopes("ldap://ldap.example.com:389/o=Example")));
+        assertFalse(instance.matchScope(service, scopes("http://ldap.example.com/o=Example")));
+        assertFalse(instance.matchScope(service, scopes("ldap://ldap.example.com/o=Example", "ldap://ldap.example.com/o=Other")));
+    }
+
+    /**
+     * Test that the directory index returns every service matched by LDAP.
+     */
+    @Test
+    public void testMatchBy() throws Exception {
+        System.out.println("matchBy");
+        WsDiscoveryServiceDirectory directory = new WsDiscoveryServiceDirectory(MatchBy.WSD200901_LDAP);
+        directory.store(service);
+        directory.store(WsDiscoveryFactory.createService(servicePortType,
+                "ldap://ldap.example.com/ou=Floor%201,o=Example", "http://10.0.0.2:1234/localPart"));
+        directory.store(WsDiscoveryFactory.createService(servicePortType,
+                "http://www.test.com/a", "http://10.0.0.3:1234/localPart"));
+
+        String[] probes = {"ldap://ldap.example.com/", "ldap://ldap.example.com/o=Example", 
+            "ldap://ldap.example.com/ou=Floor%201,o=Example", "ldap://other.example.com/o=Example", "fail"};
+        int[] expResults = {2, 2, 1, 0, 0};
+        for (int i = 0; i < probes.length; i++)
+            assertEquals(probes[i], expResults[i], directory.matchBy(null, scopes(probes[i])).size());
+    }
+}
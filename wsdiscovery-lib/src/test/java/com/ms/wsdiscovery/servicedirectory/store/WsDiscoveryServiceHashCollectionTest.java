@@ -0,0 +1,109 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.ms.wsdiscovery.servicedirectory.store;
+
+import com.ms.wsdiscovery.WsDiscoveryFactory;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import java.util.Iterator;
+import javax.xml.namespace.QName;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author magnus
+ */
+public class WsDiscoveryServiceHashCollectionTest {
+
+    private WsDiscoveryServiceHashCollection instance;
+    private WsDiscoveryService service1;
+    private WsDiscoveryService service2;
+
+    public WsDiscoveryServiceHashCollectionTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+    }
+
+    @Before
+    public void setUp() {
+        QName portType = new QName("http://localhost/portType", "localPart", "ns");
+        instance = new WsDiscoveryServiceHashCollection();
+        service1 = WsDiscoveryFactory.createService(portType, "http://www.test.com/a", "http://10.0.0.1:1234/a");
+        service2 = WsDiscoveryFactory.createService(portType, "http://www.test.com/b", "http://10.0.0.2:1234/b");
+        instance.add(service1);
+        instance.add(service2);
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Test of add method, of class WsDiscoveryServiceHashCollection.
+     */
+    @Test
+    public void testAdd() {
+        System.out.println("add");
+
+        WsDiscoveryService copy = new WsDiscoveryService(service1.getEndpointReference(),
+                service1.getPortTypes(), null, service1.getXAddrs(), 0);
+
+        assertTrue(instance.add(copy)); // replaces service1
+        assertEquals(2, instance.size());
+        assertSame(copy, instance.get(service1.getEndpointReference().getAddress()));
+
+        Iterator<WsDiscoveryService> i = instance.iterator();
+        assertSame(copy, i.next());
+        assertSame(service2, i.next());
+        assertFalse(i.hasNext());
+    }
+
+    /**
+     * Test of get method, of class WsDiscoveryServiceHashCollection.
+     */
+    @Test
+    public void testGet() {
+        System.out.println("get");
+
+        String address = service2.getEndpointReference().getAddress().toString();
+        assertSame(service2, instance.get(address));
+        assertSame(service2, instance.get(service2.getEndpointReference().getAddress()));
+        assertTrue(instance.contains(address));
+        assertNull(instance.get("urn:uuid:00000000-0000-0000-0000-000000000000"));
+        assertNull(instance.get(":"));
+    }
+
+    /**
+     * Test of update and remove methods, of class WsDiscoveryServiceHashCollection.
+     */
+    @Test
+    public void testUpdateRemove() {
+        System.out.println("updateRemove");
+
+        WsDiscoveryService copy = new WsDiscoveryService(service2.getEndpointReference(),
+                service2.getPortTypes(), null, service2.getXAddrs(), 0);
+
+        assertTrue(instance.update(copy));
+        assertEquals(2, instance.size());
+        assertSame(copy, instance.get(service2.getEndpointReference().getAddress()));
+
+        assertTrue(instance.remove(service2)); // removed by endpoint address
+        assertEquals(1, instance.size());
+        assertFalse(instance.contains(copy));
+        assertFalse(instance.update(copy));
+        assertFalse(instance.remove("not a service"));
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.ms.wsdiscovery.servicedirectory.store;
+
+import com.ms.wsdiscovery.WsDiscoveryFactory;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryServiceDirectory;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import javax.xml.namespace.QName;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author magnus
+ */
+public class WsDiscoveryServiceJournalCollectionTest {
+
+    private File file;
+    private QName portType;
+
+    public WsDiscoveryServiceJournalCollectionTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("wsdiscovery", ".journal");
+        file.delete();
+        portType = new QName("http://localhost/portType", "localPart", "ns");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+        new File(file.getPath() + ".old").delete();
+    }
+
+    /**
+     * Test that the journal is replayed when reopened.
+     */
+    @Test
+    public void testReplay() throws Exception {
+        System.out.println("replay");
+        WsDiscoveryServiceJournalCollection instance = new WsDiscoveryServiceJournalCollection(file);
+        WsDiscoveryService service1 = WsDiscoveryFactory.createService(portType, "http://www.test.com/a", "http://10.0.0.1:1234/a");
+        WsDiscoveryService service2 = WsDiscoveryFactory.createService(portType, "http://www.test.com/b", "http://10.0.0.2:1234/b");
+        instance.add(service1);
+        instance.add(service2);
+        service1.setMetadataVersion(42);
+        instance.update(service1);
+        instance.remove(service2);
+        instance.close();
+
+        instance = new WsDiscoveryServiceJournalCollection(file);
+        assertEquals(1, instance.size());
+        assertEquals(4, instance.getRecordCount());
+        WsDiscoveryService result = instance.get(service1.getEndpointReference().getAddress());
+        assertNotNull(result);
+        assertEquals(42, result.getMetadataVersion());
+        assertEquals(portType, result.getPortTypes().get(0));
+        assertEquals(URI.create("http://www.test.com/a"), result.getScopes().get(0));
+        assertEquals("http://10.0.0.1:1234/a", result.getXAddrs().get(0));
+        instance.close();
+    }
+
+    /**
+     * Test that a partially written record is ignored.
+     */
+    @Test
+    public void testPartialRecord() throws Exception {
+        System.out.println("partialRecord");
+        WsDiscoveryServiceJournalCollection instance = new WsDiscoveryServiceJournalCollection(file);
+        instance.add(WsDiscoveryFactory.createService(portType, "http://www.test.com/a", "http://10.0.0.1:1234/a"));
+        instance.close();
+
+        // Append a record claiming to be longer than the file
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(4);
+        raf.seek(8 + raf.readInt());
+        raf.writeInt(Integer.MAX_VALUE - 16);
+        raf.close();
+
+        instance = new WsDiscoveryServiceJournalCollection(file);
+        assertEquals(1, instance.size());
+        instance.add(WsDiscoveryFactory.createService(portType, "http://www.test.com/b", "http://10.0.0.2:1234/b"));
+        instance.close();
+
+        instance = new WsDiscoveryServiceJournalCollection(file);
+        assertEquals(2, instance.size());
+        instance.close();
+    }
+
+    /**
+     * Test of compact method, of class WsDiscoveryServiceJournalCollection.
+     */
+    @Test
+    public void testCompact() throws Exception {
+        System.out.println("compact");
+        WsDiscoveryServiceJournalCollection instance = new WsDiscoveryServiceJournalCollection(file, 10);
+        WsDiscoveryService service = WsDiscoveryFactory.createService(portType, "http://www.test.com/a", "http://10.0.0.1:1234/a");
+        instance.add(service);
+        for (int i = 0; i < 100; i++)
+            instance.update(service); // compacted along the way
+
+        assertTrue(instance.getRecordCount() <= 12);
+        assertSame(service, instance.get(service.getEndpointReference().getAddress()));
+        instance.close();
+
+        instance = new WsDiscoveryServiceJournalCollection(file);
+        assertEquals(1, instance.size());
+        instance.close();
+    }
+
+    /**
+     * Test that a journal left missing by an interrupted compaction is
+     * recovered.
+     */
+    @Test
+    public void testRecover() throws Exception {
+        System.out.println("recover");
+        File tmp = new File(file.getPath() + ".tmp");
+        File old = new File(file.getPath() + ".old");
+        WsDiscoveryServiceJournalCollection instance = new WsDiscoveryServiceJournalCollection(file);
+        instance.add(WsDiscoveryFactory.createService(portType, "http://www.test.com/a", "http://10.0.0.1:1234/a"));
+        instance.close();
+
+        // Moved aside, compacted file not written
+        assertTrue(file.renameTo(old));
+        instance = new WsDiscoveryServiceJournalCollection(file);
+        assertEquals(1, instance.size());
+        assertFalse(old.exists());
+        instance.close();
+
+        // Moved aside, compacted file complete
+        instance = new WsDiscoveryServiceJournalCollection(tmp);
+        instance.add(WsDiscoveryFactory.createService(portType, "http://www.test.com/a", "http://10.0.0.1:1234/a"));
+        instance.add(WsDiscoveryFactory.createService(portType, "http://www.test.com/b", "http://10.0.0.2:1234/b"));
+        instance.close();
+        assertTrue(file.renameTo(old));
+        instance = new WsDiscoveryServiceJournalCollection(file);
+        assertEquals(2, instance.size());
+        assertFalse(old.exists());
+        assertFalse(tmp.exists());
+        instance.close();
+
+        // Compacted file only partially written
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        raf.writeInt(0x57534a31);
+        raf.close();
+        instance = new WsDiscoveryServiceJournalCollection(file);
+        assertEquals(2, instance.size());
+        assertFalse(tmp.exists());
+        instance.close();
+    }
+
+    /**
+     * Test of use as storage for a service directory.
+     */
+    @Test
+    public void testUseStorage() throws Exception {
+        System.out.println("useStorage");
+        WsDiscoveryServiceDirectory directory = new WsDiscoveryServiceDirectory(MatchBy.WSD200901_RFC2396);
+        WsDiscoveryServiceJournalCollection instance = new WsDiscoveryServiceJournalCollection(file);
+        directory.useStorage(instance, true);
+        WsDiscoveryService service = WsDiscoveryFactory.createService(portType, "http://www.test.com/a", "http://10.0.0.1:1234/a");
+        directory.store(service);
+        instance.close();
+
+        directory = new WsDiscoveryServiceDirectory(MatchBy.WSD200901_RFC2396);
+        instance = new WsDiscoveryServiceJournalCollection(file);
+        directory.useStorage(instance, true);
+        assertEquals(1, directory.size());
+        assertNotNull(directory.findService(service.getEndpointReference()));
+        assertEquals(1, directory.matchBy(null, null).size());
+        instance.close();
+    }
+}
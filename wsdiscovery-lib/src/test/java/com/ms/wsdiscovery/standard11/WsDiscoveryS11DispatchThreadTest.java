@@ -0,0 +1,218 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.ms.wsdiscovery.standard11;
+
+import com.ms.wsdiscovery.WsDiscoveryConstants;
+import com.ms.wsdiscovery.datatypes.WsDiscoveryActionTypes;
+import com.ms.wsdiscovery.datatypes.WsDiscoveryNamespaces;
+import com.ms.wsdiscovery.interfaces.IWsDiscoveryProbeMatchesListener;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryServiceDirectory;
+import com.ms.wsdiscovery.servicedirectory.matcher.MatchBy;
+import com.skjegstad.soapoverudp.interfaces.ISOAPOverUDP;
+import com.skjegstad.soapoverudp.interfaces.ISOAPOverUDPMessage;
+import com.skjegstad.soapoverudp.interfaces.ISOAPOverUDPTransport;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author magnus
+ */
+public class WsDiscoveryS11DispatchThreadTest {
+
+    private boolean storeRemoteServices;
+    private Executor dispatchExecutor;
+    private DispatchThread instance;
+
+    /**
+     * Dispatch thread that lets the test start the dispatch executor.
+     */
+    private static class DispatchThread extends WsDiscoveryS11DispatchThread {
+        DispatchThread(ISOAPOverUDP soapOverUDP, WsDiscoveryServiceDirectory localServices,
+                WsDiscoveryServiceDirectory serviceDirectory) throws Exception {
+            super(soapOverUDP, localServices, serviceDirectory);
+        }
+
+        void useDispatchExecutor() {
+            startDispatchExecutor();
+        }
+    }
+
+    public WsDiscoveryS11DispatchThreadTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        storeRemoteServices = WsDiscoveryConstants.storeRemoteServices;
+        dispatchExecutor = WsDiscoveryConstants.dispatchExecutor;
+
+        ISOAPOverUDPTransport transport = fake(ISOAPOverUDPTransport.class, new HashMap<String, Object>());
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("getTransport", transport);
+        MatchBy matchBy = WsDiscoveryNamespaces.WS_DISCOVERY_2009_01.getDefaultMatcher();
+        instance = new DispatchThread(fake(ISOAPOverUDP.class, values),
+                new WsDiscoveryServiceDirectory(matchBy), new WsDiscoveryServiceDirectory(matchBy));
+    }
+
+    @After
+    public void tearDown() {
+        WsDiscoveryConstants.storeRemoteServices = storeRemoteServices;
+        WsDiscoveryConstants.dispatchExecutor = dispatchExecutor;
+    }
+
+    /**
+     * Create an object implementing <code>type</code>. Methods return the value
+     * stored under their name, or the default value of their return type.
+     */
+    private static <T> T fake(Class<T> type, final Map<String, Object> values) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class[] { type }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (values.containsKey(method.getName()))
+                    return values.get(method.getName());
+                Class<?> r = method.getReturnType();
+                if (r == Boolean.TYPE)
+                    return Boolean.FALSE;
+                if (r == Integer.TYPE)
+                    return Integer.valueOf(0);
+                if (r == Long.TYPE)
+                    return Long.valueOf(0);
+                return null;
+            }
+        }));
+    }
+
+    /**
+     * Received message that counts how often its body is unmarshalled.
+     */
+    private static class CountingMessage extends WsDiscoveryS11SOAPMessage<Object> {
+        int decoded = 0;
+
+        CountingMessage(ISOAPOverUDPMessage m) throws Exception {
+            super(m);
+        }
+
+        @Override
+        protected void readWSDHeader() {
+        }
+
+        @Override
+        public void decodeJAXBBody() {
+            decoded++;
+        }
+    }
+
+    private static CountingMessage receive(WsDiscoveryActionTypes action, URI relatesTo) throws Exception {
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("getAction", action.toURI(WsDiscoveryNamespaces.WS_DISCOVERY_2009_01));
+        values.put("getMessageId", URI.create("urn:uuid:" + UUID.randomUUID()));
+        values.put("getRelatesTo", relatesTo);
+        values.put("getSrcAddress", InetAddress.getByAddress(new byte[] {10, 0, 0, 1}));
+        values.put("getDstAddress", InetAddress.getByAddress(new byte[] {10, 0, 0, 2}));
+        values.put("getDstPort", Integer.valueOf(3702));
+        return new CountingMessage(fake(ISOAPOverUDPMessage.class, values));
+    }
+
+    /**
+     * Test of dispatch method, of class WsDiscoveryS11DispatchThread. Dropped
+     * messages must not be unmarshalled.
+     */
+    @Test
+    public void testDispatchDropped() throws Exception {
+        System.out.println("dispatchDropped");
+        WsDiscoveryConstants.storeRemoteServices = false;
+
+        CountingMessage hello = receive(WsDiscoveryActionTypes.HELLO, null);
+        instance.dispatch(hello);
+        assertEquals(0, hello.decoded);
+
+        CountingMessage probeMatches = receive(WsDiscoveryActionTypes.PROBEMATCHES, URI.create("urn:uuid:foreign"));
+        instance.dispatch(probeMatches);
+        assertEquals(0, probeMatches.decoded);
+
+        // ProbeMatches for our own Probes are decoded
+        URI probeId = URI.create("urn:uuid:own");
+        instance.getProbeTracker().track(probeId, new IWsDiscoveryProbeMatchesListener() {
+            public void probeMatched(URI relatesTo, List<WsDiscoveryService> services) {
+            }
+        });
+        probeMatches = receive(WsDiscoveryActionTypes.PROBEMATCHES, probeId);
+        instance.dispatch(probeMatches);
+        assertTrue(probeMatches.decoded > 0);
+
+        // Possible proxy announcement
+        hello = receive(WsDiscoveryActionTypes.HELLO, URI.create("urn:uuid:probe"));
+        instance.dispatch(hello);
+        assertTrue(hello.decoded > 0);
+    }
+
+    /**
+     * Test of dispatch method, of class WsDiscoveryS11DispatchThread. Handled
+     * messages are unmarshalled by their handler.
+     */
+    @Test
+    public void testDispatchHandled() throws Exception {
+        System.out.println("dispatchHandled");
+        WsDiscoveryConstants.storeRemoteServices = true;
+
+        CountingMessage hello = receive(WsDiscoveryActionTypes.HELLO, null);
+        instance.dispatch(hello);
+        assertTrue(hello.decoded > 0);
+
+        CountingMessage probeMatches = receive(WsDiscoveryActionTypes.PROBEMATCHES, URI.create("urn:uuid:foreign"));
+        instance.dispatch(probeMatches);
+        assertTrue(probeMatches.decoded > 0);
+    }
+
+    /**
+     * Test of dispatch method, of class WsDiscoveryS11DispatchThread. With a
+     * dispatch executor, the body is unmarshalled by the handler and not by
+     * the receiving thread.
+     */
+    @Test
+    public void testDispatchExecutor() throws Exception {
+        System.out.println("dispatchExecutor");
+        WsDiscoveryConstants.storeRemoteServices = true;
+        final List<Runnable> queued = new ArrayList<Runnable>();
+        WsDiscoveryConstants.dispatchExecutor = new Executor() {
+            public void execute(Runnable command) {
+                queued.add(command);
+            }
+        };
+        instance.useDispatchExecutor();
+
+        CountingMessage hello = receive(WsDiscoveryActionTypes.HELLO, null);
+        instance.dispatch(hello);
+        assertEquals(0, hello.decoded);
+        assertEquals(1, queued.size());
+
+        queued.remove(0).run();
+        assertTrue(hello.decoded > 0);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.ms.wsdiscovery.standard11;
+
+import com.ms.wsdiscovery.WsDiscoveryFactory;
+import com.ms.wsdiscovery.jaxb.standard11.wsdiscovery.ProbeMatchType;
+import com.ms.wsdiscovery.jaxb.standard11.wsdiscovery.ResolveMatchType;
+import com.ms.wsdiscovery.servicedirectory.WsDiscoveryService;
+import java.util.Collections;
+import javax.xml.namespace.QName;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author magnus
+ */
+public class WsDiscoveryS11UtilitiesTest {
+
+    private WsDiscoveryService service;
+
+    public WsDiscoveryS11UtilitiesTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+    }
+
+    @Before
+    public void setUp() {
+        service = WsDiscoveryFactory.createService(new QName("http://localhost/portType", "localPart", "ns"),
+                "http://www.test.com/a", "http://10.0.0.1:1234/a");
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Test of createProbeMatchTypeObject method, of class WsDiscoveryS11Utilities.
+     */
+    @Test
+    public void testCreateProbeMatchTypeObject() {
+        System.out.println("createProbeMatchTypeObject");
+        ProbeMatchType match = WsDiscoveryS11Utilities.createProbeMatchTypeObject(service);
+        assertSame(match, WsDiscoveryS11Utilities.createProbeMatchTypeObject(service));
+        assertEquals(service.getMetadataVersion(), match.getMetadataVersion());
+
+        // Each fragment type is cached separately
+        ResolveMatchType resolveMatch = WsDiscoveryS11Utilities.createResolveMatchTypeObject(service);
+        assertSame(resolveMatch, WsDiscoveryS11Utilities.createResolveMatchTypeObject(service));
+        assertSame(match, WsDiscoveryS11Utilities.createProbeMatchTypeObject(service));
+
+        // Rebuilt when the service changes
+        service.setXAddrs(Collections.singletonList("http://10.0.0.2:1234/a"));
+        ProbeMatchType changed = WsDiscoveryS11Utilities.createProbeMatchTypeObject(service);
+        assertNotSame(match, changed);
+        assertEquals("http://10.0.0.2:1234/a", changed.getXAddrs().get(0));
+        assertSame(changed, WsDiscoveryS11Utilities.createProbeMatchTypeObject(service));
+        assertNotSame(resolveMatch, WsDiscoveryS11Utilities.createResolveMatchTypeObject(service));
+
+        service.invalidateMatchFragments();
+        assertNotSame(changed, WsDiscoveryS11Utilities.createProbeMatchTypeObject(service));
+    }
+}
@@ -20,6 +20,7 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 package com.skjegstad.soapoverudp;
 
 import com.skjegstad.soapoverudp.configurations.SOAPOverUDPConfiguration;
+import com.skjegstad.soapoverudp.datatypes.SOAPOverUDPMessageSizeStatistics;
 import com.skjegstad.soapoverudp.exceptions.SOAPOverUDPException;
 import com.skjegstad.soapoverudp.interfaces.ISOAPOverUDP;
 import com.skjegstad.soapoverudp.interfaces.ISOAPOverUDPMessage;
@@ -43,6 +44,7 @@ public abstract class SOAPOverUDP implements ISOAPOverUDP {
     protected Charset encoding = Charset.defaultCharset();
     protected SOAPOverUDPConfiguration soapConfig;
     private final LinkedList<URI> messagesReceived = new LinkedList<URI>(); // list of received message IDs
+    private final SOAPOverUDPMessageSizeStatistics messageSizes = new SOAPOverUDPMessageSizeStatistics();
     protected Logger logger;
 
     public void start(NetworkInterface multicastInterface, int multicastPort, InetAddress multicastAddress, int multicastTtl, Logger logger) throws SOAPOverUDPException {
@@ -59,7 +61,7 @@ public abstract class SOAPOverUDP implements ISOAPOverUDP {
         if (soapMessage == null)
             throw new SOAPOverUDPException("SOAPOverUDP message is null");
         registerReceived(soapMessage);
-        String message = soapMessage.toString(false, encoding);
+        String message = encode(soapMessage);
         transport.sendStringUnicast(message, destAddress, destPort, true);
     }
 
@@ -67,7 +69,7 @@ public abstract class SOAPOverUDP implements ISOAPOverUDP {
         if (soapMessage == null)
             throw new SOAPOverUDPException("SOAPOverUDP message is null");
         registerReceived(soapMessage);
-        String message = soapMessage.toString(false, encoding);
+        String message = encode(soapMessage);
         try {
             transport.sendStringUnicast(message, destAddress, destPort, false);
         } catch (InterruptedException ex) {
@@ -80,7 +82,7 @@ public abstract class SOAPOverUDP implements ISOAPOverUDP {
             throw new SOAPOverUDPException("SOAPOverUDP message is null");  
         registerReceived(soapMessage);
         try {
-            transport.sendStringMulticast(soapMessage.toString(false, encoding), false);
+            transport.sendStringMulticast(encode(soapMessage), false);
         } catch (InterruptedException ex) {
             throw new SOAPOverUDPException("Received InterruptedException when sending non-blocking", ex);
         }
@@ -90,7 +92,26 @@ public abstract class SOAPOverUDP implements ISOAPOverUDP {
         if (soapMessage == null)
             throw new SOAPOverUDPException("SOAPOverUDP message is null");     
         registerReceived(soapMessage);
-        transport.sendStringMulticast(soapMessage.toString(false, encoding), true);
+        transport.sendStringMulticast(encode(soapMessage), true);
+    }
+
+    /**
+     * Convert a message to the string that is passed to the transport layer.
+     * Uses the compact profile if enabled in the configuration and registers
+     * the encoded size of the message.
+     * @param soapMessage Message to send.
+     * @return String representation of the message.
+     * @throws SOAPOverUDPException on failure.
+     */
+    protected String encode(ISOAPOverUDPMessage soapMessage) throws SOAPOverUDPException {
+        boolean compact = (soapConfig == null) || soapConfig.isCompactXML();
+        String message = soapMessage.toString(false, encoding, compact);
+        messageSizes.add(soapMessage.getAction(), message.getBytes(encoding).length);
+        return message;
+    }
+
+    public SOAPOverUDPMessageSizeStatistics getMessageSizeStatistics() {
+        return messageSizes;
     }
 
     protected ISOAPOverUDPMessage _recv(ISOAPOverUDPNetworkMessage m) throws SOAPOverUDPException {
@@ -0,0 +1,83 @@
+/*
+SOAPOverUDPMultiVersion.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.skjegstad.soapoverudp;
+
+import com.skjegstad.soapoverudp.configurations.SOAPOverUDPConfiguration;
+import com.skjegstad.soapoverudp.datatypes.SOAPOverUDPWsAddressingNamespaces;
+import com.skjegstad.soapoverudp.exceptions.SOAPOverUDPException;
+import com.skjegstad.soapoverudp.interfaces.ISOAPOverUDP;
+import com.skjegstad.soapoverudp.interfaces.ISOAPOverUDPMessage;
+import com.skjegstad.soapoverudp.interfaces.ISOAPOverUDPTransport;
+import com.skjegstad.soapoverudp.messages.SOAPOverUDPWSA200408Message;
+import com.skjegstad.soapoverudp.messages.SOAPOverUDPWSA200508Message;
+import java.nio.charset.Charset;
+import javax.xml.soap.SOAPConstants;
+
+/**
+ * SOAPOverUDP accepting messages using both WS-Addressing 2004/08 (specification
+ * draft from 2004) and WS-Addressing 2005/08 (standard, v 1.1) on the same
+ * transport. Received messages are parsed as the version given by the
+ * WS-Addressing namespace they use. Retransmission follows the standard, v 1.1.
+ *
+ * @author Magnus Skjegstad
+ */
+public class SOAPOverUDPMultiVersion extends SOAPOverUDP implements ISOAPOverUDP {
+    public SOAPOverUDPMultiVersion(ISOAPOverUDPTransport transportLayer, Charset encoding) {
+        soapConfig = new SOAPOverUDPConfiguration();
+
+        soapConfig.setMulticastUDPRepeat(2);
+        soapConfig.setUnicastUDPRepeat(1);
+        soapConfig.setUDPUpperDelay(500);
+        soapConfig.setUDPMaxDelay(250);
+        soapConfig.setUDPMinDelay(50);
+
+        this.setTransport(transportLayer);
+        this.getTransport().setConfiguration(soapConfig);
+
+        this.setEncoding(encoding);
+    }
+
+    /**
+     * Find the WS-Addressing version used in a message without parsing it.
+     * The namespace declared first wins, as the addressing headers precede
+     * any endpoint references in the body.
+     *
+     * @param soapAsXML SOAP message as XML.
+     * @return WS-Addressing version. Defaults to 2005/08 if neither namespace is found.
+     */
+    public static SOAPOverUDPWsAddressingNamespaces getWsAddressingNamespace(String soapAsXML) {
+        int i2004 = soapAsXML.indexOf(SOAPOverUDPWsAddressingNamespaces.WS_ADDRESSING_2004_08.getNamespace());
+        int i2005 = soapAsXML.indexOf(SOAPOverUDPWsAddressingNamespaces.WS_ADDRESSING_2005_08.getNamespace());
+
+        if ((i2004 >= 0) && ((i2005 < 0) || (i2004 < i2005)))
+            return SOAPOverUDPWsAddressingNamespaces.WS_ADDRESSING_2004_08;
+        return SOAPOverUDPWsAddressingNamespaces.WS_ADDRESSING_2005_08;
+    }
+
+    public ISOAPOverUDPMessage createSOAPOverUDPMessageFromXML(String soapAsXML) throws SOAPOverUDPException {
+        if (getWsAddressingNamespace(soapAsXML) == SOAPOverUDPWsAddressingNamespaces.WS_ADDRESSING_2004_08)
+            return new SOAPOverUDPWSA200408Message(soapAsXML, SOAPConstants.SOAP_1_2_PROTOCOL, encoding);
+        return new SOAPOverUDPWSA200508Message(soapAsXML, SOAPConstants.SOAP_1_2_PROTOCOL, encoding);
+    }
+
+    public ISOAPOverUDPMessage createSOAPOverUDPMessage() throws SOAPOverUDPException {
+        return new SOAPOverUDPWSA200508Message(SOAPConstants.SOAP_1_2_PROTOCOL, encoding);
+    }
+}
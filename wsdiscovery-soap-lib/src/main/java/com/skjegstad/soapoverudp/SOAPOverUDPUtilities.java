@@ -23,11 +23,23 @@ import com.skjegstad.soapoverudp.datatypes.SOAPOverUDPGenericAnyType;
 import com.skjegstad.soapoverudp.datatypes.SOAPOverUDPServiceNameType;
 import com.skjegstad.soapoverudp.exceptions.SOAPOverUDPException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import javax.xml.XMLConstants;
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
 import javax.xml.bind.PropertyException;
 import javax.xml.bind.Unmarshaller;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
 
 /**
  * Static helper methods used by SOAP-over-UDP
@@ -61,7 +73,7 @@ public class SOAPOverUDPUtilities {
             throw new SOAPOverUDPException("Unable to create new instance of JAXB marshaller.", ex);
         }
         try {
-            m.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
+            m.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.FALSE);
         } catch (PropertyException ex) {
             throw new SOAPOverUDPException("Unable to set JAXB marshaller property JAXB_FORMATTED_OUTPUT.", ex);
         }
@@ -134,4 +146,88 @@ public class SOAPOverUDPUtilities {
         return s;
     }
 
+    /**
+     * Compact an XML element before it is sent. Whitespace between elements
+     * is removed and prefixed namespace declarations are moved to 
+     * <code>root</code>, so each namespace is only declared once. Declarations
+     * are left where they are if the same prefix is bound to different namespaces.
+     * Prefixes are never renamed, as they may be referred to by QName values.
+     *
+     * @param root Root element, e.g. the SOAP envelope.
+     */
+    public static void compactXML(Element root) {
+        // Find all prefixes and the namespaces they are bound to
+        Map<String, String> declared = new HashMap<String, String>();
+        Set<String> conflicting = new HashSet<String>();
+        collectNamespaceDeclarations(root, declared, conflicting);
+
+        // Declare the unambiguous ones once, on the root element
+        for (Entry<String, String> e : declared.entrySet()) {
+            if (conflicting.contains(e.getKey()))
+                continue;
+            if (root.lookupNamespaceURI(e.getKey()) == null)
+                root.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
+                        XMLConstants.XMLNS_ATTRIBUTE + ":" + e.getKey(), e.getValue());
+        }
+
+        compactElement(root);
+    }
+
+    private static void collectNamespaceDeclarations(Element element,
+            Map<String, String> declared, Set<String> conflicting) {
+        NamedNodeMap attributes = element.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Node a = attributes.item(i);
+            if (!XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(a.getNamespaceURI()) ||
+                    !XMLConstants.XMLNS_ATTRIBUTE.equals(a.getPrefix()))
+                continue; // not a prefixed namespace declaration
+            String previous = declared.put(a.getLocalName(), a.getNodeValue());
+            if ((previous != null) && (!previous.equals(a.getNodeValue())))
+                conflicting.add(a.getLocalName());
+        }
+
+        for (Node n = element.getFirstChild(); n != null; n = n.getNextSibling())
+            if (n.getNodeType() == Node.ELEMENT_NODE)
+                collectNamespaceDeclarations((Element) n, declared, conflicting);
+    }
+
+    private static void compactElement(Element element) {
+        boolean hasElementChildren = false;
+        for (Node n = element.getFirstChild(); n != null; n = n.getNextSibling())
+            if (n.getNodeType() == Node.ELEMENT_NODE) {
+                hasElementChildren = true;
+                break;
+            }
+
+        Node n = element.getFirstChild();
+        while (n != null) {
+            Node next = n.getNextSibling();
+            if (n.getNodeType() == Node.ELEMENT_NODE) {
+                removeRedundantNamespaceDeclarations((Element) n);
+                compactElement((Element) n);
+            } else if (hasElementChildren && (n.getNodeType() == Node.TEXT_NODE) &&
+                    (n.getNodeValue().trim().length() == 0)) {
+                element.removeChild(n); // whitespace between elements
+            }
+            n = next;
+        }
+    }
+
+    private static void removeRedundantNamespaceDeclarations(Element element) {
+        Node parent = element.getParentNode();
+        NamedNodeMap attributes = element.getAttributes();
+        List<Node> redundant = new ArrayList<Node>();
+
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Node a = attributes.item(i);
+            if (!XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(a.getNamespaceURI()))
+                continue;
+            String prefix = XMLConstants.XMLNS_ATTRIBUTE.equals(a.getPrefix()) ? a.getLocalName() : null;
+            if (a.getNodeValue().equals(parent.lookupNamespaceURI(prefix)))
+                redundant.add(a);
+        }
+
+        for (Node a : redundant)
+            element.removeAttributeNode((Attr) a);
+    }
 }
@@ -47,6 +47,18 @@ public class SOAPOverUDPConfiguration {
      * Maximum delay between resent messages.
      */
     protected int UDP_UPPER_DELAY = 500;
+    /**
+     * Send messages without insignificant whitespace and with namespaces declared once.
+     */
+    protected boolean COMPACT_XML = true;
+
+    public boolean isCompactXML() {
+        return COMPACT_XML;
+    }
+
+    public void setCompactXML(boolean COMPACT_XML) {
+        this.COMPACT_XML = COMPACT_XML;
+    }
 
     public int getMulticastUDPRepeat() {
         return MULTICAST_UDP_REPEAT;
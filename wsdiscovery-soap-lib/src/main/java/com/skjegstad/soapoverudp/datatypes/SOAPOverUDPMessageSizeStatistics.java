@@ -0,0 +1,141 @@
+/*
+SOAPOverUDPMessageSizeStatistics.java
+
+Copyright (C) 2008-2009 Magnus Skjegstad
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.skjegstad.soapoverudp.datatypes;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of the encoded size of sent messages, per WS-Addressing action.
+ * Sizes are measured in bytes after character encoding, before the transport
+ * layer applies any compression.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author Magnus Skjegstad
+ */
+public class SOAPOverUDPMessageSizeStatistics {
+    private static final int COUNT = 0;
+    private static final int TOTAL = 1;
+    private static final int MAX = 2;
+    private static final int LAST = 3;
+
+    private final Map<URI, long[]> sizes = new HashMap<URI, long[]>();
+
+    /**
+     * Register a sent message.
+     * @param action WS-Addressing action of the message. May be null.
+     * @param bytes Encoded size in bytes.
+     */
+    public synchronized void add(URI action, int bytes) {
+        long[] s = sizes.get(action);
+        if (s == null) {
+            s = new long[4];
+            sizes.put(action, s);
+        }
+        s[COUNT]++;
+        s[TOTAL] += bytes;
+        if (bytes > s[MAX])
+            s[MAX] = bytes;
+        s[LAST] = bytes;
+    }
+
+    /**
+     * Get the actions that have been registered.
+     * @return List of actions.
+     */
+    public synchronized List<URI> getActions() {
+        return new ArrayList<URI>(sizes.keySet());
+    }
+
+    /**
+     * Get number of messages sent with the given action.
+     * @param action WS-Addressing action.
+     * @return Number of messages.
+     */
+    public synchronized long getCount(URI action) {
+        return get(action, COUNT);
+    }
+
+    /**
+     * Get total number of bytes sent with the given action.
+     * @param action WS-Addressing action.
+     * @return Total size in bytes.
+     */
+    public synchronized long getTotalBytes(URI action) {
+        return get(action, TOTAL);
+    }
+
+    /**
+     * Get size of the largest message sent with the given action.
+     * @param action WS-Addressing action.
+     * @return Size in bytes.
+     */
+    public synchronized long getMaxBytes(URI action) {
+        return get(action, MAX);
+    }
+
+    /**
+     * Get size of the last message sent with the given action.
+     * @param action WS-Addressing action.
+     * @return Size in bytes.
+     */
+    public synchronized long getLastBytes(URI action) {
+        return get(action, LAST);
+    }
+
+    /**
+     * Get average size of the messages sent with the given action.
+     * @param action WS-Addressing action.
+     * @return Average size in bytes, or 0 if no messages have been sent.
+     */
+    public synchronized long getAverageBytes(URI action) {
+        long count = get(action, COUNT);
+        if (count == 0)
+            return 0;
+        return get(action, TOTAL) / count;
+    }
+
+    /**
+     * Forget all registered messages.
+     */
+    public synchronized void clear() {
+        sizes.clear();
+    }
+
+    private long get(URI action, int field) {
+        long[] s = sizes.get(action);
+        if (s == null)
+            return 0;
+        return s[field];
+    }
+
+    @Override
+    public synchronized String toString() {
+        String result = new String();
+        for (Map.Entry<URI, long[]> e : sizes.entrySet())
+            result += e.getKey() + ": count=" + e.getValue()[COUNT] +
+                    ", avg=" + (e.getValue()[TOTAL] / e.getValue()[COUNT]) +
+                    ", max=" + e.getValue()[MAX] + ", last=" + e.getValue()[LAST] + "\n";
+        return result;
+    }
+}
@@ -46,8 +46,9 @@ public enum SOAPOverUDPWsAddressingNamespaces {
     private final URI anonymousReplyTo;
     
     private JAXBContext jaxbContext = null;
-    private Marshaller marshaller = null;
-    private Unmarshaller unmarshaller = null;
+    // Marshallers and unmarshallers are not thread safe, so each thread gets its own
+    private final ThreadLocal<Marshaller> marshaller = new ThreadLocal<Marshaller>();
+    private final ThreadLocal<Unmarshaller> unmarshaller = new ThreadLocal<Unmarshaller>();
 
     SOAPOverUDPWsAddressingNamespaces(String namespace, URI anonymousReplyTo, String contextPath) {
         this.namespace = namespace;
@@ -55,7 +56,7 @@ public enum SOAPOverUDPWsAddressingNamespaces {
         this.anonymousReplyTo = anonymousReplyTo;
     }
 
-    public JAXBContext getJAXBContext() throws SOAPOverUDPException {
+    public synchronized JAXBContext getJAXBContext() throws SOAPOverUDPException {
         if (jaxbContext == null) // only do this once
             jaxbContext = SOAPOverUDPUtilities.createJAXBContext(this.contextPath);
 
@@ -63,15 +64,21 @@ public enum SOAPOverUDPWsAddressingNamespaces {
     }
 
     public Marshaller getMarshaller() throws SOAPOverUDPException {
-        if (marshaller == null) // only do this once
-            marshaller = SOAPOverUDPUtilities.createMarshaller(this.getJAXBContext());
-        return marshaller;
+        Marshaller m = marshaller.get();
+        if (m == null) { // only do this once per thread
+            m = SOAPOverUDPUtilities.createMarshaller(this.getJAXBContext());
+            marshaller.set(m);
+        }
+        return m;
     }
 
     public Unmarshaller getUnmarshaller() throws SOAPOverUDPException {
-        if (unmarshaller == null) // only do this once
-            unmarshaller = SOAPOverUDPUtilities.createUnmarshaller(this.getJAXBContext());
-        return unmarshaller;
+        Unmarshaller u = unmarshaller.get();
+        if (u == null) { // only do this once per thread
+            u = SOAPOverUDPUtilities.createUnmarshaller(this.getJAXBContext());
+            unmarshaller.set(u);
+        }
+        return u;
     }
 
     public String getNamespace() {
@@ -18,6 +18,7 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 package com.skjegstad.soapoverudp.interfaces;
 
+import com.skjegstad.soapoverudp.datatypes.SOAPOverUDPMessageSizeStatistics;
 import com.skjegstad.soapoverudp.exceptions.SOAPOverUDPException;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
@@ -44,4 +45,9 @@ public interface ISOAPOverUDP {
     public void done();
     public void setTransport(ISOAPOverUDPTransport transportLayer);
     public ISOAPOverUDPTransport getTransport();
+    /**
+     * Get the encoded size of sent messages, per WS-Addressing action.
+     * @return Message size statistics.
+     */
+    public SOAPOverUDPMessageSizeStatistics getMessageSizeStatistics();
 }
@@ -90,6 +90,15 @@ public interface ISOAPOverUDPMessage {
      */
     String toString(boolean writeXMLDeclaration, Charset encoding) throws SOAPOverUDPException;
 
+    /**
+     * Returns a String containing this SOAP message.
+     * @param writeXMLDeclaration Write XML declaration.
+     * @param encoding Encoding
+     * @param compact Remove insignificant whitespace and redundant namespace declarations.
+     * @return A String representation of this SOAP message.
+     */
+    String toString(boolean writeXMLDeclaration, Charset encoding, boolean compact) throws SOAPOverUDPException;
+
     @Override
     String toString();
 
@@ -40,6 +40,7 @@ import javax.xml.bind.UnmarshalException;
 import javax.xml.bind.Unmarshaller;
 import javax.xml.soap.MessageFactory;
 import javax.xml.soap.SOAPBody;
+import javax.xml.soap.SOAPEnvelope;
 import javax.xml.soap.SOAPException;
 import javax.xml.soap.SOAPHeader;
 import javax.xml.soap.SOAPHeaderElement;
@@ -380,6 +381,17 @@ public abstract class SOAPOverUDPMessage implements ISOAPOverUDPMessage {
      * @return A String representation of this SOAP message.
      */
     public String toString(boolean writeXMLDeclaration, Charset encoding) throws SOAPOverUDPException {
+        return toString(writeXMLDeclaration, encoding, false);
+    }
+
+    /**
+     * Returns a String containing this SOAP message.
+     * @param writeXMLDeclaration Write XML declaration.
+     * @param encoding Encoding
+     * @param compact Remove insignificant whitespace and redundant namespace declarations. See {@link #compactXML()}.
+     * @return A String representation of this SOAP message.
+     */
+    public String toString(boolean writeXMLDeclaration, Charset encoding, boolean compact) throws SOAPOverUDPException {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
 
         if (encoding == null)
@@ -394,6 +406,9 @@ public abstract class SOAPOverUDPMessage implements ISOAPOverUDPMessage {
 
             this.saveChanges();
 
+            if (compact)
+                this.compactXML();
+
             // Convert to SOAP and let SOAPMessage-object write to out-stream
             soapMessage.writeTo(out);
 
@@ -404,6 +419,23 @@ public abstract class SOAPOverUDPMessage implements ISOAPOverUDPMessage {
         }
     }
 
+    /**
+     * Compact the SOAP message before it is sent.
+     * See {@link SOAPOverUDPUtilities#compactXML(org.w3c.dom.Element)}.
+     * 
+     * @throws SOAPOverUDPException if the SOAP envelope is unavailable.
+     */
+    protected void compactXML() throws SOAPOverUDPException {
+        SOAPEnvelope envelope;
+        try {
+            envelope = soapMessage.getSOAPPart().getEnvelope();
+        } catch (SOAPException ex) {
+            throw new SOAPOverUDPException("Unable to get SOAP envelope", ex);
+        }
+
+        SOAPOverUDPUtilities.compactXML(envelope);
+    }
+
     @Override
     public String toString() {
         try {
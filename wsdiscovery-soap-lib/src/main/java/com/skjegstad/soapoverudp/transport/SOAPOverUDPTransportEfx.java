@@ -38,8 +38,6 @@ import javax.xml.transform.stream.StreamResult;
  */
 public class SOAPOverUDPTransportEfx extends SOAPOverUDPTransport implements ISOAPOverUDPTransport, ISOAPOverUDPConfigurable {
 
-    private EfficientXML efx;
-
     public SOAPOverUDPTransportEfx() {
         super();
     }
@@ -87,7 +85,7 @@ public class SOAPOverUDPTransportEfx extends SOAPOverUDPTransport implements ISO
     protected String decompress(byte[] message) {
         String s = null;
         try {
-            efx = new EfficientXML();
+            EfficientXML efx = new EfficientXML();
             s = efx.decompress(message);
 	    s = s.substring(38);
 	    //System.err.println("EFX decompressed:\n---\n"+s+"\n---\n");
@@ -102,7 +100,7 @@ public class SOAPOverUDPTransportEfx extends SOAPOverUDPTransport implements ISO
     protected byte[] compress(String message) {
         byte[] b = null;
         try {
-            efx = new EfficientXML();
+            EfficientXML efx = new EfficientXML(); // not shared, send() may be called from several threads
             b = efx.compress(message);
         } catch (EfficientXMLException ex) {
 		if (logger != null)
@@ -0,0 +1,115 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package com.skjegstad.soapoverudp;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringWriter;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author magnus
+ */
+public class SOAPOverUDPUtilitiesTest {
+
+    public SOAPOverUDPUtilitiesTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+    }
+
+    @Before
+    public void setUp() {
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    private static Document parse(String xml) throws Exception {
+        DocumentBuilderFactory f = DocumentBuilderFactory.newInstance();
+        f.setNamespaceAware(true);
+        return f.newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+    }
+
+    private static String serialize(Document doc) throws Exception {
+        StringWriter w = new StringWriter();
+        TransformerFactory.newInstance().newTransformer().transform(new DOMSource(doc.getDocumentElement()), new StreamResult(w));
+        String s = w.toString();
+        return s.substring(s.indexOf("?>") + 2); // skip xml declaration
+    }
+
+    /**
+     * Test of compactXML method, of class SOAPOverUDPUtilities.
+     */
+    @Test
+    public void testCompactXML() throws Exception {
+        System.out.println("compactXML");
+        Document doc = parse(
+                "<env:Envelope xmlns:env=\"urn:env\">\n" +
+                "  <env:Header xmlns:wsa=\"urn:wsa\">\n" +
+                "    <wsa:To xmlns:wsa=\"urn:wsa\">urn:to</wsa:To>\n" +
+                "  </env:Header>\n" +
+                "  <env:Body xmlns:env=\"urn:env\">\n" +
+                "    <wsd:Hello xmlns:wsd=\"urn:wsd\" xmlns:wsa=\"urn:wsa\">\n" +
+                "      <wsd:Types xmlns:ns2=\"urn:types\">ns2:Port</wsd:Types>\n" +
+                "      <wsd:Scopes> a b </wsd:Scopes>\n" +
+                "    </wsd:Hello>\n" +
+                "  </env:Body>\n" +
+                "</env:Envelope>");
+
+        SOAPOverUDPUtilities.compactXML(doc.getDocumentElement());
+
+        String result = serialize(doc);
+        assertTrue(result.startsWith("<env:Envelope "));
+        assertTrue(result.contains("xmlns:wsa=\"urn:wsa\""));
+        assertTrue(result.contains("xmlns:wsd=\"urn:wsd\""));
+        assertTrue(result.contains("xmlns:ns2=\"urn:types\""));
+        assertTrue(result.endsWith("><env:Header><wsa:To>urn:to</wsa:To></env:Header>" +
+                "<env:Body><wsd:Hello><wsd:Types>ns2:Port</wsd:Types>" +
+                "<wsd:Scopes> a b </wsd:Scopes></wsd:Hello></env:Body></env:Envelope>"));
+    }
+
+    /**
+     * Test of compactXML method, of class SOAPOverUDPUtilities. Prefixes bound
+     * to different namespaces must not be moved.
+     */
+    @Test
+    public void testCompactXMLConflictingPrefix() throws Exception {
+        System.out.println("compactXMLConflictingPrefix");
+        Document doc = parse(
+                "<env:Envelope xmlns:env=\"urn:env\">" +
+                "<env:Body>" +
+                "<p:A xmlns:p=\"urn:a\"/>" +
+                "<p:B xmlns:p=\"urn:b\"/>" +
+                "</env:Body>" +
+                "</env:Envelope>");
+
+        SOAPOverUDPUtilities.compactXML(doc.getDocumentElement());
+
+        String expResult = "<env:Envelope xmlns:env=\"urn:env\"><env:Body>" +
+                "<p:A xmlns:p=\"urn:a\"/><p:B xmlns:p=\"urn:b\"/>" +
+                "</env:Body></env:Envelope>";
+        String result = serialize(doc);
+        assertEquals(expResult, result);
+    }
+
+}